@@ -0,0 +1,136 @@
+package org.flymine.benchmarks;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.flymine.web.displayer.DrosophilaHomologueDisplayer;
+import org.flymine.web.displayer.FlyAtlasDisplayer;
+import org.flymine.web.displayer.RNAiDisplayer;
+import org.intermine.api.InterMineAPI;
+import org.intermine.model.bio.Gene;
+import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.web.logic.config.ReportDisplayerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Report page displayers run against the synthetic mine, one gene after another so the
+ * ObjectStore caches don't flatter the numbers.  With cache=true the displayer cache is
+ * enabled and, once every gene has been seen, this measures cache hits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class DisplayerBenchmark
+{
+    @Param({"false", "true"})
+    private boolean cache;
+
+    private ReportDisplayer flyAtlas;
+    private ReportDisplayer rnai;
+    private ReportDisplayer homologues;
+    private ServletContext servletContext;
+    private List<Gene> melanogaster;
+    private List<Gene> yakuba;
+
+    /**
+     * Open the synthetic mine and create the displayers.
+     * @throws Exception if the mine can't be opened
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticMine mine = SyntheticMine.getInstance();
+        InterMineAPI im = WebStubs.interMineAPI(mine.getObjectStore());
+        servletContext = WebStubs.servletContext(cache);
+        flyAtlas = new FlyAtlasDisplayer(new ReportDisplayerConfig(), im);
+        rnai = new RNAiDisplayer(new ReportDisplayerConfig(), im);
+        homologues = new DrosophilaHomologueDisplayer(new ReportDisplayerConfig(), im);
+        melanogaster = mine.getGenes("melanogaster");
+        yakuba = mine.getGenes("yakuba");
+    }
+
+    /**
+     * The next gene to display, per thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next = 0;
+
+        Gene next(List<Gene> genes) {
+            Gene gene = genes.get(next % genes.size());
+            next++;
+            return gene;
+        }
+    }
+
+    /**
+     * @param cursor the next gene
+     * @return the request, holding the attributes set
+     */
+    @Benchmark
+    public HttpServletRequest flyAtlas(Cursor cursor) {
+        return display(flyAtlas, cursor.next(melanogaster));
+    }
+
+    /**
+     * @param cursor the next gene
+     * @return the request, holding the attributes set
+     */
+    @Benchmark
+    public HttpServletRequest rnai(Cursor cursor) {
+        return display(rnai, cursor.next(melanogaster));
+    }
+
+    /**
+     * @param cursor the next gene
+     * @return the request, holding the attributes set
+     */
+    @Benchmark
+    public HttpServletRequest homologues(Cursor cursor) {
+        return display(homologues, cursor.next(melanogaster));
+    }
+
+    /**
+     * Homologues for a non-melanogaster gene, which are found through its melanogaster
+     * homologue.
+     * @param cursor the next gene
+     * @return the request, holding the attributes set
+     */
+    @Benchmark
+    public HttpServletRequest recentredHomologues(Cursor cursor) {
+        return display(homologues, cursor.next(yakuba));
+    }
+
+    private HttpServletRequest display(ReportDisplayer displayer, Gene gene) {
+        HttpServletRequest request = WebStubs.request(servletContext);
+        displayer.display(request, WebStubs.reportObject(gene));
+        return request;
+    }
+}
@@ -0,0 +1,119 @@
+package org.flymine.benchmarks;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.flymine.web.MicroArrayChart;
+import org.flymine.web.MicroArrayHelper;
+import org.flymine.web.MicroArrayHelper.GeneExperimentResults;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.query.Results;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * MicroArrayHelper query construction and execution, and drawing the microarray chart served
+ * by ChartRenderer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class MicroArrayBenchmark
+{
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 300;
+
+    private ObjectStore os;
+    private List<String> genes;
+    private MicroArrayChart chart;
+
+    /**
+     * Open the synthetic mine and read one chart's worth of results.
+     * @throws Exception if the mine can't be opened
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SyntheticMine mine = SyntheticMine.getInstance();
+        os = mine.getObjectStore();
+        genes = mine.getMicroArrayGenes();
+        chart = MicroArrayChart.fromResults(MicroArrayHelper.queryMicroArrayResults(
+                Collections.singleton(SyntheticMine.EXPERIMENT),
+                Collections.singleton(genes.get(0)), os));
+    }
+
+    /**
+     * Bind a gene and experiment to the results query, without fetching any rows.
+     * @return the unread results
+     */
+    @Benchmark
+    public Results buildQuery() {
+        return MicroArrayHelper.queryMicroArrayResults(SyntheticMine.EXPERIMENT, genes.get(0),
+                os);
+    }
+
+    /**
+     * Fetch the results for every gene in batches and group them by gene.
+     * @param blackhole consumes the groups
+     */
+    @Benchmark
+    public void batchedResults(Blackhole blackhole) {
+        Iterator<GeneExperimentResults> iter = MicroArrayHelper.queryMicroArrayResults(
+                Collections.singleton(SyntheticMine.EXPERIMENT), genes, os);
+        while (iter.hasNext()) {
+            blackhole.consume(iter.next());
+        }
+    }
+
+    /**
+     * @return the encoded PNG
+     * @throws IOException never, writing to memory
+     */
+    @Benchmark
+    public byte[] renderPng() throws IOException {
+        BufferedImage image = chart.toImage(WIDTH, HEIGHT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the SVG document
+     * @throws IOException never, writing to memory
+     */
+    @Benchmark
+    public String renderSvg() throws IOException {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        chart.writeSvg(sb, WIDTH, HEIGHT);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,211 @@
+package org.flymine.benchmarks;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.flymine.sequence.MappedFastaFile;
+import org.flymine.sequence.PackedSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a chromosome FASTA file and cutting feature sequences out of it, as String copies
+ * the way the fasta source and transfer-sequences do, and as packed views.  The chromosome is
+ * synthetic: 20Mb of random bases with N runs, 60 bases to a line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class SequenceBenchmark
+{
+    private static final int CHROMOSOME_LENGTH = 20 * 1000 * 1000;
+    private static final int FEATURES = 10000;
+    private static final int LINE_LENGTH = 60;
+
+    private File fasta;
+    private String chromosomeString;
+    private PackedSequence chromosomePacked;
+    private int[] starts = new int[FEATURES];
+    private int[] ends = new int[FEATURES];
+    private int[] strands = new int[FEATURES];
+
+    /**
+     * Write the chromosome file and choose the features.
+     * @throws IOException if the file can't be written
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        fasta = File.createTempFile("chromosome", ".fasta");
+        Writer out = new BufferedWriter(new FileWriter(fasta));
+        try {
+            out.write(">2L type=golden_path_region; loc=2L:1.." + CHROMOSOME_LENGTH + "\n");
+            int nRun = 0;
+            for (int i = 0; i < CHROMOSOME_LENGTH; i++) {
+                if (nRun == 0 && random.nextInt(100000) == 0) {
+                    nRun = 100 + random.nextInt(10000);
+                }
+                if (nRun > 0) {
+                    out.write('N');
+                    nRun--;
+                } else {
+                    out.write("ACGT".charAt(random.nextInt(4)));
+                }
+                if (i % LINE_LENGTH == LINE_LENGTH - 1) {
+                    out.write('\n');
+                }
+            }
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+        chromosomeString = readString();
+        chromosomePacked = new MappedFastaFile(fasta).iterator().next().pack();
+        for (int i = 0; i < FEATURES; i++) {
+            starts[i] = 1 + random.nextInt(CHROMOSOME_LENGTH - 20000);
+            ends[i] = starts[i] + random.nextInt(20000);
+            strands[i] = random.nextBoolean() ? 1 : -1;
+        }
+    }
+
+    /**
+     * Remove the chromosome file.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fasta.delete();
+    }
+
+    /**
+     * @return the chromosome read line by line into a String
+     * @throws IOException if the file can't be read
+     */
+    @Benchmark
+    public String readString() throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(fasta));
+        try {
+            StringBuilder residues = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith(">")) {
+                    residues.append(line);
+                }
+            }
+            return residues.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the chromosome mapped and packed
+     * @throws IOException if the file can't be mapped
+     */
+    @Benchmark
+    public PackedSequence readPacked() throws IOException {
+        return new MappedFastaFile(fasta).iterator().next().pack();
+    }
+
+    /**
+     * Copy out every feature, reverse complementing those on the reverse strand.
+     * @param blackhole consumes the features
+     */
+    @Benchmark
+    public void featuresString(Blackhole blackhole) {
+        for (int i = 0; i < FEATURES; i++) {
+            String residues = chromosomeString.substring(starts[i] - 1, ends[i]);
+            if (strands[i] == -1) {
+                residues = reverseComplement(residues);
+            }
+            blackhole.consume(residues);
+        }
+    }
+
+    /**
+     * Locate every feature on the packed chromosome.
+     * @param blackhole consumes the features
+     */
+    @Benchmark
+    public void featuresPacked(Blackhole blackhole) {
+        for (int i = 0; i < FEATURES; i++) {
+            blackhole.consume(chromosomePacked.locate(starts[i], ends[i], strands[i]));
+        }
+    }
+
+    /**
+     * Write 1000 features out, as sequence export does, from String copies.
+     * @param blackhole consumes the output
+     */
+    @Benchmark
+    public void exportString(Blackhole blackhole) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String residues = chromosomeString.substring(starts[i] - 1, ends[i]);
+            out.append(strands[i] == -1 ? reverseComplement(residues) : residues);
+            blackhole.consume(out.length());
+            out.setLength(0);
+        }
+    }
+
+    /**
+     * Write 1000 features out, as sequence export does, from packed views.
+     * @param blackhole consumes the output
+     * @throws IOException never
+     */
+    @Benchmark
+    public void exportPacked(Blackhole blackhole) throws IOException {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            chromosomePacked.locate(starts[i], ends[i], strands[i]).writeTo(out);
+            blackhole.consume(out.length());
+            out.setLength(0);
+        }
+    }
+
+    private static String reverseComplement(String residues) {
+        char[] reversed = new char[residues.length()];
+        for (int i = 0; i < reversed.length; i++) {
+            char c = residues.charAt(residues.length() - 1 - i);
+            switch (c) {
+                case 'A': c = 'T'; break;
+                case 'C': c = 'G'; break;
+                case 'G': c = 'C'; break;
+                case 'T': c = 'A'; break;
+                default: break;
+            }
+            reversed[i] = c;
+        }
+        return new String(reversed);
+    }
+}
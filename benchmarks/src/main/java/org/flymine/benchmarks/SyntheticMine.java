@@ -0,0 +1,290 @@
+package org.flymine.benchmarks;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.flymine.summary.DrosophilaHomologyMatrix;
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.model.bio.DataSet;
+import org.intermine.model.bio.FlyAtlasResult;
+import org.intermine.model.bio.Gene;
+import org.intermine.model.bio.Homologue;
+import org.intermine.model.bio.MicroArrayAssay;
+import org.intermine.model.bio.MicroArrayExperiment;
+import org.intermine.model.bio.MicroArrayResult;
+import org.intermine.model.bio.Organism;
+import org.intermine.model.bio.RNAiScreen;
+import org.intermine.model.bio.RNAiScreenHit;
+import org.intermine.model.bio.Tissue;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.objectstore.query.SimpleConstraint;
+import org.intermine.util.DynamicUtil;
+
+/**
+ * A scratch mine seeded with synthetic melanogaster genes and their 12 genomes homologues,
+ * FlyAtlas results, RNAi screen hits and microarray results, with per gene counts close to
+ * those in a FlyMine release.  The data is only written the first time; a marker DataSet
+ * records that it's there.
+ *
+ * The ObjectStoreWriter alias is read from the benchmark.osw system property (default
+ * osw.benchmark) and the number of melanogaster genes from benchmark.genes (default 5000).
+ */
+public final class SyntheticMine
+{
+    private static final Logger LOG = Logger.getLogger(SyntheticMine.class);
+    /** Name of the homology data set read by DrosophilaHomologueDisplayer. */
+    public static final String HOMOLOGY_DATASET = "Drosophila 12 Genomes Consortium homology";
+    /** The data release of the synthetic data, for the web properties. */
+    public static final String RELEASE = "benchmark";
+    /** Identifier of the synthetic microarray experiment. */
+    public static final String EXPERIMENT = "benchmark-timecourse";
+    private static final String MARKER_DATASET = "FlyMine benchmark data";
+    private static final String[] SPECIES = new String[] {"melanogaster", "simulans",
+        "sechellia", "yakuba", "erecta", "ananassae", "pseudoobscura", "persimilis",
+        "willistoni", "mojavensis", "virilis", "grimshawi"};
+    private static final int TISSUES = 32;
+    private static final int RNAI_SCREENS = 120;
+    private static final int RNAI_HITS_PER_GENE = 6;
+    private static final int ASSAYS = 66;
+    private static final int MICROARRAY_GENES = 500;
+    private static final String[] AFFY_CALLS = new String[] {"Up", "Down", "None"};
+    private static final String[] RNAI_RESULTS = new String[] {"Strong Hit", "Medium Hit",
+        "Weak Hit", "Not a Hit", "Not Screened"};
+    private static SyntheticMine instance = null;
+
+    private final ObjectStoreWriter osw;
+    private final Random random = new Random(42);
+
+    private SyntheticMine(ObjectStoreWriter osw) {
+        this.osw = osw;
+    }
+
+    /**
+     * Open the scratch mine, seeding it if this is the first run against it.
+     * @return the mine
+     * @throws Exception if the ObjectStore can't be opened or written
+     */
+    public static synchronized SyntheticMine getInstance() throws Exception {
+        if (instance == null) {
+            String alias = System.getProperty("benchmark.osw", "osw.benchmark");
+            int genes = Integer.parseInt(System.getProperty("benchmark.genes", "5000"));
+            instance = new SyntheticMine(ObjectStoreWriterFactory.getObjectStoreWriter(alias));
+            if (!instance.isSeeded()) {
+                instance.seed(genes);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the ObjectStore to read the synthetic data from
+     */
+    public ObjectStore getObjectStore() {
+        return osw.getObjectStore();
+    }
+
+    /**
+     * @param species the Drosophila species
+     * @return all the genes of that species, ordered by id
+     */
+    public List<Gene> getGenes(String species) {
+        Query q = new Query();
+        QueryClass qcGene = new QueryClass(Gene.class);
+        QueryClass qcOrganism = new QueryClass(Organism.class);
+        q.addFrom(qcGene);
+        q.addFrom(qcOrganism);
+        q.addToSelect(qcGene);
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcGene, "organism"),
+                    ConstraintOp.CONTAINS, qcOrganism));
+        cs.addConstraint(new SimpleConstraint(new QueryField(qcOrganism, "species"),
+                    ConstraintOp.EQUALS, new QueryValue(species)));
+        q.setConstraint(cs);
+        q.addToOrderBy(new QueryField(qcGene, "id"));
+        List<Gene> genes = new ArrayList<Gene>();
+        Iterator<?> iter = getObjectStore().execute(q, 5000, true, false, true).iterator();
+        while (iter.hasNext()) {
+            genes.add((Gene) ((ResultsRow) iter.next()).get(0));
+        }
+        return genes;
+    }
+
+    /**
+     * @return the primary identifiers of the genes with microarray results in EXPERIMENT
+     */
+    public List<String> getMicroArrayGenes() {
+        List<String> identifiers = new ArrayList<String>();
+        for (int i = 0; i < MICROARRAY_GENES; i++) {
+            identifiers.add(identifier("melanogaster", i));
+        }
+        return identifiers;
+    }
+
+    private boolean isSeeded() {
+        Query q = new Query();
+        QueryClass qcDataSet = new QueryClass(DataSet.class);
+        q.addFrom(qcDataSet);
+        q.addToSelect(qcDataSet);
+        q.setConstraint(new SimpleConstraint(new QueryField(qcDataSet, "name"),
+                    ConstraintOp.EQUALS, new QueryValue(MARKER_DATASET)));
+        return !getObjectStore().execute(q).isEmpty();
+    }
+
+    private void seed(int geneCount) throws Exception {
+        long start = System.currentTimeMillis();
+        LOG.info("Seeding benchmark mine with " + geneCount + " genes per species");
+        osw.beginTransaction();
+
+        DataSet homology = dataSet(HOMOLOGY_DATASET);
+        DataSet flyAtlas = dataSet("FlyAtlas");
+
+        // a gene in every species for each melanogaster gene, linked both ways
+        List<List<Gene>> genesBySpecies = new ArrayList<List<Gene>>();
+        for (String species : SPECIES) {
+            Organism organism = DynamicUtil.createObject(Organism.class);
+            organism.setGenus("Drosophila");
+            organism.setSpecies(species);
+            organism.setName("Drosophila " + species);
+            osw.store(organism);
+            List<Gene> genes = new ArrayList<Gene>();
+            for (int i = 0; i < geneCount; i++) {
+                Gene gene = DynamicUtil.createObject(Gene.class);
+                gene.setPrimaryIdentifier(identifier(species, i));
+                gene.setSymbol(species.substring(0, 4) + "-" + i);
+                gene.setOrganism(organism);
+                osw.store(gene);
+                genes.add(gene);
+            }
+            genesBySpecies.add(genes);
+        }
+        List<Gene> melanogaster = genesBySpecies.get(0);
+        for (int s = 1; s < SPECIES.length; s++) {
+            for (int i = 0; i < geneCount; i++) {
+                // most genes have a homologue in each species, some don't
+                if (random.nextInt(10) == 0) {
+                    continue;
+                }
+                Gene other = genesBySpecies.get(s).get(i);
+                homologue(melanogaster.get(i), other, homology);
+                homologue(other, melanogaster.get(i), homology);
+            }
+        }
+
+        List<Tissue> tissues = new ArrayList<Tissue>();
+        for (int t = 0; t < TISSUES; t++) {
+            Tissue tissue = DynamicUtil.createObject(Tissue.class);
+            tissue.setName("Tissue " + t);
+            osw.store(tissue);
+            tissues.add(tissue);
+        }
+        for (Gene gene : melanogaster) {
+            for (Tissue tissue : tissues) {
+                FlyAtlasResult result = DynamicUtil.createObject(FlyAtlasResult.class);
+                result.setMRNASignal(new Double(random.nextDouble() * 5000));
+                result.setEnrichment(new Double(Math.exp(random.nextGaussian())));
+                result.setPresentCall(new Integer(random.nextInt(5)));
+                result.setAffyCall(AFFY_CALLS[random.nextInt(AFFY_CALLS.length)]);
+                result.setTissue(tissue);
+                result.addGenes(gene);
+                result.addDataSets(flyAtlas);
+                osw.store(result);
+            }
+        }
+
+        List<RNAiScreen> screens = new ArrayList<RNAiScreen>();
+        for (int i = 0; i < RNAI_SCREENS; i++) {
+            RNAiScreen screen = DynamicUtil.createObject(RNAiScreen.class);
+            screen.setName("Screen " + i);
+            osw.store(screen);
+            screens.add(screen);
+        }
+        for (Gene gene : melanogaster) {
+            for (int i = 0; i < RNAI_HITS_PER_GENE; i++) {
+                RNAiScreenHit hit = DynamicUtil.createObject(RNAiScreenHit.class);
+                hit.setGene(gene);
+                hit.setRnaiScreen(screens.get(random.nextInt(RNAI_SCREENS)));
+                hit.setResult(RNAI_RESULTS[random.nextInt(RNAI_RESULTS.length)]);
+                osw.store(hit);
+            }
+        }
+
+        seedMicroArray(melanogaster.subList(0, Math.min(MICROARRAY_GENES, geneCount)));
+        dataSet(MARKER_DATASET);
+        osw.commitTransaction();
+
+        // build the table DrosophilaHomologueDisplayer reads, as the production build would
+        DrosophilaHomologyMatrix.build((ObjectStoreInterMineImpl) osw.getObjectStore(), RELEASE);
+        LOG.info("Seeded benchmark mine in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void seedMicroArray(List<Gene> genes) throws ObjectStoreException {
+        MicroArrayExperiment experiment = DynamicUtil.createObject(MicroArrayExperiment.class);
+        experiment.setIdentifier(EXPERIMENT);
+        osw.store(experiment);
+        List<MicroArrayAssay> assays = new ArrayList<MicroArrayAssay>();
+        for (int i = 0; i < ASSAYS; i++) {
+            MicroArrayAssay assay = DynamicUtil.createObject(MicroArrayAssay.class);
+            // two series, parsed from between ':' and '-' by the chart
+            assay.setSample2("sample: " + ((i % 2 == 0) ? "male" : "female") + " - " + i);
+            assay.setDisplayOrder(new Integer(i / 2));
+            osw.store(assay);
+            assays.add(assay);
+        }
+        for (Gene gene : genes) {
+            for (MicroArrayAssay assay : assays) {
+                MicroArrayResult result = DynamicUtil.createObject(MicroArrayResult.class);
+                result.setValue(new Float(Math.exp(random.nextGaussian())));
+                result.setExperiment(experiment);
+                result.addGenes(gene);
+                result.addAssays(assay);
+                osw.store(result);
+            }
+        }
+    }
+
+    private void homologue(Gene gene, Gene other, DataSet dataSet) throws ObjectStoreException {
+        Homologue homologue = DynamicUtil.createObject(Homologue.class);
+        homologue.setGene(gene);
+        homologue.setHomologue(other);
+        homologue.setType("orthologue");
+        homologue.setDataSets(Collections.singleton(dataSet));
+        osw.store(homologue);
+    }
+
+    private DataSet dataSet(String name) throws ObjectStoreException {
+        DataSet dataSet = DynamicUtil.createObject(DataSet.class);
+        dataSet.setName(name);
+        osw.store(dataSet);
+        return dataSet;
+    }
+
+    private static String identifier(String species, int i) {
+        return "BMK" + species.substring(0, 3).toUpperCase() + i;
+    }
+}
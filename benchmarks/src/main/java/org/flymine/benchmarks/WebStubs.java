@@ -0,0 +1,133 @@
+package org.flymine.benchmarks;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.bag.BagManager;
+import org.intermine.api.bag.BagQueryResult;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.results.ReportObject;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * The servlet and InterMine API objects the report displayers need, stubbed so displayers can
+ * be run outside a servlet container against the synthetic mine.
+ */
+public final class WebStubs
+{
+    private WebStubs() {
+        // don't
+    }
+
+    /**
+     * @param os the ObjectStore to query
+     * @return an InterMineAPI whose path query executor runs against os with no saved lists
+     */
+    public static InterMineAPI interMineAPI(ObjectStore os) {
+        InterMineAPI im = mock(InterMineAPI.class);
+        PathQueryExecutor executor = new PathQueryExecutor(os, null,
+                new HashMap<String, BagQueryResult>(), mock(BagManager.class));
+        when(im.getObjectStore()).thenReturn(os);
+        when(im.getModel()).thenReturn(Model.getInstanceByName("genomic"));
+        when(im.getPathQueryExecutor(any(Profile.class))).thenReturn(executor);
+        return im;
+    }
+
+    /**
+     * @param cacheDisplayers the value of displayer.cache.enabled
+     * @return a servlet context holding its attributes, with web properties set
+     */
+    public static ServletContext servletContext(boolean cacheDisplayers) {
+        ServletContext servletContext = mock(ServletContext.class);
+        Map<String, Object> attributes = attributes(servletContext);
+        Properties webProperties = new Properties();
+        webProperties.setProperty("project.releaseVersion", SyntheticMine.RELEASE);
+        webProperties.setProperty("displayer.cache.enabled", String.valueOf(cacheDisplayers));
+        // time each displayer on its own, not the page
+        webProperties.setProperty("displayer.concurrent.enabled", "false");
+        attributes.put(Constants.WEB_PROPERTIES, webProperties);
+        return servletContext;
+    }
+
+    /**
+     * @param servletContext the servlet context of the session
+     * @return a request with a session, both holding their attributes
+     */
+    public static HttpServletRequest request(ServletContext servletContext) {
+        HttpSession session = mock(HttpSession.class);
+        attributes(session);
+        when(session.getServletContext()).thenReturn(servletContext);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        attributes(request);
+        when(request.getSession()).thenReturn(session);
+        return request;
+    }
+
+    /**
+     * @param object the object being displayed
+     * @return a report object for it
+     */
+    public static ReportObject reportObject(InterMineObject object) {
+        ReportObject reportObject = mock(ReportObject.class);
+        when(reportObject.getObject()).thenReturn(object);
+        return reportObject;
+    }
+
+    /**
+     * Back the getAttribute and setAttribute methods of a mock with a map.
+     */
+    private static Map<String, Object> attributes(Object mock) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        Answer<Object> get = new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        };
+        Answer<Object> set = new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+        };
+        if (mock instanceof ServletContext) {
+            when(((ServletContext) mock).getAttribute(anyString())).thenAnswer(get);
+            doAnswer(set).when((ServletContext) mock).setAttribute(anyString(), any());
+        } else if (mock instanceof HttpSession) {
+            when(((HttpSession) mock).getAttribute(anyString())).thenAnswer(get);
+            doAnswer(set).when((HttpSession) mock).setAttribute(anyString(), any());
+        } else {
+            when(((HttpServletRequest) mock).getAttribute(anyString())).thenAnswer(get);
+            doAnswer(set).when((HttpServletRequest) mock).setAttribute(anyString(), any());
+        }
+        return attributes;
+    }
+}
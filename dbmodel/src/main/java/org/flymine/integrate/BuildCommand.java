@@ -0,0 +1,66 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs one step of the build as a separate command, with its output going to a log file.
+ */
+public final class BuildCommand
+{
+    private BuildCommand() {
+        // don't
+    }
+
+    /**
+     * @param template the command line, split on whitespace, in which each {name} is replaced
+     * with the value of name
+     * @param values the values to put in the template
+     * @param log the file to write the output of the command to
+     * @return the exit status
+     * @throws IOException if the command can't be started or the log written
+     * @throws InterruptedException if interrupted waiting for the command
+     */
+    public static int run(String template, Map<String, String> values, File log)
+        throws IOException, InterruptedException {
+        List<String> args = new ArrayList<String>();
+        for (String arg : template.trim().split("\\s+")) {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                arg = arg.replace("{" + value.getKey() + "}", value.getValue());
+            }
+            args.add(arg);
+        }
+        ProcessBuilder builder = new ProcessBuilder(args);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        InputStream in = process.getInputStream();
+        OutputStream out = new FileOutputStream(log);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        return process.waitFor();
+    }
+}
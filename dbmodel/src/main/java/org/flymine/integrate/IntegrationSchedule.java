@@ -0,0 +1,126 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides what to do next when integrating the sources of a SourceGraph with a number of
+ * staging items databases.  A source takes a staging database when it starts being retrieved
+ * and gives it back once it has been loaded into production.  Retrieves start in project.xml
+ * order as staging databases come free and run concurrently; loads run one at a time, each as
+ * soon as the source is retrieved and its predecessors are loaded.
+ *
+ * Starting sources in declaration order means the predecessors of a started source have always
+ * been started too, so the earliest unloaded source can always be loaded once retrieved and
+ * the schedule can't deadlock on staging databases.
+ */
+public class IntegrationSchedule
+{
+    private final SourceGraph graph;
+    private final List<String> sources;
+    private final LinkedList<Integer> freeStages = new LinkedList<Integer>();
+    private final Map<String, Integer> stages = new HashMap<String, Integer>();
+    private final Set<String> retrieved = new HashSet<String>();
+    private final Set<String> loaded = new HashSet<String>();
+    private int started = 0;
+    private boolean loading = false;
+
+    /**
+     * @param graph the sources to integrate
+     * @param stageCount the number of staging items databases, numbered from 1
+     */
+    public IntegrationSchedule(SourceGraph graph, int stageCount) {
+        if (stageCount < 1) {
+            throw new IllegalArgumentException("need at least one staging database");
+        }
+        this.graph = graph;
+        this.sources = graph.getSources();
+        for (int i = 1; i <= stageCount; i++) {
+            freeStages.add(new Integer(i));
+        }
+    }
+
+    /**
+     * Take the next source to retrieve, if a staging database is free and the next source can
+     * start.
+     * @return the source, or null if nothing can start now
+     */
+    public String nextRetrieve() {
+        if (freeStages.isEmpty() || started == sources.size()) {
+            return null;
+        }
+        String source = sources.get(started);
+        if (graph.isBarrier(source) && !loaded.containsAll(graph.getPredecessors(source))) {
+            return null;
+        }
+        stages.put(source, freeStages.removeFirst());
+        started++;
+        return source;
+    }
+
+    /**
+     * Take the next source to load, if none is loading and one is ready.
+     * @return the source, or null if nothing can be loaded now
+     */
+    public String nextLoad() {
+        if (loading) {
+            return null;
+        }
+        for (int i = 0; i < started; i++) {
+            String source = sources.get(i);
+            if (retrieved.contains(source) && !loaded.contains(source)
+                    && loaded.containsAll(graph.getPredecessors(source))) {
+                loading = true;
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param source a started source
+     * @return the number of the staging database it is retrieved into
+     */
+    public int getStage(String source) {
+        return stages.get(source).intValue();
+    }
+
+    /**
+     * Record that a source is in its staging database.
+     * @param source the source
+     */
+    public void retrieved(String source) {
+        retrieved.add(source);
+    }
+
+    /**
+     * Record that a source is in the production database, freeing its staging database.
+     * @param source the source
+     */
+    public void loaded(String source) {
+        loaded.add(source);
+        loading = false;
+        freeStages.add(stages.get(source));
+    }
+
+    /**
+     * @return true once every source is loaded
+     */
+    public boolean isFinished() {
+        return loaded.size() == sources.size();
+    }
+}
@@ -0,0 +1,335 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Integrates the sources of project.xml with several sources retrieved at once, each into its
+ * own staging items database, and loaded into production one at a time in an order allowed by
+ * the SourceGraph.  Each step is run as a separate command, by default
+ * <pre>
+ * ./gradlew :dbmodel:integrate -Psource={source} -Paction={action} -Pcommon.os.prefix=stage{stage}
+ * </pre>
+ * so the mine properties need an os.stage[n]-tgt-items ObjectStore for each worker.  The wall
+ * time of every step is written to a timings file, which is read back to estimate the build
+ * time with any number of workers without running anything.
+ *
+ * Usage: IntegrationScheduler project.xml priorities class_keys timings workers [estimate]
+ * [source keys directory]
+ */
+public final class IntegrationScheduler
+{
+    private static final Logger LOG = Logger.getLogger(IntegrationScheduler.class);
+    private static final String DEFAULT_COMMAND = "./gradlew :dbmodel:integrate "
+        + "-Psource={source} -Paction={action} -Pcommon.os.prefix=stage{stage} --stacktrace";
+    private static final long DEFAULT_STEP_MILLIS = 60 * 1000L;
+
+    private IntegrationScheduler() {
+        // don't
+    }
+
+    /**
+     * One retrieve or load of a source.
+     */
+    static class Step
+    {
+        private final String source;
+        private final boolean load;
+        private final int stage;
+        private long millis;
+        private boolean failed;
+
+        Step(String source, boolean load, int stage) {
+            this.source = source;
+            this.load = load;
+            this.stage = stage;
+        }
+
+        String getAction() {
+            return load ? "load" : "retrieve";
+        }
+
+        @Override
+        public String toString() {
+            return getAction() + " " + source + " (stage " + stage + ")";
+        }
+    }
+
+    /**
+     * Runs steps, really or on paper.
+     */
+    interface Runner
+    {
+        /**
+         * @param step a step to start
+         */
+        void start(Step step);
+
+        /**
+         * @return the next step to finish, waiting for it if need be
+         * @throws InterruptedException if interrupted while waiting
+         */
+        Step next() throws InterruptedException;
+    }
+
+    /**
+     * Run every source through the schedule.  After a step fails no more are started, and
+     * this returns once the running steps finish, with the schedule unfinished.
+     * @param schedule the schedule
+     * @param runner what runs the steps
+     * @return the steps in the order they finished
+     * @throws InterruptedException if interrupted while waiting for a step
+     */
+    static List<Step> run(IntegrationSchedule schedule, Runner runner)
+        throws InterruptedException {
+        List<Step> finished = new ArrayList<Step>();
+        int running = 0;
+        boolean failed = false;
+        while (!schedule.isFinished()) {
+            String source;
+            while (!failed && (source = schedule.nextRetrieve()) != null) {
+                runner.start(new Step(source, false, schedule.getStage(source)));
+                running++;
+            }
+            while (!failed && (source = schedule.nextLoad()) != null) {
+                runner.start(new Step(source, true, schedule.getStage(source)));
+                running++;
+            }
+            if (running == 0) {
+                break;
+            }
+            Step step = runner.next();
+            running--;
+            finished.add(step);
+            if (step.failed) {
+                LOG.error(step + " failed, waiting for the " + running + " running steps");
+                failed = true;
+            } else if (step.load) {
+                schedule.loaded(step.source);
+            } else {
+                schedule.retrieved(step.source);
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Runs each step as a command, on one thread per staging database.
+     */
+    static class ProcessRunner implements Runner
+    {
+        private final String command;
+        private final File logDir;
+        private final ExecutorService executor;
+        private final CompletionService<Step> completion;
+
+        ProcessRunner(String command, File logDir, int workers) {
+            this.command = command;
+            this.logDir = logDir;
+            executor = Executors.newFixedThreadPool(workers);
+            completion = new ExecutorCompletionService<Step>(executor);
+        }
+
+        public void start(final Step step) {
+            LOG.info("Starting " + step);
+            completion.submit(new Callable<Step>() {
+                public Step call() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        step.failed = exec(step) != 0;
+                    } catch (Exception e) {
+                        LOG.error("Couldn't run " + step, e);
+                        step.failed = true;
+                    }
+                    step.millis = System.currentTimeMillis() - start;
+                    LOG.info("Finished " + step + " in " + step.millis / 1000 + " s");
+                    return step;
+                }
+            });
+        }
+
+        public Step next() throws InterruptedException {
+            try {
+                return completion.take().get();
+            } catch (ExecutionException e) {
+                // the step catches everything itself
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+
+        private int exec(Step step) throws IOException, InterruptedException {
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("source", step.source);
+            values.put("action", step.getAction());
+            values.put("stage", String.valueOf(step.stage));
+            return BuildCommand.run(command, values, new File(logDir,
+                        step.source + "-" + step.getAction() + ".log"));
+        }
+    }
+
+    /**
+     * Runs each step on paper, taking as long as it last took.
+     */
+    static class SimulatedRunner implements Runner
+    {
+        private final Properties timings;
+        private final long defaultMillis;
+        private final PriorityQueue<long[]> ends = new PriorityQueue<long[]>(11,
+                new Comparator<long[]>() {
+                    public int compare(long[] a, long[] b) {
+                        return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+                    }
+                });
+        private final List<Step> steps = new ArrayList<Step>();
+        private long now = 0;
+
+        SimulatedRunner(Properties timings) {
+            this.timings = timings;
+            long total = 0;
+            int count = 0;
+            for (String key : timings.stringPropertyNames()) {
+                total += Long.parseLong(timings.getProperty(key).trim());
+                count++;
+            }
+            defaultMillis = (count == 0) ? DEFAULT_STEP_MILLIS : total / count;
+        }
+
+        public void start(Step step) {
+            String timing = timings.getProperty(step.source + "." + step.getAction());
+            step.millis = (timing == null) ? defaultMillis : Long.parseLong(timing.trim());
+            steps.add(step);
+            ends.add(new long[] {now + step.millis, steps.size() - 1});
+        }
+
+        public Step next() {
+            long[] end = ends.poll();
+            now = end[0];
+            return steps.get((int) end[1]);
+        }
+
+        long getElapsedMillis() {
+            return now;
+        }
+    }
+
+    /**
+     * Estimate the wall time of a build with the given number of workers.
+     * @param graph the sources
+     * @param timings previous step timings
+     * @param workers the number of staging databases
+     * @return the estimated milliseconds
+     */
+    public static long estimate(SourceGraph graph, Properties timings, int workers) {
+        SimulatedRunner runner = new SimulatedRunner(timings);
+        try {
+            run(new IntegrationSchedule(graph, workers), runner);
+        } catch (InterruptedException e) {
+            // nothing waits on paper
+            throw new IllegalStateException(e);
+        }
+        return runner.getElapsedMillis();
+    }
+
+    /**
+     * @param args see the class comment
+     * @throws Exception if the build fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: IntegrationScheduler project.xml priorities class_keys "
+                    + "timings workers [estimate] [source keys directory]");
+            System.exit(1);
+        }
+        File timingsFile = new File(args[3]);
+        int workers = Integer.parseInt(args[4]);
+        boolean estimateOnly = args.length > 5 && "estimate".equals(args[5]);
+        File keysDir = (args.length > 6) ? new File(args[6]) : null;
+        SourceGraph graph = SourceGraph.read(new File(args[0]), new File(args[1]),
+                new File(args[2]), keysDir);
+        Properties timings = new Properties();
+        if (timingsFile.exists()) {
+            InputStream in = new FileInputStream(timingsFile);
+            try {
+                timings.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        if (estimateOnly) {
+            long serial = estimate(graph, timings, 1);
+            for (int n = 1; n <= workers; n++) {
+                long millis = estimate(graph, timings, n);
+                System.out.println(n + " workers: " + formatHours(millis) + " h ("
+                        + String.format("%.2f", (double) serial / millis) + "x)");
+            }
+            return;
+        }
+
+        File logDir = new File(timingsFile.getAbsoluteFile().getParentFile(), "integrate-logs");
+        logDir.mkdirs();
+        String command = System.getProperty("integrate.command", DEFAULT_COMMAND);
+        ProcessRunner runner = new ProcessRunner(command, logDir, workers);
+        IntegrationSchedule schedule = new IntegrationSchedule(graph, workers);
+        long start = System.currentTimeMillis();
+        try {
+            for (Step step : run(schedule, runner)) {
+                if (!step.failed) {
+                    timings.setProperty(step.source + "." + step.getAction(),
+                            String.valueOf(step.millis));
+                }
+            }
+        } finally {
+            runner.shutdown();
+            OutputStream out = new FileOutputStream(timingsFile);
+            try {
+                timings.store(out, "integration step wall times in milliseconds");
+            } finally {
+                out.close();
+            }
+        }
+        if (!schedule.isFinished()) {
+            throw new IllegalStateException("Integration stopped before all sources were "
+                    + "loaded, see the failed step in " + logDir);
+        }
+        LOG.info("Integrated " + graph.getSources().size() + " sources with " + workers
+                + " workers in " + formatHours(System.currentTimeMillis() - start) + " h");
+    }
+
+    private static String formatHours(long millis) {
+        return String.format("%.1f", millis / 3600000.0);
+    }
+}
@@ -0,0 +1,330 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.flymine.search.IdentifierIndex;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.util.DynamicUtil;
+
+/**
+ * Finds the objects in the production store that an object being loaded may merge with, by
+ * the class_keys.properties keys of its class and superclasses, from a KeyTable instead of a
+ * query per object.  A class's keys are separated by commas, and a key of several fields, such
+ * as "Interaction = shortName name", has its fields separated by spaces.  The values of a
+ * key's fields are normalised with IdentifierIndex.normalise() and fingerprinted together with
+ * the name of the class declaring the key and its fields, so the ids found are candidates to
+ * be checked by the merge, but an object with no candidates has no equivalent in the store as
+ * long as the table has been told of every object stored, changed and removed, and
+ * class_keys.properties names every field the sources merge on.
+ *
+ * A batch is resolved in one pass over the table: the fingerprints of every key of every
+ * object are computed first and probed in slot order, so the mapped pages are read in file
+ * order and each at most once per batch.  Not thread safe.
+ */
+public final class KeyResolver
+{
+    private static final int[] NONE = new int[0];
+
+    private final Model model;
+    private final KeyTable table;
+    private final Map<ClassDescriptor, String[][]> declaredKeys
+        = new HashMap<ClassDescriptor, String[][]>();
+    private final Map<ClassDescriptor, Key[]> keys = new HashMap<ClassDescriptor, Key[]>();
+
+    /**
+     * @param model the model of the objects
+     * @param classKeys the contents of class_keys.properties
+     * @param table the table of the production store
+     */
+    public KeyResolver(Model model, Properties classKeys, KeyTable table) {
+        this.model = model;
+        this.table = table;
+        for (String className : classKeys.stringPropertyNames()) {
+            ClassDescriptor cld = model.getClassDescriptorByName(className);
+            if (cld == null) {
+                continue;
+            }
+            List<String[]> classKeyFields = new ArrayList<String[]>();
+            for (String key : classKeys.getProperty(className).split(",")) {
+                String[] fields = key.trim().split("\\s+");
+                boolean attributes = fields[0].length() > 0;
+                for (String field : fields) {
+                    attributes &= cld.getAttributeDescriptorByName(field, true) != null;
+                }
+                // a key with a field that can't be read can't be fingerprinted, the objects
+                // of a class left without keys are looked up in the database
+                if (attributes) {
+                    classKeyFields.add(fields);
+                }
+            }
+            declaredKeys.put(cld, classKeyFields.toArray(new String[classKeyFields.size()][]));
+        }
+    }
+
+    /**
+     * @return the classes with keys, as class descriptor to the fields of each key it declares
+     */
+    Map<ClassDescriptor, String[][]> getDeclaredKeys() {
+        return declaredKeys;
+    }
+
+    /**
+     * @return the keys of a class and its superclasses
+     */
+    private Key[] keys(ClassDescriptor cld) {
+        Key[] classKeys = keys.get(cld);
+        if (classKeys == null) {
+            Set<ClassDescriptor> declaring = new LinkedHashSet<ClassDescriptor>();
+            declaring.add(cld);
+            declaring.addAll(cld.getAllSuperDescriptors());
+            List<Key> found = new ArrayList<Key>();
+            for (ClassDescriptor superCld : declaring) {
+                String[][] keyFields = declaredKeys.get(superCld);
+                if (keyFields != null) {
+                    for (String[] fields : keyFields) {
+                        found.add(new Key(superCld.getUnqualifiedName(), fields));
+                    }
+                }
+            }
+            classKeys = found.toArray(new Key[found.size()]);
+            keys.put(cld, classKeys);
+        }
+        return classKeys;
+    }
+
+    /**
+     * @return the fingerprints of the keys an object has every field of, or null if its class
+     * has no keys
+     */
+    private long[] fingerprints(InterMineObject object) {
+        ClassDescriptor cld = model.getClassDescriptorByName(
+                DynamicUtil.getSimpleClass(object).getName());
+        Key[] objectKeys = keys(cld);
+        if (objectKeys.length == 0) {
+            return null;
+        }
+        long[] fingerprints = new long[objectKeys.length];
+        int count = 0;
+        for (Key key : objectKeys) {
+            Object[] values = new Object[key.fields.length];
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    values[i] = object.getFieldValue(key.fields[i]);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            long fingerprint = fingerprint(key.className, key.fields, values);
+            if (fingerprint != 0) {
+                fingerprints[count++] = fingerprint;
+            }
+        }
+        return (count == fingerprints.length) ? fingerprints
+            : Arrays.copyOf(fingerprints, count);
+    }
+
+    /**
+     * The fingerprint of the values of a key: FNV-1a over the UTF-8 bytes of the class, the
+     * fields and each normalised value, separated by NULs, with the MurmurHash3 64 bit
+     * finaliser.
+     * @param className the unqualified name of the class declaring the key
+     * @param fields the fields of the key
+     * @param values the value of each field
+     * @return the fingerprint, never 0, or 0 if a value is null or normalises to nothing
+     */
+    static long fingerprint(String className, String[] fields, Object[] values) {
+        StringBuilder key = new StringBuilder(className).append('\0');
+        for (int i = 0; i < fields.length; i++) {
+            key.append((i == 0) ? "" : " ").append(fields[i]);
+        }
+        for (Object value : values) {
+            String normalised = (value == null) ? "" : IdentifierIndex.normalise(value.toString());
+            if (normalised.length() == 0) {
+                return 0;
+            }
+            key.append('\0').append(normalised);
+        }
+        byte[] bytes;
+        try {
+            bytes = key.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a87cdL;
+        h ^= h >>> 33;
+        // 0 marks an empty slot
+        return (h == 0) ? 1 : h;
+    }
+
+    /**
+     * Find the candidates for a batch of objects to be loaded.  An object sharing a key with
+     * an earlier one in the batch may merge with it once it is stored, which the table can't
+     * know yet, and an object of a class without keys can't be looked up, so the candidates
+     * of those are null.
+     * @param objects the objects, with fewer than 2^24 key values between them
+     * @return for each object the ids of the objects in the store it may merge with, in
+     * ascending order and empty if it is new, or null if the database must be asked
+     */
+    public int[][] resolve(List<InterMineObject> objects) {
+        long[][] objectFingerprints = new long[objects.size()][];
+        Map<Long, Integer> firstObjects = new HashMap<Long, Integer>();
+        int total = 0;
+        for (int i = 0; i < objectFingerprints.length; i++) {
+            long[] fingerprints = fingerprints(objects.get(i));
+            boolean shared = false;
+            for (int f = 0; fingerprints != null && f < fingerprints.length; f++) {
+                Integer first = firstObjects.get(new Long(fingerprints[f]));
+                if (first == null) {
+                    firstObjects.put(new Long(fingerprints[f]), new Integer(i));
+                } else if (first.intValue() != i) {
+                    shared = true;
+                }
+            }
+            if (shared) {
+                fingerprints = null;
+            }
+            objectFingerprints[i] = fingerprints;
+            total += (fingerprints == null) ? 0 : fingerprints.length;
+        }
+        if (total >= 1 << 24) {
+            throw new IllegalArgumentException("Too many keys in a batch: " + total);
+        }
+        // each probe as slot << 24 | probe, sorted
+        long[] probes = new long[total];
+        long[] probeFingerprints = new long[total];
+        int[] probeObjects = new int[total];
+        int probe = 0;
+        for (int i = 0; i < objectFingerprints.length; i++) {
+            if (objectFingerprints[i] == null) {
+                continue;
+            }
+            for (long fingerprint : objectFingerprints[i]) {
+                probes[probe] = (table.slot(fingerprint) << 24) | probe;
+                probeFingerprints[probe] = fingerprint;
+                probeObjects[probe] = i;
+                probe++;
+            }
+        }
+        Arrays.sort(probes);
+
+        int[][] results = new int[objects.size()][];
+        for (int i = 0; i < results.length; i++) {
+            if (objectFingerprints[i] != null) {
+                results[i] = NONE;
+            }
+        }
+        for (long packed : probes) {
+            int p = (int) (packed & ((1 << 24) - 1));
+            int[] ids = table.get(probeFingerprints[p]);
+            if (ids.length > 0) {
+                results[probeObjects[p]] = union(results[probeObjects[p]], ids);
+            }
+        }
+        return results;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            int[] sorted = b.clone();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+        int[] merged = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        Arrays.sort(merged);
+        int count = 0;
+        for (int id : merged) {
+            if (count == 0 || merged[count - 1] != id) {
+                merged[count++] = id;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Record the keys of an object just stored, so later batches find it.
+     * @param object the object as stored, with its id
+     * @throws IOException if the table can't grow
+     */
+    public void stored(InterMineObject object) throws IOException {
+        long[] fingerprints = fingerprints(object);
+        if (fingerprints != null) {
+            for (long fingerprint : fingerprints) {
+                table.put(fingerprint, object.getId().intValue());
+            }
+        }
+    }
+
+    /**
+     * Forget the keys of an object about to be deleted, or merged into another, or to have its
+     * key fields changed, so later batches don't find it by them.  An object changed is then
+     * passed to stored() again.
+     * @param object the object as it is stored, with its id
+     */
+    public void removed(InterMineObject object) {
+        long[] fingerprints = fingerprints(object);
+        if (fingerprints != null) {
+            for (long fingerprint : fingerprints) {
+                table.remove(fingerprint, object.getId().intValue());
+            }
+        }
+    }
+
+    /**
+     * Record a key of a stored object, as read from the store without loading it.
+     * @param className the unqualified name of the class declaring the key
+     * @param fields the fields of the key
+     * @param values the value of each field
+     * @param id the object id
+     * @throws IOException if the table can't grow
+     */
+    void stored(String className, String[] fields, Object[] values, int id) throws IOException {
+        long fingerprint = fingerprint(className, fields, values);
+        if (fingerprint != 0) {
+            table.put(fingerprint, id);
+        }
+    }
+
+    /**
+     * A key of a class: the class declaring it and its fields.
+     */
+    private static final class Key
+    {
+        private final String className;
+        private final String[] fields;
+
+        Key(String className, String[] fields) {
+            this.className = className;
+            this.fields = fields;
+        }
+    }
+}
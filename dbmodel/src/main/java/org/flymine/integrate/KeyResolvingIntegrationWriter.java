@@ -0,0 +1,173 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.intermine.dataloader.DataTracker;
+import org.intermine.dataloader.IntegrationWriterDataTrackingImpl;
+import org.intermine.dataloader.Source;
+import org.intermine.model.FastPathObject;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
+import org.intermine.objectstore.intermine.ObjectStoreWriterInterMineImpl;
+
+/**
+ * The data tracking integration writer, asking a KeyResolver for the objects an object being
+ * loaded may merge with before the database.  An object with no candidates in the key table is
+ * new and is stored without a query; the others are looked up as usual, so a key table can only
+ * cost a query, never a merge, as long as it holds every object in production.  Every object
+ * stored is recorded in the table, so it stays complete from one load to the next.
+ *
+ * Used for a load by setting, in the mine properties,
+ * <pre>
+ * integration.production.class=org.flymine.integrate.KeyResolvingIntegrationWriter
+ * integration.production.keyTable=[the table written by the keyTable task]
+ * </pre>
+ * with osw, datatrackerMaxSize and datatrackerCommitMaxSize as for
+ * IntegrationWriterDataTrackingImpl.  Without a keyTable, or if the table wasn't closed by the
+ * last load, every object is looked up in the database, and the table must be built again
+ * before it is used for another load.
+ */
+public class KeyResolvingIntegrationWriter extends IntegrationWriterDataTrackingImpl
+{
+    private static final Logger LOG = Logger.getLogger(KeyResolvingIntegrationWriter.class);
+
+    private final KeyTable table;
+    private final KeyResolver resolver;
+    private long resolved = 0;
+    private long queried = 0;
+
+    /**
+     * @param osw the production ObjectStoreWriter
+     * @param dataTracker the data tracker
+     * @param table the key table of production, or null to look every object up in the database
+     * @param classKeys the contents of class_keys.properties
+     */
+    public KeyResolvingIntegrationWriter(ObjectStoreWriter osw, DataTracker dataTracker,
+            KeyTable table, Properties classKeys) {
+        super(osw, dataTracker);
+        this.table = table;
+        this.resolver = (table == null) ? null : new KeyResolver(osw.getModel(), classKeys, table);
+    }
+
+    /**
+     * Called by IntegrationWriterFactory.
+     * @param alias the alias of the integration writer
+     * @param props the properties of the alias
+     * @return the integration writer
+     * @throws ObjectStoreException if the properties are incomplete or the writer can't be made
+     */
+    public static KeyResolvingIntegrationWriter getInstance(String alias, Properties props)
+        throws ObjectStoreException {
+        String writerAlias = props.getProperty("osw");
+        String maxSize = props.getProperty("datatrackerMaxSize");
+        String commitMaxSize = props.getProperty("datatrackerCommitMaxSize");
+        if (writerAlias == null || maxSize == null || commitMaxSize == null) {
+            throw new ObjectStoreException(alias + " needs osw, datatrackerMaxSize and "
+                    + "datatrackerCommitMaxSize (check properties file)");
+        }
+        ObjectStoreWriter writer = ObjectStoreWriterFactory.getObjectStoreWriter(writerAlias);
+        if (!(writer instanceof ObjectStoreWriterInterMineImpl)) {
+            throw new ObjectStoreException(writerAlias
+                    + " isn't an ObjectStoreWriterInterMineImpl");
+        }
+        DataTracker dataTracker = new DataTracker(
+                ((ObjectStoreWriterInterMineImpl) writer).getDatabase(),
+                Integer.parseInt(maxSize.trim()), Integer.parseInt(commitMaxSize.trim()));
+        String keyTable = props.getProperty("keyTable", "").trim();
+        KeyTable table = null;
+        Properties classKeys = null;
+        if (keyTable.length() == 0) {
+            LOG.warn(alias + ".keyTable isn't set, every object is looked up in the database");
+        } else if (!new File(keyTable).exists()) {
+            LOG.warn("No key table " + keyTable + ", every object is looked up in the database");
+        } else {
+            try {
+                classKeys = KeyTableBuilder.loadClassKeys();
+                table = new KeyTable(new File(keyTable));
+            } catch (IOException e) {
+                LOG.warn("Can't use key table " + keyTable + ", every object is looked up in the "
+                        + "database: " + e.getMessage());
+            }
+        }
+        return new KeyResolvingIntegrationWriter(writer, dataTracker, table, classKeys);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<InterMineObject> getEquivalentObjects(InterMineObject obj, Source source)
+        throws ObjectStoreException {
+        if (resolver != null) {
+            boolean isNew;
+            synchronized (resolver) {
+                int[] candidates = resolver.resolve(Collections.singletonList(obj))[0];
+                isNew = candidates != null && candidates.length == 0;
+                if (isNew) {
+                    resolved++;
+                } else {
+                    queried++;
+                }
+            }
+            if (isNew) {
+                return Collections.emptySet();
+            }
+        }
+        return super.getEquivalentObjects(obj, source);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected InterMineObject store(FastPathObject o, Source source, Source skelSource,
+            int type) throws ObjectStoreException {
+        InterMineObject stored = super.store(o, source, skelSource, type);
+        if (resolver != null && stored != null) {
+            try {
+                synchronized (resolver) {
+                    resolver.stored(stored);
+                }
+            } catch (IOException e) {
+                throw new ObjectStoreException("Couldn't record the keys of " + stored.getId()
+                        + " in the key table", e);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Close the writer and then the key table, which is left unusable if the load fails before.
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws ObjectStoreException {
+        super.close();
+        if (table != null) {
+            LOG.info("Key table resolved " + resolved + " new objects without a query, "
+                    + queried + " objects were looked up in the database");
+            try {
+                table.close();
+            } catch (IOException e) {
+                throw new ObjectStoreException("Couldn't close the key table", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An open addressing hash table from 64 bit key fingerprints to object ids, kept off the heap
+ * in a file mapped read-write, so it is filled from the production store once and then
+ * updated by every load.  A fingerprint may have several ids.
+ *
+ * The file is a header of magic, version, state, slot count and entry count, then the slots
+ * in segments of up to 2^24, each segment's fingerprints (longs, 0 for an empty slot) then its
+ * ids (ints).  Slots are probed linearly and kept at most half full, growing the file by
+ * rewriting it with twice the slots.  A removed entry's slot is refilled by shifting back the
+ * entries probed past it, so no tombstones are left.  While open the state is OPEN, so a table
+ * left open by a load that died, which may be missing the keys of objects it stored, is
+ * refused rather than trusted.  All numbers are big endian.  Not thread safe.
+ */
+public final class KeyTable
+{
+    /** Identifies a key table file. */
+    public static final int MAGIC = 0x464d4b54;
+    /** The format version. */
+    public static final int VERSION = 1;
+
+    private static final int CLEAN = 0;
+    private static final int OPEN = 1;
+    private static final int HEADER = 32;
+    private static final int SEGMENT_BITS = 24;
+    private static final long MIN_SLOTS = 1 << 16;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] fingerprints;
+    private MappedByteBuffer[] ids;
+    private long slots;
+    private long mask;
+    private long count;
+
+    /**
+     * Open a table, creating an empty one if the file doesn't exist.
+     * @param file the table file
+     * @throws IOException if the file can't be mapped, isn't a key table or wasn't closed
+     */
+    public KeyTable(File file) throws IOException {
+        this.file = file;
+        if (!file.exists()) {
+            create(file, MIN_SLOTS);
+        }
+        open();
+        if (header.getInt(8) != CLEAN) {
+            close(false);
+            throw new IOException(file + " wasn't closed by the load that last used it, so may"
+                    + " be missing keys: rebuild it");
+        }
+        header.putInt(8, OPEN);
+        header.force();
+    }
+
+    private static void create(File file, long slots) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(HEADER + 12 * slots);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(CLEAN);
+            out.writeInt(0);
+            out.writeLong(slots);
+            out.writeLong(0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            raf.close();
+            throw new IOException(file + " isn't a version " + VERSION + " key table");
+        }
+        slots = header.getLong(16);
+        count = header.getLong(24);
+        mask = slots - 1;
+        long segmentSlots = Math.min(slots, 1L << SEGMENT_BITS);
+        int segments = (int) (slots / segmentSlots);
+        fingerprints = new MappedByteBuffer[segments];
+        ids = new MappedByteBuffer[segments];
+        long offset = HEADER;
+        for (int i = 0; i < segments; i++) {
+            fingerprints[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset,
+                    8 * segmentSlots);
+            offset += 8 * segmentSlots;
+            ids[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, 4 * segmentSlots);
+            offset += 4 * segmentSlots;
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @param fingerprint a key fingerprint
+     * @return the slot the probe for it starts at
+     */
+    long slot(long fingerprint) {
+        return fingerprint & mask;
+    }
+
+    private long fingerprintAt(long slot) {
+        return fingerprints[(int) (slot >>> SEGMENT_BITS)]
+            .getLong(8 * (int) (slot & ((1 << SEGMENT_BITS) - 1)));
+    }
+
+    private int idAt(long slot) {
+        return ids[(int) (slot >>> SEGMENT_BITS)]
+            .getInt(4 * (int) (slot & ((1 << SEGMENT_BITS) - 1)));
+    }
+
+    private void set(long slot, long fingerprint, int id) {
+        int segment = (int) (slot >>> SEGMENT_BITS);
+        int index = (int) (slot & ((1 << SEGMENT_BITS) - 1));
+        ids[segment].putInt(4 * index, id);
+        fingerprints[segment].putLong(8 * index, fingerprint);
+    }
+
+    /**
+     * Find the ids of a fingerprint.
+     * @param fingerprint the fingerprint, not 0
+     * @return the ids, in the order added, empty if none
+     */
+    public int[] get(long fingerprint) {
+        int[] found = new int[0];
+        for (long slot = slot(fingerprint);; slot = (slot + 1) & mask) {
+            long value = fingerprintAt(slot);
+            if (value == 0) {
+                return found;
+            }
+            if (value == fingerprint) {
+                found = Arrays.copyOf(found, found.length + 1);
+                found[found.length - 1] = idAt(slot);
+            }
+        }
+    }
+
+    /**
+     * Add an id to a fingerprint, unless it's there already.
+     * @param fingerprint the fingerprint, not 0
+     * @param id the object id
+     * @throws IOException if the table needs to grow and the file can't be rewritten
+     */
+    public void put(long fingerprint, int id) throws IOException {
+        if (2 * (count + 1) > slots) {
+            grow();
+        }
+        long slot = slot(fingerprint);
+        while (true) {
+            long value = fingerprintAt(slot);
+            if (value == 0) {
+                break;
+            }
+            if (value == fingerprint && idAt(slot) == id) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        set(slot, fingerprint, id);
+        count++;
+        header.putLong(24, count);
+    }
+
+    /**
+     * Remove an id from a fingerprint, if it's there.
+     * @param fingerprint the fingerprint, not 0
+     * @param id the object id
+     * @return true if it was there
+     */
+    public boolean remove(long fingerprint, int id) {
+        long hole = slot(fingerprint);
+        while (true) {
+            long value = fingerprintAt(hole);
+            if (value == 0) {
+                return false;
+            }
+            if (value == fingerprint && idAt(hole) == id) {
+                break;
+            }
+            hole = (hole + 1) & mask;
+        }
+        // move back each following entry of the run whose probe passed over the hole
+        for (long slot = (hole + 1) & mask;; slot = (slot + 1) & mask) {
+            long value = fingerprintAt(slot);
+            if (value == 0) {
+                break;
+            }
+            if (((slot - slot(value)) & mask) >= ((slot - hole) & mask)) {
+                set(hole, value, idAt(slot));
+                hole = slot;
+            }
+        }
+        set(hole, 0, 0);
+        count--;
+        header.putLong(24, count);
+        return true;
+    }
+
+    /**
+     * Rewrite the table with twice the slots beside the file, then move it over the file.
+     */
+    private void grow() throws IOException {
+        File growing = new File(file.getPath() + ".growing");
+        create(growing, 2 * slots);
+        KeyTable bigger = new KeyTable(growing);
+        for (long slot = 0; slot < slots; slot++) {
+            long fingerprint = fingerprintAt(slot);
+            if (fingerprint != 0) {
+                bigger.put(fingerprint, idAt(slot));
+            }
+        }
+        bigger.close();
+        close(false);
+        if (!growing.renameTo(file)) {
+            throw new IOException("Couldn't move " + growing + " to " + file);
+        }
+        open();
+        header.putInt(8, OPEN);
+    }
+
+    /**
+     * Write the table and mark it complete.  It mustn't be used afterwards.
+     * @throws IOException if the file can't be written
+     */
+    public void close() throws IOException {
+        close(true);
+    }
+
+    private void close(boolean clean) throws IOException {
+        if (clean) {
+            for (int i = 0; i < fingerprints.length; i++) {
+                ids[i].force();
+                fingerprints[i].force();
+            }
+            header.putInt(8, CLEAN);
+            header.force();
+        }
+        raf.close();
+    }
+}
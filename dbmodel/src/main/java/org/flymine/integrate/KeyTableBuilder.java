@@ -0,0 +1,149 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+
+/**
+ * Fills a KeyTable with every class_keys.properties key value in the production store.  The
+ * key fields of each class are read as fields, one query per class, so no objects are loaded.
+ */
+public final class KeyTableBuilder
+{
+    private static final Logger LOG = Logger.getLogger(KeyTableBuilder.class);
+    private static final int BATCH_SIZE = 10000;
+
+    private final ObjectStore os;
+    private final Properties classKeys;
+
+    /**
+     * @param os the ObjectStore to read
+     * @param classKeys the contents of class_keys.properties
+     */
+    public KeyTableBuilder(ObjectStore os, Properties classKeys) {
+        this.os = os;
+        this.classKeys = classKeys;
+    }
+
+    /**
+     * @param file the table file to write, which mustn't exist
+     * @throws Exception if the ObjectStore can't be read or the file written
+     */
+    public void build(File file) throws Exception {
+        long start = System.currentTimeMillis();
+        KeyTable table = new KeyTable(file);
+        KeyResolver resolver = new KeyResolver(os.getModel(), classKeys, table);
+        for (Map.Entry<ClassDescriptor, String[][]> keys
+                : resolver.getDeclaredKeys().entrySet()) {
+            String className = keys.getKey().getUnqualifiedName();
+            String[][] keyFields = keys.getValue();
+            if (keyFields.length == 0) {
+                continue;
+            }
+            // each field selected once, after the id, however many keys it is in
+            List<String> fields = new ArrayList<String>();
+            int[][] columns = new int[keyFields.length][];
+            for (int k = 0; k < keyFields.length; k++) {
+                columns[k] = new int[keyFields[k].length];
+                for (int f = 0; f < keyFields[k].length; f++) {
+                    if (!fields.contains(keyFields[k][f])) {
+                        fields.add(keyFields[k][f]);
+                    }
+                    columns[k][f] = fields.indexOf(keyFields[k][f]) + 1;
+                }
+            }
+            Query q = new Query();
+            QueryClass qc = new QueryClass(keys.getKey().getType());
+            q.addFrom(qc);
+            q.addToSelect(new QueryField(qc, "id"));
+            for (String field : fields) {
+                q.addToSelect(new QueryField(qc, field));
+            }
+            q.setDistinct(false);
+            int count = 0;
+            for (Object row : os.execute(q, BATCH_SIZE, true, false, false)) {
+                List<?> values = (List<?>) row;
+                int id = ((Integer) values.get(0)).intValue();
+                for (int k = 0; k < keyFields.length; k++) {
+                    Object[] keyValues = new Object[columns[k].length];
+                    for (int f = 0; f < keyValues.length; f++) {
+                        keyValues[f] = values.get(columns[k][f]);
+                    }
+                    resolver.stored(className, keyFields[k], keyValues, id);
+                }
+                count++;
+            }
+            LOG.info("Read the " + className + " keys of " + count + " objects, "
+                    + table.size() + " keys in all");
+        }
+        table.close();
+        LOG.info("Wrote key table of " + table.size() + " keys in "
+                + (System.currentTimeMillis() - start) / 1000 + " s");
+    }
+
+    /**
+     * Usage: KeyTableBuilder file [objectstore]
+     * @param args see above
+     * @throws Exception if the table can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: KeyTableBuilder file [objectstore]");
+            System.exit(1);
+        }
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 1) ? args[1]
+                : "os.production");
+        Properties classKeys = loadClassKeys();
+        // built beside the old table and moved over it, a load using it keeps its copy
+        File file = new File(args[0]);
+        File building = new File(file.getPath() + ".building");
+        if (building.exists() && !building.delete()) {
+            throw new IOException("Couldn't remove " + building);
+        }
+        new KeyTableBuilder(os, classKeys).build(building);
+        if (!building.renameTo(file)) {
+            throw new IOException("Couldn't move " + building + " to " + file);
+        }
+    }
+
+    /**
+     * @return the class_keys.properties of the classpath
+     * @throws IOException if it can't be read
+     */
+    static Properties loadClassKeys() throws IOException {
+        Properties classKeys = new Properties();
+        InputStream in = KeyTableBuilder.class.getClassLoader().getResourceAsStream(
+                "class_keys.properties");
+        if (in == null) {
+            throw new IllegalStateException("class_keys.properties not on the classpath");
+        }
+        try {
+            classKeys.load(in);
+        } finally {
+            in.close();
+        }
+        return classKeys;
+    }
+}
@@ -0,0 +1,434 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.intermine.DatabaseUtil;
+import org.intermine.sql.Database;
+import org.intermine.sql.DatabaseFactory;
+import org.intermine.util.PropertiesUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Runs the post-processes of project.xml, several at once where postprocess_steps.properties
+ * says they don't touch the same tables.  Each post-process is run as a separate command, by
+ * default
+ * <pre>
+ * ./gradlew :dbmodel:postprocess -Pprocess={step}
+ * </pre>
+ * An object is stored in the table of its class and of every superclass, so a post-process
+ * declared to write a class table is taken to write the tables of its superclasses, and of
+ * its subclasses for the objects of those it may update.
+ *
+ * Each one that succeeds is written to a checkpoint file with its wall time and the rows it
+ * inserted, updated or deleted in the tables it declares it writes (from pg_stat_user_tables,
+ * so approximate), and is skipped when the build is run again.  The checkpoint records the
+ * data release it was written for and is discarded when run for another; delete it to start a
+ * rebuild of the same release from the beginning.
+ *
+ * Usage: PostProcessScheduler project.xml postprocess_steps checkpoint workers [database
+ * [release]]
+ */
+public final class PostProcessScheduler
+{
+    private static final Logger LOG = Logger.getLogger(PostProcessScheduler.class);
+    private static final String DEFAULT_COMMAND =
+        "./gradlew :dbmodel:postprocess -Pprocess={step} --stacktrace";
+    private static final String ALL = "*";
+    private static final String RELEASE = "release";
+
+    private final List<String> steps;
+    private final Map<String, Set<String>> reads = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> writes = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> declaredWrites = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> predecessors = new HashMap<String, Set<String>>();
+
+    /**
+     * @param steps the post-processes in project.xml order
+     * @param declarations the reads and writes of each post-process
+     * @param model the model of the production store, to find the tables that share rows with
+     * a written class table, or null to take the declarations as they are
+     */
+    public PostProcessScheduler(List<String> steps, Properties declarations, Model model) {
+        this.steps = steps;
+        Map<String, Set<String>> related = relatedTables(model);
+        for (String step : steps) {
+            String stepReads = declarations.getProperty(step + ".reads");
+            String stepWrites = declarations.getProperty(step + ".writes");
+            if (stepReads == null && stepWrites == null) {
+                LOG.warn("No reads or writes declared for " + step + ", running it alone");
+                stepReads = ALL;
+                stepWrites = ALL;
+            }
+            reads.put(step, resources(stepReads));
+            declaredWrites.put(step, resources(stepWrites));
+            Set<String> stepTables = new HashSet<String>();
+            for (String table : declaredWrites.get(step)) {
+                stepTables.add(table);
+                if (related.containsKey(table)) {
+                    stepTables.addAll(related.get(table));
+                }
+            }
+            writes.put(step, stepTables);
+            predecessors.put(step, new LinkedHashSet<String>());
+        }
+        for (int i = 0; i < steps.size(); i++) {
+            for (int j = i + 1; j < steps.size(); j++) {
+                String a = steps.get(i);
+                String b = steps.get(j);
+                if (overlap(writes.get(a), reads.get(b)) || overlap(writes.get(a), writes.get(b))
+                        || overlap(reads.get(a), writes.get(b))) {
+                    predecessors.get(b).add(a);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every object has a row in the InterMineObject table, which would make every writer
+     * conflict, so it is left out; writers of the same objects still meet in their class
+     * tables.
+     * @return lower case class table name to the tables of its superclasses and subclasses
+     */
+    private static Map<String, Set<String>> relatedTables(Model model) {
+        Map<String, Set<String>> related = new HashMap<String, Set<String>>();
+        if (model == null) {
+            return related;
+        }
+        for (ClassDescriptor cld : model.getClassDescriptors()) {
+            Set<ClassDescriptor> sharing = new HashSet<ClassDescriptor>();
+            sharing.addAll(cld.getAllSuperDescriptors());
+            sharing.addAll(cld.getAllSubs());
+            Set<String> tables = new HashSet<String>();
+            for (ClassDescriptor other : sharing) {
+                if (!"InterMineObject".equals(other.getUnqualifiedName())) {
+                    tables.add(DatabaseUtil.getTableName(other).toLowerCase());
+                }
+            }
+            related.put(DatabaseUtil.getTableName(cld).toLowerCase(), tables);
+        }
+        return related;
+    }
+
+    /**
+     * @param step a post-process
+     * @return the post-processes that must finish before it starts
+     */
+    public Set<String> getPredecessors(String step) {
+        return Collections.unmodifiableSet(predecessors.get(step));
+    }
+
+    /**
+     * @param step a post-process
+     * @return the tables it is taken to write
+     */
+    public Set<String> getWrites(String step) {
+        return Collections.unmodifiableSet(writes.get(step));
+    }
+
+    /**
+     * Run the post-processes not already in the checkpoint of this release.
+     * @param command the command line template, {step} is replaced by the post-process name
+     * @param workers the most post-processes to run at once
+     * @param checkpoint the checkpoint file, read and updated
+     * @param database the production database, to count rows touched, or null
+     * @param release the data release being built
+     * @throws Exception if a post-process fails
+     */
+    public void run(String command, int workers, File checkpoint, Database database,
+            String release) throws Exception {
+        Properties done = load(checkpoint);
+        if (!done.isEmpty() && !release.equals(done.getProperty(RELEASE))) {
+            LOG.info("Discarding the checkpoint of release " + done.getProperty(RELEASE)
+                    + ", building release " + release);
+            done.clear();
+        }
+        done.setProperty(RELEASE, release);
+        Set<String> finished = new HashSet<String>();
+        for (String step : steps) {
+            if (done.getProperty(step + ".millis") != null) {
+                LOG.info("Skipping " + step + ", finished in an earlier run");
+                finished.add(step);
+            }
+        }
+        File logDir = new File(checkpoint.getAbsoluteFile().getParentFile(), "postprocess-logs");
+        logDir.mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+        Set<String> running = new HashSet<String>();
+        String failed = null;
+        try {
+            while (finished.size() < steps.size()) {
+                for (String step : steps) {
+                    if (failed == null && running.size() < workers && !finished.contains(step)
+                            && !running.contains(step)
+                            && finished.containsAll(predecessors.get(step))) {
+                        running.add(step);
+                        completion.submit(task(step, command, logDir, database, done,
+                                    checkpoint));
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+                String step;
+                try {
+                    step = completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (!(cause instanceof StepFailure)) {
+                        throw new RuntimeException(cause);
+                    }
+                    step = ((StepFailure) cause).step;
+                    LOG.error(step + " failed, waiting for the other running post-processes",
+                            cause.getCause());
+                    failed = step;
+                    running.remove(step);
+                    continue;
+                }
+                running.remove(step);
+                finished.add(step);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        report(done);
+        if (failed != null) {
+            throw new IllegalStateException("Post-process " + failed + " failed, see "
+                    + new File(logDir, failed + ".log") + ", run again to resume");
+        }
+    }
+
+    private Callable<String> task(final String step, final String command, final File logDir,
+            final Database database, final Properties done, final File checkpoint) {
+        return new Callable<String>() {
+            public String call() throws StepFailure {
+                LOG.info("Starting " + step);
+                try {
+                    Map<String, Long> before = tableRows(database);
+                    long start = System.currentTimeMillis();
+                    int status = BuildCommand.run(command,
+                            Collections.singletonMap("step", step),
+                            new File(logDir, step + ".log"));
+                    long millis = System.currentTimeMillis() - start;
+                    if (status != 0) {
+                        throw new IOException("exit status " + status);
+                    }
+                    long rows = rowsTouched(before, tableRows(database),
+                            declaredWrites.get(step));
+                    LOG.info("Finished " + step + " in " + millis / 1000 + " s, " + rows
+                            + " rows");
+                    synchronized (done) {
+                        done.setProperty(step + ".millis", String.valueOf(millis));
+                        done.setProperty(step + ".rows", String.valueOf(rows));
+                        store(done, checkpoint);
+                    }
+                    return step;
+                } catch (Exception e) {
+                    throw new StepFailure(step, e);
+                }
+            }
+        };
+    }
+
+    private void report(Properties done) {
+        StringBuilder report = new StringBuilder("Post-process times:");
+        for (String step : steps) {
+            String millis = done.getProperty(step + ".millis");
+            if (millis != null) {
+                report.append(String.format("%n  %-45s %8d s %12s rows", step,
+                            Long.parseLong(millis) / 1000, done.getProperty(step + ".rows")));
+            }
+        }
+        LOG.info(report);
+    }
+
+    /**
+     * Rows inserted, updated and deleted in each table since the statistics were reset, or
+     * null if there is no database to ask.
+     */
+    private static Map<String, Long> tableRows(Database database) throws SQLException {
+        if (database == null) {
+            return null;
+        }
+        Map<String, Long> rows = new HashMap<String, Long>();
+        Connection con = database.getConnection();
+        try {
+            Statement s = con.createStatement();
+            ResultSet res = s.executeQuery("SELECT relname, n_tup_ins + n_tup_upd + n_tup_del"
+                    + " FROM pg_stat_user_tables");
+            while (res.next()) {
+                rows.put(res.getString(1).toLowerCase(), new Long(res.getLong(2)));
+            }
+        } finally {
+            con.close();
+        }
+        return rows;
+    }
+
+    private static long rowsTouched(Map<String, Long> before, Map<String, Long> after,
+            Set<String> tables) {
+        if (before == null || after == null) {
+            return -1;
+        }
+        long rows = 0;
+        for (Map.Entry<String, Long> table : after.entrySet()) {
+            if (tables.contains(ALL) || tables.contains(table.getKey())) {
+                Long previous = before.get(table.getKey());
+                rows += table.getValue().longValue()
+                    - ((previous == null) ? 0 : previous.longValue());
+            }
+        }
+        return rows;
+    }
+
+    private static Set<String> resources(String value) {
+        Set<String> resources = new HashSet<String>();
+        if (value != null) {
+            for (String resource : value.split(",")) {
+                if (resource.trim().length() > 0) {
+                    resources.add(resource.trim().toLowerCase());
+                }
+            }
+        }
+        return resources;
+    }
+
+    private static boolean overlap(Set<String> a, Set<String> b) {
+        for (String resource : a) {
+            if (b.contains(resource) || (b.contains(ALL) && resource.indexOf(':') == -1)) {
+                return true;
+            }
+            if (ALL.equals(resource)) {
+                for (String other : b) {
+                    if (other.indexOf(':') == -1) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param projectXml the project.xml file
+     * @return the post-processes in the order they are declared
+     * @throws IOException if the file can't be read
+     */
+    public static List<String> readSteps(File projectXml) throws IOException {
+        Document doc;
+        try {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(projectXml);
+        } catch (Exception e) {
+            throw new IOException("can't parse " + projectXml, e);
+        }
+        List<String> steps = new ArrayList<String>();
+        NodeList nodes = doc.getElementsByTagName("post-process");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            steps.add(((Element) nodes.item(i)).getAttribute("name"));
+        }
+        return steps;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "finished post-processes, wall time in ms and rows touched");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A post-process that didn't finish.
+     */
+    private static class StepFailure extends Exception
+    {
+        private final String step;
+
+        StepFailure(String step, Throwable cause) {
+            super(step, cause);
+            this.step = step;
+        }
+    }
+
+    /**
+     * @param args see the class comment
+     * @throws Exception if a post-process fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: PostProcessScheduler project.xml postprocess_steps "
+                    + "checkpoint workers [database [release]]");
+            System.exit(1);
+        }
+        PostProcessScheduler scheduler = new PostProcessScheduler(
+                readSteps(new File(args[0])), load(new File(args[1])),
+                Model.getInstanceByName("genomic"));
+        Database database = null;
+        if (args.length > 4) {
+            try {
+                database = DatabaseFactory.getDatabase(args[4]);
+            } catch (Exception e) {
+                LOG.warn("Can't connect to " + args[4] + ", not counting rows", e);
+            }
+        }
+        String release = (args.length > 5 && args[5].length() > 0) ? args[5]
+            : PropertiesUtil.getProperties().getProperty("project.releaseVersion", "");
+        scheduler.run(System.getProperty("postprocess.command", DEFAULT_COMMAND),
+                Integer.parseInt(args[3]), new File(args[2]), database, release);
+    }
+}
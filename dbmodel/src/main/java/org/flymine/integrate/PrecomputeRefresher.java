@@ -0,0 +1,277 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.intermine.SqlGenerator;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.iql.IqlQuery;
+import org.intermine.sql.precompute.PrecomputedTableManager;
+
+/**
+ * Keeps the precomputed tables of genomic_precompute.properties up to date after an
+ * incremental load, rebuilding only those whose source tables changed.
+ *
+ * The tables each precompute query reads are found from its SQL and recorded in a state file,
+ * along with the insert, update and delete counts of every table (from pg_stat_user_tables)
+ * at the end of the last refresh.  On the next run, precomputed tables reading a table whose
+ * counts have moved are dropped, and every query that is then not precomputed is rebuilt, up
+ * to a given number at once.  The build time of each is recorded, and a report lists every
+ * query with its tables, build time, size and how many times PostgreSQL has scanned it.
+ *
+ * Usage: PrecomputeRefresher precompute.properties state threads [report] [objectstore]
+ */
+public final class PrecomputeRefresher
+{
+    private static final Logger LOG = Logger.getLogger(PrecomputeRefresher.class);
+    private static final String QUERY_PREFIX = "precompute.query.";
+    /** The category precomputed tables are created under. */
+    public static final String CATEGORY = "precompute";
+
+    private final ObjectStoreInterMineImpl os;
+    private final Map<String, Query> queries = new TreeMap<String, Query>();
+    private final Map<String, Set<String>> reads = new HashMap<String, Set<String>>();
+    private final Properties state;
+
+    /**
+     * @param os the production ObjectStore
+     * @param precompute the precompute queries, as precompute.query.[n] = [IQL]
+     * @param state what the last refresh recorded, updated by refresh()
+     * @throws Exception if a query can't be parsed
+     */
+    public PrecomputeRefresher(ObjectStoreInterMineImpl os, Properties precompute,
+            Properties state) throws Exception {
+        this.os = os;
+        this.state = state;
+        for (String key : precompute.stringPropertyNames()) {
+            if (key.startsWith(QUERY_PREFIX)) {
+                String name = key.substring(QUERY_PREFIX.length());
+                Query q = new IqlQuery(precompute.getProperty(key).trim(),
+                        os.getModel().getPackageName()).toQuery();
+                queries.put(name, q);
+                reads.put(name, new HashSet<String>(SqlGenerator.findTableNames(q,
+                                os.getSchema())));
+                state.setProperty(name + ".reads", StringUtils.join(reads.get(name), ","));
+            }
+        }
+    }
+
+    /**
+     * Drop the precomputed tables whose source tables have changed since the last refresh
+     * and rebuild every query that isn't precomputed.
+     * @param threads the most queries to precompute at once
+     * @throws Exception if a query can't be precomputed
+     */
+    public void refresh(int threads) throws Exception {
+        Set<String> changed = changedTables(tableCounts(), state, reads.values());
+        if (!changed.isEmpty()) {
+            LOG.info("Tables changed since the last refresh: " + changed);
+            PrecomputedTableManager.getInstance(os.getDatabase()).dropAffected(changed);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<String, Future<Long>> builds = new TreeMap<String, Future<Long>>();
+        try {
+            for (final Map.Entry<String, Query> query : queries.entrySet()) {
+                if (os.isPrecomputed(query.getValue(), CATEGORY)) {
+                    continue;
+                }
+                builds.put(query.getKey(), executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long start = System.currentTimeMillis();
+                        List<String> tables = os.precompute(query.getValue(), CATEGORY);
+                        long millis = System.currentTimeMillis() - start;
+                        synchronized (state) {
+                            state.setProperty(query.getKey() + ".tables",
+                                    StringUtils.join(tables, ","));
+                        }
+                        LOG.info("Precomputed query " + query.getKey() + " in " + millis
+                                + " ms as " + tables);
+                        return new Long(millis);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<Long>> build : builds.entrySet()) {
+                state.setProperty(build.getKey() + ".millis",
+                        String.valueOf(build.getValue().get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        LOG.info("Rebuilt " + builds.size() + " of " + queries.size() + " precomputed queries");
+
+        for (Map.Entry<String, Long> table : tableCounts().entrySet()) {
+            state.setProperty("table." + table.getKey(), String.valueOf(table.getValue()));
+        }
+    }
+
+    /**
+     * @return one line per precompute query: its name, the tables it reads, its precomputed
+     * tables with their size and the number of times they have been scanned, and the time it
+     * last took to build
+     * @throws SQLException if the statistics can't be read
+     */
+    public List<String> report() throws SQLException {
+        List<String> lines = new ArrayList<String>();
+        Connection con = os.getDatabase().getConnection();
+        try {
+            PreparedStatement stats = con.prepareStatement("SELECT"
+                    + " pg_total_relation_size(relid), COALESCE(seq_scan, 0)"
+                    + " + COALESCE(idx_scan, 0) FROM pg_stat_user_tables WHERE relname = ?");
+            for (String name : queries.keySet()) {
+                StringBuilder line = new StringBuilder(QUERY_PREFIX + name + ": reads "
+                        + state.getProperty(name + ".reads"));
+                String tables = state.getProperty(name + ".tables");
+                if (tables == null) {
+                    line.append(", not built by this tool");
+                } else {
+                    for (String table : tables.split(",")) {
+                        stats.setString(1, table.toLowerCase());
+                        ResultSet res = stats.executeQuery();
+                        if (res.next()) {
+                            line.append(", " + table + " " + (res.getLong(1) / 1024) + " kB, "
+                                    + res.getLong(2) + " scans");
+                        } else {
+                            line.append(", " + table + " dropped");
+                        }
+                        res.close();
+                    }
+                }
+                String millis = state.getProperty(name + ".millis");
+                if (millis != null) {
+                    line.append(", built in " + (Long.parseLong(millis) / 1000) + " s");
+                }
+                lines.add(line.toString());
+            }
+        } finally {
+            con.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Find the tables read by the precompute queries whose counts have moved since the last
+     * refresh.  PostgreSQL names tables in lower case and the SQL generator as the model does
+     * (Gene), so they are matched ignoring case.
+     * @param counts the current counts, by lower case table name
+     * @param state the state recorded by the last refresh
+     * @param reads the tables each query reads
+     * @return the changed tables, named as the queries read them
+     */
+    static Set<String> changedTables(Map<String, Long> counts, Properties state,
+            Collection<Set<String>> reads) {
+        Set<String> changed = new HashSet<String>();
+        for (Set<String> tables : reads) {
+            for (String table : tables) {
+                String name = table.toLowerCase();
+                Long count = counts.get(name);
+                String previous = state.getProperty("table." + name);
+                if (count != null && previous != null
+                        && Long.parseLong(previous) != count.longValue()) {
+                    changed.add(table);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private Map<String, Long> tableCounts() throws SQLException {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        Connection con = os.getDatabase().getConnection();
+        try {
+            Statement s = con.createStatement();
+            ResultSet res = s.executeQuery("SELECT relname, n_tup_ins + n_tup_upd + n_tup_del"
+                    + " FROM pg_stat_user_tables WHERE relname NOT LIKE 'precomp_%'");
+            while (res.next()) {
+                counts.put(res.getString(1).toLowerCase(), new Long(res.getLong(2)));
+            }
+        } finally {
+            con.close();
+        }
+        return counts;
+    }
+
+    /**
+     * @param args see the class comment
+     * @throws Exception if refreshing fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: PrecomputeRefresher precompute.properties state threads"
+                    + " [report] [objectstore]");
+            System.exit(1);
+        }
+        File stateFile = new File(args[1]);
+        boolean reportOnly = args.length > 3 && "report".equals(args[3]);
+        String alias = (args.length > 4) ? args[4] : "os.production";
+        ObjectStoreInterMineImpl os = (ObjectStoreInterMineImpl)
+            ObjectStoreFactory.getObjectStore(alias);
+        Properties state = load(stateFile);
+        PrecomputeRefresher refresher = new PrecomputeRefresher(os,
+                load(new File(args[0])), state);
+        if (!reportOnly) {
+            try {
+                refresher.refresh(Integer.parseInt(args[2]));
+            } finally {
+                OutputStream out = new FileOutputStream(stateFile);
+                try {
+                    state.store(out, "precompute query tables, build times and table counts");
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        for (String line : refresher.report()) {
+            System.out.println(line);
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+}
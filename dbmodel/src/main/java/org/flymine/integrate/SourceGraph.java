@@ -0,0 +1,213 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The sources of a project.xml and the order some of them have to be loaded in.  Sources are
+ * only ordered when they could write the same data: both named in one rule of the priorities
+ * file, or both touching a class that has keys in class_keys.properties.  Classes touched by a
+ * source are those of the priority rules naming it, plus the classes in its
+ * [type]_keys.properties if a directory of source keys files is given.  Sources that read the
+ * production database rather than files (update-data-sources and the like) are barriers:
+ * everything declared before them is loaded first, everything after them waits for them.
+ *
+ * Where sources are ordered, it is the order they are declared in project.xml.
+ */
+public class SourceGraph
+{
+    /** Source types that read the production database being built. */
+    public static final Set<String> BARRIER_TYPES = new HashSet<String>(Arrays.asList(
+                "update-data-sources", "update-publications", "entrez-organism"));
+
+    private final List<String> sources = new ArrayList<String>();
+    private final Map<String, String> types = new HashMap<String, String>();
+    private final Map<String, Set<String>> predecessors = new HashMap<String, Set<String>>();
+
+    /**
+     * Read the sources from project.xml and order them.
+     * @param projectXml the project.xml file
+     * @param priorities the genomic_priorities.properties file
+     * @param classKeys the class_keys.properties file
+     * @param sourceKeysDir a directory of [type]_keys.properties files, or null
+     * @return the graph
+     * @throws IOException if a file can't be read
+     */
+    public static SourceGraph read(File projectXml, File priorities, File classKeys,
+            File sourceKeysDir) throws IOException {
+        SourceGraph graph = new SourceGraph();
+        graph.readProject(projectXml);
+        Map<String, Set<String>> classes = new HashMap<String, Set<String>>();
+        Properties priorityRules = load(priorities);
+        for (String rule : priorityRules.stringPropertyNames()) {
+            String className = rule.split("\\.")[0];
+            List<String> named = new ArrayList<String>();
+            for (String source : priorityRules.getProperty(rule).split(",")) {
+                source = source.trim();
+                if (graph.types.containsKey(source)) {
+                    named.add(source);
+                    touch(classes, source, className);
+                }
+            }
+            graph.orderAll(named);
+        }
+        if (sourceKeysDir != null) {
+            for (String source : graph.sources) {
+                File keys = new File(sourceKeysDir, graph.types.get(source) + "_keys.properties");
+                if (keys.exists()) {
+                    for (String key : load(keys).stringPropertyNames()) {
+                        touch(classes, source, key.split("\\.")[0]);
+                    }
+                }
+            }
+        }
+        Set<String> keyed = load(classKeys).stringPropertyNames();
+        Map<String, List<String>> byClass = new HashMap<String, List<String>>();
+        for (String source : graph.sources) {
+            Set<String> touched = classes.get(source);
+            if (touched == null) {
+                continue;
+            }
+            for (String className : touched) {
+                if (keyed.contains(className)) {
+                    List<String> sharing = byClass.get(className);
+                    if (sharing == null) {
+                        sharing = new ArrayList<String>();
+                        byClass.put(className, sharing);
+                    }
+                    sharing.add(source);
+                }
+            }
+        }
+        for (List<String> sharing : byClass.values()) {
+            graph.orderAll(sharing);
+        }
+        graph.addBarriers();
+        return graph;
+    }
+
+    /**
+     * @return the source names in project.xml order
+     */
+    public List<String> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * @param source a source name
+     * @return the source type
+     */
+    public String getType(String source) {
+        return types.get(source);
+    }
+
+    /**
+     * @param source a source name
+     * @return the sources that must be loaded before it
+     */
+    public Set<String> getPredecessors(String source) {
+        return Collections.unmodifiableSet(predecessors.get(source));
+    }
+
+    /**
+     * @param source a source name
+     * @return true if the source reads the production database, so can't be retrieved until
+     * everything before it is loaded
+     */
+    public boolean isBarrier(String source) {
+        return BARRIER_TYPES.contains(types.get(source));
+    }
+
+    private void readProject(File projectXml) throws IOException {
+        Document doc;
+        try {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(projectXml);
+        } catch (Exception e) {
+            throw new IOException("can't parse " + projectXml, e);
+        }
+        NodeList nodes = doc.getElementsByTagName("source");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element source = (Element) nodes.item(i);
+            String name = source.getAttribute("name");
+            sources.add(name);
+            types.put(name, source.getAttribute("type"));
+            predecessors.put(name, new LinkedHashSet<String>());
+        }
+    }
+
+    /**
+     * Order every pair of the given sources as they are declared.
+     */
+    private void orderAll(List<String> named) {
+        for (String a : named) {
+            for (String b : named) {
+                if (sources.indexOf(a) < sources.indexOf(b)) {
+                    predecessors.get(b).add(a);
+                }
+            }
+        }
+    }
+
+    private void addBarriers() {
+        for (int i = 0; i < sources.size(); i++) {
+            if (isBarrier(sources.get(i))) {
+                for (int j = 0; j < sources.size(); j++) {
+                    if (j < i) {
+                        predecessors.get(sources.get(i)).add(sources.get(j));
+                    } else if (j > i) {
+                        predecessors.get(sources.get(j)).add(sources.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void touch(Map<String, Set<String>> classes, String source,
+            String className) {
+        Set<String> touched = classes.get(source);
+        if (touched == null) {
+            touched = new HashSet<String>();
+            classes.put(source, touched);
+        }
+        touched.add(className);
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+}
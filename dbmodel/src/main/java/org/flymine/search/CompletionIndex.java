@@ -0,0 +1,362 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Autocompletion of field values, read in place from a file written by CompletionIndexWriter
+ * through a memory map.  The heap holds only the offsets of each field's arrays, so its size
+ * doesn't grow with the number of values, and lookups read nothing but the pages they touch.
+ *
+ * A lookup finds the range of keys starting with the normalised text by binary search, then
+ * takes the heaviest values in the range from a segment tree, best first, so its cost depends
+ * on the length of the text and the number of completions asked for rather than the number of
+ * matches.  Infix lookups do the same over the word starts of every key.  Thread safe.
+ */
+public final class CompletionIndex
+{
+    private final ByteBuffer buffer;
+    private final Map<String, Field> fields = new LinkedHashMap<String, Field>();
+
+    /**
+     * @param file a file written by CompletionIndexWriter
+     * @throws IOException if the file can't be mapped or isn't a completion index
+     */
+    public CompletionIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        if (buffer.getInt(0) != CompletionIndexWriter.MAGIC
+                || buffer.getInt(4) != CompletionIndexWriter.VERSION) {
+            throw new IOException(file + " isn't a version " + CompletionIndexWriter.VERSION
+                    + " completion index");
+        }
+        byte[] header = new byte[Math.min(buffer.capacity(), 1 << 16)];
+        ((ByteBuffer) buffer.duplicate().position(0)).get(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header, 8,
+                    header.length - 8));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            fields.put(name, new Field(in.readInt()));
+        }
+    }
+
+    /**
+     * Normalise text for lookup: lower case, trimmed, with runs of white space made one space.
+     * @param text the text
+     * @return the normalised text
+     */
+    public static String normalise(String text) {
+        return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the names of the fields with values, eg. GOTerm.name
+     */
+    public Set<String> getFields() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * @param field the field name
+     * @return the number of distinct values of the field
+     */
+    public int size(String field) {
+        Field f = fields.get(field);
+        return (f == null) ? 0 : f.n;
+    }
+
+    /**
+     * Find the heaviest values of a field starting with some text, ignoring case.
+     * @param field the field name, eg. GOTerm.name
+     * @param prefix the text values must start with
+     * @param max the most values to return
+     * @return the values, heaviest first
+     */
+    public List<Completion> complete(String field, String prefix, int max) {
+        return complete(field, prefix, max, false);
+    }
+
+    /**
+     * Find the heaviest values of a field with a word starting with some text, ignoring case.
+     * The text may span several words.
+     * @param field the field name
+     * @param text the text, matched against the start of the value or of any word in it
+     * @param max the most values to return
+     * @return the values, heaviest first
+     */
+    public List<Completion> completeInfix(String field, String text, int max) {
+        return complete(field, text, max, true);
+    }
+
+    private List<Completion> complete(String field, String text, int max, boolean infix) {
+        Field f = fields.get(field);
+        List<Completion> completions = new ArrayList<Completion>();
+        if (f == null || max <= 0) {
+            return completions;
+        }
+        byte[] prefix;
+        try {
+            prefix = normalise(text).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        Set<Integer> seen = new HashSet<Integer>();
+        List<Integer> terms = f.top(false, prefix, max, seen);
+        if (infix) {
+            terms.addAll(f.top(true, prefix, max, seen));
+            final Field sorting = f;
+            Collections.sort(terms, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int c = sorting.weight(b.intValue()) - sorting.weight(a.intValue());
+                    return (c != 0) ? c : a.compareTo(b);
+                }
+            });
+        }
+        for (Integer term : terms.subList(0, Math.min(max, terms.size()))) {
+            completions.add(new Completion(f.display(term.intValue()),
+                        f.weight(term.intValue())));
+        }
+        return completions;
+    }
+
+    /**
+     * The arrays of one field in the buffer.
+     */
+    private final class Field
+    {
+        private final int n;
+        private final int m;
+        private final int prefixTreeSize;
+        private final int startTreeSize;
+        private final int keyOffsets;
+        private final int displayOffsets;
+        private final int weights;
+        private final int startTerms;
+        private final int startOffsets;
+        private final int prefixTree;
+        private final int startTree;
+        private final int keys;
+        private final int displays;
+
+        Field(int offset) {
+            n = buffer.getInt(offset);
+            m = buffer.getInt(offset + 4);
+            prefixTreeSize = buffer.getInt(offset + 8);
+            startTreeSize = buffer.getInt(offset + 12);
+            keyOffsets = offset + 16;
+            displayOffsets = keyOffsets + 4 * (n + 1);
+            weights = displayOffsets + 4 * (n + 1);
+            startTerms = weights + 4 * n;
+            startOffsets = startTerms + 4 * m;
+            prefixTree = startOffsets + 4 * m;
+            startTree = prefixTree + 8 * prefixTreeSize;
+            keys = startTree + 8 * startTreeSize;
+            displays = keys + buffer.getInt(keyOffsets + 4 * n);
+        }
+
+        int weight(int term) {
+            return buffer.getInt(weights + 4 * term);
+        }
+
+        String display(int term) {
+            int start = buffer.getInt(displayOffsets + 4 * term);
+            byte[] bytes = new byte[buffer.getInt(displayOffsets + 4 * (term + 1)) - start];
+            ByteBuffer view = buffer.duplicate();
+            view.position(displays + start);
+            view.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * @return the term at a position of the prefix or word start order
+         */
+        int term(boolean starts, int position) {
+            return starts ? buffer.getInt(startTerms + 4 * position) : position;
+        }
+
+        int entryWeight(boolean starts, int position) {
+            return weight(term(starts, position));
+        }
+
+        /**
+         * Compare the key at a position, from its word start for the word start order, with
+         * a prefix.
+         * @return 0 if it starts with the prefix, otherwise its order relative to the prefix
+         */
+        int compare(boolean starts, int position, byte[] prefix) {
+            int term = term(starts, position);
+            int start = keys + buffer.getInt(keyOffsets + 4 * term);
+            int end = keys + buffer.getInt(keyOffsets + 4 * (term + 1));
+            if (starts) {
+                start += buffer.getInt(startOffsets + 4 * position);
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (start + i >= end) {
+                    return -1;
+                }
+                int c = (buffer.get(start + i) & 0xff) - (prefix[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the first position whose key compares above the bound with the prefix
+         */
+        int search(boolean starts, byte[] prefix, int bound) {
+            int low = 0;
+            int high = starts ? m : n;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(starts, mid, prefix) < bound) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the position of the heaviest entry in [from, to), the first on a tie
+         */
+        int heaviest(boolean starts, int from, int to) {
+            int tree = starts ? startTree : prefixTree;
+            int size = starts ? startTreeSize : prefixTreeSize;
+            int best = -1;
+            for (int l = from + size, r = to + size; l < r; l >>= 1, r >>= 1) {
+                if ((l & 1) == 1) {
+                    best = heavier(starts, best, buffer.getInt(tree + 4 * l++));
+                }
+                if ((r & 1) == 1) {
+                    best = heavier(starts, best, buffer.getInt(tree + 4 * --r));
+                }
+            }
+            return best;
+        }
+
+        private int heavier(boolean starts, int a, int b) {
+            if (a < 0 || b < 0) {
+                return (a < 0) ? b : a;
+            }
+            int c = entryWeight(starts, a) - entryWeight(starts, b);
+            return (c > 0 || (c == 0 && a < b)) ? a : b;
+        }
+
+        /**
+         * @return up to max terms not seen before whose key (or word start) begins with
+         * prefix, heaviest first, adding them to seen
+         */
+        List<Integer> top(final boolean starts, byte[] prefix, int max, Set<Integer> seen) {
+            List<Integer> terms = new ArrayList<Integer>();
+            int from = search(starts, prefix, 0);
+            int to = search(starts, prefix, 1);
+            if (from >= to) {
+                return terms;
+            }
+            // ranges of positions, ordered by their heaviest entry: {heaviest, from, to}
+            PriorityQueue<int[]> ranges = new PriorityQueue<int[]>(16, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    int c = entryWeight(starts, b[0]) - entryWeight(starts, a[0]);
+                    return (c != 0) ? c : a[0] - b[0];
+                }
+            });
+            ranges.add(new int[] {heaviest(starts, from, to), from, to});
+            while (!ranges.isEmpty() && terms.size() < max) {
+                int[] range = ranges.poll();
+                int position = range[0];
+                Integer term = new Integer(term(starts, position));
+                // a value with several matching words appears once
+                if (seen.add(term)) {
+                    terms.add(term);
+                }
+                if (range[1] < position) {
+                    ranges.add(new int[] {heaviest(starts, range[1], position), range[1],
+                        position});
+                }
+                if (position + 1 < range[2]) {
+                    ranges.add(new int[] {heaviest(starts, position + 1, range[2]),
+                        position + 1, range[2]});
+                }
+            }
+            return terms;
+        }
+    }
+
+    /**
+     * A value and its weight.
+     */
+    public static final class Completion
+    {
+        private final String value;
+        private final int weight;
+
+        Completion(String value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+
+        /**
+         * @return the value as it appears in the data
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return the weight, the number of objects with the value
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return value + " (" + weight + ")";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryFunction;
+
+/**
+ * Writes the completion index of the fields set as [class].autocomplete in
+ * objectstoresummary.config.properties, weighting each value by the number of objects that
+ * have it.  Each field is one GROUP BY query.
+ */
+public final class CompletionIndexBuilder
+{
+    private static final Logger LOG = Logger.getLogger(CompletionIndexBuilder.class);
+    private static final String SUFFIX = ".autocomplete";
+
+    private CompletionIndexBuilder() {
+        // don't
+    }
+
+    /**
+     * @param os the ObjectStore to read values from
+     * @param config the contents of objectstoresummary.config.properties
+     * @param file the completion index file to write
+     * @throws ObjectStoreException if values can't be read
+     * @throws IOException if the file can't be written
+     */
+    public static void build(ObjectStore os, Properties config, File file)
+        throws ObjectStoreException, IOException {
+        CompletionIndexWriter writer = new CompletionIndexWriter();
+        for (String key : config.stringPropertyNames()) {
+            if (!key.endsWith(SUFFIX)) {
+                continue;
+            }
+            String className = key.substring(0, key.length() - SUFFIX.length());
+            ClassDescriptor cld = os.getModel().getClassDescriptorByName(className);
+            if (cld == null) {
+                LOG.warn("Class " + className + " isn't in the model, not completing its fields");
+                continue;
+            }
+            for (String fieldName : config.getProperty(key).trim().split("\\s+")) {
+                if (cld.getAttributeDescriptorByName(fieldName, true) == null) {
+                    LOG.warn(cld.getUnqualifiedName() + " has no attribute " + fieldName);
+                    continue;
+                }
+                String field = cld.getUnqualifiedName() + "." + fieldName;
+                Query q = new Query();
+                QueryClass qc = new QueryClass(cld.getType());
+                q.addFrom(qc);
+                QueryField value = new QueryField(qc, fieldName);
+                q.addToSelect(value);
+                q.addToSelect(new QueryFunction());
+                q.addToGroupBy(value);
+                int count = 0;
+                for (Object row : os.execute(q, 10000, true, false, false)) {
+                    List<?> values = (List<?>) row;
+                    if (values.get(0) != null) {
+                        writer.add(field, values.get(0).toString(),
+                                ((Number) values.get(1)).intValue());
+                        count++;
+                    }
+                }
+                LOG.info(count + " values of " + field);
+            }
+        }
+        writer.write(file);
+    }
+
+    /**
+     * Usage: CompletionIndexBuilder file [objectstore]
+     * @param args see above
+     * @throws Exception if the index can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CompletionIndexBuilder file [objectstore]");
+            System.exit(1);
+        }
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 1) ? args[1]
+                : "os.production");
+        Properties config = new Properties();
+        InputStream in = CompletionIndexBuilder.class.getClassLoader().getResourceAsStream(
+                "objectstoresummary.config.properties");
+        if (in == null) {
+            throw new IllegalStateException("objectstoresummary.config.properties not on the"
+                    + " classpath");
+        }
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        // written beside the old index and moved over it, a webapp mapping it keeps its copy
+        File file = new File(args[0]);
+        File building = new File(file.getPath() + ".building");
+        build(os, config, building);
+        if (!building.renameTo(file)) {
+            throw new IOException("Couldn't move " + building + " to " + file);
+        }
+    }
+}
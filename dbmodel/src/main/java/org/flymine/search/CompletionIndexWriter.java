@@ -0,0 +1,260 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the file read by CompletionIndex.  Values are normalised with
+ * CompletionIndex.normalise(), values normalising to the same key are counted together and
+ * shown as the most common of them.
+ *
+ * The file is a header followed by one section per field:
+ * <pre>
+ * header:  magic, version, field count, then for each field its name (modified UTF-8) and the
+ *          offset of its section
+ * section: n terms, m word starts, prefix tree size, word start tree size,
+ *          key offsets [n + 1], display offsets [n + 1], weights [n],
+ *          word start terms [m], word start offsets [m],
+ *          prefix tree [2 * prefix tree size], word start tree [2 * word start tree size],
+ *          key bytes, display bytes
+ * </pre>
+ * Terms are in key order, compared as unsigned UTF-8 bytes.  Word starts are the positions of
+ * each key after the first where a word begins, ordered by the key from there on.  The trees
+ * are segment trees over the prefix and word start orders: each node holds the index of the
+ * heaviest term below it, the leaves start at the tree size.  All numbers are big endian ints.
+ */
+public final class CompletionIndexWriter
+{
+    /** Identifies a completion index file. */
+    public static final int MAGIC = 0x464d4143;
+    /** The format version. */
+    public static final int VERSION = 1;
+
+    private final Map<String, Map<String, Integer>> fields
+        = new TreeMap<String, Map<String, Integer>>();
+
+    /**
+     * Add a value of a field, or add to its weight if already added.
+     * @param field the field name, eg. GOTerm.name
+     * @param value the value
+     * @param weight how much to favour the value, the number of objects with it
+     */
+    public void add(String field, String value, int weight) {
+        Map<String, Integer> values = fields.get(field);
+        if (values == null) {
+            values = new HashMap<String, Integer>();
+            fields.put(field, values);
+        }
+        Integer previous = values.get(value);
+        values.put(value, new Integer(weight + ((previous == null) ? 0 : previous.intValue())));
+    }
+
+    /**
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file) throws IOException {
+        List<byte[]> sections = new ArrayList<byte[]>();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(MAGIC);
+        headerOut.writeInt(VERSION);
+        headerOut.writeInt(fields.size());
+        for (Map.Entry<String, Map<String, Integer>> field : fields.entrySet()) {
+            headerOut.writeUTF(field.getKey());
+            headerOut.writeInt(0);
+            sections.add(section(field.getValue()));
+        }
+        headerOut.flush();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fields.size());
+            int offset = header.size();
+            int i = 0;
+            for (String name : fields.keySet()) {
+                out.writeUTF(name);
+                out.writeInt(offset);
+                offset += sections.get(i++).length;
+            }
+            for (byte[] section : sections) {
+                out.write(section);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] section(Map<String, Integer> values) throws IOException {
+        // group by key, shown as the heaviest value
+        final Map<String, String> displays = new HashMap<String, String>();
+        final Map<String, Integer> displayWeights = new HashMap<String, Integer>();
+        final Map<String, Integer> keyWeights = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> value : values.entrySet()) {
+            String key = CompletionIndex.normalise(value.getKey());
+            if (key.length() == 0) {
+                continue;
+            }
+            int weight = value.getValue().intValue();
+            Integer keyWeight = keyWeights.get(key);
+            keyWeights.put(key, new Integer(weight + ((keyWeight == null) ? 0
+                            : keyWeight.intValue())));
+            Integer displayWeight = displayWeights.get(key);
+            if (displayWeight == null || displayWeight.intValue() < weight) {
+                displays.put(key, value.getKey());
+                displayWeights.put(key, new Integer(weight));
+            }
+        }
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (String key : keyWeights.keySet()) {
+            keys.add(key.getBytes("UTF-8"));
+        }
+        Collections.sort(keys, new Comparator<byte[]>() {
+            public int compare(byte[] a, byte[] b) {
+                return compareBytes(a, 0, b, 0);
+            }
+        });
+        int n = keys.size();
+        byte[][] displayBytes = new byte[n][];
+        final int[] weights = new int[n];
+        for (int i = 0; i < n; i++) {
+            String key = new String(keys.get(i), "UTF-8");
+            displayBytes[i] = displays.get(key).getBytes("UTF-8");
+            weights[i] = keyWeights.get(key).intValue();
+        }
+
+        final List<byte[]> sortedKeys = keys;
+        List<long[]> starts = new ArrayList<long[]>();
+        for (int t = 0; t < n; t++) {
+            byte[] key = keys.get(t);
+            for (int o = 1; o < key.length; o++) {
+                if (isSeparator(key[o - 1]) && !isSeparator(key[o])) {
+                    starts.add(new long[] {t, o});
+                }
+            }
+        }
+        Collections.sort(starts, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                int c = compareBytes(sortedKeys.get((int) a[0]), (int) a[1],
+                        sortedKeys.get((int) b[0]), (int) b[1]);
+                return (c != 0) ? c : Long.valueOf(a[0]).compareTo(Long.valueOf(b[0]));
+            }
+        });
+        int m = starts.size();
+        final int[] startWeights = new int[m];
+        for (int i = 0; i < m; i++) {
+            startWeights[i] = weights[(int) starts.get(i)[0]];
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int[] prefixTree = tree(weights);
+        int[] startTree = tree(startWeights);
+        out.writeInt(n);
+        out.writeInt(m);
+        out.writeInt(prefixTree.length / 2);
+        out.writeInt(startTree.length / 2);
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            out.writeInt(offset);
+            offset += keys.get(i).length;
+        }
+        out.writeInt(offset);
+        offset = 0;
+        for (int i = 0; i < n; i++) {
+            out.writeInt(offset);
+            offset += displayBytes[i].length;
+        }
+        out.writeInt(offset);
+        for (int weight : weights) {
+            out.writeInt(weight);
+        }
+        for (long[] start : starts) {
+            out.writeInt((int) start[0]);
+        }
+        for (long[] start : starts) {
+            out.writeInt((int) start[1]);
+        }
+        for (int node : prefixTree) {
+            out.writeInt(node);
+        }
+        for (int node : startTree) {
+            out.writeInt(node);
+        }
+        for (byte[] key : keys) {
+            out.write(key);
+        }
+        for (byte[] display : displayBytes) {
+            out.write(display);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a segment tree whose nodes hold the index of the heaviest leaf below them, the
+     * first on a tie, -1 for none
+     */
+    private static int[] tree(int[] weights) {
+        int size = 1;
+        while (size < weights.length) {
+            size <<= 1;
+        }
+        int[] tree = new int[2 * size];
+        Arrays.fill(tree, -1);
+        for (int i = 0; i < weights.length; i++) {
+            tree[size + i] = i;
+        }
+        for (int node = size - 1; node > 0; node--) {
+            int left = tree[2 * node];
+            int right = tree[2 * node + 1];
+            tree[node] = (right >= 0 && (left < 0 || weights[right] > weights[left])) ? right
+                : left;
+        }
+        return tree;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b >= 0 && !Character.isLetterOrDigit((char) b);
+    }
+
+    /**
+     * Compare the bytes of a from one offset with those of b from another, unsigned.
+     */
+    static int compareBytes(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int aLength = a.length - aOffset;
+        int bLength = b.length - bOffset;
+        for (int i = 0; i < Math.min(aLength, bLength); i++) {
+            int c = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - bLength;
+    }
+}
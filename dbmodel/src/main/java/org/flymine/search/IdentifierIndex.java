@@ -0,0 +1,307 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves identifiers and synonyms to object ids without the database, from a hash table
+ * written by IdentifierIndexWriter and read in place through a memory map.  Only the class
+ * names and organisms are held on the heap.  Lookups ignore case and surrounding white space,
+ * can be restricted to some classes and an organism, and tell a match by a key field from one
+ * only by a synonym.  Thread safe.
+ */
+public final class IdentifierIndex
+{
+    private static final Matches NONE = new Matches(new int[0], new boolean[0]);
+
+    private final ByteBuffer buffer;
+    private final String release;
+    private final String[] classes;
+    private final int[] organisms;
+    private final int keyCount;
+    private final int slots;
+    private final int slotHashes;
+    private final int slotKeys;
+    private final int keyOffsets;
+    private final int postingOffsets;
+    private final int postingIds;
+    private final int postingClasses;
+    private final int keys;
+
+    /**
+     * @param file a file written by IdentifierIndexWriter
+     * @throws IOException if the file can't be mapped or isn't an identifier index
+     */
+    public IdentifierIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        if (buffer.getInt(0) != IdentifierIndexWriter.MAGIC
+                || buffer.getInt(4) != IdentifierIndexWriter.VERSION) {
+            throw new IOException(file + " isn't a version " + IdentifierIndexWriter.VERSION
+                    + " identifier index");
+        }
+        int data = buffer.getInt(8);
+        byte[] header = new byte[data - 12];
+        ((ByteBuffer) buffer.duplicate().position(12)).get(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        release = in.readUTF();
+        classes = new String[in.readInt()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = in.readUTF();
+        }
+        organisms = new int[in.readInt()];
+        for (int i = 0; i < organisms.length; i++) {
+            organisms[i] = in.readInt();
+        }
+        keyCount = buffer.getInt(data);
+        slots = buffer.getInt(data + 4);
+        int postingCount = buffer.getInt(data + 8);
+        slotHashes = data + 12;
+        slotKeys = slotHashes + 4 * slots;
+        keyOffsets = slotKeys + 4 * slots;
+        postingOffsets = keyOffsets + 4 * (keyCount + 1);
+        postingIds = postingOffsets + 4 * (keyCount + 1);
+        postingClasses = postingIds + 4 * postingCount;
+        keys = postingClasses + 4 * postingCount;
+    }
+
+    /**
+     * Normalise an identifier for lookup: trimmed and lower case.
+     * @param identifier the identifier
+     * @return the normalised identifier
+     */
+    public static String normalise(String identifier) {
+        return identifier.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The hash of a normalised identifier's UTF-8 bytes: FNV-1a with the MurmurHash3 finaliser.
+     * @param bytes the bytes
+     * @param length how many of them to hash
+     * @return the hash
+     */
+    static int hash(byte[] bytes, int length) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the data release the index was built from
+     */
+    public String getRelease() {
+        return release;
+    }
+
+    /**
+     * @return the number of distinct identifiers
+     */
+    public int size() {
+        return keyCount;
+    }
+
+    /**
+     * @return the unqualified names of the classes of the objects indexed
+     */
+    public List<String> getClassNames() {
+        return Collections.unmodifiableList(Arrays.asList(classes));
+    }
+
+    /**
+     * Find the objects with an identifier.
+     * @param identifier the identifier, any case
+     * @param classNames the unqualified names of the classes to accept, null for any
+     * @param taxonId the taxon id of the organism to accept, null for any
+     * @return the ids of the matching objects, in index order
+     */
+    public int[] lookup(String identifier, Set<String> classNames, Integer taxonId) {
+        return lookup(identifier, accepted(classNames), organism(taxonId)).getIds();
+    }
+
+    /**
+     * Find the objects for many identifiers.
+     * @param identifiers the identifiers
+     * @param classNames the unqualified names of the classes to accept, null for any
+     * @param taxonId the taxon id of the organism to accept, null for any
+     * @return identifier to the matching objects, in identifier order, with no ids for an
+     * identifier with no match
+     */
+    public Map<String, Matches> resolve(Collection<String> identifiers, Set<String> classNames,
+            Integer taxonId) {
+        boolean[] accepted = accepted(classNames);
+        int organism = organism(taxonId);
+        Map<String, Matches> results = new LinkedHashMap<String, Matches>();
+        for (String identifier : identifiers) {
+            if (!results.containsKey(identifier)) {
+                results.put(identifier, lookup(identifier, accepted, organism));
+            }
+        }
+        return results;
+    }
+
+    private boolean[] accepted(Set<String> classNames) {
+        if (classNames == null) {
+            return null;
+        }
+        boolean[] accepted = new boolean[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            accepted[i] = classNames.contains(classes[i]);
+        }
+        return accepted;
+    }
+
+    /**
+     * @return the organism index + 1 of a taxon id, 0 for any, -1 for one not indexed
+     */
+    private int organism(Integer taxonId) {
+        if (taxonId == null) {
+            return 0;
+        }
+        for (int i = 0; i < organisms.length; i++) {
+            if (organisms[i] == taxonId.intValue()) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private Matches lookup(String identifier, boolean[] accepted, int organism) {
+        if (organism < 0) {
+            return NONE;
+        }
+        byte[] bytes;
+        try {
+            bytes = normalise(identifier).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int hash = hash(bytes, bytes.length);
+        int mask = slots - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            int key = buffer.getInt(slotKeys + 4 * slot) - 1;
+            if (key < 0) {
+                return NONE;
+            }
+            if (buffer.getInt(slotHashes + 4 * slot) == hash && matches(key, bytes)) {
+                return postings(key, accepted, organism);
+            }
+        }
+    }
+
+    private boolean matches(int key, byte[] bytes) {
+        int start = keys + buffer.getInt(keyOffsets + 4 * key);
+        int end = keys + buffer.getInt(keyOffsets + 4 * (key + 1));
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Matches postings(int key, boolean[] accepted, int organism) {
+        int from = buffer.getInt(postingOffsets + 4 * key);
+        int to = buffer.getInt(postingOffsets + 4 * (key + 1));
+        int[] ids = new int[to - from];
+        boolean[] synonyms = new boolean[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int classAndOrganism = buffer.getInt(postingClasses + 4 * i);
+            if ((accepted == null || accepted[classAndOrganism >>> 16])
+                    && (organism == 0
+                        || (classAndOrganism & (IdentifierIndexWriter.SYNONYM - 1)) == organism)) {
+                synonyms[count] = (classAndOrganism & IdentifierIndexWriter.SYNONYM) != 0;
+                ids[count++] = buffer.getInt(postingIds + 4 * i);
+            }
+        }
+        return (count == ids.length) ? new Matches(ids, synonyms)
+            : new Matches(Arrays.copyOf(ids, count), Arrays.copyOf(synonyms, count));
+    }
+
+    /**
+     * The objects an identifier matched.
+     */
+    public static final class Matches
+    {
+        private final int[] ids;
+        private final boolean[] synonyms;
+
+        Matches(int[] ids, boolean[] synonyms) {
+            this.ids = ids;
+            this.synonyms = synonyms;
+        }
+
+        /**
+         * @return the ids of the matching objects, in index order
+         */
+        public int[] getIds() {
+            return ids.clone();
+        }
+
+        /**
+         * @return the number of matching objects
+         */
+        public int size() {
+            return ids.length;
+        }
+
+        /**
+         * @param i the index of a match
+         * @return the id of the object
+         */
+        public int getId(int i) {
+            return ids[i];
+        }
+
+        /**
+         * @param i the index of a match
+         * @return true if the identifier is only a synonym of the object, not a key field value
+         */
+        public boolean isSynonym(int i) {
+            return synonyms[i];
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.query.BagConstraint;
+import org.intermine.objectstore.query.ConstraintOp;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.util.DynamicUtil;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * Writes the identifier index of a data release of every BioEntity: the values of its
+ * class_keys.properties key fields and of its synonyms, with its class and the taxon id of its
+ * organism.  BioEntities are
+ * read in id order in batches, with one query per batch for their synonyms.
+ */
+public final class IdentifierIndexBuilder
+{
+    private static final Logger LOG = Logger.getLogger(IdentifierIndexBuilder.class);
+    private static final int BATCH_SIZE = 5000;
+
+    private final ObjectStore os;
+    private final Model model;
+    private final Map<ClassDescriptor, Set<String>> keyFields
+        = new HashMap<ClassDescriptor, Set<String>>();
+
+    /**
+     * @param os the ObjectStore to read
+     * @param classKeys the contents of class_keys.properties
+     */
+    public IdentifierIndexBuilder(ObjectStore os, Properties classKeys) {
+        this.os = os;
+        this.model = os.getModel();
+        for (String className : classKeys.stringPropertyNames()) {
+            ClassDescriptor cld = model.getClassDescriptorByName(className);
+            if (cld == null) {
+                continue;
+            }
+            Set<String> fields = new LinkedHashSet<String>();
+            for (String field : classKeys.getProperty(className).trim().split("[,\\s]+")) {
+                if (cld.getAttributeDescriptorByName(field, true) != null) {
+                    fields.add(field);
+                }
+            }
+            keyFields.put(cld, fields);
+        }
+    }
+
+    /**
+     * @param file the index file to write
+     * @param release the data release
+     * @throws Exception if the ObjectStore can't be read or the file written
+     */
+    public void build(File file, String release) throws Exception {
+        long start = System.currentTimeMillis();
+        Map<Integer, Integer> taxonIds = new HashMap<Integer, Integer>();
+        Query organisms = new Query();
+        QueryClass qcOrganism = new QueryClass(model.getClassDescriptorByName("Organism")
+                .getType());
+        organisms.addFrom(qcOrganism);
+        organisms.addToSelect(qcOrganism);
+        for (Object row : os.execute(organisms)) {
+            InterMineObject organism = (InterMineObject) ((List<?>) row).get(0);
+            Object taxonId = organism.getFieldValue("taxonId");
+            if (taxonId != null) {
+                taxonIds.put(organism.getId(), Integer.valueOf(taxonId.toString()));
+            }
+        }
+
+        IdentifierIndexWriter writer = new IdentifierIndexWriter();
+        Query q = new Query();
+        QueryClass qc = new QueryClass(model.getClassDescriptorByName("BioEntity").getType());
+        q.addFrom(qc);
+        q.addToSelect(qc);
+        q.addToOrderBy(new QueryField(qc, "id"));
+        List<InterMineObject> batch = new ArrayList<InterMineObject>();
+        int count = 0;
+        for (Object row : os.execute(q, BATCH_SIZE, true, false, false)) {
+            batch.add((InterMineObject) ((List<?>) row).get(0));
+            if (batch.size() == BATCH_SIZE) {
+                add(batch, taxonIds, writer);
+                count += batch.size();
+                batch.clear();
+                if (count % 100000 == 0) {
+                    LOG.info("Indexed the identifiers of " + count + " objects");
+                }
+            }
+        }
+        add(batch, taxonIds, writer);
+        count += batch.size();
+        writer.write(file, release);
+        LOG.info("Wrote " + writer.size() + " identifiers of " + count + " objects of release "
+                + release + " in "
+                + (System.currentTimeMillis() - start) / 1000 + " s");
+    }
+
+    private void add(List<InterMineObject> batch, Map<Integer, Integer> taxonIds,
+            IdentifierIndexWriter writer) throws Exception {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Set<Integer> ids = new HashSet<Integer>();
+        for (InterMineObject object : batch) {
+            ids.add(object.getId());
+        }
+        Map<Integer, List<String>> synonyms = new HashMap<Integer, List<String>>();
+        Query q = new Query();
+        QueryClass qcObject = new QueryClass(model.getClassDescriptorByName("BioEntity")
+                .getType());
+        QueryClass qcSynonym = new QueryClass(model.getClassDescriptorByName("Synonym")
+                .getType());
+        q.addFrom(qcObject);
+        q.addFrom(qcSynonym);
+        q.addToSelect(new QueryField(qcObject, "id"));
+        q.addToSelect(new QueryField(qcSynonym, "value"));
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new BagConstraint(new QueryField(qcObject, "id"), ConstraintOp.IN,
+                    ids));
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcObject,
+                        "synonyms"), ConstraintOp.CONTAINS, qcSynonym));
+        q.setConstraint(cs);
+        q.setDistinct(false);
+        for (Object row : os.execute(q, BATCH_SIZE * 4, true, false, false)) {
+            Integer id = (Integer) ((List<?>) row).get(0);
+            List<String> values = synonyms.get(id);
+            if (values == null) {
+                values = new ArrayList<String>();
+                synonyms.put(id, values);
+            }
+            if (((List<?>) row).get(1) != null) {
+                values.add((String) ((List<?>) row).get(1));
+            }
+        }
+
+        for (InterMineObject object : batch) {
+            ClassDescriptor cld = model.getClassDescriptorByName(
+                    DynamicUtil.getSimpleClass(object).getName());
+            InterMineObject organism = (InterMineObject) object.getFieldProxy("organism");
+            Integer taxonId = (organism == null) ? null : taxonIds.get(organism.getId());
+            int id = object.getId().intValue();
+            for (String field : keyFields(cld)) {
+                Object value = object.getFieldValue(field);
+                if (value != null) {
+                    writer.add(value.toString(), id, cld.getUnqualifiedName(), taxonId, false);
+                }
+            }
+            if (synonyms.containsKey(object.getId())) {
+                for (String synonym : synonyms.get(object.getId())) {
+                    writer.add(synonym, id, cld.getUnqualifiedName(), taxonId, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the key fields of a class and its superclasses
+     */
+    private Set<String> keyFields(ClassDescriptor cld) {
+        Set<String> fields = new LinkedHashSet<String>();
+        if (keyFields.containsKey(cld)) {
+            fields.addAll(keyFields.get(cld));
+        }
+        for (ClassDescriptor superCld : cld.getAllSuperDescriptors()) {
+            if (keyFields.containsKey(superCld)) {
+                fields.addAll(keyFields.get(superCld));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Usage: IdentifierIndexBuilder file [release [objectstore]]
+     *
+     * The release defaults to project.releaseVersion of the mine properties.
+     * @param args see above
+     * @throws Exception if the index can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: IdentifierIndexBuilder file [release [objectstore]]");
+            System.exit(1);
+        }
+        String release = (args.length > 1 && args[1].length() > 0) ? args[1]
+            : PropertiesUtil.getProperties().getProperty("project.releaseVersion", "");
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 2) ? args[2]
+                : "os.production");
+        Properties classKeys = new Properties();
+        InputStream in = IdentifierIndexBuilder.class.getClassLoader().getResourceAsStream(
+                "class_keys.properties");
+        if (in == null) {
+            throw new IllegalStateException("class_keys.properties not on the classpath");
+        }
+        try {
+            classKeys.load(in);
+        } finally {
+            in.close();
+        }
+        // written beside the old index and moved over it, a webapp mapping it keeps its copy
+        File file = new File(args[0]);
+        File building = new File(file.getPath() + ".building");
+        new IdentifierIndexBuilder(os, classKeys).build(building, release);
+        if (!building.renameTo(file)) {
+            throw new IOException("Couldn't move " + building + " to " + file);
+        }
+    }
+}
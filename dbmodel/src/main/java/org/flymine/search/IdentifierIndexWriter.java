@@ -0,0 +1,225 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the file read by IdentifierIndex for one data release: every identifier and synonym
+ * of the objects added, normalised with IdentifierIndex.normalise(), with the id, class and
+ * organism of each object it belongs to and whether it is only a synonym of that object.
+ *
+ * The file is a fixed header of magic, version and the offset of the data, then the release
+ * and class names (modified UTF-8) and the organism taxon ids the postings refer to by index,
+ * then:
+ * <pre>
+ * key count, slot count, posting count,
+ * slot hashes [slots], slot keys [slots] (key index + 1, 0 for an empty slot),
+ * key offsets [keys + 1], posting offsets [keys + 1],
+ * posting object ids [postings], posting classes [postings] (class index &lt;&lt; 16 |
+ * SYNONYM if the key is only a synonym of the object | organism index + 1, 0 for no
+ * organism), key bytes
+ * </pre>
+ * The slots are an open addressing hash table with linear probing, at most half full.  All
+ * numbers are big endian ints.
+ */
+public final class IdentifierIndexWriter
+{
+    /** Identifies an identifier index file. */
+    public static final int MAGIC = 0x464d4944;
+    /** The format version. */
+    public static final int VERSION = 2;
+    /** The posting class bit of a key that is only a synonym of the object. */
+    public static final int SYNONYM = 0x8000;
+
+    private final List<String> classes = new ArrayList<String>();
+    private final Map<String, Integer> classIndexes = new HashMap<String, Integer>();
+    private final List<Integer> organisms = new ArrayList<Integer>();
+    private final Map<Integer, Integer> organismIndexes = new HashMap<Integer, Integer>();
+    private final Map<String, Postings> keys = new HashMap<String, Postings>();
+
+    /**
+     * Add an identifier of an object.  Add all the identifiers of one object before those of
+     * the next: an identifier added again for the same object, even with different case, is
+     * then added once.
+     * @param identifier the identifier or synonym
+     * @param id the object id
+     * @param className the unqualified class name of the object
+     * @param taxonId the taxon id of the organism of the object, null if none
+     * @param synonym true if the identifier is a synonym rather than a key field value
+     */
+    public void add(String identifier, int id, String className, Integer taxonId,
+            boolean synonym) {
+        String key = IdentifierIndex.normalise(identifier);
+        if (key.length() == 0) {
+            return;
+        }
+        Integer classIndex = classIndexes.get(className);
+        if (classIndex == null) {
+            classIndex = new Integer(classes.size());
+            classes.add(className);
+            classIndexes.put(className, classIndex);
+        }
+        int organism = 0;
+        if (taxonId != null) {
+            Integer organismIndex = organismIndexes.get(taxonId);
+            if (organismIndex == null) {
+                if (organisms.size() + 1 >= SYNONYM) {
+                    throw new IllegalStateException("Too many organisms");
+                }
+                organismIndex = new Integer(organisms.size());
+                organisms.add(taxonId);
+                organismIndexes.put(taxonId, organismIndex);
+            }
+            organism = organismIndex.intValue() + 1;
+        }
+        Postings postings = keys.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            keys.put(key, postings);
+        }
+        postings.add(id, (classIndex.intValue() << 16) | (synonym ? SYNONYM : 0) | organism);
+    }
+
+    /**
+     * @return the number of distinct identifiers added
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @param file the file to write
+     * @param release the data release the identifiers are of
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file, String release) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF(release);
+        headerOut.writeInt(classes.size());
+        for (String className : classes) {
+            headerOut.writeUTF(className);
+        }
+        headerOut.writeInt(organisms.size());
+        for (Integer taxonId : organisms) {
+            headerOut.writeInt(taxonId.intValue());
+        }
+        headerOut.flush();
+
+        int keyCount = keys.size();
+        int slots = 2;
+        while (slots < 2 * keyCount) {
+            slots <<= 1;
+        }
+        List<byte[]> keyBytes = new ArrayList<byte[]>(keyCount);
+        List<Postings> postings = new ArrayList<Postings>(keyCount);
+        int[] slotHashes = new int[slots];
+        int[] slotKeys = new int[slots];
+        int postingCount = 0;
+        for (Map.Entry<String, Postings> key : keys.entrySet()) {
+            byte[] bytes = key.getKey().getBytes("UTF-8");
+            int hash = IdentifierIndex.hash(bytes, bytes.length);
+            int slot = hash & (slots - 1);
+            while (slotKeys[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            slotHashes[slot] = hash;
+            slotKeys[slot] = keyBytes.size() + 1;
+            keyBytes.add(bytes);
+            postings.add(key.getValue());
+            postingCount += key.getValue().size;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(12 + header.size());
+            header.writeTo(out);
+            out.writeInt(keyCount);
+            out.writeInt(slots);
+            out.writeInt(postingCount);
+            for (int hash : slotHashes) {
+                out.writeInt(hash);
+            }
+            for (int key : slotKeys) {
+                out.writeInt(key);
+            }
+            int offset = 0;
+            for (byte[] bytes : keyBytes) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            offset = 0;
+            for (Postings p : postings) {
+                out.writeInt(offset);
+                offset += p.size;
+            }
+            out.writeInt(offset);
+            for (Postings p : postings) {
+                for (int i = 0; i < p.size; i++) {
+                    out.writeInt(p.ids[i]);
+                }
+            }
+            for (Postings p : postings) {
+                for (int i = 0; i < p.size; i++) {
+                    out.writeInt(p.classes[i]);
+                }
+            }
+            for (byte[] bytes : keyBytes) {
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The objects with one identifier.
+     */
+    private static final class Postings
+    {
+        private int[] ids = new int[1];
+        private int[] classes = new int[1];
+        private int size = 0;
+
+        void add(int id, int classAndOrganism) {
+            if (size > 0 && ids[size - 1] == id) {
+                // a key of the object as well as a synonym is a key
+                classes[size - 1] &= classAndOrganism | ~SYNONYM;
+                return;
+            }
+            if (size == ids.length) {
+                int[] newIds = new int[size * 2];
+                int[] newClasses = new int[size * 2];
+                System.arraycopy(ids, 0, newIds, 0, size);
+                System.arraycopy(classes, 0, newClasses, 0, size);
+                ids = newIds;
+                classes = newClasses;
+            }
+            ids[size] = id;
+            classes[size] = classAndOrganism;
+            size++;
+        }
+    }
+}
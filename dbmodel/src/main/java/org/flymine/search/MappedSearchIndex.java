@@ -0,0 +1,148 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * A keyword search index written by ShardedIndexBuilder, read in place through a memory map so
+ * that opening it costs nothing in proportion to its size: pages are read from the file as
+ * searches touch them and are shared with every other process mapping it.  The data release
+ * it was built from is read from search.properties in the index directory.  Thread safe.
+ */
+public final class MappedSearchIndex
+{
+    private final IndexReader reader;
+    private final IndexSearcher searcher;
+    private final String release;
+
+    /**
+     * @param indexDir the index directory
+     * @throws IOException if the index can't be opened
+     */
+    public MappedSearchIndex(File indexDir) throws IOException {
+        Properties state = new Properties();
+        File stateFile = new File(indexDir, ShardedIndexBuilder.STATE_FILE);
+        if (stateFile.exists()) {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        // an index built before releases were recorded matches none
+        release = state.getProperty("release", "");
+        reader = IndexReader.open(new MMapDirectory(indexDir), true);
+        searcher = new IndexSearcher(reader);
+    }
+
+    /**
+     * @return the data release the index was built from, "" if it wasn't recorded
+     */
+    public String getRelease() {
+        return release;
+    }
+
+    /**
+     * @param text a Lucene query on the object text
+     * @param facets facet name to the value results must have, may be empty
+     * @param max the most ids to return
+     * @return the ids of the best matching objects, best first, and how many objects match
+     * @throws ParseException if the text isn't a valid query
+     * @throws IOException if the index can't be read
+     */
+    public Hits search(String text, Map<String, String> facets, int max)
+        throws ParseException, IOException {
+        // QueryParser isn't thread safe, make one per search
+        QueryParser parser = new QueryParser(Version.LUCENE_30,
+                ShardedIndexBuilder.CONTENT_FIELD, new WhitespaceAnalyzer());
+        parser.setDefaultOperator(QueryParser.AND_OPERATOR);
+        BooleanQuery query = new BooleanQuery();
+        query.add(parser.parse(text.toLowerCase()), BooleanClause.Occur.MUST);
+        for (Map.Entry<String, String> facet : facets.entrySet()) {
+            query.add(new TermQuery(new Term(facet.getKey(), facet.getValue())),
+                    BooleanClause.Occur.MUST);
+        }
+        TopDocs top = searcher.search(query, max);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (ScoreDoc hit : top.scoreDocs) {
+            ids.add(Integer.valueOf(searcher.doc(hit.doc).get(ShardedIndexBuilder.ID_FIELD)));
+        }
+        return new Hits(ids, top.totalHits);
+    }
+
+    /**
+     * @return the number of objects indexed
+     */
+    public int size() {
+        return reader.numDocs();
+    }
+
+    /**
+     * Release the index files.
+     * @throws IOException if the index can't be closed
+     */
+    public void close() throws IOException {
+        searcher.close();
+        reader.close();
+    }
+
+    /**
+     * The best matches of a search and the number of objects matching.
+     */
+    public static final class Hits
+    {
+        private final List<Integer> ids;
+        private final int total;
+
+        Hits(List<Integer> ids, int total) {
+            this.ids = Collections.unmodifiableList(ids);
+            this.total = total;
+        }
+
+        /**
+         * @return the ids of the best matching objects, best first
+         */
+        public List<Integer> getIds() {
+            return ids;
+        }
+
+        /**
+         * @return the number of objects matching, of which getIds() may be only the first
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+
+/**
+ * What keyword_search.properties asks to be indexed: the classes to leave out
+ * (index.ignore), the references whose objects are indexed with each class
+ * (index.references.[class]), the facets (index.facet.single.[name] and
+ * index.facet.multi.[name], a path from the object or "Category" for its class) and the
+ * boost of each class (index.boost.[class]).  Ignoring a class ignores its subclasses.
+ */
+public final class SearchIndexConfig
+{
+    /** The facet whose value is the class of the object. */
+    public static final String CATEGORY = "Category";
+
+    private final Model model;
+    private final Set<ClassDescriptor> ignored = new HashSet<ClassDescriptor>();
+    private final Map<ClassDescriptor, List<String>> references
+        = new HashMap<ClassDescriptor, List<String>>();
+    private final Map<String, String> facets = new LinkedHashMap<String, String>();
+    private final Set<String> multiFacets = new HashSet<String>();
+    private final Map<ClassDescriptor, Float> boosts = new HashMap<ClassDescriptor, Float>();
+
+    /**
+     * @param model the model of the ObjectStore being indexed
+     * @param properties the contents of keyword_search.properties
+     */
+    public SearchIndexConfig(Model model, Properties properties) {
+        this.model = model;
+        for (String name : properties.getProperty("index.ignore", "").trim().split("\\s+")) {
+            if (name.length() > 0) {
+                ignored.add(classDescriptor(name));
+            }
+        }
+        for (String key : new TreeSet<String>(properties.stringPropertyNames())) {
+            String value = properties.getProperty(key).trim();
+            if (key.startsWith("index.references.")) {
+                List<String> paths = new ArrayList<String>();
+                for (String path : value.split("\\s+")) {
+                    if (path.length() > 0) {
+                        paths.add(path);
+                    }
+                }
+                references.put(classDescriptor(key.substring("index.references.".length())),
+                        paths);
+            } else if (key.startsWith("index.facet.single.")) {
+                facets.put(key.substring("index.facet.single.".length()), value);
+            } else if (key.startsWith("index.facet.multi.")) {
+                String facet = key.substring("index.facet.multi.".length());
+                facets.put(facet, value);
+                multiFacets.add(facet);
+            } else if (key.startsWith("index.boost.")) {
+                boosts.put(classDescriptor(key.substring("index.boost.".length())),
+                        Float.valueOf(value));
+            }
+        }
+    }
+
+    private ClassDescriptor classDescriptor(String name) {
+        ClassDescriptor cld = model.getClassDescriptorByName(name);
+        if (cld == null) {
+            throw new IllegalArgumentException("keyword_search.properties names class " + name
+                    + " which isn't in the model");
+        }
+        return cld;
+    }
+
+    /**
+     * @return the model
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * @param cld a class
+     * @return true if objects of the class aren't indexed
+     */
+    public boolean isIgnored(ClassDescriptor cld) {
+        if (ignored.contains(cld)) {
+            return true;
+        }
+        for (ClassDescriptor superCld : cld.getAllSuperDescriptors()) {
+            if (ignored.contains(superCld)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the classes whose objects cover everything to be indexed: those indexed classes with
+     * no indexed superclass other than InterMineObject.
+     * @return the root classes, ordered by name
+     */
+    public List<ClassDescriptor> getRootClasses() {
+        List<ClassDescriptor> roots = new ArrayList<ClassDescriptor>();
+        for (ClassDescriptor cld : model.getClassDescriptors()) {
+            if (isRoot(cld)) {
+                roots.add(cld);
+            }
+        }
+        Collections.sort(roots, new Comparator<ClassDescriptor>() {
+            public int compare(ClassDescriptor a, ClassDescriptor b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return roots;
+    }
+
+    private boolean isRoot(ClassDescriptor cld) {
+        if (isInterMineObject(cld) || isIgnored(cld)) {
+            return false;
+        }
+        for (ClassDescriptor superCld : cld.getAllSuperDescriptors()) {
+            if (!isInterMineObject(superCld) && !isIgnored(superCld)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInterMineObject(ClassDescriptor cld) {
+        return "org.intermine.model.InterMineObject".equals(cld.getName());
+    }
+
+    /**
+     * @param cld the class of an object
+     * @return the paths of the objects indexed along with it, from its class and superclasses
+     */
+    public Set<String> getReferences(ClassDescriptor cld) {
+        Set<String> paths = new TreeSet<String>();
+        if (references.containsKey(cld)) {
+            paths.addAll(references.get(cld));
+        }
+        for (ClassDescriptor superCld : cld.getAllSuperDescriptors()) {
+            if (references.containsKey(superCld)) {
+                paths.addAll(references.get(superCld));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return facet name to path, in configuration order
+     */
+    public Map<String, String> getFacets() {
+        return Collections.unmodifiableMap(facets);
+    }
+
+    /**
+     * @param facet a facet name
+     * @return true if an object can have several values for the facet
+     */
+    public boolean isMultiFacet(String facet) {
+        return multiFacets.contains(facet);
+    }
+
+    /**
+     * @param cld the class of an object
+     * @return the product of the boosts of the class and its superclasses, 1 if none are set
+     */
+    public float getBoost(ClassDescriptor cld) {
+        float boost = boosts.containsKey(cld) ? boosts.get(cld).floatValue() : 1.0f;
+        for (ClassDescriptor superCld : cld.getAllSuperDescriptors()) {
+            if (boosts.containsKey(superCld)) {
+                boost *= boosts.get(superCld).floatValue();
+            }
+        }
+        return boost;
+    }
+}
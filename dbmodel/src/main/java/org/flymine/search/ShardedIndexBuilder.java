@@ -0,0 +1,688 @@
+package org.flymine.search;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.intermine.metadata.AttributeDescriptor;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.FieldDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.metadata.ReferenceDescriptor;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.query.BagConstraint;
+import org.intermine.objectstore.query.ConstraintOp;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryFunction;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.QueryReference;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.Results;
+import org.intermine.objectstore.query.SimpleConstraint;
+import org.intermine.util.DynamicUtil;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * Builds the keyword search index described by keyword_search.properties into a Lucene
+ * directory, several shards at a time.  The objects of each root class (see
+ * SearchIndexConfig.getRootClasses()) are split into id ranges, each range is indexed into its
+ * own directory by one thread, and the shards are merged at the end.  Objects are read in
+ * batches, and the referenced objects indexed with them are fetched with one query per
+ * reference path per batch rather than one lookup per object.
+ *
+ * The highest object id indexed is kept in the index directory, in search.properties, so
+ * update() can index only the objects added by a partial reload.  The data release is kept
+ * there too, and the webapp ignores an index of another release.  update() records the
+ * release it is given.  It also removes the
+ * documents of objects no longer in the ObjectStore and reindexes any objects it is told have
+ * changed.
+ *
+ * Each document has the object id, its class as Category, one field per facet and its text,
+ * with the text of its indexed references, lower cased in "content".
+ */
+public final class ShardedIndexBuilder
+{
+    private static final Logger LOG = Logger.getLogger(ShardedIndexBuilder.class);
+    /** The field holding the object id. */
+    public static final String ID_FIELD = "id";
+    /** The field holding the indexed text. */
+    public static final String CONTENT_FIELD = "content";
+    /** The file in the index directory recording what it covers. */
+    public static final String STATE_FILE = "search.properties";
+    private static final int BATCH_SIZE = 1000;
+    private static final int CHECK_BATCH_SIZE = 10000;
+
+    private final ObjectStore os;
+    private final SearchIndexConfig config;
+    private final List<ClassDescriptor> roots;
+    private final File indexDir;
+    private final String release;
+    private final int threads;
+    private final int idsPerShard;
+
+    /**
+     * @param os the ObjectStore to index
+     * @param config what to index
+     * @param indexDir the index directory
+     * @param release the data release being indexed
+     * @param threads the number of shards to index at once
+     * @param idsPerShard the width of the id range of each shard
+     */
+    public ShardedIndexBuilder(ObjectStore os, SearchIndexConfig config, File indexDir,
+            String release, int threads, int idsPerShard) {
+        this.os = os;
+        this.config = config;
+        this.roots = config.getRootClasses();
+        this.indexDir = indexDir;
+        this.release = release;
+        this.threads = threads;
+        this.idsPerShard = idsPerShard;
+    }
+
+    /**
+     * Index every object, replacing the index directory when done.
+     * @throws Exception if the ObjectStore can't be read or the index written
+     */
+    public void build() throws Exception {
+        long start = System.currentTimeMillis();
+        int maxId = maxId();
+        File building = new File(indexDir.getPath() + ".building");
+        delete(building);
+        List<Directory> shards = indexShards(shards(0, maxId));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(building), analyzer(), true,
+                IndexWriter.MaxFieldLength.UNLIMITED);
+        try {
+            writer.addIndexesNoOptimize(shards.toArray(new Directory[shards.size()]));
+            writer.optimize();
+            LOG.info("Indexed " + writer.numDocs() + " objects in "
+                    + (System.currentTimeMillis() - start) / 1000 + " s");
+        } finally {
+            writer.close();
+        }
+        deleteShards();
+        saveState(building, maxId, release);
+
+        // swap the new index in, a webapp with the old one mapped keeps reading it until closed
+        File old = new File(indexDir.getPath() + ".old");
+        delete(old);
+        if (indexDir.exists() && !indexDir.renameTo(old)) {
+            throw new IOException("Couldn't move " + indexDir + " out of the way");
+        }
+        if (!building.renameTo(indexDir)) {
+            throw new IOException("Couldn't move " + building + " to " + indexDir);
+        }
+        delete(old);
+    }
+
+    /**
+     * Bring the index up to date after a partial reload: index the objects added since the
+     * index was built, remove the objects that have gone and reindex those given.
+     * @param changed the ids of objects whose data has changed, may be empty
+     * @throws Exception if the ObjectStore can't be read or the index written
+     */
+    public void update(Collection<Integer> changed) throws Exception {
+        Properties state = load(new File(indexDir, STATE_FILE));
+        if (state.getProperty("maxId") == null) {
+            throw new IllegalStateException(indexDir + " wasn't made by build(), can't update");
+        }
+        int indexedMaxId = Integer.parseInt(state.getProperty("maxId"));
+        int maxId = maxId();
+        List<Term> deletes = new ArrayList<Term>();
+        for (Integer id : missing()) {
+            deletes.add(new Term(ID_FIELD, id.toString()));
+        }
+        LOG.info(deletes.size() + " indexed objects are no longer in the ObjectStore");
+        for (Integer id : changed) {
+            deletes.add(new Term(ID_FIELD, id.toString()));
+        }
+
+        List<Shard> shards = shards(indexedMaxId + 1, maxId);
+        List<Integer> reindex = new ArrayList<Integer>();
+        for (Integer id : changed) {
+            if (id.intValue() <= indexedMaxId) {
+                reindex.add(id);
+            }
+        }
+        for (int i = 0; i < reindex.size(); i += BATCH_SIZE) {
+            List<Integer> ids = reindex.subList(i, Math.min(i + BATCH_SIZE, reindex.size()));
+            for (ClassDescriptor root : roots) {
+                shards.add(new Shard(root, new ArrayList<Integer>(ids)));
+            }
+        }
+        List<Directory> directories = indexShards(shards);
+
+        IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), analyzer(), false,
+                IndexWriter.MaxFieldLength.UNLIMITED);
+        try {
+            writer.deleteDocuments(deletes.toArray(new Term[deletes.size()]));
+            writer.addIndexesNoOptimize(directories.toArray(new Directory[directories.size()]));
+            LOG.info("Index updated to " + writer.numDocs() + " objects");
+        } finally {
+            writer.close();
+        }
+        deleteShards();
+        saveState(indexDir, maxId, release);
+    }
+
+    /**
+     * Split the objects of each root class with ids from first to last into shards.
+     */
+    private List<Shard> shards(int first, int last) throws ObjectStoreException {
+        List<Shard> shards = new ArrayList<Shard>();
+        for (ClassDescriptor root : roots) {
+            Query q = new Query();
+            QueryClass qc = new QueryClass(root.getType());
+            q.addFrom(qc);
+            QueryField id = new QueryField(qc, ID_FIELD);
+            q.addToSelect(new QueryFunction(id, QueryFunction.MIN));
+            q.addToSelect(new QueryFunction(id, QueryFunction.MAX));
+            q.setConstraint(new SimpleConstraint(id, ConstraintOp.GREATER_THAN_EQUALS,
+                        new QueryValue(new Integer(first))));
+            List<?> row = (List<?>) os.execute(q).get(0);
+            if (row.get(0) == null) {
+                continue;
+            }
+            int min = ((Number) row.get(0)).intValue();
+            int max = Math.min(((Number) row.get(1)).intValue(), last);
+            for (long from = min; from <= max; from += idsPerShard) {
+                shards.add(new Shard(root, (int) from, (int) Math.min(from + idsPerShard - 1,
+                                max)));
+            }
+        }
+        LOG.info(shards.size() + " shards to index");
+        return shards;
+    }
+
+    /**
+     * Index the shards, threads at a time, each into its own directory.
+     */
+    private List<Directory> indexShards(List<Shard> shards) throws Exception {
+        deleteShards();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Directory>> futures = new ArrayList<Future<Directory>>();
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                final Shard shard = shards.get(i);
+                final File dir = new File(shardsDir(), "shard-" + i);
+                futures.add(executor.submit(new Callable<Directory>() {
+                    public Directory call() throws Exception {
+                        Directory directory = FSDirectory.open(dir);
+                        IndexWriter writer = new IndexWriter(directory, analyzer(), true,
+                                IndexWriter.MaxFieldLength.UNLIMITED);
+                        try {
+                            int count = indexShard(shard, writer);
+                            LOG.info("Indexed " + count + " objects of " + shard);
+                        } finally {
+                            writer.close();
+                        }
+                        return directory;
+                    }
+                }));
+            }
+            List<Directory> directories = new ArrayList<Directory>();
+            for (Future<Directory> future : futures) {
+                directories.add(future.get());
+            }
+            return directories;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int indexShard(Shard shard, IndexWriter writer) throws Exception {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(shard.root.getType());
+        q.addFrom(qc);
+        q.addToSelect(qc);
+        QueryField id = new QueryField(qc, ID_FIELD);
+        if (shard.ids != null) {
+            q.setConstraint(new BagConstraint(id, ConstraintOp.IN, shard.ids));
+        } else {
+            ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+            cs.addConstraint(new SimpleConstraint(id, ConstraintOp.GREATER_THAN_EQUALS,
+                        new QueryValue(new Integer(shard.first))));
+            cs.addConstraint(new SimpleConstraint(id, ConstraintOp.LESS_THAN_EQUALS,
+                        new QueryValue(new Integer(shard.last))));
+            q.setConstraint(cs);
+        }
+        q.addToOrderBy(id);
+        Results results = os.execute(q, BATCH_SIZE, true, false, false);
+        List<InterMineObject> batch = new ArrayList<InterMineObject>();
+        int count = 0;
+        for (Object row : results) {
+            InterMineObject object = (InterMineObject) ((List<?>) row).get(0);
+            // objects of two root classes are indexed with the first
+            if (shard.root == root(object)) {
+                batch.add(object);
+            }
+            if (batch.size() == BATCH_SIZE) {
+                count += indexBatch(batch, writer);
+                batch.clear();
+            }
+        }
+        return count + indexBatch(batch, writer);
+    }
+
+    private int indexBatch(List<InterMineObject> batch, IndexWriter writer) throws Exception {
+        Model model = config.getModel();
+        // the paths to fetch, grouped by the class declaring their first step
+        Map<String, Set<Integer>> fetches = new LinkedHashMap<String, Set<Integer>>();
+        Map<InterMineObject, ClassDescriptor> classes
+            = new LinkedHashMap<InterMineObject, ClassDescriptor>();
+        for (InterMineObject object : batch) {
+            ClassDescriptor cld = model.getClassDescriptorByName(
+                    DynamicUtil.getSimpleClass(object).getName());
+            classes.put(object, cld);
+            Set<String> paths = new HashSet<String>(config.getReferences(cld));
+            for (String facet : config.getFacets().values()) {
+                if (facet.indexOf('.') > 0) {
+                    paths.add(facet.substring(0, facet.lastIndexOf('.')));
+                }
+            }
+            for (String path : paths) {
+                ClassDescriptor from = declaringClass(cld, path);
+                if (from != null) {
+                    String key = from.getName() + ":" + path;
+                    if (!fetches.containsKey(key)) {
+                        fetches.put(key, new HashSet<Integer>());
+                    }
+                    fetches.get(key).add(object.getId());
+                }
+            }
+        }
+        Map<String, Map<Integer, List<InterMineObject>>> fetched
+            = new HashMap<String, Map<Integer, List<InterMineObject>>>();
+        for (Map.Entry<String, Set<Integer>> fetch : fetches.entrySet()) {
+            String key = fetch.getKey();
+            String path = key.substring(key.indexOf(':') + 1);
+            Map<Integer, List<InterMineObject>> byPath = fetched.get(path);
+            if (byPath == null) {
+                byPath = new HashMap<Integer, List<InterMineObject>>();
+                fetched.put(path, byPath);
+            }
+            fetch(model.getClassDescriptorByName(key.substring(0, key.indexOf(':'))), path,
+                    fetch.getValue(), byPath);
+        }
+
+        int count = 0;
+        for (Map.Entry<InterMineObject, ClassDescriptor> entry : classes.entrySet()) {
+            InterMineObject object = entry.getKey();
+            ClassDescriptor cld = entry.getValue();
+            if (config.isIgnored(cld)) {
+                continue;
+            }
+            Document doc = new Document();
+            doc.add(new Field(ID_FIELD, object.getId().toString(), Field.Store.YES,
+                        Field.Index.NOT_ANALYZED_NO_NORMS));
+            for (Map.Entry<String, String> facet : config.getFacets().entrySet()) {
+                for (String value : facetValues(object, cld, facet.getValue(), fetched)) {
+                    doc.add(new Field(facet.getKey(), value, Field.Store.YES,
+                                Field.Index.NOT_ANALYZED_NO_NORMS));
+                    if (!config.isMultiFacet(facet.getKey())) {
+                        break;
+                    }
+                }
+            }
+            StringBuilder text = new StringBuilder();
+            appendText(object, text);
+            for (String path : config.getReferences(cld)) {
+                if (fetched.containsKey(path) && fetched.get(path).containsKey(object.getId())) {
+                    for (InterMineObject referenced : fetched.get(path).get(object.getId())) {
+                        appendText(referenced, text);
+                    }
+                }
+            }
+            doc.add(new Field(CONTENT_FIELD, text.toString().toLowerCase(), Field.Store.NO,
+                        Field.Index.ANALYZED));
+            doc.setBoost(config.getBoost(cld));
+            writer.addDocument(doc);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Fetch the objects at the end of a path from the given objects with one query.
+     */
+    private void fetch(ClassDescriptor from, String path, Set<Integer> ids,
+            Map<Integer, List<InterMineObject>> into) throws ObjectStoreException {
+        Query q = new Query();
+        QueryClass start = new QueryClass(from.getType());
+        q.addFrom(start);
+        q.addToSelect(new QueryField(start, ID_FIELD));
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new BagConstraint(new QueryField(start, ID_FIELD), ConstraintOp.IN,
+                    ids));
+        QueryClass qc = start;
+        ClassDescriptor cld = from;
+        for (String step : path.split("\\.")) {
+            ReferenceDescriptor rd = (ReferenceDescriptor) cld.getFieldDescriptorByName(step);
+            cld = rd.getReferencedClassDescriptor();
+            QueryClass next = new QueryClass(cld.getType());
+            q.addFrom(next);
+            QueryReference ref = rd.isCollection() ? new QueryCollectionReference(qc, step)
+                : new QueryObjectReference(qc, step);
+            cs.addConstraint(new ContainsConstraint(ref, ConstraintOp.CONTAINS, next));
+            qc = next;
+        }
+        q.addToSelect(qc);
+        q.setConstraint(cs);
+        q.setDistinct(false);
+        for (Object row : os.execute(q, BATCH_SIZE * 10, true, false, false)) {
+            Integer id = (Integer) ((List<?>) row).get(0);
+            List<InterMineObject> objects = into.get(id);
+            if (objects == null) {
+                objects = new ArrayList<InterMineObject>();
+                into.put(id, objects);
+            }
+            objects.add((InterMineObject) ((List<?>) row).get(1));
+        }
+    }
+
+    /**
+     * @return the class declaring the first step of path, or null if cld has no such path
+     */
+    private static ClassDescriptor declaringClass(ClassDescriptor cld, String path) {
+        ClassDescriptor from = null;
+        ClassDescriptor current = cld;
+        for (String step : path.split("\\.")) {
+            FieldDescriptor fd = current.getFieldDescriptorByName(step);
+            if (!(fd instanceof ReferenceDescriptor)) {
+                return null;
+            }
+            if (from == null) {
+                from = fd.getClassDescriptor();
+            }
+            current = ((ReferenceDescriptor) fd).getReferencedClassDescriptor();
+        }
+        return from;
+    }
+
+    private List<String> facetValues(InterMineObject object, ClassDescriptor cld, String path,
+            Map<String, Map<Integer, List<InterMineObject>>> fetched) throws Exception {
+        List<String> values = new ArrayList<String>();
+        if (SearchIndexConfig.CATEGORY.equals(path)) {
+            values.add(cld.getUnqualifiedName());
+        } else if (path.indexOf('.') < 0) {
+            if (cld.getAttributeDescriptorByName(path, true) != null) {
+                addValue(object.getFieldValue(path), values);
+            }
+        } else {
+            String refPath = path.substring(0, path.lastIndexOf('.'));
+            String attribute = path.substring(path.lastIndexOf('.') + 1);
+            if (fetched.containsKey(refPath) && fetched.get(refPath).containsKey(object.getId())) {
+                for (InterMineObject referenced : fetched.get(refPath).get(object.getId())) {
+                    addValue(referenced.getFieldValue(attribute), values);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static void addValue(Object value, List<String> values) {
+        if (value != null && !values.contains(value.toString())) {
+            values.add(value.toString());
+        }
+    }
+
+    private void appendText(InterMineObject object, StringBuilder text) throws Exception {
+        ClassDescriptor cld = config.getModel().getClassDescriptorByName(
+                DynamicUtil.getSimpleClass(object).getName());
+        for (AttributeDescriptor ad : cld.getAllAttributeDescriptors()) {
+            if ("java.lang.String".equals(ad.getType())) {
+                Object value = object.getFieldValue(ad.getName());
+                if (value != null) {
+                    text.append(value).append(' ');
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the root class an object is indexed under, the first by name it belongs to
+     */
+    private ClassDescriptor root(InterMineObject object) {
+        for (ClassDescriptor root : roots) {
+            if (root.getType().isInstance(object)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the ids in the index that aren't in the ObjectStore
+     */
+    private List<Integer> missing() throws Exception {
+        List<Integer> missing = new ArrayList<Integer>();
+        IndexReader reader = IndexReader.open(FSDirectory.open(indexDir), true);
+        try {
+            TermEnum terms = reader.terms(new Term(ID_FIELD, ""));
+            Set<Integer> batch = new HashSet<Integer>();
+            try {
+                do {
+                    Term term = terms.term();
+                    if (term == null || !ID_FIELD.equals(term.field())) {
+                        break;
+                    }
+                    batch.add(Integer.valueOf(term.text()));
+                    if (batch.size() == CHECK_BATCH_SIZE) {
+                        missing.addAll(missing(batch));
+                        batch.clear();
+                    }
+                } while (terms.next());
+            } finally {
+                terms.close();
+            }
+            missing.addAll(missing(batch));
+        } finally {
+            reader.close();
+        }
+        return missing;
+    }
+
+    private Set<Integer> missing(Set<Integer> ids) throws ObjectStoreException {
+        Set<Integer> missing = new HashSet<Integer>(ids);
+        if (ids.isEmpty()) {
+            return missing;
+        }
+        Query q = new Query();
+        QueryClass qc = new QueryClass(InterMineObject.class);
+        q.addFrom(qc);
+        QueryField id = new QueryField(qc, ID_FIELD);
+        q.addToSelect(id);
+        q.setConstraint(new BagConstraint(id, ConstraintOp.IN, ids));
+        for (Object row : os.execute(q, CHECK_BATCH_SIZE, true, false, false)) {
+            missing.remove(((List<?>) row).get(0));
+        }
+        return missing;
+    }
+
+    private int maxId() throws ObjectStoreException {
+        Query q = new Query();
+        QueryClass qc = new QueryClass(InterMineObject.class);
+        q.addFrom(qc);
+        q.addToSelect(new QueryFunction(new QueryField(qc, ID_FIELD), QueryFunction.MAX));
+        Object max = ((List<?>) os.execute(q).get(0)).get(0);
+        return (max == null) ? 0 : ((Number) max).intValue();
+    }
+
+    private static Analyzer analyzer() {
+        return new WhitespaceAnalyzer();
+    }
+
+    private File shardsDir() {
+        return new File(indexDir.getPath() + ".shards");
+    }
+
+    private void deleteShards() {
+        delete(shardsDir());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void saveState(File dir, int maxId, String release) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("maxId", String.valueOf(maxId));
+        state.setProperty("release", release);
+        state.setProperty("version", String.valueOf(System.currentTimeMillis()));
+        OutputStream out = new FileOutputStream(new File(dir, STATE_FILE));
+        try {
+            state.store(out, "keyword search index state");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * The objects of a root class with ids in a range, or with the given ids.
+     */
+    private static class Shard
+    {
+        private final ClassDescriptor root;
+        private final int first;
+        private final int last;
+        private final Collection<Integer> ids;
+
+        Shard(ClassDescriptor root, int first, int last) {
+            this.root = root;
+            this.first = first;
+            this.last = last;
+            this.ids = null;
+        }
+
+        Shard(ClassDescriptor root, Collection<Integer> ids) {
+            this.root = root;
+            this.first = 0;
+            this.last = 0;
+            this.ids = ids;
+        }
+
+        @Override
+        public String toString() {
+            return root.getUnqualifiedName() + ((ids == null) ? " " + first + "-" + last
+                    : " changed objects");
+        }
+    }
+
+    /**
+     * Usage: ShardedIndexBuilder indexDir threads idsPerShard [release [objectstore]]
+     * [build | update [changed ids file]]
+     *
+     * The release defaults to project.releaseVersion of the mine properties.
+     * @param args see above
+     * @throws Exception if the index can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ShardedIndexBuilder indexDir threads idsPerShard"
+                    + " [release [objectstore]] [build | update [changed ids file]]");
+            System.exit(1);
+        }
+        String release = (args.length > 3 && args[3].length() > 0) ? args[3]
+            : PropertiesUtil.getProperties().getProperty("project.releaseVersion", "");
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 4) ? args[4]
+                : "os.production");
+        Properties properties = new Properties();
+        InputStream in = ShardedIndexBuilder.class.getClassLoader().getResourceAsStream(
+                "keyword_search.properties");
+        if (in == null) {
+            throw new IllegalStateException("keyword_search.properties not on the classpath");
+        }
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        ShardedIndexBuilder builder = new ShardedIndexBuilder(os,
+                new SearchIndexConfig(os.getModel(), properties), new File(args[0]), release,
+                Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        if (args.length > 5 && "update".equals(args[5])) {
+            List<Integer> changed = new ArrayList<Integer>();
+            if (args.length > 6) {
+                BufferedReader reader = new BufferedReader(new FileReader(args[6]));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.trim().length() > 0) {
+                            changed.add(Integer.valueOf(line.trim()));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            builder.update(changed);
+        } else {
+            builder.build();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package org.flymine.sequence;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The chromosome locations of the located features of a data release, read in place from a
+ * file written by IntervalIndexWriter through a memory map.  Only the class and chromosome
+ * names are on the heap.
+ *
+ * Overlaps are found by walking the implicit interval tree of the chromosome, skipping the
+ * subtrees whose max end is before the region; the nearest feature by binary search of the
+ * start and end orders.  Intervals are referred to by position, an index into the columns
+ * read with getId(), getStart(), getEnd() and getClassName().  Coordinates are those of
+ * Location: from 1, both ends inclusive.  Thread safe.
+ */
+public final class IntervalIndex
+{
+    // regions a task of a bulk search
+    private static final int BATCH_SIZE = 1000;
+    // subtrees of this level or lower are scanned rather than walked
+    private static final int SCAN_LEVEL = 3;
+
+    private final ByteBuffer buffer;
+    private final String release;
+    private final String[] classes;
+    private final String[] organisms;
+    private final String[] chromosomes;
+    private final int[] offsets;
+    private final int[] counts;
+    private final int[] rootLevels;
+    private final int size;
+    private final int starts;
+    private final int ends;
+    private final int maxEnds;
+    private final int ids;
+    private final int classIndexes;
+    private final int byEnd;
+
+    /**
+     * @param file a file written by IntervalIndexWriter
+     * @throws IOException if the file can't be mapped or isn't an interval index
+     */
+    public IntervalIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        if (buffer.getInt(0) != IntervalIndexWriter.MAGIC
+                || buffer.getInt(4) != IntervalIndexWriter.VERSION) {
+            throw new IOException(file + " isn't a version " + IntervalIndexWriter.VERSION
+                    + " interval index");
+        }
+        int data = buffer.getInt(8);
+        byte[] header = new byte[data - 12];
+        ((ByteBuffer) buffer.duplicate().position(12)).get(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        release = in.readUTF();
+        classes = new String[in.readInt()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = in.readUTF();
+        }
+        int chromosomeCount = in.readInt();
+        organisms = new String[chromosomeCount];
+        chromosomes = new String[chromosomeCount];
+        offsets = new int[chromosomeCount];
+        counts = new int[chromosomeCount];
+        rootLevels = new int[chromosomeCount];
+        int offset = 0;
+        for (int i = 0; i < chromosomeCount; i++) {
+            organisms[i] = in.readUTF();
+            chromosomes[i] = in.readUTF();
+            counts[i] = in.readInt();
+            rootLevels[i] = in.readInt();
+            offsets[i] = offset;
+            offset += counts[i];
+        }
+
+        size = buffer.getInt(data);
+        starts = data + 4;
+        ends = starts + 4 * size;
+        maxEnds = ends + 4 * size;
+        ids = maxEnds + 4 * size;
+        classIndexes = ids + 4 * size;
+        byEnd = classIndexes + 4 * size;
+    }
+
+    /**
+     * @return the data release the index was built from
+     */
+    public String getRelease() {
+        return release;
+    }
+
+    /**
+     * @return the number of intervals
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find a chromosome.
+     * @param organism the organism name, or null for any
+     * @param identifier the chromosome primary identifier
+     * @return the chromosome, or -1 if there's none or, without an organism, more than one
+     */
+    public int chromosome(String organism, String identifier) {
+        int found = -1;
+        for (int i = 0; i < chromosomes.length; i++) {
+            if (chromosomes[i].equals(identifier)
+                    && (organism == null || organisms[i].equals(organism))) {
+                if (found >= 0) {
+                    return -1;
+                }
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param classNames unqualified class names, or null for all
+     * @return the classes argument of the searches for those classes
+     */
+    public boolean[] classMask(Set<String> classNames) {
+        if (classNames == null) {
+            return null;
+        }
+        boolean[] mask = new boolean[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            mask[i] = classNames.contains(classes[i]);
+        }
+        return mask;
+    }
+
+    /**
+     * @param position an interval
+     * @return the id of its feature
+     */
+    public int getId(int position) {
+        return buffer.getInt(ids + 4 * position);
+    }
+
+    /**
+     * @param position an interval
+     * @return its start
+     */
+    public int getStart(int position) {
+        return buffer.getInt(starts + 4 * position);
+    }
+
+    /**
+     * @param position an interval
+     * @return its end
+     */
+    public int getEnd(int position) {
+        return buffer.getInt(ends + 4 * position);
+    }
+
+    /**
+     * @param position an interval
+     * @return the unqualified class name of its feature
+     */
+    public String getClassName(int position) {
+        return classes[buffer.getInt(classIndexes + 4 * position)];
+    }
+
+    private boolean wanted(int position, boolean[] mask) {
+        return mask == null || mask[buffer.getInt(classIndexes + 4 * position)];
+    }
+
+    /**
+     * Find the intervals overlapping a region.
+     * @param chromosome the chromosome, from chromosome()
+     * @param start the first base of the region
+     * @param end the last base of the region
+     * @param mask the classes to find, from classMask(), or null for all
+     * @return the positions of the overlapping intervals, in start order
+     */
+    public int[] overlaps(int chromosome, int start, int end, boolean[] mask) {
+        Positions found = new Positions();
+        overlaps(chromosome, start, end, mask, found, false);
+        return found.toArray();
+    }
+
+    /**
+     * Walk the implicit tree from the root, as a stack of node, level and whether the left
+     * subtree has been done.  A left subtree is skipped if its max end is before the region,
+     * a node and its right subtree if its start is after the region.
+     * @param first stop at the first overlap found
+     */
+    private void overlaps(int chromosome, int start, int end, boolean[] mask, Positions found,
+            boolean first) {
+        int n = counts[chromosome];
+        if (n == 0) {
+            return;
+        }
+        int offset = offsets[chromosome];
+        int[] nodes = new int[64];
+        int[] levels = new int[64];
+        boolean[] leftDone = new boolean[64];
+        int top = 0;
+        nodes[top] = (1 << rootLevels[chromosome]) - 1;
+        levels[top] = rootLevels[chromosome];
+        leftDone[top++] = false;
+        while (top > 0) {
+            top--;
+            int x = nodes[top];
+            int k = levels[top];
+            if (k <= SCAN_LEVEL) {
+                int from = x >> k << k;
+                int to = Math.min(n, from + (1 << (k + 1)) - 1);
+                for (int i = from; i < to && getStart(offset + i) <= end; i++) {
+                    if (getEnd(offset + i) >= start && wanted(offset + i, mask)) {
+                        found.add(offset + i);
+                        if (first) {
+                            return;
+                        }
+                    }
+                }
+            } else if (!leftDone[top]) {
+                int left = x - (1 << (k - 1));
+                leftDone[top++] = true;
+                if (left >= n || buffer.getInt(maxEnds + 4 * (offset + left)) >= start) {
+                    nodes[top] = left;
+                    levels[top] = k - 1;
+                    leftDone[top++] = false;
+                }
+            } else if (x < n && getStart(offset + x) <= end) {
+                if (getEnd(offset + x) >= start && wanted(offset + x, mask)) {
+                    found.add(offset + x);
+                    if (first) {
+                        return;
+                    }
+                }
+                nodes[top] = x + (1 << (k - 1));
+                levels[top] = k - 1;
+                leftDone[top++] = false;
+            }
+        }
+    }
+
+    /**
+     * Find the interval nearest a region: one overlapping it if there is one, else whichever
+     * of the nearest before and after it has the smaller gap, the one before on a tie.
+     * @param chromosome the chromosome, from chromosome()
+     * @param start the first base of the region
+     * @param end the last base of the region
+     * @param mask the classes to find, from classMask(), or null for all
+     * @return the position of the interval, or -1 if there are none of the classes
+     */
+    public int nearest(int chromosome, int start, int end, boolean[] mask) {
+        Positions found = new Positions();
+        overlaps(chromosome, start, end, mask, found, true);
+        if (found.size > 0) {
+            return found.values[0];
+        }
+        int offset = offsets[chromosome];
+        int n = counts[chromosome];
+        // the first starting after the region
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStart(offset + mid) <= end) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int after = -1;
+        for (int i = low; i < n; i++) {
+            if (wanted(offset + i, mask)) {
+                after = offset + i;
+                break;
+            }
+        }
+        // the last ending before the region, in end order
+        low = 0;
+        high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEnd(offset + byEnd(offset + mid)) < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int before = -1;
+        for (int i = low - 1; i >= 0; i--) {
+            if (wanted(offset + byEnd(offset + i), mask)) {
+                before = offset + byEnd(offset + i);
+                break;
+            }
+        }
+        if (before < 0 || after < 0) {
+            return (before < 0) ? after : before;
+        }
+        return ((long) getStart(after) - end < (long) start - getEnd(before)) ? after : before;
+    }
+
+    private int byEnd(int i) {
+        return buffer.getInt(byEnd + 4 * i);
+    }
+
+    /**
+     * Find the intervals overlapping many regions, in batches on an executor.
+     * @param regionChromosomes the chromosome of each region, -1 for none
+     * @param regionStarts the first base of each region
+     * @param regionEnds the last base of each region
+     * @param mask the classes to find, from classMask(), or null for all
+     * @param executor the executor to run batches on, or null to run them in this thread
+     * @return the positions of the overlapping intervals of each region, in start order
+     */
+    public int[][] overlaps(final int[] regionChromosomes, final int[] regionStarts,
+            final int[] regionEnds, final boolean[] mask, ExecutorService executor) {
+        final int[][] results = new int[regionChromosomes.length][];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int from = 0; from < results.length; from += BATCH_SIZE) {
+            final int batchFrom = from;
+            final int batchTo = Math.min(results.length, from + BATCH_SIZE);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = batchFrom; i < batchTo; i++) {
+                        results[i] = (regionChromosomes[i] < 0) ? new int[0]
+                            : overlaps(regionChromosomes[i], regionStarts[i], regionEnds[i],
+                                    mask);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            if (executor == null || tasks.size() < 2) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } else {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
+
+    /**
+     * A growable array of positions.
+     */
+    private static final class Positions
+    {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.flymine.sequence;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.query.ConstraintOp;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.util.DynamicUtil;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * Writes the interval index of a data release: the chromosomeLocation of every
+ * SequenceFeature, as set by the create-chromosome-locations-and-lengths post-process, so
+ * must be run after it.
+ */
+public final class IntervalIndexBuilder
+{
+    private static final Logger LOG = Logger.getLogger(IntervalIndexBuilder.class);
+    private static final int BATCH_SIZE = 10000;
+
+    private final ObjectStore os;
+    private final Model model;
+
+    /**
+     * @param os the ObjectStore to read
+     */
+    public IntervalIndexBuilder(ObjectStore os) {
+        this.os = os;
+        this.model = os.getModel();
+    }
+
+    /**
+     * The features are loaded to find their classes, the location, chromosome and organism are
+     * fetched as fields.
+     * @param file the index file to write
+     * @param release the data release
+     * @throws Exception if the ObjectStore can't be read or the file written
+     */
+    public void build(File file, String release) throws Exception {
+        long start = System.currentTimeMillis();
+        Query q = new Query();
+        QueryClass qcFeature = new QueryClass(type("SequenceFeature"));
+        QueryClass qcLocation = new QueryClass(type("Location"));
+        QueryClass qcChromosome = new QueryClass(type("Chromosome"));
+        QueryClass qcOrganism = new QueryClass(type("Organism"));
+        q.addFrom(qcFeature);
+        q.addFrom(qcLocation);
+        q.addFrom(qcChromosome);
+        q.addFrom(qcOrganism);
+        q.addToSelect(qcFeature);
+        q.addToSelect(new QueryField(qcLocation, "start"));
+        q.addToSelect(new QueryField(qcLocation, "end"));
+        q.addToSelect(new QueryField(qcChromosome, "primaryIdentifier"));
+        q.addToSelect(new QueryField(qcOrganism, "name"));
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcFeature,
+                        "chromosomeLocation"), ConstraintOp.CONTAINS, qcLocation));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcFeature,
+                        "chromosome"), ConstraintOp.CONTAINS, qcChromosome));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcChromosome,
+                        "organism"), ConstraintOp.CONTAINS, qcOrganism));
+        q.setConstraint(cs);
+        q.addToOrderBy(new QueryField(qcFeature, "id"));
+        IntervalIndexWriter writer = new IntervalIndexWriter();
+        int count = 0;
+        for (Object row : os.execute(q, BATCH_SIZE, true, false, false)) {
+            List<?> values = (List<?>) row;
+            InterMineObject feature = (InterMineObject) values.get(0);
+            Integer locationStart = (Integer) values.get(1);
+            Integer locationEnd = (Integer) values.get(2);
+            String chromosome = (String) values.get(3);
+            String organism = (String) values.get(4);
+            if (locationStart == null || locationEnd == null || chromosome == null
+                    || organism == null) {
+                continue;
+            }
+            ClassDescriptor cld = model.getClassDescriptorByName(
+                    DynamicUtil.getSimpleClass(feature).getName());
+            writer.add(feature.getId().intValue(), cld.getUnqualifiedName(), organism,
+                    chromosome, locationStart.intValue(), locationEnd.intValue());
+            if (++count % 500000 == 0) {
+                LOG.info("Read " + count + " feature locations");
+            }
+        }
+        writer.write(file, release);
+        LOG.info("Wrote interval index of " + count + " features of release " + release
+                + " in " + (System.currentTimeMillis() - start) / 1000 + " s");
+    }
+
+    private Class<?> type(String className) {
+        ClassDescriptor cld = model.getClassDescriptorByName(className);
+        if (cld == null) {
+            throw new IllegalStateException("No " + className + " in the model");
+        }
+        return cld.getType();
+    }
+
+    /**
+     * Usage: IntervalIndexBuilder file [release [objectstore]]
+     *
+     * The release defaults to project.releaseVersion of the mine properties.
+     * @param args see above
+     * @throws Exception if the index can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: IntervalIndexBuilder file [release [objectstore]]");
+            System.exit(1);
+        }
+        String release = (args.length > 1 && args[1].length() > 0) ? args[1]
+            : PropertiesUtil.getProperties().getProperty("project.releaseVersion", "");
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 2) ? args[2]
+                : "os.production");
+        // written beside the old index and moved over it, a webapp mapping it keeps its copy
+        File file = new File(args[0]);
+        File building = new File(file.getPath() + ".building");
+        new IntervalIndexBuilder(os).build(building, release);
+        if (!building.renameTo(file)) {
+            throw new IOException("Couldn't move " + building + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.flymine.sequence;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the file read by IntervalIndex: the chromosome location of every located feature of
+ * a data release.
+ *
+ * The file is a fixed header of magic, version and the offset of the data, then (in
+ * DataOutput form) the release, the class names and for each chromosome its organism,
+ * identifier, interval count and root level, then:
+ * <pre>
+ * interval count, starts [intervals], ends [intervals], max ends [intervals],
+ * ids [intervals], classes [intervals], by end [intervals]
+ * </pre>
+ * The intervals of each chromosome are together, in start order, and laid out as an implicit
+ * interval tree: the node at index i of level k (the number of trailing one bits of i) has
+ * children i - 2^(k-1) and i + 2^(k-1), and its max end is the greatest end in its subtree.
+ * By end holds the intervals of each chromosome again, as indexes, in end order.  All numbers
+ * are big endian.
+ */
+public final class IntervalIndexWriter
+{
+    /** Identifies an interval index file. */
+    public static final int MAGIC = 0x464d4956;
+    /** The format version. */
+    public static final int VERSION = 1;
+
+    private final List<String> classes = new ArrayList<String>();
+    private final Map<String, Integer> classIndexes = new HashMap<String, Integer>();
+    private final Map<String, Chromosome> chromosomes = new HashMap<String, Chromosome>();
+    private final List<Chromosome> chromosomeOrder = new ArrayList<Chromosome>();
+
+    /**
+     * Add the location of a feature.
+     * @param id the feature id
+     * @param className the unqualified class name of the feature
+     * @param organism the organism name
+     * @param chromosome the chromosome primary identifier
+     * @param start the first base, from 1
+     * @param end the last base, inclusive
+     */
+    public void add(int id, String className, String organism, String chromosome, int start,
+            int end) {
+        Integer classIndex = classIndexes.get(className);
+        if (classIndex == null) {
+            classIndex = new Integer(classes.size());
+            classIndexes.put(className, classIndex);
+            classes.add(className);
+        }
+        String key = organism + "\t" + chromosome;
+        Chromosome c = chromosomes.get(key);
+        if (c == null) {
+            c = new Chromosome(organism, chromosome);
+            chromosomes.put(key, c);
+            chromosomeOrder.add(c);
+        }
+        c.add(id, classIndex.intValue(), Math.min(start, end), Math.max(start, end));
+    }
+
+    /**
+     * @param file the file to write
+     * @param release the data release the locations are of
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file, String release) throws IOException {
+        int total = 0;
+        for (Chromosome c : chromosomeOrder) {
+            c.sort();
+            total += c.size;
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF(release);
+        headerOut.writeInt(classes.size());
+        for (String className : classes) {
+            headerOut.writeUTF(className);
+        }
+        headerOut.writeInt(chromosomeOrder.size());
+        for (Chromosome c : chromosomeOrder) {
+            headerOut.writeUTF(c.organism);
+            headerOut.writeUTF(c.identifier);
+            headerOut.writeInt(c.size);
+            headerOut.writeInt(c.rootLevel);
+        }
+        headerOut.flush();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(12 + header.size());
+            header.writeTo(out);
+            out.writeInt(total);
+            for (Chromosome c : chromosomeOrder) {
+                writeInts(out, c.starts, c.size);
+            }
+            for (Chromosome c : chromosomeOrder) {
+                writeInts(out, c.ends, c.size);
+            }
+            for (Chromosome c : chromosomeOrder) {
+                writeInts(out, c.maxEnds, c.size);
+            }
+            for (Chromosome c : chromosomeOrder) {
+                writeInts(out, c.ids, c.size);
+            }
+            for (Chromosome c : chromosomeOrder) {
+                writeInts(out, c.classes, c.size);
+            }
+            for (Chromosome c : chromosomeOrder) {
+                writeInts(out, c.byEnd, c.size);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count)
+        throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * The intervals of one chromosome, in columns.
+     */
+    private static final class Chromosome
+    {
+        private final String organism;
+        private final String identifier;
+        private int[] starts = new int[256];
+        private int[] ends = new int[256];
+        private int[] ids = new int[256];
+        private int[] classes = new int[256];
+        private int[] maxEnds;
+        private int[] byEnd;
+        private int size = 0;
+        private int rootLevel;
+
+        Chromosome(String organism, String identifier) {
+            this.organism = organism;
+            this.identifier = identifier;
+        }
+
+        void add(int id, int classIndex, int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+                classes = Arrays.copyOf(classes, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            ids[size] = id;
+            classes[size] = classIndex;
+            size++;
+        }
+
+        /**
+         * Put the intervals in start order and index them.
+         */
+        void sort() {
+            // sort start << 32 | index, starts are positive
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) starts[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            int[] sortedStarts = new int[size];
+            int[] sortedEnds = new int[size];
+            int[] sortedIds = new int[size];
+            int[] sortedClasses = new int[size];
+            for (int i = 0; i < size; i++) {
+                int from = (int) order[i];
+                sortedStarts[i] = starts[from];
+                sortedEnds[i] = ends[from];
+                sortedIds[i] = ids[from];
+                sortedClasses[i] = classes[from];
+            }
+            starts = sortedStarts;
+            ends = sortedEnds;
+            ids = sortedIds;
+            classes = sortedClasses;
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) ends[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            byEnd = new int[size];
+            for (int i = 0; i < size; i++) {
+                byEnd[i] = (int) order[i];
+            }
+            index();
+        }
+
+        /**
+         * Set the max end of each node of the implicit tree, a level at a time from the
+         * leaves.  A node's right child may be past the last interval, in which case the
+         * subtree of the last interval stands in for it.
+         */
+        private void index() {
+            maxEnds = new int[size];
+            if (size == 0) {
+                rootLevel = -1;
+                return;
+            }
+            int lastIndex = 0;
+            int last = 0;
+            for (int i = 0; i < size; i += 2) {
+                lastIndex = i;
+                last = ends[i];
+                maxEnds[i] = last;
+            }
+            int k;
+            for (k = 1; (1L << k) <= size; k++) {
+                int x = 1 << (k - 1);
+                int first = (x << 1) - 1;
+                int step = x << 2;
+                for (int i = first; i < size; i += step) {
+                    int left = maxEnds[i - x];
+                    int right = (i + x < size) ? maxEnds[i + x] : last;
+                    maxEnds[i] = Math.max(ends[i], Math.max(left, right));
+                }
+                lastIndex = (((lastIndex >> k) & 1) != 0) ? lastIndex - x : lastIndex + x;
+                if (lastIndex < size && maxEnds[lastIndex] > last) {
+                    last = maxEnds[lastIndex];
+                }
+            }
+            rootLevel = k - 1;
+        }
+    }
+}
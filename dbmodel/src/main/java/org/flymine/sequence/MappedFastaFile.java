@@ -0,0 +1,301 @@
+package org.flymine.sequence;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A FASTA file read through a memory map.  Records are found by scanning the mapped bytes and
+ * are described by offsets into the map: nothing is copied until a header is asked for or the
+ * residues are packed, and the residues of a record with lines of equal length can be read in
+ * place through residues().  The map is released when the file and its records are garbage
+ * collected.
+ *
+ * Files must be under 2GB, which covers the FlyBase per-genome gene, CDS and UTR files.
+ */
+public final class MappedFastaFile implements Iterable<MappedFastaFile.Record>
+{
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int size;
+
+    /**
+     * @param file the FASTA file
+     * @throws IOException if the file can't be mapped
+     */
+    public MappedFastaFile(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map, split it");
+            }
+            size = (int) length;
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the records in file order
+     */
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+            private int position = skipToHeader(0);
+
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Record record = scan(position);
+                position = record.end;
+                return record;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int skipToHeader(int position) {
+        while (position < size && buffer.get(position) != '>') {
+            position = endOfLine(position) + 1;
+        }
+        return position;
+    }
+
+    private int endOfLine(int position) {
+        while (position < size && buffer.get(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Find the extent and line layout of the record whose header starts at position.
+     */
+    private Record scan(int position) {
+        int headerEnd = endOfLine(position);
+        int residuesStart = Math.min(headerEnd + 1, size);
+        int residueCount = 0;
+        int lineBases = -1;
+        int lineBytes = -1;
+        boolean regular = true;
+        boolean shortLineSeen = false;
+        int line = residuesStart;
+        while (line < size && buffer.get(line) != '>') {
+            int eol = endOfLine(line);
+            int bases = eol - line;
+            if (bases > 0 && buffer.get(eol - 1) == '\r') {
+                bases--;
+            }
+            int bytes = Math.min(eol + 1, size) - line;
+            if (bases == 0) {
+                // residues after a blank line can't be found by arithmetic
+                if (lineBases == -1) {
+                    regular = false;
+                } else {
+                    shortLineSeen = true;
+                }
+            } else {
+                if (lineBases == -1) {
+                    lineBases = bases;
+                    lineBytes = bytes;
+                } else if (shortLineSeen || bases > lineBases
+                        || (bases == lineBases && bytes != lineBytes)) {
+                    regular = false;
+                } else if (bases < lineBases) {
+                    shortLineSeen = true;
+                }
+                residueCount += bases;
+            }
+            line = eol + 1;
+        }
+        int end = Math.min(line, size);
+        return new Record(position, headerEnd, residuesStart, end, residueCount, lineBases,
+                lineBytes, regular);
+    }
+
+    /**
+     * @return the file mapped
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * One sequence of the file.
+     */
+    public final class Record
+    {
+        private final int headerStart;
+        private final int headerEnd;
+        private final int residuesStart;
+        private final int end;
+        private final int length;
+        private final int lineBases;
+        private final int lineBytes;
+        private final boolean regular;
+
+        private Record(int headerStart, int headerEnd, int residuesStart, int end, int length,
+                int lineBases, int lineBytes, boolean regular) {
+            this.headerStart = headerStart;
+            this.headerEnd = headerEnd;
+            this.residuesStart = residuesStart;
+            this.end = end;
+            this.length = length;
+            this.lineBases = lineBases;
+            this.lineBytes = lineBytes;
+            this.regular = regular;
+        }
+
+        /**
+         * @return the header line without the '&gt;'
+         */
+        public String getHeader() {
+            int last = headerEnd;
+            if (last > headerStart && buffer.get(last - 1) == '\r') {
+                last--;
+            }
+            char[] header = new char[last - headerStart - 1];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = (char) (buffer.get(headerStart + 1 + i) & 0xff);
+            }
+            return new String(header);
+        }
+
+        /**
+         * @return the header up to the first space, the usual identifier
+         */
+        public String getIdentifier() {
+            String header = getHeader();
+            int space = header.indexOf(' ');
+            return (space == -1) ? header : header.substring(0, space);
+        }
+
+        /**
+         * @return the number of residues
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return the residues, read in place from the map if the lines are all the same
+         * length and otherwise packed
+         */
+        public CharSequence residues() {
+            if (regular) {
+                return new MappedResidues(0, length);
+            }
+            return pack();
+        }
+
+        /**
+         * @return the residues, packed two bits to a base
+         */
+        public PackedSequence pack() {
+            PackedSequence.Builder builder = new PackedSequence.Builder(length);
+            for (int i = residuesStart; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b != '\n' && b != '\r') {
+                    builder.append((char) (b & 0xff));
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * @return the hex MD5 of the residues, as the FASTA loader stores it
+         */
+        public String md5() {
+            MessageDigest md5;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = residuesStart; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b != '\n' && b != '\r') {
+                    md5.update(b);
+                }
+            }
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : md5.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        /**
+         * Residues of a record with regular lines, read straight from the map.
+         */
+        private final class MappedResidues implements CharSequence
+        {
+            private final int start;
+            private final int count;
+
+            MappedResidues(int start, int count) {
+                this.start = start;
+                this.count = count;
+            }
+
+            public int length() {
+                return count;
+            }
+
+            public char charAt(int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException("index " + index + ", length " + count);
+                }
+                int residue = start + index;
+                int position = residuesStart + (residue / lineBases) * lineBytes
+                    + residue % lineBases;
+                return (char) (buffer.get(position) & 0xff);
+            }
+
+            public CharSequence subSequence(int from, int to) {
+                if (from < 0 || to > count || from > to) {
+                    throw new IndexOutOfBoundsException("subSequence(" + from + ", " + to
+                            + "), length " + count);
+                }
+                return new MappedResidues(start + from, to - from);
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder(count);
+                for (int i = 0; i < count; i++) {
+                    sb.append(charAt(i));
+                }
+                return sb.toString();
+            }
+        }
+    }
+}
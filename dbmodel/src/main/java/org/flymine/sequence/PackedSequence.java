@@ -0,0 +1,298 @@
+package org.flymine.sequence;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Nucleotide residues packed two bits to a base, with anything other than A, C, G and T (N
+ * runs, IUPAC codes) kept as runs of one residue in a small exception table, and lower case
+ * (soft-masked repeats) kept as runs in a case mask over both, so a masked region is packed like
+ * any other.  A chromosome takes a quarter of a byte per base rather than the two bytes of a
+ * String.
+ *
+ * subSequence() and reverseComplement() are views sharing the packed array, so the residues of
+ * a located feature are found by offset arithmetic instead of being copied out of the
+ * chromosome.  Only toString() and writeTo() produce characters.
+ */
+public final class PackedSequence implements CharSequence, Serializable
+{
+    private static final long serialVersionUID = 2L;
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final int BASES_PER_WORD = 32;
+
+    private final long[] packed;
+    // runs of residues that aren't A, C, G or T, upper case, sorted and not overlapping
+    private final int[] exceptionStarts;
+    private final int[] exceptionEnds;
+    private final char[] exceptionResidues;
+    // runs of lower case residues, sorted and not overlapping
+    private final int[] lowerStarts;
+    private final int[] lowerEnds;
+    private final int offset;
+    private final int length;
+    private final boolean reversed;
+
+    private PackedSequence(long[] packed, int[] exceptionStarts, int[] exceptionEnds,
+            char[] exceptionResidues, int[] lowerStarts, int[] lowerEnds, int offset, int length,
+            boolean reversed) {
+        this.packed = packed;
+        this.exceptionStarts = exceptionStarts;
+        this.exceptionEnds = exceptionEnds;
+        this.exceptionResidues = exceptionResidues;
+        this.lowerStarts = lowerStarts;
+        this.lowerEnds = lowerEnds;
+        this.offset = offset;
+        this.length = length;
+        this.reversed = reversed;
+    }
+
+    /**
+     * @param residues some residues
+     * @return them packed
+     */
+    public static PackedSequence pack(CharSequence residues) {
+        Builder builder = new Builder(residues.length());
+        for (int i = 0; i < residues.length(); i++) {
+            builder.append(residues.charAt(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        if (reversed) {
+            return complement(residueAt(offset + length - 1 - index));
+        }
+        return residueAt(offset + index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PackedSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("subSequence(" + start + ", " + end
+                    + "), length " + length);
+        }
+        int newOffset = reversed ? offset + length - end : offset + start;
+        return new PackedSequence(packed, exceptionStarts, exceptionEnds, exceptionResidues,
+                lowerStarts, lowerEnds, newOffset, end - start, reversed);
+    }
+
+    /**
+     * @return the reverse complement of these residues, as a view
+     */
+    public PackedSequence reverseComplement() {
+        return new PackedSequence(packed, exceptionStarts, exceptionEnds, exceptionResidues,
+                lowerStarts, lowerEnds, offset, length, !reversed);
+    }
+
+    /**
+     * The residues of a feature located on this sequence.
+     * @param start the first base, counting from 1
+     * @param end the last base, inclusive
+     * @param strand -1 for the reverse strand, anything else for the forward strand
+     * @return the feature residues, as a view
+     */
+    public PackedSequence locate(int start, int end, int strand) {
+        PackedSequence residues = subSequence(start - 1, end);
+        return (strand == -1) ? residues.reverseComplement() : residues;
+    }
+
+    /**
+     * Write the residues without making a String of them.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public void writeTo(Appendable out) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.append(charAt(i));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length);
+        try {
+            writeTo(sb);
+        } catch (IOException e) {
+            // can't happen writing to a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the heap used by the packed residues of the whole underlying sequence, in bytes
+     */
+    public long getPackedBytes() {
+        return 8L * packed.length + 10L * exceptionStarts.length + 8L * lowerStarts.length;
+    }
+
+    private char residueAt(int position) {
+        int run = run(exceptionStarts, exceptionEnds, position);
+        char residue;
+        if (run >= 0) {
+            residue = exceptionResidues[run];
+        } else {
+            long word = packed[position / BASES_PER_WORD];
+            residue = BASES[(int) (word >>> (2 * (position % BASES_PER_WORD))) & 3];
+        }
+        return (run(lowerStarts, lowerEnds, position) >= 0) ? Character.toLowerCase(residue)
+            : residue;
+    }
+
+    /**
+     * @return the index of the run holding a position, or -1 if none does
+     */
+    private static int run(int[] starts, int[] ends, int position) {
+        int run = Arrays.binarySearch(starts, position);
+        if (run < 0) {
+            // the run starting before position, if any
+            run = -run - 2;
+        }
+        return (run >= 0 && position < ends[run]) ? run : -1;
+    }
+
+    private static char complement(char residue) {
+        switch (residue) {
+            case 'A': return 'T';
+            case 'C': return 'G';
+            case 'G': return 'C';
+            case 'T': return 'A';
+            case 'a': return 't';
+            case 'c': return 'g';
+            case 'g': return 'c';
+            case 't': return 'a';
+            case 'R': return 'Y';
+            case 'Y': return 'R';
+            case 'K': return 'M';
+            case 'M': return 'K';
+            case 'B': return 'V';
+            case 'V': return 'B';
+            case 'D': return 'H';
+            case 'H': return 'D';
+            case 'r': return 'y';
+            case 'y': return 'r';
+            case 'k': return 'm';
+            case 'm': return 'k';
+            case 'b': return 'v';
+            case 'v': return 'b';
+            case 'd': return 'h';
+            case 'h': return 'd';
+            default: return residue;
+        }
+    }
+
+    /**
+     * Packs residues appended one at a time.
+     */
+    public static final class Builder
+    {
+        private long[] packed;
+        private int length = 0;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private char[] residues = new char[16];
+        private int runs = 0;
+        private int[] lowerStarts = new int[16];
+        private int[] lowerEnds = new int[16];
+        private int lowerRuns = 0;
+
+        /**
+         * @param expectedLength the number of residues expected, to size the packed array
+         */
+        public Builder(int expectedLength) {
+            packed = new long[Math.max(1, (expectedLength + BASES_PER_WORD - 1)
+                        / BASES_PER_WORD)];
+        }
+
+        /**
+         * @param residue the next residue
+         * @return this builder
+         */
+        public Builder append(char residue) {
+            char upper = Character.toUpperCase(residue);
+            if (upper != residue && Character.toLowerCase(upper) == residue) {
+                if (lowerRuns > 0 && lowerEnds[lowerRuns - 1] == length) {
+                    lowerEnds[lowerRuns - 1]++;
+                } else {
+                    if (lowerRuns == lowerStarts.length) {
+                        lowerStarts = Arrays.copyOf(lowerStarts, lowerRuns * 2);
+                        lowerEnds = Arrays.copyOf(lowerEnds, lowerRuns * 2);
+                    }
+                    lowerStarts[lowerRuns] = length;
+                    lowerEnds[lowerRuns] = length + 1;
+                    lowerRuns++;
+                }
+                residue = upper;
+            }
+            int code;
+            switch (residue) {
+                case 'A': code = 0; break;
+                case 'C': code = 1; break;
+                case 'G': code = 2; break;
+                case 'T': code = 3; break;
+                default: code = -1;
+            }
+            int word = length / BASES_PER_WORD;
+            if (word == packed.length) {
+                packed = Arrays.copyOf(packed, packed.length * 2);
+            }
+            if (code >= 0) {
+                packed[word] |= ((long) code) << (2 * (length % BASES_PER_WORD));
+            } else if (runs > 0 && ends[runs - 1] == length && residues[runs - 1] == residue) {
+                ends[runs - 1]++;
+            } else {
+                if (runs == starts.length) {
+                    starts = Arrays.copyOf(starts, runs * 2);
+                    ends = Arrays.copyOf(ends, runs * 2);
+                    residues = Arrays.copyOf(residues, runs * 2);
+                }
+                starts[runs] = length;
+                ends[runs] = length + 1;
+                residues[runs] = residue;
+                runs++;
+            }
+            length++;
+            return this;
+        }
+
+        /**
+         * @return the residues appended so far
+         */
+        public PackedSequence build() {
+            int words = (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+            return new PackedSequence(Arrays.copyOf(packed, words),
+                    Arrays.copyOf(starts, runs), Arrays.copyOf(ends, runs),
+                    Arrays.copyOf(residues, runs), Arrays.copyOf(lowerStarts, lowerRuns),
+                    Arrays.copyOf(lowerEnds, lowerRuns), 0, length, false);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package org.flymine.summary;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.AttributeDescriptor;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.modelproduction.MetadataManager;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.intermine.DatabaseUtil;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.sql.Database;
+
+/**
+ * A faster, approximate version of the summarise-objectstore post-process for tables of
+ * hundreds of millions of rows.  Each class table is read with one sequential scan, several
+ * classes at a time, largest first.  For every attribute it counts the nulls, estimates the
+ * number of distinct values with a HyperLogLog and keeps the most frequent values with
+ * FrequentValues, which counts exactly while there are no more than max.field.values distinct
+ * values (from objectstoresummary.config.properties), so the value lists of low cardinality
+ * fields are exact.
+ *
+ * The results, and the insert, update and delete counts of each table from
+ * pg_stat_user_tables, are stored in the database metadata as approximate_summary.  When run
+ * again, classes whose table hasn't changed keep their previous results without being
+ * scanned.  The class counts, the values of fields with no more than max.field.values of them
+ * and the attributes that are always null are then stored as the objectstore summary the
+ * webapp reads, in the format of ObjectStoreSummary, replacing those of the summarise-objectstore
+ * post-process and keeping what only it computes, the empty references and collections.
+ *
+ * The properties of approximate_summary are:
+ * <pre>
+ * count.[class] = rows
+ * nulls.[class].[field] = null values
+ * distinct.[class].[field] = distinct values, exact if exact.[class].[field] is true
+ * value.[class].[field].[rank] = count value, for the max.field.values most frequent
+ * table.[table] = insert, update and delete count when last summarised
+ * </pre>
+ */
+public final class ApproximateSummariser
+{
+    private static final Logger LOG = Logger.getLogger(ApproximateSummariser.class);
+    private static final int FETCH_SIZE = 10000;
+    private static final String CLOB = "org.intermine.objectstore.query.ClobAccess";
+    /** The metadata key of the summary kept between runs. */
+    public static final String STATE_KEY = "approximate_summary";
+    // as ObjectStoreSummary reads them
+    private static final String CLASS_COUNT = ".classCount";
+    private static final String FIELD_VALUES = ".fieldValues";
+    private static final String EMPTY_ATTRIBUTES = ".emptyAttributes";
+    private static final String VALUE_SEPARATOR = "$_^";
+    private static final String NULL_MARKER = "___NULL___";
+
+    private final Database database;
+    private final Model model;
+    private final int maxFieldValues;
+
+    /**
+     * @param database the production database
+     * @param model its model
+     * @param maxFieldValues the most values to list for a field
+     */
+    public ApproximateSummariser(Database database, Model model, int maxFieldValues) {
+        this.database = database;
+        this.model = model;
+        this.maxFieldValues = maxFieldValues;
+    }
+
+    /**
+     * Summarise the classes whose tables have changed since the previous summary.
+     * @param previous the properties of the previous summary, empty for none
+     * @param threads the number of classes to scan at once
+     * @return the new summary
+     * @throws Exception if a table can't be read
+     */
+    public Properties summarise(Properties previous, int threads) throws Exception {
+        final Map<String, long[]> tables = tableStats();
+        Properties summary = new Properties();
+        List<ClassDescriptor> changed = new ArrayList<ClassDescriptor>();
+        for (ClassDescriptor cld : model.getClassDescriptors()) {
+            String table = table(cld);
+            if (!tables.containsKey(table)) {
+                LOG.info("No table for " + cld.getUnqualifiedName() + ", not summarising it");
+                continue;
+            }
+            String key = "table." + table;
+            String changes = String.valueOf(tables.get(table)[0]);
+            if (changes.equals(previous.getProperty(key))
+                    && previous.getProperty("count." + cld.getUnqualifiedName()) != null) {
+                copy(previous, summary, cld.getUnqualifiedName());
+            } else {
+                changed.add(cld);
+            }
+            summary.setProperty(key, changes);
+        }
+        LOG.info("Summarising " + changed.size() + " changed classes, keeping "
+                + (model.getClassDescriptors().size() - changed.size()));
+
+        // biggest first, so the longest scans don't start last
+        Collections.sort(changed, new Comparator<ClassDescriptor>() {
+            public int compare(ClassDescriptor a, ClassDescriptor b) {
+                long aRows = tables.get(table(a))[1];
+                long bRows = tables.get(table(b))[1];
+                return (aRows > bRows) ? -1 : ((aRows < bRows) ? 1 : 0);
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Properties>> futures = new ArrayList<Future<Properties>>();
+        try {
+            for (final ClassDescriptor cld : changed) {
+                futures.add(executor.submit(new Callable<Properties>() {
+                    public Properties call() throws Exception {
+                        return summarise(cld);
+                    }
+                }));
+            }
+            for (Future<Properties> future : futures) {
+                summary.putAll(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return summary;
+    }
+
+    /**
+     * Scan the table of one class.
+     */
+    private Properties summarise(ClassDescriptor cld) throws SQLException {
+        long start = System.currentTimeMillis();
+        String name = cld.getUnqualifiedName();
+        List<AttributeDescriptor> attributes = new ArrayList<AttributeDescriptor>();
+        StringBuilder sql = new StringBuilder("SELECT 1");
+        for (AttributeDescriptor ad : cld.getAllAttributeDescriptors()) {
+            if (!CLOB.equals(ad.getType())) {
+                attributes.add(ad);
+                sql.append(", ").append(DatabaseUtil.getColumnName(ad));
+            }
+        }
+        sql.append(" FROM ").append(DatabaseUtil.getTableName(cld));
+        int size = attributes.size();
+        long[] nulls = new long[size];
+        HyperLogLog[] distinct = new HyperLogLog[size];
+        FrequentValues[] frequent = new FrequentValues[size];
+        for (int i = 0; i < size; i++) {
+            distinct[i] = new HyperLogLog();
+            frequent[i] = new FrequentValues(maxFieldValues, 4 * maxFieldValues);
+        }
+
+        long rows = 0;
+        Connection con = database.getConnection();
+        try {
+            // the driver only streams rows with a fetch size inside a transaction
+            con.setAutoCommit(false);
+            Statement s = con.createStatement();
+            s.setFetchSize(FETCH_SIZE);
+            ResultSet res = s.executeQuery(sql.toString());
+            while (res.next()) {
+                rows++;
+                for (int i = 0; i < size; i++) {
+                    Object value = res.getObject(i + 2);
+                    if (value == null) {
+                        nulls[i]++;
+                    } else {
+                        String string = value.toString();
+                        distinct[i].add(string);
+                        frequent[i].add(string);
+                    }
+                }
+            }
+            con.commit();
+        } finally {
+            con.setAutoCommit(true);
+            con.close();
+        }
+
+        Properties summary = new Properties();
+        summary.setProperty("count." + name, String.valueOf(rows));
+        for (int i = 0; i < size; i++) {
+            String field = name + "." + attributes.get(i).getName();
+            summary.setProperty("nulls." + field, String.valueOf(nulls[i]));
+            boolean exact = frequent[i].isExact();
+            summary.setProperty("exact." + field, String.valueOf(exact));
+            summary.setProperty("distinct." + field, String.valueOf(exact ? frequent[i].size()
+                        : distinct[i].estimate()));
+            int rank = 0;
+            for (Map.Entry<String, Long> value : frequent[i].top(maxFieldValues)) {
+                summary.setProperty("value." + field + "." + rank++, value.getValue() + " "
+                        + value.getKey());
+            }
+        }
+        LOG.info("Summarised " + rows + " " + name + " in "
+                + (System.currentTimeMillis() - start) / 1000 + " s");
+        return summary;
+    }
+
+    /**
+     * @return the table of a class as pg_stat_user_tables names it: the model's name (Gene)
+     * in lower case
+     */
+    private static String table(ClassDescriptor cld) {
+        return DatabaseUtil.getTableName(cld).toLowerCase();
+    }
+
+    /**
+     * @return lower case table name to {inserts + updates + deletes, live rows}
+     */
+    private Map<String, long[]> tableStats() throws SQLException {
+        Map<String, long[]> stats = new HashMap<String, long[]>();
+        Connection con = database.getConnection();
+        try {
+            Statement s = con.createStatement();
+            ResultSet res = s.executeQuery("SELECT relname, n_tup_ins + n_tup_upd + n_tup_del,"
+                    + " n_live_tup FROM pg_stat_user_tables");
+            while (res.next()) {
+                stats.put(res.getString(1).toLowerCase(),
+                        new long[] {res.getLong(2), res.getLong(3)});
+            }
+        } finally {
+            con.close();
+        }
+        return stats;
+    }
+
+    /**
+     * Make the properties of an ObjectStoreSummary from an approximate summary.
+     * @param summary the result of summarise()
+     * @param previous the objectstore summary stored before, whose keys for classes not
+     * summarised and for references and collections are kept, may be empty
+     * @return the objectstore summary
+     */
+    public Properties toObjectStoreSummary(Properties summary, Properties previous) {
+        Properties osSummary = new Properties();
+        osSummary.putAll(previous);
+        for (ClassDescriptor cld : model.getClassDescriptors()) {
+            String name = cld.getUnqualifiedName();
+            String count = summary.getProperty("count." + name);
+            if (count == null) {
+                continue;
+            }
+            String className = cld.getName();
+            long rows = Long.parseLong(count);
+            osSummary.setProperty(className + CLASS_COUNT,
+                    String.valueOf(Math.min(rows, Integer.MAX_VALUE)));
+            StringBuilder empty = new StringBuilder();
+            for (AttributeDescriptor ad : cld.getAllAttributeDescriptors()) {
+                String field = name + "." + ad.getName();
+                String fieldKey = className + "." + ad.getName() + FIELD_VALUES;
+                osSummary.remove(fieldKey);
+                if (summary.getProperty("nulls." + field) == null) {
+                    // a CLOB, not scanned
+                    continue;
+                }
+                long nulls = Long.parseLong(summary.getProperty("nulls." + field));
+                if (nulls == rows) {
+                    empty.append((empty.length() == 0) ? "" : ",").append(ad.getName());
+                }
+                if (!Boolean.parseBoolean(summary.getProperty("exact." + field))) {
+                    continue;
+                }
+                TreeSet<String> values = new TreeSet<String>();
+                String value;
+                for (int rank = 0; (value = summary.getProperty("value." + field + "." + rank))
+                        != null; rank++) {
+                    // count value
+                    values.add(value.substring(value.indexOf(' ') + 1));
+                }
+                if (nulls > 0) {
+                    values.add(NULL_MARKER);
+                }
+                if (values.size() <= maxFieldValues) {
+                    StringBuilder joined = new StringBuilder();
+                    for (String fieldValue : values) {
+                        joined.append((joined.length() == 0) ? "" : VALUE_SEPARATOR)
+                            .append(fieldValue);
+                    }
+                    osSummary.setProperty(fieldKey, joined.toString());
+                }
+            }
+            if (empty.length() == 0) {
+                osSummary.remove(className + EMPTY_ATTRIBUTES);
+            } else {
+                osSummary.setProperty(className + EMPTY_ATTRIBUTES, empty.toString());
+            }
+        }
+        return osSummary;
+    }
+
+    private static void copy(Properties from, Properties to, String className) {
+        String[] prefixes = new String[] {"nulls.", "exact.", "distinct.", "value."};
+        to.setProperty("count." + className, from.getProperty("count." + className));
+        for (String key : from.stringPropertyNames()) {
+            for (String prefix : prefixes) {
+                if (key.startsWith(prefix + className + ".")) {
+                    to.setProperty(key, from.getProperty(key));
+                }
+            }
+        }
+    }
+
+    private static Properties retrieve(Database db, String key) throws Exception {
+        Properties properties = new Properties();
+        String value = MetadataManager.retrieve(db, key);
+        if (value != null) {
+            properties.load(new ByteArrayInputStream(value.getBytes("ISO-8859-1")));
+        }
+        return properties;
+    }
+
+    private static void store(Database db, String key, Properties properties, String comment)
+        throws Exception {
+        // store() escapes everything outside ISO-8859-1
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, comment);
+        MetadataManager.store(db, key, out.toString("ISO-8859-1"));
+    }
+
+    /**
+     * Usage: ApproximateSummariser threads [objectstore [restart]]
+     *
+     * With restart every class is scanned, rather than only those changed since the last run.
+     * @param args see above
+     * @throws Exception if the summary can't be made
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ApproximateSummariser threads [objectstore [restart]]");
+            System.exit(1);
+        }
+        ObjectStoreInterMineImpl os = (ObjectStoreInterMineImpl)
+            ObjectStoreFactory.getObjectStore((args.length > 1) ? args[1] : "os.production");
+        Database db = os.getDatabase();
+        Properties config = new Properties();
+        InputStream in = ApproximateSummariser.class.getClassLoader().getResourceAsStream(
+                "objectstoresummary.config.properties");
+        if (in != null) {
+            try {
+                config.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        int maxFieldValues = Integer.parseInt(config.getProperty("max.field.values", "200")
+                .trim());
+        Properties previous = (args.length > 2 && "restart".equals(args[2]))
+            ? new Properties() : retrieve(db, STATE_KEY);
+        ApproximateSummariser summariser = new ApproximateSummariser(db, os.getModel(),
+                maxFieldValues);
+        Properties summary = summariser.summarise(previous, Integer.parseInt(args[0]));
+        store(db, STATE_KEY, summary, "approximate objectstore summary");
+        store(db, MetadataManager.OS_SUMMARY, summariser.toObjectStoreSummary(summary,
+                    retrieve(db, MetadataManager.OS_SUMMARY)), null);
+        LOG.info("Stored the objectstore summary");
+    }
+}
@@ -0,0 +1,261 @@
+package org.flymine.summary;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.flymine.integrate.PrecomputeRefresher;
+import org.intermine.api.bag.BagQueryRunner;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.query.MainHelper;
+import org.intermine.api.template.TemplateValue;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.query.ConstraintOp;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.QuerySelectable;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.objectstore.query.SimpleConstraint;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OuterJoinStatus;
+import org.intermine.pathquery.PathQuery;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * The Drosophila 12 genomes homology of a data release as a flat table of (gene id, homologue
+ * id, homologue symbol, homologue species, homologue organism id), read into memory by the
+ * webapp's homologue displayer instead of walking the object graph.  The release is the
+ * comment of the table, so the webapp can tell a table of another release.  Built by the
+ * create-drosophila-homology-matrix post-process, or the dbmodel homologyMatrix task.
+ *
+ * The PathQueries the displayer falls back to when the table can't be used are defined here
+ * too, and precomputed from the ObjectStore queries they make, so the precomputed tables are
+ * always those the displayer's queries can use.
+ */
+public final class DrosophilaHomologyMatrix
+{
+    private static final Logger LOG = Logger.getLogger(DrosophilaHomologyMatrix.class);
+    /** The name of the table. */
+    public static final String TABLE_NAME = "drosophila_homology_matrix";
+    /** The data set of the homology. */
+    public static final String HOMOLOGY_DATASET = "Drosophila 12 Genomes Consortium homology";
+    /** The genus of the organisms. */
+    public static final String GENUS = "Drosophila";
+    /** The species the homology links every other species to. */
+    public static final String PIVOT_SPECIES = "melanogaster";
+    private static final int BATCH_SIZE = 5000;
+
+    private DrosophilaHomologyMatrix() {
+        // don't
+    }
+
+    /**
+     * [homologue symbol, homologue species, homologue organism id] of the genes constrained,
+     * by Gene.id for a melanogaster gene.
+     * @param model the model
+     * @return the query
+     */
+    public static PathQuery homologuesQuery(Model model) {
+        PathQuery q = new PathQuery(model);
+        q.addViews("Gene.homologues.homologue.symbol",
+                "Gene.homologues.homologue.organism.species",
+                "Gene.homologues.homologue.organism.id");
+        q.addConstraint(Constraints.eq("Gene.homologues.dataSets.name", HOMOLOGY_DATASET));
+        return q;
+    }
+
+    /**
+     * [melanogaster homologue symbol, then the three columns of homologuesQuery() for its
+     * homologues] of the genes constrained, by Gene.id for a gene of another species.
+     * @param model the model
+     * @return the query
+     */
+    public static PathQuery recentredQuery(Model model) {
+        String pivot = "Gene.homologues.homologue";
+        String homologue = pivot + ".homologues.homologue";
+        PathQuery q = new PathQuery(model);
+        q.addViews(pivot + ".symbol", homologue + ".symbol", homologue + ".organism.species",
+                homologue + ".organism.id");
+        q.addConstraint(Constraints.eq("Gene.homologues.dataSets.name", HOMOLOGY_DATASET));
+        q.addConstraint(Constraints.eq(pivot + ".organism.species", PIVOT_SPECIES));
+        q.addConstraint(Constraints.eq(pivot + ".homologues.dataSets.name", HOMOLOGY_DATASET));
+        // still show the melanogaster homologue if it has no homologues of its own
+        q.setOuterJoinStatus(pivot + ".homologues", OuterJoinStatus.OUTER);
+        return q;
+    }
+
+    /**
+     * Read the release of the table.
+     * @param con a connection to the production database
+     * @return the release the table was built for
+     * @throws SQLException if there is no table
+     */
+    public static String getRelease(Connection con) throws SQLException {
+        Statement s = con.createStatement();
+        try {
+            ResultSet rs = s.executeQuery("SELECT obj_description('" + TABLE_NAME
+                    + "'::regclass, 'pg_class')");
+            rs.next();
+            String release = rs.getString(1);
+            return (release == null) ? "" : release;
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Replace the table, then precompute the displayer's queries.
+     * @param os the production ObjectStore
+     * @param release the data release
+     * @throws Exception if the ObjectStore can't be read or written
+     */
+    public static void build(ObjectStoreInterMineImpl os, String release) throws Exception {
+        long start = System.currentTimeMillis();
+        int rows = 0;
+        Connection con = os.getDatabase().getConnection();
+        try {
+            con.setAutoCommit(false);
+            Statement s = con.createStatement();
+            s.execute("DROP TABLE IF EXISTS " + TABLE_NAME);
+            s.execute("CREATE TABLE " + TABLE_NAME + " (geneid integer NOT NULL, "
+                    + "homologueid integer NOT NULL, symbol text, species text NOT NULL, "
+                    + "organismid integer NOT NULL)");
+            PreparedStatement insert = con.prepareStatement("INSERT INTO " + TABLE_NAME
+                    + " (geneid, homologueid, symbol, species, organismid) "
+                    + "VALUES (?, ?, ?, ?, ?)");
+            for (Object o : os.execute(homologyQuery(os.getModel()), BATCH_SIZE, true, false,
+                        true)) {
+                ResultsRow row = (ResultsRow) o;
+                insert.setInt(1, ((Integer) row.get(0)).intValue());
+                insert.setInt(2, ((Integer) row.get(1)).intValue());
+                insert.setString(3, (String) row.get(2));
+                insert.setString(4, (String) row.get(3));
+                insert.setInt(5, ((Integer) row.get(4)).intValue());
+                insert.addBatch();
+                rows++;
+                if (rows % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            insert.close();
+            s.execute("CREATE INDEX " + TABLE_NAME + "_geneid ON " + TABLE_NAME + " (geneid)");
+            s.execute("COMMENT ON TABLE " + TABLE_NAME + " IS '" + release.replace("'", "''")
+                    + "'");
+            con.commit();
+            s.execute("ANALYSE " + TABLE_NAME);
+            s.close();
+        } finally {
+            try {
+                con.setAutoCommit(true);
+                con.close();
+            } catch (SQLException e) {
+                LOG.warn("Failed to close connection", e);
+            }
+        }
+        LOG.info("Created " + TABLE_NAME + " of release " + release + " with " + rows
+                + " rows in " + (System.currentTimeMillis() - start) + " ms");
+
+        for (PathQuery pq : new PathQuery[] {homologuesQuery(os.getModel()),
+            recentredQuery(os.getModel())}) {
+            Query q = MainHelper.makeQuery(pq, new HashMap<String, InterMineBag>(),
+                    new HashMap<String, QuerySelectable>(), (BagQueryRunner) null,
+                    new HashMap<String, List<TemplateValue>>());
+            if (!os.isPrecomputed(q, PrecomputeRefresher.CATEGORY)) {
+                List<String> tables = os.precompute(q, PrecomputeRefresher.CATEGORY);
+                LOG.info("Precomputed " + tables + " for " + pq.getView());
+            }
+        }
+    }
+
+    /**
+     * [Gene.id, homologue.id, homologue.symbol, homologue.organism.species,
+     * homologue.organism.id] for homologues from the 12 genomes homology data set.
+     */
+    private static Query homologyQuery(Model model) {
+        Query q = new Query();
+        QueryClass qcGene = new QueryClass(type(model, "Gene"));
+        QueryClass qcHomologue = new QueryClass(type(model, "Homologue"));
+        QueryClass qcOther = new QueryClass(type(model, "Gene"));
+        QueryClass qcOrganism = new QueryClass(type(model, "Organism"));
+        QueryClass qcDataSet = new QueryClass(type(model, "DataSet"));
+        q.addFrom(qcGene);
+        q.addFrom(qcHomologue);
+        q.addFrom(qcOther);
+        q.addFrom(qcOrganism);
+        q.addFrom(qcDataSet);
+        q.addToSelect(new QueryField(qcGene, "id"));
+        q.addToSelect(new QueryField(qcOther, "id"));
+        q.addToSelect(new QueryField(qcOther, "symbol"));
+        q.addToSelect(new QueryField(qcOrganism, "species"));
+        q.addToSelect(new QueryField(qcOrganism, "id"));
+
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcGene,
+                        "homologues"), ConstraintOp.CONTAINS, qcHomologue));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcHomologue,
+                        "homologue"), ConstraintOp.CONTAINS, qcOther));
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcHomologue,
+                        "dataSets"), ConstraintOp.CONTAINS, qcDataSet));
+        cs.addConstraint(new SimpleConstraint(new QueryField(qcDataSet, "name"),
+                    ConstraintOp.EQUALS, new QueryValue(HOMOLOGY_DATASET)));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcOther, "organism"),
+                    ConstraintOp.CONTAINS, qcOrganism));
+        cs.addConstraint(new SimpleConstraint(new QueryField(qcOrganism, "genus"),
+                    ConstraintOp.EQUALS, new QueryValue(GENUS)));
+        q.setConstraint(cs);
+        q.setDistinct(true);
+        return q;
+    }
+
+    private static Class<?> type(Model model, String className) {
+        ClassDescriptor cld = model.getClassDescriptorByName(className);
+        if (cld == null) {
+            throw new IllegalStateException("No " + className + " in the model");
+        }
+        return cld.getType();
+    }
+
+    /**
+     * Usage: DrosophilaHomologyMatrix [release [objectstore]]
+     *
+     * The release defaults to project.releaseVersion of the mine properties.
+     * @param args see above
+     * @throws Exception if the table can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        String release = (args.length > 0 && args[0].length() > 0) ? args[0]
+            : PropertiesUtil.getProperties().getProperty("project.releaseVersion", "");
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 1) ? args[1]
+                : "os.production");
+        if (!(os instanceof ObjectStoreInterMineImpl)) {
+            throw new IllegalArgumentException("ObjectStore must be an ObjectStoreInterMineImpl");
+        }
+        build((ObjectStoreInterMineImpl) os, release);
+    }
+}
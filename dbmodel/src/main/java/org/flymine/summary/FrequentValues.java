@@ -0,0 +1,162 @@
+package org.flymine.summary;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most frequent values of a stream.  Values are counted exactly until there are more
+ * than a limit of distinct ones, after which it becomes a Misra-Gries summary of a fixed
+ * number of counters: any value occurring more than total / (counters + 1) times is kept,
+ * with a count at most that much too low.  Not thread safe.
+ */
+public final class FrequentValues
+{
+    private final int exactLimit;
+    private final int counters;
+    private final Map<String, long[]> counts = new HashMap<String, long[]>();
+    private boolean exact = true;
+    private long total = 0;
+
+    /**
+     * @param exactLimit the most distinct values to count exactly
+     * @param counters the number of counters to keep after that, at least exactLimit
+     */
+    public FrequentValues(int exactLimit, int counters) {
+        this.exactLimit = exactLimit;
+        this.counters = Math.max(counters, exactLimit);
+    }
+
+    /**
+     * @param value a value
+     */
+    public void add(String value) {
+        add(value, 1);
+    }
+
+    /**
+     * Add a value a number of times at once, as a summary being merged in.
+     * @param value a value
+     * @param times how many times it occurred, at least 1
+     */
+    public void add(String value, long times) {
+        total += times;
+        long[] count = counts.get(value);
+        if (count != null) {
+            count[0] += times;
+            return;
+        }
+        if (exact && counts.size() < exactLimit) {
+            counts.put(value, new long[] {times});
+            return;
+        }
+        exact = false;
+        long remaining = times;
+        while (counts.size() >= counters) {
+            // no room: the new value and every counter lose the smallest count, which frees a
+            // counter unless the new value runs out first
+            long smallest = remaining;
+            for (long[] other : counts.values()) {
+                smallest = Math.min(smallest, other[0]);
+            }
+            Iterator<long[]> i = counts.values().iterator();
+            while (i.hasNext()) {
+                long[] other = i.next();
+                other[0] -= smallest;
+                if (other[0] == 0) {
+                    i.remove();
+                }
+            }
+            remaining -= smallest;
+            if (remaining == 0) {
+                return;
+            }
+        }
+        counts.put(value, new long[] {remaining});
+    }
+
+    /**
+     * @return true if every distinct value has been counted exactly
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of distinct values if exact, otherwise the number of counters in use
+     */
+    public int size() {
+        return counts.size();
+    }
+
+    /**
+     * @param max the most values to return
+     * @return the most frequent values with their counts, most frequent first, ties in value
+     * order
+     */
+    public List<Map.Entry<String, Long>> top(int max) {
+        List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, long[]> count : counts.entrySet()) {
+            top.add(new Entry(count.getKey(), count.getValue()[0]));
+        }
+        Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int c = b.getValue().compareTo(a.getValue());
+                return (c != 0) ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return top.subList(0, Math.min(max, top.size()));
+    }
+
+    /**
+     * A value and its count.
+     */
+    private static final class Entry implements Map.Entry<String, Long>
+    {
+        private final String key;
+        private final Long value;
+
+        Entry(String key, long value) {
+            this.key = key;
+            this.value = new Long(value);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Long getValue() {
+            return value;
+        }
+
+        public Long setValue(Long newValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package org.flymine.summary;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The aggregates of the chromosome distribution and FlyAtlas graph widgets, read in place
+ * from a file written by GraphCubeWriter through a memory map.  The cell totals and names are
+ * on the heap; the feature ids and the gene and probe set bitsets stay in the map.
+ *
+ * A list's chromosome distribution looks up the cell of each of its features by binary
+ * search; the expected counts come from the cell totals.  A list's FlyAtlas counts are the
+ * intersections of a bitset of the list with the bitset of each tissue and affy call.  Neither
+ * needs a query.  Thread safe.
+ */
+public final class GraphCube
+{
+    private final ByteBuffer buffer;
+    private final String release;
+    private final String[] classes;
+    private final String[] organisms;
+    private final String[] tissues;
+    private final String[] affyCalls;
+    private final int[] chromosomeClasses;
+    private final int[] chromosomeOrganisms;
+    private final String[] chromosomes;
+    private final int[] chromosomeCounts;
+    private final int[][] expressionKeys;
+    private final int[] expressionOffsets;
+    private final int featureCount;
+    private final int featureIds;
+    private final int featureCells;
+    private final int[] subjectCounts = new int[2];
+    private final int[] subjectIds = new int[2];
+
+    /**
+     * @param file a file written by GraphCubeWriter
+     * @throws IOException if the file can't be mapped or isn't a graph cube
+     */
+    public GraphCube(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        if (buffer.getInt(0) != GraphCubeWriter.MAGIC
+                || buffer.getInt(4) != GraphCubeWriter.VERSION) {
+            throw new IOException(file + " isn't a version " + GraphCubeWriter.VERSION
+                    + " graph cube");
+        }
+        int data = buffer.getInt(8);
+        byte[] header = new byte[data - 12];
+        ((ByteBuffer) buffer.duplicate().position(12)).get(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        release = in.readUTF();
+        classes = readNames(in);
+        organisms = readNames(in);
+        tissues = readNames(in);
+        affyCalls = readNames(in);
+        int cells = in.readInt();
+        chromosomeClasses = new int[cells];
+        chromosomeOrganisms = new int[cells];
+        chromosomes = new String[cells];
+        chromosomeCounts = new int[cells];
+        for (int i = 0; i < cells; i++) {
+            chromosomeClasses[i] = in.readInt();
+            chromosomeOrganisms[i] = in.readInt();
+            chromosomes[i] = in.readUTF();
+            chromosomeCounts[i] = in.readInt();
+        }
+        cells = in.readInt();
+        expressionKeys = new int[cells][];
+        for (int i = 0; i < cells; i++) {
+            expressionKeys[i] = new int[] {in.readInt(), in.readInt(), in.readInt(),
+                in.readInt()};
+            // the cell's subject count, only needed when present calls aren't combined
+            in.readInt();
+        }
+
+        featureCount = buffer.getInt(data);
+        featureIds = data + 4;
+        featureCells = featureIds + 4 * featureCount;
+        int offset = featureCells + 4 * featureCount;
+        for (int kind = 0; kind < 2; kind++) {
+            subjectCounts[kind] = buffer.getInt(offset);
+            subjectIds[kind] = offset + 4;
+            offset = subjectIds[kind] + 4 * subjectCounts[kind];
+        }
+        expressionOffsets = new int[cells];
+        for (int i = 0; i < cells; i++) {
+            expressionOffsets[i] = offset;
+            offset += 8 * words(expressionKeys[i][0]);
+        }
+    }
+
+    private static String[] readNames(DataInputStream in) throws IOException {
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    private int words(int kind) {
+        return (subjectCounts[kind] + 63) >>> 6;
+    }
+
+    /**
+     * @return the data release the cube was built from
+     */
+    public String getRelease() {
+        return release;
+    }
+
+    /**
+     * @return the number of located features
+     */
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Count the located features of a list in each organism, for choosing the organism to
+     * show.
+     * @param list the ids of the objects in the list
+     * @return organism name to the number of list features located in it
+     */
+    public Map<String, Integer> organisms(int[] list) {
+        int[] counts = new int[organisms.length];
+        for (int id : list) {
+            int cell = featureCell(id);
+            if (cell >= 0) {
+                counts[chromosomeOrganisms[cell]]++;
+            }
+        }
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                result.put(organisms[i], new Integer(counts[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The chromosome distribution of the features of a list in one organism.  Expected is the
+     * number of list features in the organism times the fraction of the organism's features of
+     * the list's classes that are on the chromosome.
+     * @param list the ids of the objects in the list
+     * @param organism the organism name
+     * @param classNames the unqualified names of the list's class and its subclasses
+     * @return chromosome to {actual, expected}, for every chromosome with features of the
+     * classes, in chromosome order
+     */
+    public Map<String, double[]> chromosomeDistribution(int[] list, String organism,
+            Set<String> classNames) {
+        Map<String, double[]> distribution = new TreeMap<String, double[]>();
+        int organismIndex = Arrays.asList(organisms).indexOf(organism);
+        if (organismIndex < 0) {
+            return distribution;
+        }
+        long population = 0;
+        for (int cell = 0; cell < chromosomes.length; cell++) {
+            if (chromosomeOrganisms[cell] == organismIndex
+                    && classNames.contains(classes[chromosomeClasses[cell]])) {
+                population += chromosomeCounts[cell];
+                double[] counts = distribution.get(chromosomes[cell]);
+                if (counts == null) {
+                    counts = new double[2];
+                    distribution.put(chromosomes[cell], counts);
+                }
+                // the chromosome's population for now, made the expected count below
+                counts[1] += chromosomeCounts[cell];
+            }
+        }
+        int sample = 0;
+        for (int id : list) {
+            int cell = featureCell(id);
+            if (cell >= 0 && chromosomeOrganisms[cell] == organismIndex) {
+                double[] counts = distribution.get(chromosomes[cell]);
+                if (counts == null) {
+                    counts = new double[2];
+                    distribution.put(chromosomes[cell], counts);
+                }
+                counts[0]++;
+                sample++;
+            }
+        }
+        for (double[] counts : distribution.values()) {
+            counts[1] = (population == 0) ? 0 : sample * counts[1] / population;
+        }
+        return distribution;
+    }
+
+    /**
+     * @return the chromosome cell of a feature, or -1 if it isn't a located feature
+     */
+    private int featureCell(int id) {
+        int low = 0;
+        int high = featureCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = buffer.getInt(featureIds + 4 * mid);
+            if (value < id) {
+                low = mid + 1;
+            } else if (value > id) {
+                high = mid - 1;
+            } else {
+                return buffer.getInt(featureCells + 4 * mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Count the genes or probe sets of a list with each affy call in each tissue, from the
+     * FlyAtlas results with at least a minimum present call.  Each is counted once per tissue
+     * and affy call however many results it has there.
+     * @param list the ids of the genes or probe sets in the list, or null for all of them
+     * @param probeSets true for probe sets, false for genes
+     * @param minPresentCall the lowest present call to count
+     * @return tissue name to affy call to count, tissues in name order
+     */
+    public Map<String, Map<String, Integer>> expression(int[] list, boolean probeSets,
+            int minPresentCall) {
+        int kind = probeSets ? 1 : 0;
+        int words = words(kind);
+        long[] listBits = null;
+        if (list != null) {
+            listBits = new long[words];
+            for (int id : list) {
+                int bit = subject(kind, id);
+                if (bit >= 0) {
+                    listBits[bit >>> 6] |= 1L << (bit & 63);
+                }
+            }
+        }
+        // union the cells of each tissue and affy call over the present calls counted
+        long[][] unions = new long[tissues.length * affyCalls.length][];
+        for (int cell = 0; cell < expressionKeys.length; cell++) {
+            int[] key = expressionKeys[cell];
+            if (key[0] != kind || key[3] < minPresentCall) {
+                continue;
+            }
+            int union = key[1] * affyCalls.length + key[2];
+            if (unions[union] == null) {
+                unions[union] = new long[words];
+            }
+            long[] bits = unions[union];
+            int offset = expressionOffsets[cell];
+            for (int w = 0; w < words; w++) {
+                long word = buffer.getLong(offset + 8 * w);
+                bits[w] |= (listBits == null) ? word : word & listBits[w];
+            }
+        }
+        Map<String, Map<String, Integer>> counts = new TreeMap<String, Map<String, Integer>>();
+        for (int union = 0; union < unions.length; union++) {
+            if (unions[union] == null) {
+                continue;
+            }
+            int count = 0;
+            for (long word : unions[union]) {
+                count += Long.bitCount(word);
+            }
+            String tissue = tissues[union / affyCalls.length];
+            Map<String, Integer> byCall = counts.get(tissue);
+            if (byCall == null) {
+                byCall = new TreeMap<String, Integer>();
+                counts.put(tissue, byCall);
+            }
+            byCall.put(affyCalls[union % affyCalls.length], new Integer(count));
+        }
+        return counts;
+    }
+
+    /**
+     * @return the bit of a gene or probe set, or -1 if it has no FlyAtlas results
+     */
+    private int subject(int kind, int id) {
+        int low = 0;
+        int high = subjectCounts[kind] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = buffer.getInt(subjectIds[kind] + 4 * mid);
+            if (value < id) {
+                low = mid + 1;
+            } else if (value > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,194 @@
+package org.flymine.summary;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreFactory;
+import org.intermine.objectstore.query.ConstraintOp;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.util.DynamicUtil;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * Writes the graph cube of a data release: the organism and chromosome of every located
+ * SequenceFeature, as precompute.query.7 to 9 fetch them, and the tissue, affy call and
+ * present call of every FlyAtlasResult for its genes and probe sets, as precompute.query.10
+ * does.
+ */
+public final class GraphCubeBuilder
+{
+    private static final Logger LOG = Logger.getLogger(GraphCubeBuilder.class);
+    private static final int BATCH_SIZE = 10000;
+
+    private final ObjectStore os;
+    private final Model model;
+
+    /**
+     * @param os the ObjectStore to read
+     */
+    public GraphCubeBuilder(ObjectStore os) {
+        this.os = os;
+        this.model = os.getModel();
+    }
+
+    /**
+     * @param file the cube file to write
+     * @param release the data release
+     * @throws Exception if the ObjectStore can't be read or the file written
+     */
+    public void build(File file, String release) throws Exception {
+        long start = System.currentTimeMillis();
+        GraphCubeWriter writer = new GraphCubeWriter();
+        int features = addFeatures(writer);
+        LOG.info("Read " + features + " located features");
+        if (model.getClassDescriptorByName("FlyAtlasResult") != null) {
+            int genes = addExpression(writer, false);
+            int probeSets = addExpression(writer, true);
+            LOG.info("Read " + genes + " FlyAtlas gene results and " + probeSets
+                    + " probe set results");
+        }
+        writer.write(file, release);
+        LOG.info("Wrote graph cube of release " + release + " in "
+                + (System.currentTimeMillis() - start) / 1000 + " s");
+    }
+
+    /**
+     * The features are loaded to find their classes, the chromosome and organism are fetched
+     * as fields.
+     */
+    private int addFeatures(GraphCubeWriter writer) throws Exception {
+        Query q = new Query();
+        QueryClass qcFeature = new QueryClass(type("SequenceFeature"));
+        QueryClass qcChromosome = new QueryClass(type("Chromosome"));
+        QueryClass qcOrganism = new QueryClass(type("Organism"));
+        q.addFrom(qcFeature);
+        q.addFrom(qcChromosome);
+        q.addFrom(qcOrganism);
+        q.addToSelect(qcFeature);
+        q.addToSelect(new QueryField(qcChromosome, "primaryIdentifier"));
+        q.addToSelect(new QueryField(qcOrganism, "name"));
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcFeature,
+                        "chromosome"), ConstraintOp.CONTAINS, qcChromosome));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcFeature,
+                        "organism"), ConstraintOp.CONTAINS, qcOrganism));
+        q.setConstraint(cs);
+        q.addToOrderBy(new QueryField(qcFeature, "id"));
+        int count = 0;
+        for (Object row : os.execute(q, BATCH_SIZE, true, false, false)) {
+            List<?> values = (List<?>) row;
+            InterMineObject feature = (InterMineObject) values.get(0);
+            String chromosome = (String) values.get(1);
+            String organism = (String) values.get(2);
+            if (chromosome == null || organism == null) {
+                continue;
+            }
+            ClassDescriptor cld = model.getClassDescriptorByName(
+                    DynamicUtil.getSimpleClass(feature).getName());
+            writer.addFeature(feature.getId().intValue(), cld.getUnqualifiedName(), organism,
+                    chromosome);
+            if (++count % 500000 == 0) {
+                LOG.info("Read " + count + " located features");
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param probeSets true for FlyAtlasResult.material, false for FlyAtlasResult.genes
+     */
+    private int addExpression(GraphCubeWriter writer, boolean probeSets) throws Exception {
+        Query q = new Query();
+        QueryClass qcResult = new QueryClass(type("FlyAtlasResult"));
+        QueryClass qcSubject = new QueryClass(type(probeSets ? "ProbeSet" : "Gene"));
+        QueryClass qcTissue = new QueryClass(type("Tissue"));
+        q.addFrom(qcResult);
+        q.addFrom(qcSubject);
+        q.addFrom(qcTissue);
+        q.addToSelect(new QueryField(qcSubject, "id"));
+        q.addToSelect(new QueryField(qcTissue, "name"));
+        q.addToSelect(new QueryField(qcResult, "affyCall"));
+        q.addToSelect(new QueryField(qcResult, "presentCall"));
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        if (probeSets) {
+            cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcResult,
+                            "material"), ConstraintOp.CONTAINS, qcSubject));
+        } else {
+            cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcResult,
+                            "genes"), ConstraintOp.CONTAINS, qcSubject));
+        }
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcResult, "tissue"),
+                    ConstraintOp.CONTAINS, qcTissue));
+        q.setConstraint(cs);
+        q.setDistinct(false);
+        int count = 0;
+        for (Object row : os.execute(q, BATCH_SIZE, true, false, false)) {
+            List<?> values = (List<?>) row;
+            Object affyCall = values.get(2);
+            Object presentCall = values.get(3);
+            if (values.get(1) == null || affyCall == null || presentCall == null) {
+                continue;
+            }
+            writer.addExpression(probeSets, ((Integer) values.get(0)).intValue(),
+                    (String) values.get(1), affyCall.toString(),
+                    ((Number) presentCall).intValue());
+            count++;
+        }
+        return count;
+    }
+
+    private Class<?> type(String className) {
+        ClassDescriptor cld = model.getClassDescriptorByName(className);
+        if (cld == null) {
+            throw new IllegalStateException("No " + className + " in the model");
+        }
+        return cld.getType();
+    }
+
+    /**
+     * Usage: GraphCubeBuilder file [release [objectstore]]
+     *
+     * The release defaults to project.releaseVersion of the mine properties.
+     * @param args see above
+     * @throws Exception if the cube can't be built
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: GraphCubeBuilder file [release [objectstore]]");
+            System.exit(1);
+        }
+        String release = (args.length > 1 && args[1].length() > 0) ? args[1]
+            : PropertiesUtil.getProperties().getProperty("project.releaseVersion", "");
+        ObjectStore os = ObjectStoreFactory.getObjectStore((args.length > 2) ? args[2]
+                : "os.production");
+        // written beside the old cube and moved over it, a webapp mapping it keeps its copy
+        File file = new File(args[0]);
+        File building = new File(file.getPath() + ".building");
+        new GraphCubeBuilder(os).build(building, release);
+        if (!building.renameTo(file)) {
+            throw new IOException("Couldn't move " + building + " to " + file);
+        }
+    }
+}
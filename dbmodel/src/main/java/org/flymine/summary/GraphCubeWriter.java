@@ -0,0 +1,272 @@
+package org.flymine.summary;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the file read by GraphCube: the aggregates behind the chromosome distribution and
+ * FlyAtlas graph widgets for one data release.
+ *
+ * The file is a fixed header of magic, version and the offset of the data, then (in
+ * DataOutput form) the release, the class, organism, tissue and affy call names, the
+ * chromosome cells (class, organism, chromosome, feature count) and the expression cells
+ * (probe sets or genes, tissue, affy call, present call, subject count), then:
+ * <pre>
+ * feature count, feature ids [features] (ascending), feature cells [features],
+ * gene count, gene ids [genes] (ascending), probe set count, probe set ids [probe sets],
+ * for each expression cell a bitset over the gene or probe set ids, in longs
+ * </pre>
+ * All numbers are big endian.
+ */
+public final class GraphCubeWriter
+{
+    /** Identifies a graph cube file. */
+    public static final int MAGIC = 0x464d4743;
+    /** The format version. */
+    public static final int VERSION = 1;
+
+    private final Names classes = new Names();
+    private final Names organisms = new Names();
+    private final Names tissues = new Names();
+    private final Names affyCalls = new Names();
+    private final Map<String, Integer> chromosomeCells = new HashMap<String, Integer>();
+    private final List<Object[]> chromosomeCellKeys = new ArrayList<Object[]>();
+    private final Map<String, Integer> expressionCells = new HashMap<String, Integer>();
+    private final List<int[]> expressionCellKeys = new ArrayList<int[]>();
+    private final IntList featureIds = new IntList();
+    private final IntList featureCells = new IntList();
+    private final IntList[] subjects = new IntList[] {new IntList(), new IntList()};
+    private final IntList[] subjectCells = new IntList[] {new IntList(), new IntList()};
+
+    /**
+     * Add a located feature.
+     * @param id the feature id
+     * @param className the unqualified class name of the feature
+     * @param organism the organism name
+     * @param chromosome the chromosome primary identifier
+     */
+    public void addFeature(int id, String className, String organism, String chromosome) {
+        int classIndex = classes.index(className);
+        int organismIndex = organisms.index(organism);
+        String key = classIndex + "\t" + organismIndex + "\t" + chromosome;
+        Integer cell = chromosomeCells.get(key);
+        if (cell == null) {
+            cell = new Integer(chromosomeCellKeys.size());
+            chromosomeCells.put(key, cell);
+            chromosomeCellKeys.add(new Object[] {new Integer(classIndex),
+                new Integer(organismIndex), chromosome});
+        }
+        featureIds.add(id);
+        featureCells.add(cell.intValue());
+    }
+
+    /**
+     * Add a FlyAtlas result for a gene or probe set.
+     * @param probeSet true if the subject is a probe set (FlyAtlasResult.material), false if a
+     * gene (FlyAtlasResult.genes)
+     * @param subjectId the id of the gene or probe set
+     * @param tissue the tissue name
+     * @param affyCall the affy call, eg. Up
+     * @param presentCall the present call
+     */
+    public void addExpression(boolean probeSet, int subjectId, String tissue, String affyCall,
+            int presentCall) {
+        int kind = probeSet ? 1 : 0;
+        int tissueIndex = tissues.index(tissue);
+        int affyCallIndex = affyCalls.index(affyCall);
+        String key = kind + "\t" + tissueIndex + "\t" + affyCallIndex + "\t" + presentCall;
+        Integer cell = expressionCells.get(key);
+        if (cell == null) {
+            cell = new Integer(expressionCellKeys.size());
+            expressionCells.put(key, cell);
+            expressionCellKeys.add(new int[] {kind, tissueIndex, affyCallIndex, presentCall});
+        }
+        subjects[kind].add(subjectId);
+        subjectCells[kind].add(cell.intValue());
+    }
+
+    /**
+     * @param file the file to write
+     * @param release the data release the aggregates are of
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file, String release) throws IOException {
+        // features in id order, each once: sort id << 32 | cell
+        long[] packed = new long[featureIds.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = ((long) featureIds.get(i) << 32) | featureCells.get(i);
+        }
+        Arrays.sort(packed);
+        int[] ids = new int[packed.length];
+        int[] cells = new int[packed.length];
+        int features = 0;
+        int[] cellCounts = new int[chromosomeCellKeys.size()];
+        for (long feature : packed) {
+            int id = (int) (feature >>> 32);
+            if (features > 0 && ids[features - 1] == id) {
+                continue;
+            }
+            ids[features] = id;
+            cells[features] = (int) feature;
+            cellCounts[cells[features]]++;
+            features++;
+        }
+        int[][] subjectIds = new int[][] {distinct(subjects[0]), distinct(subjects[1])};
+        long[][] bitsets = new long[expressionCellKeys.size()][];
+        int[] subjectCounts = new int[bitsets.length];
+        for (int cell = 0; cell < bitsets.length; cell++) {
+            int kind = expressionCellKeys.get(cell)[0];
+            bitsets[cell] = new long[(subjectIds[kind].length + 63) >>> 6];
+        }
+        for (int kind = 0; kind < 2; kind++) {
+            for (int i = 0; i < subjects[kind].size(); i++) {
+                int bit = Arrays.binarySearch(subjectIds[kind], subjects[kind].get(i));
+                long[] bitset = bitsets[subjectCells[kind].get(i)];
+                bitset[bit >>> 6] |= 1L << (bit & 63);
+            }
+        }
+        for (int cell = 0; cell < bitsets.length; cell++) {
+            for (long word : bitsets[cell]) {
+                subjectCounts[cell] += Long.bitCount(word);
+            }
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF(release);
+        classes.write(headerOut);
+        organisms.write(headerOut);
+        tissues.write(headerOut);
+        affyCalls.write(headerOut);
+        headerOut.writeInt(chromosomeCellKeys.size());
+        for (int cell = 0; cell < chromosomeCellKeys.size(); cell++) {
+            Object[] key = chromosomeCellKeys.get(cell);
+            headerOut.writeInt(((Integer) key[0]).intValue());
+            headerOut.writeInt(((Integer) key[1]).intValue());
+            headerOut.writeUTF((String) key[2]);
+            headerOut.writeInt(cellCounts[cell]);
+        }
+        headerOut.writeInt(expressionCellKeys.size());
+        for (int cell = 0; cell < expressionCellKeys.size(); cell++) {
+            for (int value : expressionCellKeys.get(cell)) {
+                headerOut.writeInt(value);
+            }
+            headerOut.writeInt(subjectCounts[cell]);
+        }
+        headerOut.flush();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(12 + header.size());
+            header.writeTo(out);
+            out.writeInt(features);
+            for (int i = 0; i < features; i++) {
+                out.writeInt(ids[i]);
+            }
+            for (int i = 0; i < features; i++) {
+                out.writeInt(cells[i]);
+            }
+            for (int[] kindIds : subjectIds) {
+                out.writeInt(kindIds.length);
+                for (int id : kindIds) {
+                    out.writeInt(id);
+                }
+            }
+            for (long[] bitset : bitsets) {
+                for (long word : bitset) {
+                    out.writeLong(word);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] distinct(IntList values) {
+        int[] sorted = values.toArray();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int value : sorted) {
+            if (count == 0 || sorted[count - 1] != value) {
+                sorted[count++] = value;
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Names given indexes in the order first added.
+     */
+    private static final class Names
+    {
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        int index(String name) {
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = new Integer(names.size());
+                indexes.put(name, index);
+                names.add(name);
+            }
+            return index.intValue();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+        }
+    }
+
+    /**
+     * A growable array of ints.
+     */
+    private static final class IntList
+    {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import org.flymine.summary.DrosophilaHomologyMatrix;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.postprocess.PostProcessor;
+import org.intermine.util.PropertiesUtil;
+
+/**
+ * Build the Drosophila 12 genomes homology table read by the webapp's homologue displayer,
+ * for project.releaseVersion of the mine properties, see DrosophilaHomologyMatrix.  Run as
+ * the create-drosophila-homology-matrix post-process, after create-references; the post-process
+ * task only finds processes in this package.
+ */
+public class CreateDrosophilaHomologyMatrixProcess extends PostProcessor
+{
+    /**
+     * @param osw object store writer
+     */
+    public CreateDrosophilaHomologyMatrixProcess(ObjectStoreWriter osw) {
+        super(osw);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void postProcess() throws ObjectStoreException {
+        ObjectStore os = osw.getObjectStore();
+        if (!(os instanceof ObjectStoreInterMineImpl)) {
+            throw new IllegalArgumentException("ObjectStore must be an ObjectStoreInterMineImpl");
+        }
+        String release = PropertiesUtil.getProperties().getProperty("project.releaseVersion",
+                "");
+        try {
+            DrosophilaHomologyMatrix.build((ObjectStoreInterMineImpl) os, release);
+        } catch (ObjectStoreException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ObjectStoreException("Failed to build "
+                    + DrosophilaHomologyMatrix.TABLE_NAME, e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.bio.Gene;
+import org.intermine.util.DynamicUtil;
+
+/**
+ * Tests for KeyResolver, on a KeyTable in a temporary file.
+ */
+public class KeyResolverTest extends TestCase
+{
+    private Model model;
+    private File file;
+    private KeyTable table;
+    private KeyResolver resolver;
+
+    public void setUp() throws Exception {
+        model = Model.getInstanceByName("genomic");
+        Properties classKeys = new Properties();
+        classKeys.setProperty("BioEntity", "primaryIdentifier, secondaryIdentifier");
+        classKeys.setProperty("Gene", "symbol name");
+        file = File.createTempFile("keys", ".table");
+        file.delete();
+        table = new KeyTable(file);
+        resolver = new KeyResolver(model, classKeys, table);
+    }
+
+    public void tearDown() throws Exception {
+        table.close();
+        file.delete();
+    }
+
+    public void testCommasSeparateKeysAndSpacesFields() {
+        String[][] bioEntityKeys = resolver.getDeclaredKeys().get(
+                model.getClassDescriptorByName("BioEntity"));
+        String[][] geneKeys = resolver.getDeclaredKeys().get(
+                model.getClassDescriptorByName("Gene"));
+        assertEquals(2, bioEntityKeys.length);
+        assertTrue(Arrays.equals(new String[] {"primaryIdentifier"}, bioEntityKeys[0]));
+        assertTrue(Arrays.equals(new String[] {"secondaryIdentifier"}, bioEntityKeys[1]));
+        assertEquals(1, geneKeys.length);
+        assertTrue(Arrays.equals(new String[] {"symbol", "name"}, geneKeys[0]));
+    }
+
+    public void testKeyOfSuperclassNormalised() throws Exception {
+        resolver.stored(gene(1, "FBgn0000001", null, null));
+        assertCandidates(new int[] {1}, gene(null, " fbgn0000001", null, null));
+    }
+
+    public void testNewObjectHasNoCandidates() throws Exception {
+        resolver.stored(gene(1, "FBgn0000001", null, null));
+        assertCandidates(new int[0], gene(null, "FBgn0000002", null, null));
+    }
+
+    public void testCompoundKeyNeedsEveryField() throws Exception {
+        resolver.stored(gene(2, null, "zen", "zerknullt"));
+        assertCandidates(new int[] {2}, gene(null, null, "Zen", "zerknullt"));
+        assertCandidates(new int[0], gene(null, null, "zen", "zen-2"));
+        assertCandidates(new int[0], gene(null, null, "zen", null));
+    }
+
+    public void testStoredFieldsMatchStoredObject() throws Exception {
+        resolver.stored("Gene", new String[] {"symbol", "name"}, new Object[] {"zen", "zerknullt"},
+                3);
+        resolver.stored("BioEntity", new String[] {"primaryIdentifier"},
+                new Object[] {"FBgn0000003"}, 3);
+        assertCandidates(new int[] {3}, gene(null, null, "zen", "zerknullt"));
+        assertCandidates(new int[] {3}, gene(null, "FBgn0000003", null, null));
+    }
+
+    public void testRemovedObjectIsNoCandidate() throws Exception {
+        Gene deleted = gene(4, "FBgn0000004", "zen", "zerknullt");
+        resolver.stored(deleted);
+        resolver.removed(deleted);
+        assertCandidates(new int[0], gene(null, "FBgn0000004", null, null));
+        assertCandidates(new int[0], gene(null, null, "zen", "zerknullt"));
+    }
+
+    public void testMergedAwayIdIsNoCandidate() throws Exception {
+        resolver.stored(gene(5, "FBgn0000005", null, null));
+        Gene mergedAway = gene(6, "FBgn0000005", null, null);
+        resolver.stored(mergedAway);
+        assertCandidates(new int[] {5, 6}, gene(null, "FBgn0000005", null, null));
+        resolver.removed(mergedAway);
+        assertCandidates(new int[] {5}, gene(null, "FBgn0000005", null, null));
+    }
+
+    public void testKeyChanged() throws Exception {
+        Gene gene = gene(7, "CG0007", null, null);
+        resolver.stored(gene);
+        resolver.removed(gene);
+        gene.setPrimaryIdentifier("FBgn0000007");
+        resolver.stored(gene);
+        assertCandidates(new int[0], gene(null, "CG0007", null, null));
+        assertCandidates(new int[] {7}, gene(null, "FBgn0000007", null, null));
+    }
+
+    public void testKeySharedInBatchMustBeQueried() throws Exception {
+        List<InterMineObject> batch = Arrays.<InterMineObject>asList(
+                gene(null, "FBgn0000008", null, null), gene(null, "fbgn0000008", null, null));
+        int[][] candidates = resolver.resolve(batch);
+        assertTrue(Arrays.equals(new int[0], candidates[0]));
+        assertNull(candidates[1]);
+    }
+
+    private void assertCandidates(int[] expected, Gene gene) {
+        int[][] candidates = resolver.resolve(Arrays.<InterMineObject>asList(gene));
+        assertTrue(Arrays.toString(candidates[0]), Arrays.equals(expected, candidates[0]));
+    }
+
+    private static Gene gene(Integer id, String primaryIdentifier, String symbol, String name) {
+        Gene gene = DynamicUtil.createObject(Gene.class);
+        gene.setId(id);
+        gene.setPrimaryIdentifier(primaryIdentifier);
+        gene.setSymbol(symbol);
+        gene.setName(name);
+        return gene;
+    }
+}
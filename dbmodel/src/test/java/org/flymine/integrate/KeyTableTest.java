@@ -0,0 +1,92 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for KeyTable.
+ */
+public class KeyTableTest extends TestCase
+{
+    // the slots of a new table, so fingerprints this far apart start their probes together
+    private static final long SLOTS = 1 << 16;
+
+    private File file;
+    private KeyTable table;
+
+    public void setUp() throws Exception {
+        file = File.createTempFile("keys", ".table");
+        file.delete();
+        table = new KeyTable(file);
+    }
+
+    public void tearDown() throws Exception {
+        table.close();
+        file.delete();
+    }
+
+    public void testIdsOfAFingerprint() throws Exception {
+        table.put(5, 1);
+        table.put(5, 2);
+        table.put(5, 1);
+        assertTrue(Arrays.equals(new int[] {1, 2}, table.get(5)));
+        assertEquals(0, table.get(6).length);
+        assertEquals(2, table.size());
+    }
+
+    public void testRemove() throws Exception {
+        table.put(5, 1);
+        table.put(5, 2);
+        assertTrue(table.remove(5, 1));
+        assertFalse(table.remove(5, 1));
+        assertFalse(table.remove(6, 2));
+        assertTrue(Arrays.equals(new int[] {2}, table.get(5)));
+        assertEquals(1, table.size());
+    }
+
+    public void testRemoveKeepsCollidingEntriesReachable() throws Exception {
+        table.put(5, 1);
+        table.put(5 + SLOTS, 2);
+        table.put(6, 3);
+        table.put(5, 4);
+        assertTrue(table.remove(5, 1));
+        assertTrue(Arrays.equals(new int[] {2}, table.get(5 + SLOTS)));
+        assertTrue(Arrays.equals(new int[] {3}, table.get(6)));
+        assertTrue(Arrays.equals(new int[] {4}, table.get(5)));
+        assertTrue(table.remove(5 + SLOTS, 2));
+        assertTrue(Arrays.equals(new int[] {3}, table.get(6)));
+        assertTrue(Arrays.equals(new int[] {4}, table.get(5)));
+    }
+
+    public void testRemoveAcrossTheEndOfTheTable() throws Exception {
+        table.put(SLOTS - 1, 1);
+        table.put(2 * SLOTS - 1, 2);
+        table.put(SLOTS, 3);
+        assertTrue(table.remove(SLOTS - 1, 1));
+        assertTrue(Arrays.equals(new int[] {2}, table.get(2 * SLOTS - 1)));
+        assertTrue(Arrays.equals(new int[] {3}, table.get(SLOTS)));
+    }
+
+    public void testReopened() throws Exception {
+        table.put(5, 1);
+        table.put(7, 2);
+        table.remove(7, 2);
+        table.close();
+        table = new KeyTable(file);
+        assertTrue(Arrays.equals(new int[] {1}, table.get(5)));
+        assertEquals(0, table.get(7).length);
+        assertEquals(1, table.size());
+    }
+}
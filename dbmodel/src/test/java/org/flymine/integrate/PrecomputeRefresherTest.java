@@ -0,0 +1,69 @@
+package org.flymine.integrate;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for PrecomputeRefresher.
+ */
+public class PrecomputeRefresherTest extends TestCase
+{
+    private Map<String, Long> counts;
+    private Properties state;
+    private List<Set<String>> reads;
+
+    public void setUp() {
+        counts = new HashMap<String, Long>();
+        counts.put("gene", new Long(120));
+        counts.put("protein", new Long(50));
+        counts.put("genesproteins", new Long(80));
+        state = new Properties();
+        state.setProperty("table.gene", "100");
+        state.setProperty("table.protein", "50");
+        state.setProperty("table.genesproteins", "80");
+        reads = Arrays.asList(tables("Gene", "Organism"), tables("Protein", "GenesProteins"));
+    }
+
+    public void testChangedGeneSelectsQueriesReadingGene() {
+        assertEquals(Collections.singleton("Gene"),
+                PrecomputeRefresher.changedTables(counts, state, reads));
+    }
+
+    public void testUnchangedTables() {
+        state.setProperty("table.gene", "120");
+        assertTrue(PrecomputeRefresher.changedTables(counts, state, reads).isEmpty());
+    }
+
+    public void testTableNotRecordedBefore() {
+        state.remove("table.gene");
+        assertTrue(PrecomputeRefresher.changedTables(counts, state, reads).isEmpty());
+    }
+
+    public void testChangedJoinTable() {
+        counts.put("genesproteins", new Long(81));
+        assertEquals(tables("Gene", "GenesProteins"),
+                PrecomputeRefresher.changedTables(counts, state, reads));
+    }
+
+    private static Set<String> tables(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,129 @@
+package org.flymine.sequence;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for PackedSequence.
+ */
+public class PackedSequenceTest extends TestCase
+{
+    private static final String RESIDUES = "ACGTNNNNNacgtnnACRYKMacgtACGGTTCA";
+
+    public void testRoundTrip() throws Exception {
+        assertEquals(RESIDUES, PackedSequence.pack(RESIDUES).toString());
+        assertEquals("", PackedSequence.pack("").toString());
+        assertEquals(0, PackedSequence.pack("").length());
+    }
+
+    public void testRoundTripAcrossWords() throws Exception {
+        // several 32 base words with exceptions and masking at the word boundaries
+        Random random = new Random(42);
+        String alphabet = "ACGTACGTACGTNacgtn";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        String residues = sb.toString();
+        PackedSequence packed = PackedSequence.pack(residues);
+        assertEquals(residues.length(), packed.length());
+        assertEquals(residues, packed.toString());
+        for (int i = 0; i < residues.length(); i++) {
+            assertEquals(residues.charAt(i), packed.charAt(i));
+        }
+    }
+
+    public void testNRuns() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append('N');
+        }
+        String residues = "ACGT" + sb + "TTGCA" + sb;
+        PackedSequence packed = PackedSequence.pack(residues);
+        assertEquals(residues, packed.toString());
+        assertEquals('T', packed.charAt(3));
+        assertEquals('N', packed.charAt(4));
+        assertEquals('N', packed.charAt(103));
+        assertEquals('T', packed.charAt(104));
+        assertEquals('N', packed.charAt(residues.length() - 1));
+        // seven words of bases and one exception for each run of N, not one per base
+        assertEquals(8L * 7 + 10L * 2, packed.getPackedBytes());
+    }
+
+    public void testSoftMasking() throws Exception {
+        String residues = "ACGTacgtnnnnACGTacrykmACGT";
+        PackedSequence packed = PackedSequence.pack(residues);
+        assertEquals(residues, packed.toString());
+        assertEquals('a', packed.charAt(4));
+        assertEquals('n', packed.charAt(8));
+        assertEquals('A', packed.charAt(12));
+        assertEquals('r', packed.charAt(18));
+    }
+
+    public void testSubSequence() throws Exception {
+        PackedSequence packed = PackedSequence.pack(RESIDUES);
+        for (int start = 0; start <= RESIDUES.length(); start += 3) {
+            for (int end = start; end <= RESIDUES.length(); end += 5) {
+                assertEquals(RESIDUES.substring(start, end),
+                        packed.subSequence(start, end).toString());
+            }
+        }
+        assertEquals(RESIDUES.substring(6, 12),
+                packed.subSequence(2, 20).subSequence(4, 10).toString());
+    }
+
+    public void testSubSequenceOutOfBounds() throws Exception {
+        PackedSequence packed = PackedSequence.pack("ACGT");
+        try {
+            packed.subSequence(2, 5);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            packed.subSequence(3, 2);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            packed.charAt(4);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testReverseComplement() throws Exception {
+        PackedSequence packed = PackedSequence.pack("AACGTNNacgtnRYKM");
+        assertEquals("KMRYnacgtNNACGTT", packed.reverseComplement().toString());
+        assertEquals(packed.toString(), packed.reverseComplement().reverseComplement().toString());
+    }
+
+    public void testSubSequenceOfReverseComplement() throws Exception {
+        PackedSequence packed = PackedSequence.pack(RESIDUES);
+        String reversed = packed.reverseComplement().toString();
+        assertEquals(reversed.substring(5, 17),
+                packed.reverseComplement().subSequence(5, 17).toString());
+        assertEquals(packed.subSequence(5, 17).reverseComplement().toString(),
+                reversed.substring(RESIDUES.length() - 17, RESIDUES.length() - 5));
+    }
+
+    public void testLocate() throws Exception {
+        PackedSequence packed = PackedSequence.pack("AACCGGTTNa");
+        assertEquals("CCGG", packed.locate(3, 6, 1).toString());
+        assertEquals("CCGG", packed.locate(3, 6, -1).toString());
+        assertEquals("tNAA", packed.locate(7, 10, -1).toString());
+    }
+}
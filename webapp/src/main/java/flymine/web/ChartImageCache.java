@@ -0,0 +1,464 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * A bounded cache of rendered chart images, stored as files in a dedicated directory.  Entries
+ * are keyed by a canonical form of the request parameters, evicted least recently used first
+ * from an access ordered index when either the entry or the byte budget is exceeded, and
+ * rendered at most once however many requests for the same chart arrive concurrently.  Images
+ * are pinned while they are sent, and an image evicted meanwhile is deleted when released.
+ *
+ * Configured in web.properties with chartRenderer.cache.maxEntries, chartRenderer.cache.maxBytes
+ * and chartRenderer.cache.dir.  The cache is kept in the servlet context as
+ * Constants.GRAPH_CACHE.
+ */
+public class ChartImageCache
+{
+    private static final Logger LOG = Logger.getLogger(ChartImageCache.class);
+    private static final String CONTEXT_ATTRIBUTE = Constants.GRAPH_CACHE;
+    private static final String FILE_PREFIX = "chart_";
+    private static final int DEFAULT_MAX_ENTRIES = 2000;
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String DEFAULT_WIDTH = "400";
+    private static final String DEFAULT_HEIGHT = "300";
+
+    private final File dir;
+    private final int maxEntries;
+    private final long maxBytes;
+    // access ordered, eldest first; guarded by this
+    private final LinkedHashMap<String, CacheEntry> index
+        = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private final ConcurrentMap<String, FutureTask<CacheEntry>> inFlight
+        = new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+    private final AtomicLong fileCounter = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong renders = new AtomicLong();
+
+    /**
+     * Something that can write a chart image.
+     */
+    public interface Renderer
+    {
+        /**
+         * Write the encoded image.
+         * @param out the stream to write to
+         * @throws Exception if the chart can't be rendered
+         */
+        void render(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Create a new cache, removing any image files left over in the directory from a previous run.
+     * @param dir the directory to keep image files in, created if it doesn't exist
+     * @param maxEntries the maximum number of images to keep
+     * @param maxBytes the maximum total size of the images to keep
+     */
+    public ChartImageCache(File dir, int maxEntries, long maxBytes) {
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("can't create chart cache directory: " + dir);
+        }
+        cleanDirectory();
+    }
+
+    /**
+     * Return the cache for this webapp, creating it from web.properties on first use.
+     * @param servletContext the servlet context
+     * @return the chart image cache
+     */
+    public static synchronized ChartImageCache getInstance(ServletContext servletContext) {
+        Object attribute = servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        // anything else there is a map of graphs from before this cache, which nothing reads
+        ChartImageCache cache = (attribute instanceof ChartImageCache)
+            ? (ChartImageCache) attribute : null;
+        if (cache == null) {
+            Properties webProperties = SessionMethods.getWebProperties(servletContext);
+            String dirName = webProperties.getProperty("chartRenderer.cache.dir");
+            File dir = (dirName == null || "".equals(dirName.trim()))
+                ? new File(System.getProperty("java.io.tmpdir"), "flymine_charts")
+                : new File(dirName.trim());
+            int maxEntries = Integer.parseInt(webProperties.getProperty(
+                    "chartRenderer.cache.maxEntries", String.valueOf(DEFAULT_MAX_ENTRIES)).trim());
+            long maxBytes = Long.parseLong(webProperties.getProperty(
+                    "chartRenderer.cache.maxBytes", String.valueOf(DEFAULT_MAX_BYTES)).trim());
+            cache = new ChartImageCache(dir, maxEntries, maxBytes);
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, cache);
+            LOG.info("Created chart image cache in " + dir + " (maxEntries=" + maxEntries
+                    + ", maxBytes=" + maxBytes + ")");
+        }
+        return cache;
+    }
+
+    /**
+     * Build a cache key from the request parameters that affect the chart, independent of their
+     * order in the query string, so parameters such as cache busters or tracking codes don't
+     * make new entries.  The method, width and height are always part of the key, using the
+     * defaults for the width and height if they weren't given.
+     * @param request the HTTP request
+     * @param chartParameters the other parameters the chart depends on
+     * @return the canonical key
+     */
+    public static String canonicalKey(HttpServletRequest request, String... chartParameters) {
+        String[] names = chartParameters.clone();
+        Arrays.sort(names);
+        StringBuilder sb = new StringBuilder();
+        sb.append("method=").append(parameter(request, "method", "")).append('&');
+        for (String name : names) {
+            String[] values = request.getParameterValues(name);
+            if (values == null) {
+                continue;
+            }
+            values = values.clone();
+            Arrays.sort(values);
+            for (String value : values) {
+                sb.append(name).append('=').append(value).append('&');
+            }
+        }
+        sb.append("width=").append(parameter(request, "width", DEFAULT_WIDTH));
+        sb.append("&height=").append(parameter(request, "height", DEFAULT_HEIGHT));
+        return sb.toString();
+    }
+
+    private static String parameter(HttpServletRequest request, String name, String dflt) {
+        String value = request.getParameter(name);
+        return (value == null || "".equals(value.trim())) ? dflt : value.trim();
+    }
+
+    /**
+     * Look up an image, counting a hit or a miss.  The image is pinned, so it can't be deleted
+     * by eviction until released.
+     * @param key the canonical key
+     * @return the image, which the caller must release, or null if it isn't cached
+     */
+    public Image get(String key) {
+        Image image = pin(key);
+        if (image == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return image;
+    }
+
+    /**
+     * Return the image for a key, rendering it if necessary, counting a hit or a miss.
+     * Concurrent callers asking for the same key wait for a single render rather than each
+     * producing their own.
+     * @param key the canonical key
+     * @param renderer used to produce the image if it isn't cached
+     * @return the image, which the caller must release
+     * @throws Exception if rendering failed
+     */
+    public Image getOrRender(final String key, final Renderer renderer) throws Exception {
+        Image image = get(key);
+        if (image != null) {
+            return image;
+        }
+        FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+            public CacheEntry call() throws Exception {
+                return render(key, renderer);
+            }
+        });
+        FutureTask<CacheEntry> existing = inFlight.putIfAbsent(key, task);
+        boolean rendering = existing == null;
+        if (rendering) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+        CacheEntry uncached;
+        try {
+            uncached = task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+        if (rendering && uncached != null) {
+            return new Image(uncached);
+        }
+        image = pin(key);
+        if (image != null) {
+            return image;
+        }
+        // too big to cache, or already evicted: render one just for us
+        uncached = write(renderer);
+        uncached.evicted = true;
+        uncached.pins = 1;
+        return new Image(uncached);
+    }
+
+    private synchronized Image pin(String key) {
+        // an access ordered get, so this is the most recently used
+        CacheEntry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.pins++;
+        return new Image(entry);
+    }
+
+    private synchronized void release(CacheEntry entry) {
+        entry.pins--;
+        if (entry.pins == 0 && entry.evicted) {
+            delete(entry);
+        }
+    }
+
+    /**
+     * Render an image into the cache.
+     * @return null, or if the image is bigger than the whole cache, the image pinned for the
+     * caller and not cached
+     */
+    private CacheEntry render(String key, Renderer renderer) throws Exception {
+        synchronized (this) {
+            if (index.containsKey(key)) {
+                return null;
+            }
+        }
+        if (renders.incrementAndGet() % 100 == 0) {
+            LOG.info(this);
+        }
+        CacheEntry entry = write(renderer);
+        if (entry.size > maxBytes) {
+            entry.evicted = true;
+            entry.pins = 1;
+            return entry;
+        }
+        synchronized (this) {
+            CacheEntry old = index.put(key, entry);
+            totalBytes += entry.size;
+            if (old != null) {
+                remove(old);
+            }
+            // least recently used first
+            Iterator<CacheEntry> iter = index.values().iterator();
+            while ((index.size() > maxEntries || totalBytes > maxBytes) && iter.hasNext()) {
+                CacheEntry eldest = iter.next();
+                iter.remove();
+                remove(eldest);
+                evictions.incrementAndGet();
+            }
+        }
+        return null;
+    }
+
+    private CacheEntry write(Renderer renderer) throws Exception {
+        File file = new File(dir, FILE_PREFIX + fileCounter.incrementAndGet() + ".img");
+        OutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            renderer.render(out);
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+        return new CacheEntry(file, file.length());
+    }
+
+    /**
+     * Take an entry out of the byte count, deleting its file unless it is being sent, in which
+     * case the last release deletes it.  Called holding the lock, once the entry is out of the
+     * index.
+     */
+    private void remove(CacheEntry entry) {
+        totalBytes -= entry.size;
+        entry.evicted = true;
+        if (entry.pins == 0) {
+            delete(entry);
+        }
+    }
+
+    private static void delete(CacheEntry entry) {
+        if (!entry.file.delete() && entry.file.exists()) {
+            LOG.warn("Failed to delete cached chart " + entry.file);
+        }
+    }
+
+    /**
+     * Remove all images from the cache and from the cache directory.  Only the directory of a
+     * new cache is listed; after that, images being sent are deleted when released.
+     */
+    public synchronized void clean() {
+        for (Iterator<CacheEntry> iter = index.values().iterator(); iter.hasNext(); ) {
+            CacheEntry entry = iter.next();
+            iter.remove();
+            remove(entry);
+        }
+        totalBytes = 0;
+    }
+
+    private void cleanDirectory() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(FILE_PREFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a cached image
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that didn't find a cached image
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of images removed to stay within budget
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of images rendered
+     */
+    public long getRenders() {
+        return renders.get();
+    }
+
+    /**
+     * @return the number of images currently cached
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the total size in bytes of the images currently cached
+     */
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ChartImageCache[entries=" + size() + ", bytes=" + getBytes() + ", hits=" + getHits()
+            + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", renders="
+            + getRenders() + "]";
+    }
+
+    /**
+     * A cached image pinned for sending.  Released once sent, after which it mustn't be used.
+     */
+    public final class Image
+    {
+        private final CacheEntry entry;
+        private boolean released = false;
+
+        private Image(CacheEntry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * @return the size of the image in bytes
+         */
+        public long getSize() {
+            return entry.size;
+        }
+
+        /**
+         * Copy the image to a stream.
+         * @param out the stream to write to
+         * @throws IOException if the file can't be read
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = new FileInputStream(entry.file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Unpin the image, letting eviction delete it.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                ChartImageCache.this.release(entry);
+            }
+        }
+    }
+
+    /**
+     * An image file; pins and evicted are guarded by the cache.
+     */
+    private static class CacheEntry
+    {
+        private final File file;
+        private final long size;
+        private int pins = 0;
+        private boolean evicted = false;
+
+        CacheEntry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * A fixed size pool of threads that render charts, so a burst of chart requests can't tie up
+ * every request thread or exhaust memory with images in progress.  Work that can't be queued
+ * is rejected straight away and work that takes too long is cancelled.
+ *
+ * Configured in web.properties with chartRenderer.pool.threads, chartRenderer.pool.queue and
+ * chartRenderer.pool.timeout (in milliseconds).
+ */
+public class ChartRenderPool
+{
+    private static final Logger LOG = Logger.getLogger(ChartRenderPool.class);
+    private static final String CONTEXT_ATTRIBUTE = ChartRenderPool.class.getName();
+
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+
+    /**
+     * @param threads the number of rendering threads
+     * @param queueSize the number of renders that can wait for a thread
+     * @param timeout how long in milliseconds to wait for a render, including time queued
+     */
+    public ChartRenderPool(int threads, int queueSize, long timeout) {
+        this.timeout = timeout;
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "chart-render-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Return the pool for this webapp, creating it from web.properties on first use.
+     * @param servletContext the servlet context
+     * @return the chart render pool
+     */
+    public static synchronized ChartRenderPool getInstance(ServletContext servletContext) {
+        ChartRenderPool pool = (ChartRenderPool) servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (pool == null) {
+            Properties webProperties = SessionMethods.getWebProperties(servletContext);
+            int threads = Integer.parseInt(webProperties.getProperty(
+                    "chartRenderer.pool.threads", "4").trim());
+            int queueSize = Integer.parseInt(webProperties.getProperty(
+                    "chartRenderer.pool.queue", "32").trim());
+            long timeout = Long.parseLong(webProperties.getProperty(
+                    "chartRenderer.pool.timeout", "10000").trim());
+            pool = new ChartRenderPool(threads, queueSize, timeout);
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, pool);
+            LOG.info("Created chart render pool (threads=" + threads + ", queue=" + queueSize
+                    + ", timeout=" + timeout + "ms)");
+        }
+        return pool;
+    }
+
+    /**
+     * Run a render on the pool and wait for its result.
+     * @param render the work to do
+     * @param <T> the type of the result
+     * @return the result
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full
+     * @throws java.util.concurrent.TimeoutException if the render took longer than the timeout,
+     * in which case it is cancelled
+     * @throws Exception if the render failed
+     */
+    public <T> T render(Callable<T> render) throws Exception {
+        Future<T> future = executor.submit(render);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            // no-op if it finished, otherwise interrupts or dequeues it
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Stop the rendering threads, abandoning anything queued.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stop the pool of this webapp, if it was ever created.
+     * @param servletContext the servlet context
+     */
+    public static synchronized void shutdown(ServletContext servletContext) {
+        ChartRenderPool pool = (ChartRenderPool) servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (pool != null) {
+            servletContext.removeAttribute(CONTEXT_ATTRIBUTE);
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ChartRenderPool[active=" + executor.getActiveCount() + ", queued="
+            + executor.getQueue().size() + ", completed=" + executor.getCompletedTaskCount()
+            + "]";
+    }
+}
@@ -10,18 +10,16 @@ package org.flymine.web;
  *
  */
 
-import java.awt.Color;
-import java.awt.RenderingHints;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Method;
-import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
-import javax.servlet.ServletContext;
+import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -31,25 +29,9 @@ import org.apache.struts.action.ActionForm;
 import org.apache.struts.action.ActionForward;
 import org.apache.struts.action.ActionMapping;
 import org.intermine.api.InterMineAPI;
-import org.intermine.model.bio.MicroArrayAssay;
-import org.intermine.model.bio.MicroArrayResult;
 import org.intermine.objectstore.ObjectStore;
-import org.intermine.objectstore.query.Results;
-import org.intermine.objectstore.query.ResultsRow;
-import org.intermine.web.logic.Constants;
 import org.intermine.web.logic.session.SessionMethods;
 import org.intermine.web.struts.InterMineAction;
-/*import org.jfree.chart.ChartRenderingInfo;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.axis.Axis;
-import org.jfree.chart.axis.CategoryAxis;
-import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.entity.StandardEntityCollection;
-import org.jfree.chart.plot.CategoryPlot;
-import org.jfree.chart.renderer.AbstractRenderer;
-import org.jfree.chart.renderer.category.LineAndShapeRenderer;
-import org.jfree.chart.servlet.ServletUtilities;
-import org.jfree.data.category.DefaultCategoryDataset;*/
 
 /**
  * Graph the microarray results for a particular gene/experiment
@@ -61,10 +43,14 @@ public class ChartRenderer extends InterMineAction
     private static final Logger LOG = Logger.getLogger(ChartRenderer.class);
     private static final Class[] SIG = new Class[] {ActionMapping.class, ActionForm.class,
         HttpServletRequest.class, HttpServletResponse.class};
-    private final double logE2 = Math.log(2.0);
+    private static final int DEFAULT_WIDTH = 400;
+    private static final int DEFAULT_HEIGHT = 300;
+    private static final int MAX_DIMENSION = 2000;
+    // the parameters besides the size that change a microarray chart
+    private static final String[] MICROARRAY_PARAMETERS = {"experiment", "gene", "format"};
 
     /**
-     * First, check for a cached image, otherwise defer to appropriate method.
+     * Defer to the method named by the method parameter.
      *
      * @param mapping The ActionMapping used to select this instance
      * @param form The optional ActionForm bean for this request (if any)
@@ -79,15 +65,6 @@ public class ChartRenderer extends InterMineAction
                                  HttpServletRequest request,
                                  HttpServletResponse response)
         throws Exception {
-        HttpSession session = request.getSession();
-        ServletContext servletContext = session.getServletContext();
-        Map graphImageCache = (Map) servletContext.getAttribute(Constants.GRAPH_CACHE);
-        String filename = (String) graphImageCache.get(request.getQueryString());
-
-        if (filename != null) {
-            //ServletUtilities.sendTempFile(filename, response);
-            return null;
-        }
         Method method = getClass().getMethod(request.getParameter("method"), SIG);
         if (!"execute".equals(method.getName())) { // avoid infinite loop
             return (ActionForward) method.invoke(this, new Object[] {mapping, form, request,
@@ -98,7 +75,39 @@ public class ChartRenderer extends InterMineAction
     }
 
     /**
-     * First, check for a cached image, otherwise defer to appropriate method.
+     * Send the image for this request from the chart cache, rendering it first if it isn't
+     * cached.  Concurrent requests for the same chart share one render.
+     *
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @param contentType the content type of the image
+     * @param chartParameters the parameters besides the method and size that change the image
+     * @param renderer used to render the image on a cache miss
+     * @throws Exception if the image can't be rendered or sent
+     */
+    protected void sendCachedImage(HttpServletRequest request, HttpServletResponse response,
+            String contentType, String[] chartParameters, ChartImageCache.Renderer renderer)
+        throws Exception {
+        ChartImageCache cache = ChartImageCache.getInstance(request.getSession()
+                .getServletContext());
+        ChartImageCache.Image image = cache.getOrRender(
+                ChartImageCache.canonicalKey(request, chartParameters), renderer);
+        try {
+            response.setContentType(contentType);
+            response.setContentLength((int) image.getSize());
+            OutputStream out = response.getOutputStream();
+            image.writeTo(out);
+            out.flush();
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Render the log2 ratios for a gene in a microarray experiment, as a PNG or, if the format
+     * parameter is "svg", as SVG.  The image is served from the chart cache; on a miss the
+     * results are queried and the chart drawn on the chart render pool, and concurrent
+     * requests for the same chart wait for that one render.
      *
      * @param mapping The ActionMapping used to select this instance
      * @param form The optional ActionForm bean for this request (if any)
@@ -108,109 +117,79 @@ public class ChartRenderer extends InterMineAction
      * @exception Exception if the application business logic throws
      *  an exception
      */
-/*    public ActionForward microarray(ActionMapping mapping, ActionForm form,
-            HttpServletRequest request, HttpServletResponse response) throws Exception {
+    public ActionForward microarray(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
         HttpSession session = request.getSession();
         final InterMineAPI im = SessionMethods.getInterMineAPI(session);
-        Map<String, String> graphImageCache = new HashMap<String, String>();
-        graphImageCache.putAll((Map<String, String>)
-                               session.getServletContext().getAttribute(Constants.GRAPH_CACHE));
-        ObjectStore os = im.getObjectStore();
-        String experiment = request.getParameter("experiment");
-        String gene = request.getParameter("gene");
-
-        Results results = MicroArrayHelper.queryMicroArrayResults(experiment, gene, os);
-        Iterator iter = results.iterator();
-
-        DefaultCategoryDataset xyDataset = new DefaultCategoryDataset();
-
-        while (iter.hasNext()) {
-            ResultsRow rr = (ResultsRow) iter.next();
-            MicroArrayResult result = (MicroArrayResult) rr.get(0);
-            // TODO hack for Arbeitman experiment, should set display label in assay to simplify
-            String label = ((MicroArrayAssay) rr.get(1)).getSample2();
-            if (label != null && !("".equals(label))) {
-                String series = label.substring(label.indexOf(':'), label.indexOf('-')).trim();
-                // TODO Calculate Log2, should be a flag to set scale
-                xyDataset.addValue((Math.log(result.getValue().floatValue()) / logE2),
-                                   series, (Integer) rr.get(2));
-            }
+        final String experiment = request.getParameter("experiment");
+        final String gene = request.getParameter("gene");
+        final int width = dimension(request, "width", DEFAULT_WIDTH);
+        final int height = dimension(request, "height", DEFAULT_HEIGHT);
+        if (experiment == null || gene == null || width < 0 || height < 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
         }
-
-        CategoryAxis xAxis = new CategoryAxis(null);
-        NumberAxis yAxis = new NumberAxis("Log2 Ratio");
-        LineAndShapeRenderer renderer = new LineAndShapeRenderer();
-
-        configureXaxis(xAxis, request);
-        configureYaxis(yAxis, request);
-        configureRenderer(renderer, request);
-
-        CategoryPlot plot = new CategoryPlot(xyDataset, xAxis, yAxis, renderer);
-
-        JFreeChart chart = new JFreeChart(null,
-                AbstractRenderer.DEFAULT_VALUE_LABEL_FONT, plot, true);
-
-        configureChart(chart, request);
-
-        int width = Integer.parseInt(request.getParameter("width"));
-        int height = Integer.parseInt(request.getParameter("height"));
-
-        ChartRenderingInfo info = new ChartRenderingInfo(new StandardEntityCollection());
-        String filename = ServletUtilities.saveChartAsPNG(chart, width, height, info, session);
-
-        // make a copy because the temp file returned by saveChartAsPNG() will be deleted when the
-        // session ends
-        File oldFile = new File(System.getProperty("java.io.tmpdir"), filename);
-        File cacheFile = new File(System.getProperty("java.io.tmpdir"), "flymine_" + filename);
-        FileChannel in = null;
-        FileChannel out = null;
+        final ChartRenderPool pool = ChartRenderPool.getInstance(session.getServletContext());
+        final boolean svg = "svg".equals(request.getParameter("format"));
         try {
-            in = new FileInputStream(oldFile).getChannel();
-            out = new FileOutputStream(cacheFile).getChannel();
-            // note java bug #5056395
-            out.transferFrom(in, 0, in.size());
-            //in.transferTo (0, in.size(), out);
-        } finally {
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.close();
-            }
+            sendCachedImage(request, response, svg ? "image/svg+xml; charset=UTF-8" : "image/png",
+                    MICROARRAY_PARAMETERS, new ChartImageCache.Renderer() {
+                        public void render(OutputStream out) throws Exception {
+                            if (svg) {
+                                String chart = pool.render(new Callable<String>() {
+                                    public String call() throws Exception {
+                                        StringBuilder sb = new StringBuilder();
+                                        microArrayChart(im.getObjectStore(), experiment, gene)
+                                            .writeSvg(sb, width, height);
+                                        return sb.toString();
+                                    }
+                                });
+                                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                                writer.write(chart);
+                                writer.flush();
+                            } else {
+                                BufferedImage image = pool.render(
+                                        new Callable<BufferedImage>() {
+                                            public BufferedImage call() throws Exception {
+                                                return microArrayChart(im.getObjectStore(),
+                                                        experiment, gene).toImage(width, height);
+                                            }
+                                        });
+                                ImageIO.write(image, "png", out);
+                            }
+                        }
+                    });
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out rendering microarray chart for " + gene + " in " + experiment
+                    + " " + pool);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Too many chart requests, rejected chart for " + gene + " " + pool);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
         }
-        // cache the copy, not the original
-        graphImageCache.put(request.getQueryString(), cacheFile.getName());
-        ServletUtilities.sendTempFile(cacheFile.getName(), response);
         return null;
     }
 
-    private void configureRenderer(AbstractRenderer renderer,
-                                   @SuppressWarnings("unused") HttpServletRequest request) {
-        Color barColor = new Color(100, 149, 237);
-        renderer.setSeriesPaint(0, barColor);
-        renderer.setSeriesOutlinePaint(0, barColor.darker());
+    private static MicroArrayChart microArrayChart(ObjectStore os, String experiment,
+            String gene) {
+        return MicroArrayChart.fromResults(MicroArrayHelper.queryMicroArrayResults(experiment,
+                    gene, os));
     }
 
-    private void configureXaxis(Axis axis, HttpServletRequest request) {
-        if ("microarray".equals(request.getParameter("method"))) {
-            ((CategoryAxis) axis).setMaximumCategoryLabelLines(7);
-            axis.setLabelAngle(0);
-            //xAxis.setVisible(false);
-            ((CategoryAxis) axis).setLowerMargin(0.05);
-            axis.setTickLabelsVisible(false);
+    /**
+     * @return the parameter value, the default if it's missing or -1 if it isn't a sensible size
+     */
+    private static int dimension(HttpServletRequest request, String name, int dflt) {
+        String value = request.getParameter(name);
+        if (value == null || "".equals(value.trim())) {
+            return dflt;
+        }
+        try {
+            int dimension = Integer.parseInt(value.trim());
+            return (dimension > 0 && dimension <= MAX_DIMENSION) ? dimension : -1;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
-
-    private void configureYaxis(Axis axis,
-                                @SuppressWarnings("unused") HttpServletRequest request) {
-        axis.setTickLabelFont(AbstractRenderer.DEFAULT_VALUE_LABEL_FONT.deriveFont(8));
-    }
-
-    private void configureChart(JFreeChart chart,
-                                @SuppressWarnings("unused") HttpServletRequest request) {
-        chart.setBackgroundPaint(java.awt.Color.white);
-        chart.setAntiAlias(false);
-        chart.setRenderingHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_OFF));
-    }*/
 }
@@ -0,0 +1,230 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * Writes a JSON object whose properties are arrays of primitive columns, directly to a stream
+ * or buffer, without building intermediate collections or JSON objects.
+ */
+public class ColumnarJsonWriter
+{
+    /** Written as null in int columns. */
+    public static final int NULL_INT = Integer.MIN_VALUE;
+
+    private final Appendable out;
+    private boolean first = true;
+
+    /**
+     * Start a JSON object.
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter(Appendable out) throws IOException {
+        this.out = out;
+        out.append('{');
+    }
+
+    /**
+     * Write a column of doubles, NaN is written as null.
+     * @param name the property name
+     * @param values the values
+     * @param length the number of values to write
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter column(String name, double[] values, int length)
+        throws IOException {
+        name(name);
+        out.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            if (Double.isNaN(values[i]) || Double.isInfinite(values[i])) {
+                out.append("null");
+            } else {
+                out.append(String.valueOf(values[i]));
+            }
+        }
+        out.append(']');
+        return this;
+    }
+
+    /**
+     * Write a column of ints, NULL_INT is written as null.
+     * @param name the property name
+     * @param values the values
+     * @param length the number of values to write
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter column(String name, int[] values, int length) throws IOException {
+        name(name);
+        out.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            if (values[i] == NULL_INT) {
+                out.append("null");
+            } else {
+                out.append(String.valueOf(values[i]));
+            }
+        }
+        out.append(']');
+        return this;
+    }
+
+    /**
+     * Write a column of longs.
+     * @param name the property name
+     * @param values the values
+     * @param length the number of values to write
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter column(String name, long[] values, int length) throws IOException {
+        name(name);
+        out.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(String.valueOf(values[i]));
+        }
+        out.append(']');
+        return this;
+    }
+
+    /**
+     * Write a column of strings.
+     * @param name the property name
+     * @param values the values, nulls are written as null
+     * @param length the number of values to write
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter column(String name, String[] values, int length)
+        throws IOException {
+        name(name);
+        out.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            string(values[i]);
+        }
+        out.append(']');
+        return this;
+    }
+
+    /**
+     * Write a single number.
+     * @param name the property name
+     * @param value the value
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter value(String name, long value) throws IOException {
+        name(name);
+        out.append(String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Write a single boolean.
+     * @param name the property name
+     * @param value the value
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter value(String name, boolean value) throws IOException {
+        name(name);
+        out.append(String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Write a single string.
+     * @param name the property name
+     * @param value the value, may be null
+     * @return this writer
+     * @throws IOException if writing fails
+     */
+    public ColumnarJsonWriter value(String name, String value) throws IOException {
+        name(name);
+        string(value);
+        return this;
+    }
+
+    /**
+     * End the JSON object.
+     * @throws IOException if writing fails
+     */
+    public void close() throws IOException {
+        out.append('}');
+    }
+
+    private void name(String name) throws IOException {
+        if (!first) {
+            out.append(',');
+        }
+        first = false;
+        string(name);
+        out.append(':');
+    }
+
+    private void string(String value) throws IOException {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '<':
+                    // keep "</script>" out of JSON written into pages
+                    out.append("\\u003c");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        String hex = Integer.toHexString(c);
+                        out.append("\\u");
+                        for (int j = hex.length(); j < 4; j++) {
+                            out.append('0');
+                        }
+                        out.append(hex);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
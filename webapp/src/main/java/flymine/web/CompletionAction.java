@@ -0,0 +1,85 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.search.CompletionIndex;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * Completions of q for an autocomplete field (eg. field=GOTerm.name) from the memory mapped
+ * completion index, as JSON columns of values and weights, most common first.  With infix=true
+ * values with any word starting with q match too.  size sets the most values returned
+ * (default 10, at most 100).
+ */
+public class CompletionAction extends InterMineAction
+{
+    private static final int MAX_SIZE = 100;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        CompletionIndex index = MappedIndexes.getInstance(
+                request.getSession().getServletContext()).getCompletionIndex();
+        if (index == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        String field = request.getParameter("field");
+        String q = request.getParameter("q");
+        if (field == null || q == null || !index.getFields().contains(field)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        int size = 10;
+        try {
+            if (request.getParameter("size") != null) {
+                size = Math.min(Math.max(Integer.parseInt(request.getParameter("size")), 1),
+                        MAX_SIZE);
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        List<CompletionIndex.Completion> completions = "true".equals(request.getParameter(
+                    "infix")) ? index.completeInfix(field, q, size) : index.complete(field, q,
+                    size);
+        String[] values = new String[completions.size()];
+        int[] weights = new int[completions.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = completions.get(i).getValue();
+            weights[i] = completions.get(i).getWeight();
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        // the same until the index is rebuilt
+        response.setHeader("Cache-Control", "public, max-age=3600");
+        PrintWriter out = response.getWriter();
+        new ColumnarJsonWriter(out)
+            .column("values", values, values.length)
+            .column("weights", weights, weights.length)
+            .close();
+        out.flush();
+        return null;
+    }
+}
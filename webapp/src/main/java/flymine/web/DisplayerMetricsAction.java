@@ -0,0 +1,112 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.web.displayer.DisplayerMetrics;
+import org.flymine.web.displayer.DisplayerStats;
+import org.intermine.api.profile.Profile;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * Report page displayer timings and query counts as JSON, one column per statistic and one
+ * row per displayer, for superusers only.  Add reset=true to start counting again.
+ */
+public class DisplayerMetricsAction extends InterMineAction
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        Profile profile = SessionMethods.getProfile(session);
+        if (profile == null || !profile.isSuperuser()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+        DisplayerMetrics metrics = DisplayerMetrics.getInstance(session.getServletContext());
+        List<DisplayerStats> stats = metrics.getStats();
+        int size = stats.size();
+        String[] names = new String[size];
+        long[] counts = new long[size];
+        double[] means = new double[size];
+        double[] p50s = new double[size];
+        double[] p99s = new double[size];
+        double[] maxes = new double[size];
+        double[] meanQueries = new double[size];
+        long[] p50Queries = new long[size];
+        long[] p99Queries = new long[size];
+        long[] maxQueries = new long[size];
+        double[] meanRows = new double[size];
+        long[] p50Rows = new long[size];
+        long[] p99Rows = new long[size];
+        long[] maxRows = new long[size];
+        long[] slowDisplays = new long[size];
+        for (int i = 0; i < size; i++) {
+            DisplayerStats s = stats.get(i);
+            names[i] = s.getName();
+            counts[i] = s.getCount();
+            means[i] = s.getMeanMillis();
+            p50s[i] = s.getP50Millis();
+            p99s[i] = s.getP99Millis();
+            maxes[i] = s.getMaxMillis();
+            meanQueries[i] = s.getMeanQueries();
+            p50Queries[i] = s.getP50Queries();
+            p99Queries[i] = s.getP99Queries();
+            maxQueries[i] = s.getMaxQueries();
+            meanRows[i] = s.getMeanRows();
+            p50Rows[i] = s.getP50Rows();
+            p99Rows[i] = s.getP99Rows();
+            maxRows[i] = s.getMaxRows();
+            slowDisplays[i] = s.getSlowDisplays();
+            if ("true".equals(request.getParameter("reset"))) {
+                s.reset();
+            }
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        new ColumnarJsonWriter(out)
+            .value("slowThresholdMillis", metrics.getSlowThresholdMillis())
+            .column("displayers", names, size)
+            .column("count", counts, size)
+            .column("meanMillis", means, size)
+            .column("p50Millis", p50s, size)
+            .column("p99Millis", p99s, size)
+            .column("maxMillis", maxes, size)
+            .column("meanQueries", meanQueries, size)
+            .column("p50Queries", p50Queries, size)
+            .column("p99Queries", p99Queries, size)
+            .column("maxQueries", maxQueries, size)
+            .column("meanRows", meanRows, size)
+            .column("p50Rows", p50Rows, size)
+            .column("p99Rows", p99Rows, size)
+            .column("maxRows", maxRows, size)
+            .column("slowDisplays", slowDisplays, size)
+            .close();
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,161 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.web.widget.EnrichmentIndex;
+import org.flymine.web.widget.EnrichmentWidgets;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * Run an enrichment widget in memory.  Takes widget, the widget id from webconfig-model.xml,
+ * list, the name of a list, or ids, comma separated object ids, and optionally filter,
+ * correction (default Holm-Bonferroni), maxp (default 0.05) and geneLength (true to correct
+ * for gene length where the widget allows it).  Returns JSON with a row per enriched term in
+ * the identifier, name, matches, populationCount and pValue columns, most significant first.
+ */
+public class EnrichmentAction extends InterMineAction
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        EnrichmentWidgets widgets = EnrichmentWidgets.getInstance(
+                request.getSession().getServletContext());
+        String widget = request.getParameter("widget");
+        if (widget == null || !widgets.hasWidget(widget)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        String correction = request.getParameter("correction");
+        if (correction == null) {
+            correction = EnrichmentIndex.HOLM_BONFERRONI;
+        }
+        if (!EnrichmentIndex.NONE.equals(correction)
+                && !EnrichmentIndex.BONFERRONI.equals(correction)
+                && !EnrichmentIndex.HOLM_BONFERRONI.equals(correction)
+                && !EnrichmentIndex.BENJAMINI_HOCHBERG.equals(correction)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        int[] list;
+        double maxPValue;
+        try {
+            list = list(request);
+            maxPValue = (request.getParameter("maxp") == null) ? 0.05
+                : Double.parseDouble(request.getParameter("maxp"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        if (list == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+
+        EnrichmentIndex.Enrichment enrichment = widgets.enrich(widget,
+                request.getParameter("filter"), list, correction, maxPValue,
+                Boolean.parseBoolean(request.getParameter("geneLength")));
+        List<EnrichmentIndex.EnrichedTerm> terms = enrichment.getTerms();
+        int size = terms.size();
+        String[] identifiers = new String[size];
+        String[] names = new String[size];
+        int[] matches = new int[size];
+        int[] populationCounts = new int[size];
+        double[] pValues = new double[size];
+        for (int i = 0; i < size; i++) {
+            EnrichmentIndex.EnrichedTerm term = terms.get(i);
+            identifiers[i] = term.getIdentifier();
+            names[i] = term.getName();
+            matches[i] = term.getMatches();
+            populationCounts[i] = term.getPopulationCount();
+            pValues[i] = term.getPValue();
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        new ColumnarJsonWriter(out)
+            .value("sampleSize", enrichment.getSampleSize())
+            .value("populationSize", enrichment.getPopulationSize())
+            .value("tested", enrichment.getTested())
+            .column("identifier", identifiers, size)
+            .column("name", names, size)
+            .column("matches", matches, size)
+            .column("populationCount", populationCounts, size)
+            .column("pValue", pValues, size)
+            .close();
+        out.flush();
+        return null;
+    }
+
+    /**
+     * @param request the request
+     * @return the ids of the list or ids parameter, sorted and each once, or null if neither is
+     * a list
+     * @throws NumberFormatException if an id isn't a number
+     */
+    static int[] list(HttpServletRequest request) {
+        String ids = request.getParameter("ids");
+        if (ids != null) {
+            String[] values = ids.split("\\s*,\\s*");
+            int[] list = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                list[i] = Integer.parseInt(values[i].trim());
+            }
+            return distinct(list);
+        }
+        String name = request.getParameter("list");
+        if (name == null) {
+            return null;
+        }
+        InterMineAPI im = SessionMethods.getInterMineAPI(request.getSession());
+        InterMineBag bag = im.getBagManager().getBag(
+                SessionMethods.getProfile(request.getSession()), name);
+        if (bag == null) {
+            return null;
+        }
+        List<Integer> contents = bag.getContentsAsIds();
+        int[] list = new int[contents.size()];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = contents.get(i).intValue();
+        }
+        return distinct(list);
+    }
+
+    /**
+     * @return the ids sorted, with duplicates removed, which would count an object twice
+     */
+    private static int[] distinct(int[] ids) {
+        Arrays.sort(ids);
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (count == 0 || ids[count - 1] != ids[i]) {
+                ids[count++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+}
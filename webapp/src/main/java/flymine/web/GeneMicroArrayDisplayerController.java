@@ -13,6 +13,7 @@ package org.flymine.web;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -21,6 +22,9 @@ import org.apache.struts.action.ActionForward;
 import org.apache.struts.action.ActionMapping;
 import org.apache.struts.tiles.ComponentContext;
 import org.apache.struts.tiles.actions.TilesAction;
+import org.flymine.web.displayer.CountingObjectStore;
+import org.flymine.web.displayer.DisplayerCache;
+import org.flymine.web.displayer.DisplayerMetrics;
 import org.intermine.api.InterMineAPI;
 import org.intermine.model.bio.Gene;
 import org.intermine.objectstore.ObjectStore;
@@ -45,17 +49,21 @@ public class GeneMicroArrayDisplayerController extends TilesAction
         throws Exception {
         try {
             final InterMineAPI im = SessionMethods.getInterMineAPI(request.getSession());
-            ObjectStore os = im.getObjectStore();
-            Gene gene = (Gene) request.getAttribute("object");
-            Results results =
-                MicroArrayHelper.queryExperimentsInvolvingGene(gene.getPrimaryIdentifier(), os);
-            if (results != null) {
-                ArrayList<Object> experiments = new ArrayList<Object>();
-                for (Iterator iter = results.iterator(); iter.hasNext(); ) {
-                    ResultsRow row = (ResultsRow) iter.next();
-                    experiments.add(row.get(0));
-                }
-                request.setAttribute("experiments", experiments);
+            final ObjectStore os = CountingObjectStore.wrap(im.getObjectStore());
+            final Gene gene = (Gene) request.getAttribute("object");
+            ServletContext servletContext = request.getSession().getServletContext();
+            DisplayerMetrics.Sample sample = DisplayerMetrics.getInstance(servletContext)
+                .start(getClass().getSimpleName());
+            try {
+                DisplayerCache cache = DisplayerCache.getInstance(servletContext);
+                cache.display(getClass(), gene.getId(), request,
+                        new DisplayerCache.Computation() {
+                            public void compute(HttpServletRequest recordingRequest) {
+                                computeExperiments(recordingRequest, gene, os);
+                            }
+                        });
+            } finally {
+                sample.stop(gene.getId());
             }
         } catch (Exception err) {
             err.printStackTrace();
@@ -63,4 +71,18 @@ public class GeneMicroArrayDisplayerController extends TilesAction
 
         return null;
     }
+
+    private static void computeExperiments(HttpServletRequest request, Gene gene,
+            ObjectStore os) {
+        Results results = MicroArrayHelper.queryExperimentsInvolvingGene(
+                gene.getPrimaryIdentifier(), os);
+        if (results != null) {
+            ArrayList<Object> experiments = new ArrayList<Object>();
+            for (Iterator iter = results.iterator(); iter.hasNext(); ) {
+                ResultsRow row = (ResultsRow) iter.next();
+                experiments.add(row.get(0));
+            }
+            request.setAttribute("experiments", experiments);
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.summary.GraphCube;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * The chromosome distribution and FlyAtlas graph widgets from the memory mapped graph cube.
+ * Takes widget, list or ids as enrichment.do does, and for chromosome_distribution_for_gene
+ * optionally organism (default the one with most of the list) and type (the list class,
+ * default Gene), or for flyatlas_for_gene and flyatlas_for_probeset optionally minPresentCall
+ * (default 3, as the widget constraints).  Returns JSON: the chromosome, actual and expected
+ * columns, or the tissue, affyCall, count and total columns.
+ *
+ * Only graphCube.do reads the cube: the widgets of the same names on list pages are still
+ * computed by InterMine's widget service from the precomputed tables of
+ * genomic_precompute.properties, which it queries on every request.
+ */
+public class GraphCubeAction extends InterMineAction
+{
+    private static final String CHROMOSOMES = "chromosome_distribution_for_gene";
+    private static final String GENES = "flyatlas_for_gene";
+    private static final String PROBE_SETS = "flyatlas_for_probeset";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        GraphCube cube = MappedIndexes.getInstance(request.getSession().getServletContext())
+            .getGraphCube();
+        if (cube == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        String widget = request.getParameter("widget");
+        int[] list;
+        int minPresentCall;
+        try {
+            list = EnrichmentAction.list(request);
+            minPresentCall = (request.getParameter("minPresentCall") == null) ? 3
+                : Integer.parseInt(request.getParameter("minPresentCall"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        if (list == null || !(CHROMOSOMES.equals(widget) || GENES.equals(widget)
+                    || PROBE_SETS.equals(widget))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+
+        if (CHROMOSOMES.equals(widget)) {
+            String type = request.getParameter("type");
+            ClassDescriptor cld = SessionMethods.getInterMineAPI(request.getSession())
+                .getModel().getClassDescriptorByName((type == null) ? "Gene" : type);
+            if (cld == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return null;
+            }
+            Set<String> classNames = new HashSet<String>();
+            classNames.add(cld.getUnqualifiedName());
+            for (ClassDescriptor sub : cld.getAllSubs()) {
+                classNames.add(sub.getUnqualifiedName());
+            }
+            String organism = request.getParameter("organism");
+            if (organism == null) {
+                int most = 0;
+                for (Map.Entry<String, Integer> entry : cube.organisms(list).entrySet()) {
+                    if (entry.getValue().intValue() > most) {
+                        most = entry.getValue().intValue();
+                        organism = entry.getKey();
+                    }
+                }
+            }
+            Map<String, double[]> distribution = (organism == null) ? null
+                : cube.chromosomeDistribution(list, organism, classNames);
+            int size = (distribution == null) ? 0 : distribution.size();
+            String[] chromosomes = new String[size];
+            int[] actual = new int[size];
+            double[] expected = new double[size];
+            if (distribution != null) {
+                int i = 0;
+                for (Map.Entry<String, double[]> entry : distribution.entrySet()) {
+                    chromosomes[i] = entry.getKey();
+                    actual[i] = (int) entry.getValue()[0];
+                    expected[i] = entry.getValue()[1];
+                    i++;
+                }
+            }
+            response.setContentType("application/json; charset=UTF-8");
+            PrintWriter out = response.getWriter();
+            new ColumnarJsonWriter(out)
+                .value("organism", organism)
+                .column("chromosome", chromosomes, size)
+                .column("actual", actual, size)
+                .column("expected", expected, size)
+                .close();
+            out.flush();
+        } else {
+            boolean probeSets = PROBE_SETS.equals(widget);
+            Map<String, Map<String, Integer>> counts = cube.expression(list, probeSets,
+                    minPresentCall);
+            Map<String, Map<String, Integer>> totals = cube.expression(null, probeSets,
+                    minPresentCall);
+            List<String> tissues = new ArrayList<String>();
+            List<String> affyCalls = new ArrayList<String>();
+            List<Integer> listCounts = new ArrayList<Integer>();
+            List<Integer> totalCounts = new ArrayList<Integer>();
+            for (Map.Entry<String, Map<String, Integer>> tissue : totals.entrySet()) {
+                for (Map.Entry<String, Integer> total : tissue.getValue().entrySet()) {
+                    Map<String, Integer> tissueCounts = counts.get(tissue.getKey());
+                    Integer count = (tissueCounts == null) ? null
+                        : tissueCounts.get(total.getKey());
+                    tissues.add(tissue.getKey());
+                    affyCalls.add(total.getKey());
+                    listCounts.add((count == null) ? new Integer(0) : count);
+                    totalCounts.add(total.getValue());
+                }
+            }
+            int size = tissues.size();
+            int[] countValues = new int[size];
+            int[] totalValues = new int[size];
+            for (int i = 0; i < size; i++) {
+                countValues[i] = listCounts.get(i).intValue();
+                totalValues[i] = totalCounts.get(i).intValue();
+            }
+            response.setContentType("application/json; charset=UTF-8");
+            PrintWriter out = response.getWriter();
+            new ColumnarJsonWriter(out)
+                .column("tissue", tissues.toArray(new String[size]), size)
+                .column("affyCall", affyCalls.toArray(new String[size]), size)
+                .column("count", countValues, size)
+                .column("total", totalValues, size)
+                .close();
+            out.flush();
+        }
+        return null;
+    }
+}
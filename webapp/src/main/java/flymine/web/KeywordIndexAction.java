@@ -0,0 +1,97 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.search.MappedSearchIndex;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * Search the memory mapped keyword index for q, returning the ids of the matching objects as
+ * JSON, best first, with the total number of matching objects.  Parameters named
+ * facet.[facet] restrict the results to a facet value and size sets the most ids returned
+ * (default 100, at most 1000).
+ */
+public class KeywordIndexAction extends InterMineAction
+{
+    private static final int MAX_SIZE = 1000;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        MappedSearchIndex index = MappedIndexes.getInstance(
+                request.getSession().getServletContext()).getSearchIndex();
+        if (index == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        String q = request.getParameter("q");
+        if (q == null || q.trim().length() == 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        int size = 100;
+        try {
+            if (request.getParameter("size") != null) {
+                size = Math.min(Math.max(Integer.parseInt(request.getParameter("size")), 1),
+                        MAX_SIZE);
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        Map<String, String> facets = new HashMap<String, String>();
+        Enumeration<?> names = request.getParameterNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            if (name.startsWith("facet.")) {
+                facets.put(name.substring("facet.".length()), request.getParameter(name));
+            }
+        }
+        MappedSearchIndex.Hits hits;
+        try {
+            hits = index.search(q, facets, size);
+        } catch (ParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+        List<Integer> ids = hits.getIds();
+        int[] values = new int[ids.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ids.get(i).intValue();
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        new ColumnarJsonWriter(out)
+            .value("total", hits.getTotal())
+            .column("ids", values, values.length)
+            .close();
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,194 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe in-memory cache bounded by number of entries and by total weight, evicting the
+ * least recently used entries first.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class LruCache<K, V>
+{
+    private final LinkedHashMap<K, Weighted<V>> map
+        = new LinkedHashMap<K, Weighted<V>>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Weigher<? super V> weigher;
+    private final EvictionListener<? super K, ? super V> listener;
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Estimates the weight of a value, usually an approximate size in bytes.
+     * @param <V> the value type
+     */
+    public interface Weigher<V>
+    {
+        /**
+         * @param value the value
+         * @return its weight
+         */
+        long weigh(V value);
+    }
+
+    /**
+     * Told about entries evicted to stay within budget.
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public interface EvictionListener<K, V>
+    {
+        /**
+         * Called after an entry has been evicted, while the cache is locked.
+         * @param key the key
+         * @param value the value
+         */
+        void evicted(K key, V value);
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries to keep
+     * @param maxWeight the maximum total weight of the entries to keep
+     * @param weigher used to weigh values
+     * @param listener told about evictions, may be null
+     */
+    public LruCache(int maxEntries, long maxWeight, Weigher<? super V> weigher,
+            EvictionListener<? super K, ? super V> listener) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.listener = listener;
+    }
+
+    /**
+     * @param key the key
+     * @return the cached value, or null if there isn't one
+     */
+    public synchronized V get(K key) {
+        Weighted<V> entry = map.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Add a value, evicting least recently used entries if over budget.  A value heavier than
+     * the whole budget is not cached.
+     * @param key the key
+     * @param value the value
+     */
+    public synchronized void put(K key, V value) {
+        long w = weigher.weigh(value);
+        remove(key);
+        if (w > maxWeight) {
+            return;
+        }
+        map.put(key, new Weighted<V>(value, w));
+        weight += w;
+        Iterator<Map.Entry<K, Weighted<V>>> iter = map.entrySet().iterator();
+        while ((map.size() > maxEntries || weight > maxWeight) && iter.hasNext()) {
+            Map.Entry<K, Weighted<V>> eldest = iter.next();
+            iter.remove();
+            weight -= eldest.getValue().weight;
+            evictions++;
+            if (listener != null) {
+                listener.evicted(eldest.getKey(), eldest.getValue().value);
+            }
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the value removed, or null
+     */
+    public synchronized V remove(K key) {
+        Weighted<V> entry = map.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        weight -= entry.weight;
+        return entry.value;
+    }
+
+    /**
+     * Remove all entries, without notifying the eviction listener.
+     */
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the number of lookups that found a value
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that didn't find a value
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries evicted to stay within budget
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "entries=" + map.size() + ", weight=" + weight + ", hits=" + hits + ", misses="
+            + misses + ", evictions=" + evictions;
+    }
+
+    private static class Weighted<V>
+    {
+        private final V value;
+        private final long weight;
+
+        Weighted(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
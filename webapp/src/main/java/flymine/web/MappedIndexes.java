@@ -0,0 +1,329 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.flymine.search.CompletionIndex;
+import org.flymine.search.IdentifierIndex;
+import org.flymine.search.MappedSearchIndex;
+import org.flymine.sequence.IntervalIndex;
+import org.flymine.summary.GraphCube;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * The indexes built during post-processing that the webapp reads through memory maps, found in
+ * the directory given by mapped.indexes.directory in web.properties.  Each is opened the first
+ * time it is asked for; one that is missing, can't be read or is of another data release than
+ * project.releaseVersion is logged and null is returned, so callers fall back to querying the
+ * database.  The file of each index is looked at again at most once a minute, and opened again
+ * if it has appeared or been rebuilt since, the index it replaces being closed a minute later
+ * when nothing should still be searching it.  Bulk searches of the indexes run on
+ * mapped.indexes.threads threads (default one per processor).
+ */
+public final class MappedIndexes
+{
+    private static final Logger LOG = Logger.getLogger(MappedIndexes.class);
+    private static final String CONTEXT_ATTRIBUTE = MappedIndexes.class.getName();
+    private static final long RECHECK_MILLIS = 60 * 1000L;
+
+    private final File directory;
+    private final String releaseVersion;
+    private final int threads;
+    private final Mapped<MappedSearchIndex> searchIndex
+        = new Mapped<MappedSearchIndex>("search-index", "keyword search index") {
+            MappedSearchIndex open(File file) throws IOException {
+                return new MappedSearchIndex(file);
+            }
+            String describe(MappedSearchIndex index) {
+                return "keyword search index of " + index.size() + " objects";
+            }
+            String getRelease(MappedSearchIndex index) {
+                // the ids of another release would be of other objects
+                return index.getRelease();
+            }
+            void close(MappedSearchIndex index) throws IOException {
+                index.close();
+            }
+        };
+    private final Mapped<CompletionIndex> completionIndex
+        = new Mapped<CompletionIndex>("autocomplete.idx", "completion index") {
+            CompletionIndex open(File file) throws IOException {
+                return new CompletionIndex(file);
+            }
+            String describe(CompletionIndex index) {
+                return "completions of " + index.getFields();
+            }
+        };
+    private final Mapped<IdentifierIndex> identifierIndex
+        = new Mapped<IdentifierIndex>("identifiers.idx", "identifier index") {
+            IdentifierIndex open(File file) throws IOException {
+                return new IdentifierIndex(file);
+            }
+            String getRelease(IdentifierIndex index) {
+                // the ids of another release would be of other objects
+                return index.getRelease();
+            }
+            String describe(IdentifierIndex index) {
+                return index.size() + " identifiers";
+            }
+        };
+    private final Mapped<GraphCube> graphCube
+        = new Mapped<GraphCube>("graphs.cube", "graph cube") {
+            GraphCube open(File file) throws IOException {
+                return new GraphCube(file);
+            }
+            String getRelease(GraphCube cube) {
+                // counts of another release would disagree with the lists
+                return cube.getRelease();
+            }
+            String describe(GraphCube cube) {
+                return "graph cube of " + cube.getFeatureCount() + " features";
+            }
+        };
+    private final Mapped<IntervalIndex> intervalIndex
+        = new Mapped<IntervalIndex>("intervals.idx", "interval index") {
+            IntervalIndex open(File file) throws IOException {
+                return new IntervalIndex(file);
+            }
+            String getRelease(IntervalIndex index) {
+                // the ids of another release would be of other objects
+                return index.getRelease();
+            }
+            String describe(IntervalIndex index) {
+                return index.size() + " feature locations";
+            }
+        };
+    private ExecutorService executor;
+
+    private MappedIndexes(Properties webProperties) {
+        String dir = webProperties.getProperty("mapped.indexes.directory", "").trim();
+        directory = (dir.length() == 0) ? null : new File(dir);
+        releaseVersion = ReleaseVersion.get(webProperties);
+        threads = Integer.parseInt(webProperties.getProperty("mapped.indexes.threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+    }
+
+    /**
+     * Return the indexes for this webapp.
+     * @param servletContext the servlet context
+     * @return the indexes
+     */
+    public static synchronized MappedIndexes getInstance(ServletContext servletContext) {
+        MappedIndexes indexes = (MappedIndexes) servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (indexes == null) {
+            indexes = new MappedIndexes(SessionMethods.getWebProperties(servletContext));
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, indexes);
+        }
+        return indexes;
+    }
+
+    /**
+     * Close the indexes of this webapp and stop its search threads, if they were ever created.
+     * @param servletContext the servlet context
+     */
+    public static synchronized void shutdown(ServletContext servletContext) {
+        MappedIndexes indexes = (MappedIndexes) servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (indexes != null) {
+            servletContext.removeAttribute(CONTEXT_ATTRIBUTE);
+            indexes.shutdown();
+        }
+    }
+
+    private synchronized void shutdown() {
+        searchIndex.closeAll();
+        completionIndex.closeAll();
+        identifierIndex.closeAll();
+        graphCube.closeAll();
+        intervalIndex.closeAll();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the keyword search index, or null if there isn't one
+     */
+    public synchronized MappedSearchIndex getSearchIndex() {
+        return searchIndex.get();
+    }
+
+    /**
+     * @return the autocompletion index, or null if there isn't one
+     */
+    public synchronized CompletionIndex getCompletionIndex() {
+        return completionIndex.get();
+    }
+
+    /**
+     * @return the identifier index, or null if there isn't one of this release
+     */
+    public synchronized IdentifierIndex getIdentifierIndex() {
+        return identifierIndex.get();
+    }
+
+    /**
+     * @return the graph widget cube, or null if there isn't one of this release
+     */
+    public synchronized GraphCube getGraphCube() {
+        return graphCube.get();
+    }
+
+    /**
+     * @return the feature location interval index, or null if there isn't one of this release
+     */
+    public synchronized IntervalIndex getIntervalIndex() {
+        return intervalIndex.get();
+    }
+
+    /**
+     * @return the executor for bulk searches of the indexes, created on first use
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "mapped-indexes-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @param warn whether to log that the file is missing
+     * @return the file of an index, or null if it doesn't exist
+     */
+    private File file(String name, boolean warn) {
+        if (directory == null) {
+            return null;
+        }
+        File file = new File(directory, name);
+        if (!file.exists()) {
+            if (warn) {
+                LOG.warn("No " + name + " in " + directory + ", was it built?");
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * One index and the file it was opened from.  Guarded by the MappedIndexes.
+     */
+    private abstract class Mapped<T>
+    {
+        private final String name;
+        private final String description;
+        private T index;
+        private T superseded;
+        private long modified = 0;
+        private long checked = 0;
+
+        Mapped(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        /**
+         * @return the index from a file
+         */
+        abstract T open(File file) throws IOException;
+
+        /**
+         * @return what the log says the index holds
+         */
+        abstract String describe(T opened);
+
+        /**
+         * @return the data release of an index, or null if it isn't tied to one
+         */
+        String getRelease(@SuppressWarnings("unused") T opened) {
+            return null;
+        }
+
+        /**
+         * Release what an index holds beyond its memory maps.
+         */
+        void close(@SuppressWarnings("unused") T opened) throws IOException {
+            // the maps are released when the index is collected
+        }
+
+        /**
+         * @return the index, opening its file if it is new since the last look
+         */
+        T get() {
+            long now = System.currentTimeMillis();
+            if (now - checked < RECHECK_MILLIS) {
+                return index;
+            }
+            checked = now;
+            // superseded at least a minute ago, by now no request should be using it
+            closeQuietly(superseded);
+            superseded = null;
+            File file = file(name, modified != -1);
+            if (file == null) {
+                // a mapping stays valid if the file is removed, keep serving it
+                modified = (index == null) ? -1 : modified;
+                return index;
+            }
+            if (file.lastModified() == modified) {
+                return index;
+            }
+            modified = file.lastModified();
+            try {
+                T opened = open(file);
+                String release = getRelease(opened);
+                if (release != null && !releaseVersion.equals(release)) {
+                    LOG.warn("Ignoring " + description + " " + file + " of release " + release
+                            + ", this is release " + releaseVersion);
+                    closeQuietly(opened);
+                } else {
+                    superseded = index;
+                    index = opened;
+                    LOG.info("Mapped " + describe(opened) + " from " + file);
+                }
+            } catch (IOException e) {
+                LOG.warn("Couldn't open " + description + " " + file, e);
+            }
+            return index;
+        }
+
+        void closeAll() {
+            closeQuietly(superseded);
+            closeQuietly(index);
+            superseded = null;
+            index = null;
+        }
+
+        private void closeQuietly(T opened) {
+            if (opened != null) {
+                try {
+                    close(opened);
+                } catch (IOException e) {
+                    LOG.warn("Couldn't close " + description + " " + name, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.intermine.model.bio.MicroArrayAssay;
+import org.intermine.model.bio.MicroArrayResult;
+import org.intermine.objectstore.query.ResultsRow;
+
+/**
+ * A line chart of log2 ratios for a gene in a microarray experiment, one line per series
+ * (taken from the assay sample2 label) and one category per assay displayOrder.  The values
+ * are held in primitive arrays and the chart is drawn directly, either into an image or as SVG
+ * text, so nothing is written to disk.
+ */
+public class MicroArrayChart
+{
+    private static final double LOG2_SCALE = 1.0 / Math.log(2.0);
+    private static final Color[] SERIES_COLOURS = new Color[] {
+        new Color(100, 149, 237), new Color(188, 49, 98), new Color(137, 49, 188),
+        new Color(49, 188, 98), new Color(237, 149, 49), new Color(49, 75, 188)};
+    private static final Color AXIS_COLOUR = Color.GRAY;
+    private static final Color TEXT_COLOUR = Color.DARK_GRAY;
+    private static final int FONT_SIZE = 9;
+    private static final int LEFT = 48;
+    private static final int RIGHT = 10;
+    private static final int TOP = 10;
+    private static final int BOTTOM = 30;
+    private static final int TICKS = 5;
+
+    private int size = 0;
+    private int[] category = new int[64];
+    private int[] series = new int[64];
+    private double[] log2 = new double[64];
+    private int categoryCount = 0;
+    private final Map<String, Integer> seriesIndexes = new HashMap<String, Integer>();
+    private String[] seriesNames = new String[4];
+
+    /**
+     * Build a chart from the results for one gene and experiment.
+     * @param results as returned by MicroArrayHelper.queryMicroArrayResults(String, String,
+     * ObjectStore), ordered by displayOrder
+     * @return the chart, empty if there are no results
+     */
+    public static MicroArrayChart fromResults(List<?> results) {
+        MicroArrayChart chart = new MicroArrayChart();
+        Integer lastDisplayOrder = null;
+        for (Object o : results) {
+            ResultsRow row = (ResultsRow) o;
+            MicroArrayResult result = (MicroArrayResult) row.get(0);
+            // TODO hack for Arbeitman experiment, should set display label in assay to simplify
+            String label = ((MicroArrayAssay) row.get(1)).getSample2();
+            Integer displayOrder = (Integer) row.get(2);
+            if (label == null || "".equals(label) || result.getValue() == null) {
+                continue;
+            }
+            int colon = label.indexOf(':');
+            int dash = label.indexOf('-');
+            if (colon < 0 || dash < colon) {
+                continue;
+            }
+            if (displayOrder == null || !displayOrder.equals(lastDisplayOrder)) {
+                chart.categoryCount++;
+                lastDisplayOrder = displayOrder;
+            }
+            chart.add(chart.categoryCount - 1, label.substring(colon, dash).trim(),
+                    result.getValue().doubleValue());
+        }
+        chart.toLog2();
+        return chart;
+    }
+
+    private void add(int categoryIndex, String seriesName, double value) {
+        Integer seriesIndex = seriesIndexes.get(seriesName);
+        if (seriesIndex == null) {
+            seriesIndex = new Integer(seriesIndexes.size());
+            seriesIndexes.put(seriesName, seriesIndex);
+            if (seriesIndex.intValue() == seriesNames.length) {
+                seriesNames = Arrays.copyOf(seriesNames, seriesNames.length * 2);
+            }
+            seriesNames[seriesIndex.intValue()] = seriesName;
+        }
+        if (size == log2.length) {
+            category = Arrays.copyOf(category, size * 2);
+            series = Arrays.copyOf(series, size * 2);
+            log2 = Arrays.copyOf(log2, size * 2);
+        }
+        category[size] = categoryIndex;
+        series[size] = seriesIndex.intValue();
+        log2[size] = value;
+        size++;
+    }
+
+    private void toLog2() {
+        for (int i = 0; i < size; i++) {
+            log2[i] = Math.log(log2[i]) * LOG2_SCALE;
+        }
+    }
+
+    /**
+     * @return the number of points in the chart
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Draw the chart into a new image.
+     * @param width the image width
+     * @param height the image height
+     * @return the image, ready to be encoded
+     */
+    public BufferedImage toImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, FONT_SIZE));
+            draw(new ImageSurface(g), width, height);
+        } catch (IOException e) {
+            // ImageSurface doesn't do IO
+            throw new RuntimeException(e);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Write the chart as an SVG document.
+     * @param out where to write the document
+     * @param width the image width
+     * @param height the image height
+     * @throws IOException if writing fails
+     */
+    public void writeSvg(Appendable out, int width, int height) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"")
+            .append(String.valueOf(width)).append("\" height=\"").append(String.valueOf(height))
+            .append("\" font-family=\"sans-serif\" font-size=\"")
+            .append(String.valueOf(FONT_SIZE)).append("\">\n")
+            .append("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+        draw(new SvgSurface(out), width, height);
+        out.append("</svg>\n");
+    }
+
+    /**
+     * Lay out and draw the axes, the series lines and the legend.
+     */
+    private void draw(Surface surface, int width, int height) throws IOException {
+        int plotLeft = LEFT;
+        int plotRight = width - RIGHT;
+        int plotTop = TOP;
+        int plotBottom = height - BOTTOM;
+
+        double min = 0;
+        double max = 0;
+        for (int i = 0; i < size; i++) {
+            if (isFinite(log2[i])) {
+                min = Math.min(min, log2[i]);
+                max = Math.max(max, log2[i]);
+            }
+        }
+        double step = niceStep((max - min) / TICKS);
+        min = Math.floor(min / step) * step;
+        max = Math.ceil(max / step) * step;
+        if (max == min) {
+            max = min + step;
+        }
+        double yScale = (plotBottom - plotTop) / (max - min);
+        double xStep = (plotRight - plotLeft) / (double) Math.max(categoryCount, 1);
+
+        // axes, ticks and labels
+        surface.line(plotLeft, plotTop, plotLeft, plotBottom, AXIS_COLOUR, 1);
+        surface.line(plotLeft, plotBottom, plotRight, plotBottom, AXIS_COLOUR, 1);
+        for (double tick = min; tick <= max + step / 2; tick += step) {
+            double y = plotBottom - (tick - min) * yScale;
+            surface.line(plotLeft - 3, y, plotLeft, y, AXIS_COLOUR, 1);
+            surface.text(formatTick(tick, step), plotLeft - 5, y + FONT_SIZE / 3.0, 1, false);
+        }
+        if (min < 0) {
+            double zero = plotBottom + min * yScale;
+            surface.line(plotLeft, zero, plotRight, zero, AXIS_COLOUR, 0.5f);
+        }
+        surface.text("Log2 Ratio", 10, (plotTop + plotBottom) / 2.0, 0, true);
+
+        // one line per series, broken where a value is missing or not positive
+        int seriesCount = seriesIndexes.size();
+        double[] lastX = new double[seriesCount];
+        double[] lastY = new double[seriesCount];
+        Arrays.fill(lastX, Double.NaN);
+        for (int i = 0; i < size; i++) {
+            int s = series[i];
+            Color colour = SERIES_COLOURS[s % SERIES_COLOURS.length];
+            if (!isFinite(log2[i])) {
+                lastX[s] = Double.NaN;
+                continue;
+            }
+            double x = plotLeft + (category[i] + 0.5) * xStep;
+            double y = plotBottom - (log2[i] - min) * yScale;
+            if (!Double.isNaN(lastX[s])) {
+                surface.line(lastX[s], lastY[s], x, y, colour, 1);
+            }
+            surface.marker(x, y, colour);
+            lastX[s] = x;
+            lastY[s] = y;
+        }
+
+        // legend along the bottom
+        double legendX = plotLeft;
+        double legendY = height - FONT_SIZE;
+        for (int s = 0; s < seriesCount; s++) {
+            Color colour = SERIES_COLOURS[s % SERIES_COLOURS.length];
+            surface.marker(legendX + 3, legendY - FONT_SIZE / 3.0, colour);
+            surface.text(seriesNames[s], legendX + 9, legendY, -1, false);
+            legendX += 20 + seriesNames[s].length() * FONT_SIZE * 0.6;
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * @return 1, 2 or 5 times a power of ten, no smaller than the rough step
+     */
+    private static double niceStep(double rough) {
+        if (!(rough > 0)) {
+            return 1;
+        }
+        double magnitude = Math.pow(10, Math.floor(Math.log10(rough)));
+        double fraction = rough / magnitude;
+        if (fraction <= 1) {
+            return magnitude;
+        } else if (fraction <= 2) {
+            return 2 * magnitude;
+        } else if (fraction <= 5) {
+            return 5 * magnitude;
+        }
+        return 10 * magnitude;
+    }
+
+    private static String formatTick(double tick, double step) {
+        if (step >= 1) {
+            return String.valueOf(Math.round(tick));
+        }
+        int decimals = (int) Math.ceil(-Math.log10(step));
+        return String.format("%." + decimals + "f", new Double(tick));
+    }
+
+    /**
+     * The drawing operations the chart needs, so the same layout code produces images and SVG.
+     */
+    private interface Surface
+    {
+        void line(double x1, double y1, double x2, double y2, Color colour, float width)
+            throws IOException;
+
+        void marker(double x, double y, Color colour) throws IOException;
+
+        /**
+         * @param align -1 to start the text at x, 0 to centre it, 1 to end it at x
+         * @param vertical true to draw the text rotated to read upwards, centred on (x, y)
+         */
+        void text(String text, double x, double y, int align, boolean vertical)
+            throws IOException;
+    }
+
+    private static class ImageSurface implements Surface
+    {
+        private final Graphics2D g;
+
+        ImageSurface(Graphics2D g) {
+            this.g = g;
+        }
+
+        public void line(double x1, double y1, double x2, double y2, Color colour,
+                float width) {
+            g.setColor(colour);
+            g.setStroke(new BasicStroke(width));
+            g.drawLine((int) Math.round(x1), (int) Math.round(y1), (int) Math.round(x2),
+                    (int) Math.round(y2));
+        }
+
+        public void marker(double x, double y, Color colour) {
+            g.setColor(colour);
+            g.fillRect((int) Math.round(x) - 2, (int) Math.round(y) - 2, 5, 5);
+        }
+
+        public void text(String text, double x, double y, int align, boolean vertical) {
+            FontMetrics metrics = g.getFontMetrics();
+            int textWidth = metrics.stringWidth(text);
+            g.setColor(TEXT_COLOUR);
+            if (vertical) {
+                AffineTransform saved = g.getTransform();
+                g.translate(x, y);
+                g.rotate(-Math.PI / 2);
+                g.drawString(text, -textWidth / 2, metrics.getAscent() / 2);
+                g.setTransform(saved);
+            } else {
+                int offset = (align < 0) ? 0 : ((align == 0) ? textWidth / 2 : textWidth);
+                g.drawString(text, (int) Math.round(x) - offset, (int) Math.round(y));
+            }
+        }
+    }
+
+    private static class SvgSurface implements Surface
+    {
+        private final Appendable out;
+
+        SvgSurface(Appendable out) {
+            this.out = out;
+        }
+
+        public void line(double x1, double y1, double x2, double y2, Color colour,
+                float width) throws IOException {
+            out.append("<line x1=\"").append(coordinate(x1)).append("\" y1=\"")
+                .append(coordinate(y1)).append("\" x2=\"").append(coordinate(x2))
+                .append("\" y2=\"").append(coordinate(y2)).append("\" stroke=\"")
+                .append(colour(colour)).append("\" stroke-width=\"")
+                .append(String.valueOf(width)).append("\"/>\n");
+        }
+
+        public void marker(double x, double y, Color colour) throws IOException {
+            out.append("<rect x=\"").append(coordinate(x - 2.5)).append("\" y=\"")
+                .append(coordinate(y - 2.5)).append("\" width=\"5\" height=\"5\" fill=\"")
+                .append(colour(colour)).append("\"/>\n");
+        }
+
+        public void text(String text, double x, double y, int align, boolean vertical)
+            throws IOException {
+            String anchor = (align < 0) ? "start" : ((align == 0) ? "middle" : "end");
+            out.append("<text x=\"").append(coordinate(x)).append("\" y=\"")
+                .append(coordinate(y)).append("\" text-anchor=\"").append(anchor)
+                .append("\" fill=\"").append(colour(TEXT_COLOUR)).append('"');
+            if (vertical) {
+                out.append(" transform=\"rotate(-90 ").append(coordinate(x)).append(' ')
+                    .append(coordinate(y)).append(")\"");
+            }
+            out.append('>');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '<') {
+                    out.append("&lt;");
+                } else if (c == '>') {
+                    out.append("&gt;");
+                } else if (c == '&') {
+                    out.append("&amp;");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append("</text>\n");
+        }
+
+        private static String coordinate(double value) {
+            return String.valueOf(Math.round(value * 10) / 10.0);
+        }
+
+        private static String colour(Color colour) {
+            return String.format("#%02x%02x%02x", new Integer(colour.getRed()),
+                    new Integer(colour.getGreen()), new Integer(colour.getBlue()));
+        }
+    }
+}
@@ -10,7 +10,15 @@ package org.flymine.web;
  *
  */
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import org.intermine.metadata.ConstraintOp;
+import org.intermine.objectstore.query.BagConstraint;
 import org.intermine.objectstore.query.ConstraintSet;
 import org.intermine.objectstore.query.ContainsConstraint;
 import org.intermine.objectstore.query.Query;
@@ -18,9 +26,8 @@ import org.intermine.objectstore.query.QueryClass;
 import org.intermine.objectstore.query.QueryCollectionReference;
 import org.intermine.objectstore.query.QueryField;
 import org.intermine.objectstore.query.QueryObjectReference;
-import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.Results;
-import org.intermine.objectstore.query.SimpleConstraint;
+import org.intermine.objectstore.query.ResultsRow;
 
 import org.intermine.objectstore.ObjectStore;
 
@@ -37,7 +44,16 @@ import org.intermine.model.bio.MicroArrayResult;
  */
 public final class MicroArrayHelper
 {
-    //private static Map queries = new HashMap();
+    /**
+     * Default number of genes to query at once in queryMicroArrayResults for many genes.
+     */
+    public static final int DEFAULT_GENE_BATCH_SIZE = 500;
+
+    // the shapes of the single gene queries are built once, only the identifiers are bound
+    // for each query
+    private static final QueryTemplate MICROARRAY_RESULTS = microArrayResultsTemplate();
+    private static final QueryTemplate EXPERIMENTS_INVOLVING_GENE =
+        experimentsInvolvingGeneTemplate();
 
     private MicroArrayHelper() {
         // don't
@@ -52,6 +68,10 @@ public final class MicroArrayHelper
      * @return results: [MicroArrayResult, MicroArrayAssay, MicroArrayAssay.displayOrder]
      */
     public static Results queryMicroArrayResults(String experiment, String gene, ObjectStore os) {
+        return os.execute(MICROARRAY_RESULTS.bind(gene, experiment));
+    }
+
+    private static QueryTemplate microArrayResultsTemplate() {
         Query q = new Query();
         QueryClass mar = new QueryClass(MicroArrayResult.class);
         QueryClass mae = new QueryClass(MicroArrayExperiment.class);
@@ -71,21 +91,16 @@ public final class MicroArrayHelper
         ContainsConstraint marGC = new ContainsConstraint(marG, ConstraintOp.CONTAINS, g);
         cs.addConstraint(marGC);
 
-        // MicroArrayResult.genes.identifier
-        QueryField qf = new QueryField(g, "primaryIdentifier");
-        SimpleConstraint gid = new SimpleConstraint(qf, ConstraintOp.EQUALS, new QueryValue(gene));
-        cs.addConstraint(gid);
+        // MicroArrayResult.genes.identifier - bound per query
+        QueryField gid = new QueryField(g, "primaryIdentifier");
 
         // MicroArrayResult.experiement
         QueryObjectReference marE = new QueryObjectReference(mar, "experiment");
         ContainsConstraint marEC = new ContainsConstraint(marE, ConstraintOp.CONTAINS, mae);
         cs.addConstraint(marEC);
 
-        // MicroArrayResult.experiment.identifier
-        qf = new QueryField(mae, "identifier");
-        SimpleConstraint eid = new SimpleConstraint(qf, ConstraintOp.EQUALS,
-                                                    new QueryValue(experiment));
-        cs.addConstraint(eid);
+        // MicroArrayResult.experiment.identifier - bound per query
+        QueryField eid = new QueryField(mae, "identifier");
 
         // MicroArrayResult.assays.displayOrder
         QueryCollectionReference marMaa = new QueryCollectionReference(mar, "assays");
@@ -97,9 +112,210 @@ public final class MicroArrayHelper
 
         q.setConstraint(cs);
 
-        Results results = os.execute(q);
+        return new QueryTemplate(q, gid, eid);
+    }
+
+    /**
+     * For many genes and experiments retrieve results and assays grouped by gene and experiment,
+     * using one query for each batch of DEFAULT_GENE_BATCH_SIZE genes.
+     * @param experiments MicroArrayExperiment.identifiers, or null for all experiments
+     * @param genes Gene.primaryIdentifiers
+     * @param os ObjectStore to query
+     * @return groups of results ordered by gene, experiment and then displayOrder
+     * @see #queryMicroArrayResults(Collection, Collection, ObjectStore, int)
+     */
+    public static Iterator<GeneExperimentResults> queryMicroArrayResults(
+            Collection<String> experiments, Collection<String> genes, ObjectStore os) {
+        return queryMicroArrayResults(experiments, genes, os, DEFAULT_GENE_BATCH_SIZE);
+    }
 
-        return results;
+    /**
+     * For many genes and experiments retrieve results and assays grouped by gene and experiment.
+     * The genes are split into batches of batchSize, each batch is fetched with a single query
+     * constraining genes and experiments with BagConstraints, and batches are only queried as
+     * the returned iterator reaches them so that long gene lists are streamed rather than held
+     * in memory.
+     * @param experiments MicroArrayExperiment.identifiers, or null for all experiments
+     * @param genes Gene.primaryIdentifiers
+     * @param os ObjectStore to query
+     * @param batchSize the number of genes to query at once
+     * @return groups of results ordered by gene, experiment and then displayOrder
+     */
+    public static Iterator<GeneExperimentResults> queryMicroArrayResults(
+            Collection<String> experiments, Collection<String> genes, ObjectStore os,
+            int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        List<Collection<String>> batches = new ArrayList<Collection<String>>();
+        List<String> batch = new ArrayList<String>();
+        for (String gene : genes) {
+            batch.add(gene);
+            if (batch.size() == batchSize) {
+                batches.add(batch);
+                batch = new ArrayList<String>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return new GroupingIterator(experiments, batches.iterator(), os, batchSize);
+    }
+
+    /**
+     * Build the query for a batch of genes: [MicroArrayResult, MicroArrayAssay,
+     * MicroArrayAssay.displayOrder, Gene.primaryIdentifier, MicroArrayExperiment.identifier]
+     * ordered by gene, experiment and displayOrder.
+     */
+    private static Query batchQuery(Collection<String> experiments, Collection<String> genes) {
+        Query q = new Query();
+        QueryClass mar = new QueryClass(MicroArrayResult.class);
+        QueryClass mae = new QueryClass(MicroArrayExperiment.class);
+        QueryClass g = new QueryClass(Gene.class);
+        QueryClass maa = new QueryClass(MicroArrayAssay.class);
+        q.addFrom(mar);
+        q.addFrom(mae);
+        q.addFrom(g);
+        q.addFrom(maa);
+
+        QueryField geneId = new QueryField(g, "primaryIdentifier");
+        QueryField experimentId = new QueryField(mae, "identifier");
+        QueryField displayOrder = new QueryField(maa, "displayOrder");
+        q.addToSelect(mar);
+        q.addToSelect(maa);
+        q.addToSelect(displayOrder);
+        q.addToSelect(geneId);
+        q.addToSelect(experimentId);
+
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(mar, "genes"),
+                    ConstraintOp.CONTAINS, g));
+        cs.addConstraint(new BagConstraint(geneId, ConstraintOp.IN, genes));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(mar, "experiment"),
+                    ConstraintOp.CONTAINS, mae));
+        if (experiments != null) {
+            cs.addConstraint(new BagConstraint(experimentId, ConstraintOp.IN, experiments));
+        }
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(mar, "assays"),
+                    ConstraintOp.CONTAINS, maa));
+        q.setConstraint(cs);
+
+        q.addToOrderBy(geneId);
+        q.addToOrderBy(experimentId);
+        q.addToOrderBy(displayOrder);
+        return q;
+    }
+
+    /**
+     * The microarray results for one gene in one experiment.
+     */
+    public static class GeneExperimentResults
+    {
+        private final String gene;
+        private final String experiment;
+        private final List<ResultsRow> rows = new ArrayList<ResultsRow>();
+
+        GeneExperimentResults(String gene, String experiment) {
+            this.gene = gene;
+            this.experiment = experiment;
+        }
+
+        /**
+         * @return the Gene.primaryIdentifier
+         */
+        public String getGene() {
+            return gene;
+        }
+
+        /**
+         * @return the MicroArrayExperiment.identifier, or null for the results of experiments
+         * without one
+         */
+        public String getExperiment() {
+            return experiment;
+        }
+
+        /**
+         * The first three columns match those returned by
+         * queryMicroArrayResults(String, String, ObjectStore).
+         * @return rows of [MicroArrayResult, MicroArrayAssay, MicroArrayAssay.displayOrder,
+         * Gene.primaryIdentifier, MicroArrayExperiment.identifier], ordered by displayOrder
+         */
+        public List<ResultsRow> getRows() {
+            return Collections.unmodifiableList(rows);
+        }
+    }
+
+    /**
+     * Runs one query per batch of genes on demand and groups consecutive rows with the same
+     * gene and experiment.  Experiments without an identifier sort last and are grouped
+     * together under a null experiment.
+     */
+    private static class GroupingIterator implements Iterator<GeneExperimentResults>
+    {
+        private final Collection<String> experiments;
+        private final Iterator<Collection<String>> batches;
+        private final ObjectStore os;
+        private final int batchSize;
+        private Iterator<?> rows = Collections.emptyList().iterator();
+        private ResultsRow pending = null;
+        private GeneExperimentResults next = null;
+
+        GroupingIterator(Collection<String> experiments, Iterator<Collection<String>> batches,
+                ObjectStore os, int batchSize) {
+            this.experiments = experiments;
+            this.batches = batches;
+            this.os = os;
+            this.batchSize = batchSize;
+        }
+
+        private ResultsRow nextRow() {
+            while (!rows.hasNext()) {
+                if (!batches.hasNext()) {
+                    return null;
+                }
+                Query q = batchQuery(experiments, batches.next());
+                rows = os.execute(q, batchSize, true, false, true).iterator();
+            }
+            return (ResultsRow) rows.next();
+        }
+
+        public boolean hasNext() {
+            if (next == null) {
+                ResultsRow row = (pending == null) ? nextRow() : pending;
+                pending = null;
+                if (row == null) {
+                    return false;
+                }
+                String gene = (String) row.get(3);
+                String experiment = (String) row.get(4);
+                GeneExperimentResults group = new GeneExperimentResults(gene, experiment);
+                while (row != null && same(gene, row.get(3)) && same(experiment, row.get(4))) {
+                    group.rows.add(row);
+                    row = nextRow();
+                }
+                pending = row;
+                next = group;
+            }
+            return true;
+        }
+
+        public GeneExperimentResults next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            GeneExperimentResults group = next;
+            next = null;
+            return group;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private static boolean same(String id, Object other) {
+            return (id == null) ? other == null : id.equals(other);
+        }
     }
 
     /**
@@ -113,6 +329,10 @@ public final class MicroArrayHelper
             return null;
         }
 
+        return os.execute(EXPERIMENTS_INVOLVING_GENE.bind(gene));
+    }
+
+    private static QueryTemplate experimentsInvolvingGeneTemplate() {
         Query q = new Query();
         ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
         q.setConstraint(cs);
@@ -124,10 +344,8 @@ public final class MicroArrayHelper
         q.addFrom(qcExpt);
         q.addToSelect(qcExpt);
 
+        // bound per query
         QueryField qfGeneIdentifier = new QueryField(qcGene, "primaryIdentifier");
-        SimpleConstraint sc = new SimpleConstraint(qfGeneIdentifier, ConstraintOp.EQUALS,
-                                                   new QueryValue(gene));
-        cs.addConstraint(sc);
 
         QueryCollectionReference maResults =
             new QueryCollectionReference(qcGene, "microArrayResults");
@@ -140,7 +358,6 @@ public final class MicroArrayHelper
 
         cs.addConstraint(cc2);
 
-        Results results = os.execute(q);
-        return results;
+        return new QueryTemplate(q, qfGeneIdentifier);
     }
 }
@@ -0,0 +1,159 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.sequence.IntervalIndex;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * The features overlapping, or nearest, genomic regions, from the memory mapped interval
+ * index.  Takes regions, up to 100000 of chromosome:start..end, chromosome:start-end or
+ * chromosome:position separated by commas or white space, and optionally organism (needed if
+ * chromosome identifiers are shared), type (the feature class, default SequenceFeature) and
+ * nearest (true for the nearest feature of each region instead of all overlapping).  Returns
+ * JSON with a row per feature found in the region (index of the region in the request), id,
+ * type, chromosome, start and end columns, and a distance column for nearest.  Regions on
+ * unknown chromosomes have no rows.
+ */
+public class OverlapAction extends InterMineAction
+{
+    private static final int MAX_REGIONS = 100000;
+    private static final Pattern REGION = Pattern.compile(
+            "([^:\\s,]+):(\\d+)(?:(?:\\.\\.|-)(\\d+))?");
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        MappedIndexes indexes = MappedIndexes.getInstance(
+                request.getSession().getServletContext());
+        IntervalIndex index = indexes.getIntervalIndex();
+        if (index == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        String regions = request.getParameter("regions");
+        String type = request.getParameter("type");
+        ClassDescriptor cld = SessionMethods.getInterMineAPI(request.getSession()).getModel()
+            .getClassDescriptorByName((type == null) ? "SequenceFeature" : type);
+        if (regions == null || cld == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        String[] specs = regions.trim().split("[\\s,]+");
+        if (specs.length > MAX_REGIONS) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        String organism = request.getParameter("organism");
+        int[] chromosomes = new int[specs.length];
+        String[] chromosomeNames = new String[specs.length];
+        int[] starts = new int[specs.length];
+        int[] ends = new int[specs.length];
+        try {
+            for (int i = 0; i < specs.length; i++) {
+                Matcher m = REGION.matcher(specs[i]);
+                if (!m.matches()) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Not a region: " + specs[i]);
+                    return null;
+                }
+                chromosomeNames[i] = m.group(1);
+                chromosomes[i] = index.chromosome(organism, chromosomeNames[i]);
+                int start = Integer.parseInt(m.group(2));
+                int end = (m.group(3) == null) ? start : Integer.parseInt(m.group(3));
+                starts[i] = Math.min(start, end);
+                ends[i] = Math.max(start, end);
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        Set<String> classNames = new HashSet<String>();
+        classNames.add(cld.getUnqualifiedName());
+        for (ClassDescriptor sub : cld.getAllSubs()) {
+            classNames.add(sub.getUnqualifiedName());
+        }
+        boolean[] mask = index.classMask(classNames);
+
+        boolean nearest = Boolean.parseBoolean(request.getParameter("nearest"));
+        int[][] found;
+        if (nearest) {
+            // each is a few binary searches, not worth a thread
+            found = new int[specs.length][];
+            for (int i = 0; i < specs.length; i++) {
+                int position = (chromosomes[i] < 0) ? -1
+                    : index.nearest(chromosomes[i], starts[i], ends[i], mask);
+                found[i] = (position < 0) ? new int[0] : new int[] {position};
+            }
+        } else {
+            found = index.overlaps(chromosomes, starts, ends, mask, indexes.getExecutor());
+        }
+        int size = 0;
+        for (int[] positions : found) {
+            size += positions.length;
+        }
+        int[] regionColumn = new int[size];
+        int[] ids = new int[size];
+        String[] types = new String[size];
+        String[] chromosomeColumn = new String[size];
+        int[] startColumn = new int[size];
+        int[] endColumn = new int[size];
+        long[] distances = new long[size];
+        int row = 0;
+        for (int i = 0; i < found.length; i++) {
+            for (int position : found[i]) {
+                regionColumn[row] = i;
+                ids[row] = index.getId(position);
+                types[row] = index.getClassName(position);
+                chromosomeColumn[row] = chromosomeNames[i];
+                startColumn[row] = index.getStart(position);
+                endColumn[row] = index.getEnd(position);
+                distances[row] = Math.max(0, Math.max((long) startColumn[row] - ends[i],
+                            (long) starts[i] - endColumn[row]));
+                row++;
+            }
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        ColumnarJsonWriter json = new ColumnarJsonWriter(out)
+            .column("region", regionColumn, size)
+            .column("id", ids, size)
+            .column("type", types, size)
+            .column("chromosome", chromosomeColumn, size)
+            .column("start", startColumn, size)
+            .column("end", endColumn, size);
+        if (nearest) {
+            json.column("distance", distances, size);
+        }
+        json.close();
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,99 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.objectstore.query.Constraint;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.FromElement;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryEvaluable;
+import org.intermine.objectstore.query.QueryOrderable;
+import org.intermine.objectstore.query.QuerySelectable;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.SimpleConstraint;
+
+/**
+ * A query whose shape is built once and which is then bound to parameter values per execution.
+ * The classes, fields, references and fixed constraints of the shape are immutable so they are
+ * shared between bound queries; binding only creates the Query and its top level ConstraintSet,
+ * avoiding the reflective field lookups and validation done when the shape is constructed.
+ */
+public class QueryTemplate
+{
+    private final List<FromElement> from;
+    private final List<QuerySelectable> select;
+    private final List<Constraint> constraints;
+    private final List<QueryOrderable> orderBy;
+    private final QueryEvaluable[] parameters;
+    private final boolean distinct;
+
+    /**
+     * Create a template from an example query.
+     * @param shape a query with everything except the parameter constraints, its constraint
+     * must be null, a single Constraint or an AND ConstraintSet
+     * @param parameters the fields that are constrained to equal the bound values
+     */
+    public QueryTemplate(Query shape, QueryEvaluable... parameters) {
+        this.from = new ArrayList<FromElement>(shape.getFrom());
+        this.select = new ArrayList<QuerySelectable>(shape.getSelect());
+        this.orderBy = new ArrayList<QueryOrderable>(shape.getOrderBy());
+        this.parameters = parameters.clone();
+        this.distinct = shape.isDistinct();
+        Constraint c = shape.getConstraint();
+        if (c == null) {
+            this.constraints = Collections.emptyList();
+        } else if (c instanceof ConstraintSet && ConstraintOp.AND.equals(c.getOp())) {
+            this.constraints = new ArrayList<Constraint>(((ConstraintSet) c).getConstraints());
+        } else if (c instanceof ConstraintSet) {
+            throw new IllegalArgumentException("only AND constraint sets are supported: " + shape);
+        } else {
+            this.constraints = Collections.singletonList(c);
+        }
+    }
+
+    /**
+     * Create a query with each parameter constrained to equal a value.
+     * @param values the values, in the same order as the parameters
+     * @return a new query, which may be modified without affecting the template
+     */
+    public Query bind(Object... values) {
+        if (values.length != parameters.length) {
+            throw new IllegalArgumentException("expected " + parameters.length
+                    + " values, got " + values.length);
+        }
+        Query q = new Query();
+        q.setDistinct(distinct);
+        for (FromElement fe : from) {
+            q.addFrom(fe);
+        }
+        for (QuerySelectable qs : select) {
+            q.addToSelect(qs);
+        }
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        for (Constraint c : constraints) {
+            cs.addConstraint(c);
+        }
+        for (int i = 0; i < parameters.length; i++) {
+            cs.addConstraint(new SimpleConstraint(parameters[i], ConstraintOp.EQUALS,
+                        new QueryValue(values[i])));
+        }
+        q.setConstraint(cs);
+        for (QueryOrderable qo : orderBy) {
+            q.addToOrderBy(qo);
+        }
+        return q;
+    }
+}
@@ -0,0 +1,33 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Properties;
+
+/**
+ * The data release this webapp serves, project.releaseVersion in web.properties, which the
+ * caches and indexes computed from the production database are keyed by.  A webapp is deployed
+ * for each release, so the release doesn't change while it runs.
+ */
+public final class ReleaseVersion
+{
+    private ReleaseVersion() {
+        // don't
+    }
+
+    /**
+     * @param webProperties the web properties
+     * @return the release, or "" if none is configured
+     */
+    public static String get(Properties webProperties) {
+        return webProperties.getProperty("project.releaseVersion", "").trim();
+    }
+}
@@ -0,0 +1,125 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.web.displayer.CachedReportDisplayer;
+import org.flymine.web.displayer.DisplayerCache;
+import org.intermine.api.InterMineAPI;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.web.displayer.DisplayerManager;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * The data of one report page panel as JSON, for panels that load after the page:
+ * reportPanel.do?panel=[displayer class name]&amp;id=[object id].  The data only changes with
+ * the release, so responses for an object the panel applies to carry a strong ETag made from
+ * the panel, object and data release, and are gzipped when the client accepts it.  The panel
+ * data is cached by the DisplayerCache for every user alike, so responses may be kept by shared
+ * caches too, for an hour, varying with the encoding.
+ */
+public class ReportPanelAction extends InterMineAction
+{
+    private static final int MAX_AGE = 3600;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        InterMineAPI im = SessionMethods.getInterMineAPI(request.getSession());
+        ObjectStore os = im.getObjectStore();
+        String panel = request.getParameter("panel");
+        Integer id;
+        try {
+            id = Integer.valueOf(request.getParameter("id"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "id must be an object id");
+            return null;
+        }
+        // displayers are created from the webconfig the first time any report page is shown
+        DisplayerManager.getInstance(SessionMethods.getWebConfig(request), im);
+        CachedReportDisplayer displayer = CachedReportDisplayer.getDisplayer(panel);
+        if (displayer == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "no panel " + panel);
+            return null;
+        }
+
+        InterMineObject object = os.getObjectById(id);
+        if (object == null || !displayer.appliesTo(object)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "no " + panel + " for " + id);
+            return null;
+        }
+
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        String version = DisplayerCache.getInstance(request.getSession().getServletContext())
+            .getVersion();
+        String etag = "\"" + panel + "-" + id + "-" + version.replaceAll("[^A-Za-z0-9._]", "_")
+            + (gzip ? "-gz" : "") + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
+        }
+
+        Map<String, Object> attributes = displayer.attributes(request, object);
+
+        response.setContentType("application/json; charset=UTF-8");
+        OutputStream stream = response.getOutputStream();
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            stream = new GZIPOutputStream(stream);
+        }
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        try {
+            displayer.writeJson(attributes, out);
+        } finally {
+            out.close();
+        }
+        return null;
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match header, a comma separated list of ETags or *
+     * @param etag the ETag of the current response
+     * @return true if the client already has the response
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.search.IdentifierIndex;
+import org.intermine.api.bag.BagQueryResult;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * Resolve the identifiers of a list upload from the memory mapped identifier index.  Takes
+ * identifiers, separated by new lines, tabs or commas, type, the class of the list (default
+ * Gene, subclasses match too) and optionally organism, a taxon id.  Returns JSON with a row
+ * per match in the identifier, id and match columns, so an identifier matching several objects
+ * has several rows, and the identifiers with no match in unresolved.
+ *
+ * As in a list upload through the bag queries, an identifier matching a key field value isn't
+ * matched by synonyms, and the match type is MATCH for one object matched by a key field,
+ * OTHER for one matched only by a synonym and DUPLICATE for several objects.
+ */
+public class ResolveIdentifiersAction extends InterMineAction
+{
+    /** The match type of an identifier matching one object by a key field. */
+    public static final String MATCH = "MATCH";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        IdentifierIndex index = MappedIndexes.getInstance(
+                request.getSession().getServletContext()).getIdentifierIndex();
+        if (index == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        String type = request.getParameter("type");
+        ClassDescriptor cld = SessionMethods.getInterMineAPI(request.getSession()).getModel()
+            .getClassDescriptorByName((type == null) ? "Gene" : type);
+        String identifiers = request.getParameter("identifiers");
+        Integer taxonId;
+        try {
+            taxonId = (request.getParameter("organism") == null) ? null
+                : Integer.valueOf(request.getParameter("organism"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        if (cld == null || identifiers == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        Set<String> classNames = new HashSet<String>();
+        classNames.add(cld.getUnqualifiedName());
+        for (ClassDescriptor sub : cld.getAllSubs()) {
+            classNames.add(sub.getUnqualifiedName());
+        }
+        List<String> input = new ArrayList<String>();
+        for (String identifier : Arrays.asList(identifiers.split("[\\n\\r\\t,]+"))) {
+            if (identifier.trim().length() > 0) {
+                input.add(identifier.trim());
+            }
+        }
+
+        Map<String, IdentifierIndex.Matches> results = index.resolve(input, classNames, taxonId);
+        List<String> matched = new ArrayList<String>();
+        List<Integer> ids = new ArrayList<Integer>();
+        List<String> types = new ArrayList<String>();
+        List<String> unresolved = new ArrayList<String>();
+        for (Map.Entry<String, IdentifierIndex.Matches> result : results.entrySet()) {
+            IdentifierIndex.Matches matches = result.getValue();
+            if (matches.size() == 0) {
+                unresolved.add(result.getKey());
+                continue;
+            }
+            List<Integer> keyIds = new ArrayList<Integer>();
+            List<Integer> synonymIds = new ArrayList<Integer>();
+            for (int i = 0; i < matches.size(); i++) {
+                (matches.isSynonym(i) ? synonymIds : keyIds).add(new Integer(matches.getId(i)));
+            }
+            boolean byKey = !keyIds.isEmpty();
+            List<Integer> found = byKey ? keyIds : synonymIds;
+            String matchType = (found.size() > 1) ? BagQueryResult.DUPLICATE
+                : (byKey ? MATCH : BagQueryResult.OTHER);
+            for (Integer id : found) {
+                matched.add(result.getKey());
+                ids.add(id);
+                types.add(matchType);
+            }
+        }
+        int[] idValues = new int[ids.size()];
+        for (int i = 0; i < idValues.length; i++) {
+            idValues[i] = ids.get(i).intValue();
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        new ColumnarJsonWriter(out)
+            .column("identifier", matched.toArray(new String[matched.size()]), matched.size())
+            .column("id", idValues, idValues.length)
+            .column("match", types.toArray(new String[types.size()]), types.size())
+            .column("unresolved", unresolved.toArray(new String[unresolved.size()]),
+                    unresolved.size())
+            .close();
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,134 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.flymine.web.template.TemplateAccessLog.Invocation;
+import org.flymine.web.template.TemplateResultCache;
+import org.flymine.web.template.TemplateResults;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.template.TemplateQuery;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+/**
+ * A page of the results of a public template, from the template result cache.  Takes name,
+ * the template name, value[code] for each constraint value to change, eg. valueA=zen, and
+ * optionally start (default 0) and size (default 25, at most 1000).  Returns JSON with a
+ * column per view, the total row count and whether the page came from the cache.  Results too
+ * big to cache are paged from the database.
+ */
+public class TemplateResultsAction extends InterMineAction
+{
+    private static final int MAX_SIZE = 1000;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ActionForward execute(@SuppressWarnings("unused") ActionMapping mapping,
+            @SuppressWarnings("unused") ActionForm form, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        TemplateResultCache cache = TemplateResultCache.getInstance(
+                request.getSession().getServletContext());
+        String name = request.getParameter("name");
+        int start;
+        int size;
+        try {
+            start = (request.getParameter("start") == null) ? 0
+                : Integer.parseInt(request.getParameter("start"));
+            size = (request.getParameter("size") == null) ? 25
+                : Integer.parseInt(request.getParameter("size"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        if (name == null || start < 0 || size < 0 || size > MAX_SIZE) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        Map<String, String> values = new HashMap<String, String>();
+        Enumeration<?> parameters = request.getParameterNames();
+        while (parameters.hasMoreElements()) {
+            String parameter = (String) parameters.nextElement();
+            if (parameter.startsWith("value") && parameter.length() > "value".length()) {
+                values.put(parameter.substring("value".length()),
+                        request.getParameter(parameter));
+            }
+        }
+
+        Profile profile = SessionMethods.getProfile(request.getSession());
+        Invocation invocation;
+        TemplateResults results;
+        try {
+            invocation = cache.invocation(name, values);
+            results = cache.getResults(invocation, profile);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+        List<String> views;
+        List<List<String>> page;
+        int total;
+        if (results != null) {
+            views = results.getViews();
+            page = results.page(start, size);
+            total = results.getRowCount();
+        } else {
+            TemplateQuery q = cache.populate(invocation);
+            PathQueryExecutor executor = SessionMethods.getInterMineAPI(request.getSession())
+                .getPathQueryExecutor(profile);
+            views = q.getView();
+            page = new ArrayList<List<String>>();
+            ExportResultsIterator it = executor.execute(q, start, size);
+            while (it.hasNext()) {
+                List<String> row = new ArrayList<String>();
+                for (ResultElement element : it.next()) {
+                    Object field = (element == null) ? null : element.getField();
+                    row.add((field == null) ? null : field.toString());
+                }
+                page.add(row);
+            }
+            total = executor.count(q);
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        ColumnarJsonWriter json = new ColumnarJsonWriter(out)
+            .value("total", total)
+            .value("cached", results != null);
+        for (int column = 0; column < views.size(); column++) {
+            String[] cells = new String[page.size()];
+            for (int row = 0; row < cells.length; row++) {
+                cells[row] = page.get(row).get(column);
+            }
+            json.column(views.get(column), cells, cells.length);
+        }
+        json.close();
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package org.flymine.web;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.flymine.web.displayer.DisplayerMetrics;
+import org.flymine.web.displayer.ReportPanelExecutor;
+
+/**
+ * Stops the thread pools the webapp creates on first use, closes its mapped indexes and
+ * unregisters its JMX beans when it is undeployed, so a redeploy doesn't leave their threads,
+ * files and beans behind holding the old classes.  Registered in web-model.xml.
+ */
+public class WebappShutdownListener implements ServletContextListener
+{
+    /**
+     * {@inheritDoc}
+     */
+    public void contextInitialized(ServletContextEvent event) {
+        // nothing is created until it's used
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void contextDestroyed(ServletContextEvent event) {
+        ServletContext servletContext = event.getServletContext();
+        ReportPanelExecutor.shutdown(servletContext);
+        ChartRenderPool.shutdown(servletContext);
+        MappedIndexes.shutdown(servletContext);
+        DisplayerMetrics.shutdown(servletContext);
+    }
+}
@@ -0,0 +1,175 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.model.InterMineObject;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.web.logic.config.ReportDisplayerConfig;
+import org.intermine.web.logic.results.ReportObject;
+
+/**
+ * A report displayer whose request attributes depend only on the object displayed, so they are
+ * kept in the DisplayerCache until the data release changes.  Every display, cached or not, is
+ * timed by DisplayerMetrics, and the queries made through getObjectStore() and
+ * getPathQueryExecutor() are counted.  Unless displayer.concurrent.enabled is false, the
+ * displayers on a page run at the same time on the ReportPanelExecutor.  Displayers listed in
+ * displayer.lazy aren't run with the page at all: the JSP fetches their attributes as JSON from
+ * the reportPanel action (at the URL in the "panelUrl" attribute) once the panel is scrolled
+ * to.
+ */
+public abstract class CachedReportDisplayer extends ReportDisplayer implements ReportPanel
+{
+    private final ObjectStore os;
+
+    /**
+     * @param config report object config
+     * @param im intermine API
+     */
+    public CachedReportDisplayer(ReportDisplayerConfig config, InterMineAPI im) {
+        super(config, im);
+        os = CountingObjectStore.wrap(im.getObjectStore());
+        ReportPanelExecutor.register(this);
+    }
+
+    /**
+     * @return the ObjectStore to query, counting the queries against the running display
+     */
+    protected ObjectStore getObjectStore() {
+        return os;
+    }
+
+    /**
+     * @param profile the profile of the user
+     * @return an executor for PathQueries on getObjectStore()
+     */
+    protected PathQueryExecutor getPathQueryExecutor(Profile profile) {
+        return new PathQueryExecutor(os, profile, im.getBagQueryRunner(), im.getBagManager());
+    }
+
+    /**
+     * @param name the simple class name of a displayer
+     * @return the displayer created from the webconfig with that name, or null if there isn't
+     * one
+     */
+    public static CachedReportDisplayer getDisplayer(String name) {
+        ReportPanel panel = ReportPanelExecutor.getPanel(name);
+        return (panel instanceof CachedReportDisplayer) ? (CachedReportDisplayer) panel : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPanelName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public final void display(HttpServletRequest request, ReportObject reportObject) {
+        ReportPanelExecutor panels = ReportPanelExecutor.getInstance(
+                request.getSession().getServletContext());
+        InterMineObject object = reportObject.getObject();
+        request.setAttribute(ReportPanelExecutor.LOADING_ATTRIBUTE, Boolean.FALSE);
+        request.setAttribute(ReportPanelExecutor.LAZY_ATTRIBUTE, Boolean.FALSE);
+        request.setAttribute(ReportPanelExecutor.URL_ATTRIBUTE, "reportPanel.do?panel="
+                + getClass().getSimpleName() + "&id=" + object.getId());
+        if (panels.isLazy(this)) {
+            request.setAttribute(ReportPanelExecutor.LAZY_ATTRIBUTE, Boolean.TRUE);
+        } else if (panels.isEnabled()) {
+            panels.display(this, request, reportObject);
+        } else {
+            displayNow(request, object);
+        }
+    }
+
+    /**
+     * Compute the attributes of this displayer for an object without touching the request,
+     * from the cache if possible.
+     * @param request the request
+     * @param object the object to display
+     * @return the attributes that display() would have set
+     */
+    public Map<String, Object> attributes(HttpServletRequest request, InterMineObject object) {
+        PanelRequest panelRequest = new PanelRequest(request);
+        displayNow(panelRequest, object);
+        return panelRequest.getAttributes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void displayPanel(HttpServletRequest request, ReportObject reportObject) {
+        displayNow(request, reportObject.getObject());
+    }
+
+    /**
+     * Set the request attributes on this thread, from the cache if possible.
+     * @param request the request
+     * @param object the object being displayed
+     */
+    void displayNow(HttpServletRequest request, final InterMineObject object) {
+        ServletContext servletContext = request.getSession().getServletContext();
+        Integer id = object.getId();
+        DisplayerMetrics.Sample sample = DisplayerMetrics.getInstance(servletContext)
+            .start(getClass().getSimpleName());
+        try {
+            DisplayerCache cache = DisplayerCache.getInstance(servletContext);
+            cache.display(getClass(), id, request, new DisplayerCache.Computation() {
+                public void compute(HttpServletRequest recordingRequest) {
+                    displayUncached(recordingRequest, object);
+                }
+            });
+        } finally {
+            sample.stop(id);
+        }
+    }
+
+    /**
+     * @param object an object a report page is being shown for
+     * @return true if this displayer is configured for the type of the object
+     */
+    public boolean appliesTo(InterMineObject object) {
+        return ReportPanelExecutor.appliesTo(config, im.getModel(), object);
+    }
+
+    /**
+     * Set the request attributes for an object that isn't in the cache.  Only attributes set
+     * on the request passed in are cached.
+     * @param request the request
+     * @param object the object being displayed
+     */
+    protected abstract void displayUncached(HttpServletRequest request, InterMineObject object);
+
+    /**
+     * Write the attributes computed for an object as JSON, for the panel to draw itself from.
+     * @param attributes attributes returned by attributes()
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public abstract void writeJson(Map<String, Object> attributes, Appendable out)
+        throws IOException;
+}
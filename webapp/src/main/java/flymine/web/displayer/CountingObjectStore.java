@@ -0,0 +1,107 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Map;
+
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.Results;
+import org.intermine.objectstore.query.SingletonResults;
+
+/**
+ * An ObjectStore that counts what is asked of another against the DisplayerMetrics sample open
+ * on the calling thread.  Results are bound to the wrapper rather than the store underneath, so
+ * every batch they fetch is counted as a query with its rows as they are read, and a fetch of
+ * objects by id as a query with a row per id.  With no sample open it only delegates.  The
+ * proxies of references in the objects fetched are loaded by the ObjectStore underneath, not
+ * through the wrapper, so those loads aren't counted.
+ */
+public final class CountingObjectStore implements InvocationHandler
+{
+    private final ObjectStore os;
+
+    private CountingObjectStore(ObjectStore os) {
+        this.os = os;
+    }
+
+    /**
+     * @param os the ObjectStore to count
+     * @return an ObjectStore that counts the queries made through it, then makes them on os
+     */
+    public static ObjectStore wrap(ObjectStore os) {
+        if (Proxy.isProxyClass(os.getClass())
+                && Proxy.getInvocationHandler(os) instanceof CountingObjectStore) {
+            return os;
+        }
+        return (ObjectStore) Proxy.newProxyInstance(ObjectStore.class.getClassLoader(),
+                new Class<?>[] {ObjectStore.class}, new CountingObjectStore(os));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        int arity = method.getParameterTypes().length;
+        boolean singleton = "executeSingleton".equals(name);
+        if ((singleton || "execute".equals(name)) && (arity == 1 || arity == 5)) {
+            return results((ObjectStore) proxy, (Query) args[0], singleton, args);
+        }
+        Object value;
+        try {
+            value = method.invoke(os, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        if ("execute".equals(name)) {
+            // a batch, fetched by Results
+            DisplayerMetrics.countQuery(((Collection<?>) value).size());
+        } else if ("count".equals(name)) {
+            DisplayerMetrics.countQuery(1);
+        } else if ("getObjectById".equals(name)) {
+            DisplayerMetrics.countQuery((value == null) ? 0 : 1);
+        } else if ("getObjectsByIds".equals(name)) {
+            DisplayerMetrics.countQuery(((Collection<?>) args[0]).size());
+        }
+        return value;
+    }
+
+    /**
+     * Results fetching their batches through the wrapper, as the ObjectStore would make them.
+     */
+    private Results results(ObjectStore proxy, Query q, boolean singleton, Object[] args) {
+        Map<Object, Integer> sequence = os.getSequence(os.getComponentsForQuery(q));
+        Results results = singleton ? new SingletonResults(q, proxy, sequence)
+            : new Results(q, proxy, sequence);
+        if (args.length == 5) {
+            int batchSize = ((Integer) args[1]).intValue();
+            if (batchSize != 0) {
+                results.setBatchSize(batchSize);
+            }
+            if (!((Boolean) args[2]).booleanValue()) {
+                results.setNoOptimise();
+            }
+            if (!((Boolean) args[3]).booleanValue()) {
+                results.setNoExplain();
+            }
+            if (!((Boolean) args[4]).booleanValue()) {
+                results.setNoPrefetch();
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,450 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.log4j.Logger;
+import org.flymine.web.LruCache;
+import org.flymine.web.ReleaseVersion;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * Caches the request attributes computed by report page displayers, keyed by displayer and
+ * object id.  The data only changes when a new release is loaded, and a webapp is deployed for
+ * each release, so the cache lives as long as the webapp and a spill directory left by an
+ * earlier deploy is cleared when it starts.  Entries evicted
+ * from memory can optionally be written to a spill directory if all their values are
+ * Serializable.  Requests missing the same entry at once wait for the first to compute it.
+ * Cached attributes are shared between requests, so maps and collections among them are
+ * handed out unmodifiable.
+ *
+ * Configured in web.properties with displayer.cache.enabled, displayer.cache.maxEntries,
+ * displayer.cache.maxBytes and displayer.cache.spillDir.  The bytes are an estimate: strings,
+ * arrays, maps and collections are measured through to what they hold, but other objects only
+ * by their own fields, as they may reference the ObjectStore or the model, so for displayers
+ * setting such objects maxEntries is the real bound.
+ */
+public final class DisplayerCache
+{
+    private static final Logger LOG = Logger.getLogger(DisplayerCache.class);
+    private static final String CONTEXT_ATTRIBUTE = DisplayerCache.class.getName();
+    private static final int MAX_DEPTH = 8;
+    private static final ConcurrentMap<Class<?>, Field[]> FIELDS
+        = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    private final String version;
+    private final boolean enabled;
+    private final File spillDir;
+    private final LruCache<String, Map<String, Object>> memory;
+    private final ConcurrentMap<String, FutureTask<Map<String, Object>>> inFlight
+        = new ConcurrentHashMap<String, FutureTask<Map<String, Object>>>();
+
+    private DisplayerCache(Properties webProperties) {
+        this.version = ReleaseVersion.get(webProperties);
+        this.enabled = !"false".equalsIgnoreCase(
+                webProperties.getProperty("displayer.cache.enabled", "true").trim());
+        int maxEntries = Integer.parseInt(
+                webProperties.getProperty("displayer.cache.maxEntries", "10000").trim());
+        long maxBytes = Long.parseLong(
+                webProperties.getProperty("displayer.cache.maxBytes", "67108864").trim());
+        String spill = webProperties.getProperty("displayer.cache.spillDir", "").trim();
+        if ("".equals(spill)) {
+            spillDir = null;
+        } else {
+            spillDir = new File(spill);
+            if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+                throw new IllegalArgumentException("can't create displayer cache spill "
+                        + "directory: " + spillDir);
+            }
+        }
+        LruCache.EvictionListener<String, Map<String, Object>> listener = null;
+        if (spillDir != null) {
+            listener = new LruCache.EvictionListener<String, Map<String, Object>>() {
+                public void evicted(String key, Map<String, Object> attributes) {
+                    spill(key, attributes);
+                }
+            };
+        }
+        memory = new LruCache<String, Map<String, Object>>(maxEntries, maxBytes,
+                new LruCache.Weigher<Map<String, Object>>() {
+                    public long weigh(Map<String, Object> attributes) {
+                        return estimateSize(attributes,
+                                Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()),
+                                0);
+                    }
+                }, listener);
+        clearSpill();
+    }
+
+    /**
+     * Return the displayer cache for this webapp, creating it on first use.
+     * @param servletContext the servlet context
+     * @return the cache
+     */
+    public static synchronized DisplayerCache getInstance(ServletContext servletContext) {
+        DisplayerCache cache = (DisplayerCache) servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (cache == null) {
+            cache = new DisplayerCache(SessionMethods.getWebProperties(servletContext));
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Something that sets request attributes for one object.
+     */
+    public interface Computation
+    {
+        /**
+         * @param request the request to set attributes on
+         */
+        void compute(HttpServletRequest request);
+    }
+
+    /**
+     * Set the request attributes for a displayer and object, from the cache if possible and
+     * otherwise by running the computation and caching the attributes it set.
+     * @param displayer the class computing the attributes
+     * @param id the id of the object being displayed
+     * @param request the request
+     * @param computation sets the attributes on a cache miss
+     */
+    public void display(Class<?> displayer, Integer id, HttpServletRequest request,
+            Computation computation) {
+        if (!enabled || id == null) {
+            computation.compute(request);
+            return;
+        }
+        String key = displayer.getName() + ":" + id;
+        Map<String, Object> attributes = memory.get(key);
+        if (attributes == null && spillDir != null) {
+            attributes = unspill(key);
+            if (attributes != null) {
+                memory.put(key, attributes);
+            }
+        }
+        if (attributes == null) {
+            attributes = load(key, request, computation);
+        }
+        // the computing request too, so it sees what the others will
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            request.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+    }
+
+    /**
+     * Compute the attributes of a missing entry into the cache, or wait for the computation
+     * already under way.
+     */
+    private Map<String, Object> load(final String key, final HttpServletRequest request,
+            final Computation computation) {
+        FutureTask<Map<String, Object>> task = new FutureTask<Map<String, Object>>(
+                new Callable<Map<String, Object>>() {
+                    public Map<String, Object> call() {
+                        RecordingRequest recording = new RecordingRequest(request);
+                        computation.compute(recording);
+                        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+                        for (Map.Entry<String, Object> attribute
+                                : recording.attributes.entrySet()) {
+                            attributes.put(attribute.getKey(), unmodifiable(attribute.getValue()));
+                        }
+                        attributes = Collections.unmodifiableMap(attributes);
+                        memory.put(key, attributes);
+                        return attributes;
+                    }
+                });
+        FutureTask<Map<String, Object>> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for displayer " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return a map or collection wrapped so the requests sharing it can't change it
+     */
+    @SuppressWarnings("unchecked")
+    private static Object unmodifiable(Object value) {
+        if (value instanceof Map<?, ?>) {
+            return Collections.unmodifiableMap((Map<Object, Object>) value);
+        }
+        if (value instanceof List<?>) {
+            return Collections.unmodifiableList((List<Object>) value);
+        }
+        if (value instanceof Set<?>) {
+            return Collections.unmodifiableSet((Set<Object>) value);
+        }
+        if (value instanceof Collection<?>) {
+            return Collections.unmodifiableCollection((Collection<Object>) value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the data release the cached attributes were computed from
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Drop everything, in memory and on disk.
+     */
+    public void clear() {
+        memory.clear();
+        clearSpill();
+    }
+
+    private File spillFile(String key) {
+        return new File(spillDir, key.replaceAll("[^A-Za-z0-9_.-]", "_") + ".ser");
+    }
+
+    private void spill(String key, Map<String, Object> attributes) {
+        for (Object value : attributes.values()) {
+            if (value != null && !(value instanceof Serializable)) {
+                return;
+            }
+        }
+        File file = spillFile(key);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file)));
+            try {
+                out.writeObject(new LinkedHashMap<String, Object>(attributes));
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            // values can be Serializable but hold things that aren't
+            LOG.debug("Couldn't spill displayer cache entry " + key, e);
+            file.delete();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> unspill(String key) {
+        File file = spillFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+            try {
+                return Collections.unmodifiableMap((Map<String, Object>) in.readObject());
+            } finally {
+                in.close();
+                file.delete();
+            }
+        } catch (Exception e) {
+            LOG.warn("Couldn't read spilled displayer cache entry " + key, e);
+            return null;
+        }
+    }
+
+    private void clearSpill() {
+        if (spillDir == null) {
+            return;
+        }
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".ser")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * An estimate of the heap used by a value on a 64 bit JVM, counting an object reached
+     * twice once.  Strings, arrays, maps and collections are measured through to what they
+     * hold, down to MAX_DEPTH; other objects by their own fields and the strings and primitive
+     * arrays those hold.
+     * @param seen the objects already counted
+     */
+    private static long estimateSize(Object value, Set<Object> seen, int depth) {
+        if (value == null || value instanceof Enum<?> || value instanceof Class<?>
+                || !seen.add(value)) {
+            return 0;
+        }
+        if (value instanceof CharSequence) {
+            return 40 + 2L * ((CharSequence) value).length();
+        }
+        Class<?> type = value.getClass();
+        if (type.isArray() && type.getComponentType().isPrimitive()) {
+            return 16 + Array.getLength(value) * (long) primitiveSize(type.getComponentType());
+        }
+        if (depth >= MAX_DEPTH) {
+            return shallowSize(value, seen);
+        }
+        if (type.isArray()) {
+            long size = 16;
+            for (Object element : (Object[]) value) {
+                size += 8 + estimateSize(element, seen, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Map<?, ?>) {
+            long size = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += 32 + estimateSize(entry.getKey(), seen, depth + 1)
+                    + estimateSize(entry.getValue(), seen, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Collection<?>) {
+            long size = 40;
+            for (Object element : (Collection<?>) value) {
+                size += 16 + estimateSize(element, seen, depth + 1);
+            }
+            return size;
+        }
+        return shallowSize(value, seen);
+    }
+
+    /**
+     * @return the header and fields of an object, with the strings and primitive arrays they
+     * reference
+     */
+    private static long shallowSize(Object value, Set<Object> seen) {
+        long size = 16;
+        for (Field field : fields(value.getClass())) {
+            Class<?> type = field.getType();
+            if (type.isPrimitive()) {
+                size += primitiveSize(type);
+                continue;
+            }
+            size += 8;
+            if (type == String.class || (type.isArray() && type.getComponentType().isPrimitive())) {
+                try {
+                    size += estimateSize(field.get(value), seen, MAX_DEPTH);
+                } catch (IllegalAccessException e) {
+                    // counted as a reference
+                }
+            }
+        }
+        // objects are 8 byte aligned
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * @return the instance fields of a class and its superclasses, made accessible where
+     * allowed
+     */
+    private static Field[] fields(Class<?> type) {
+        Field[] fields = FIELDS.get(type);
+        if (fields == null) {
+            List<Field> found = new ArrayList<Field>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        try {
+                            field.setAccessible(true);
+                        } catch (RuntimeException e) {
+                            // denied by a security manager or module, still counted by type
+                        }
+                        found.add(field);
+                    }
+                }
+            }
+            fields = found.toArray(new Field[found.size()]);
+            FIELDS.putIfAbsent(type, fields);
+        }
+        return fields;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Passes everything through to the real request and remembers the attributes set.
+     */
+    private static class RecordingRequest extends HttpServletRequestWrapper
+    {
+        private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+        RecordingRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            super.setAttribute(name, value);
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            super.removeAttribute(name);
+            attributes.remove(name);
+        }
+    }
+}
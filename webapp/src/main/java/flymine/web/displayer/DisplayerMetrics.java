@@ -0,0 +1,213 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * Records how long each report page displayer takes and how much it asks of the ObjectStore.
+ * Callers wrap a display in start() and Sample.stop(); while a sample is open on a thread, the
+ * queries made through a CountingObjectStore are added to it.  Each displayer's DisplayerStats
+ * is registered with JMX as org.flymine:type=Displayer,name=[displayer] until the webapp is
+ * shut down, and displays slower than displayer.metrics.slowThreshold milliseconds in
+ * web.properties are logged.
+ */
+public final class DisplayerMetrics
+{
+    private static final Logger LOG = Logger.getLogger(DisplayerMetrics.class);
+    private static final String CONTEXT_ATTRIBUTE = DisplayerMetrics.class.getName();
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<Sample>();
+
+    private final long slowThresholdMillis;
+    private final ConcurrentMap<String, DisplayerStats> stats
+        = new ConcurrentHashMap<String, DisplayerStats>();
+    // set on shutdown, so a display still running doesn't register another bean
+    private volatile boolean closed = false;
+
+    private DisplayerMetrics(long slowThresholdMillis) {
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    /**
+     * Return the metrics for this webapp, creating them on first use.
+     * @param servletContext the servlet context
+     * @return the metrics
+     */
+    public static synchronized DisplayerMetrics getInstance(ServletContext servletContext) {
+        DisplayerMetrics metrics = (DisplayerMetrics) servletContext.getAttribute(
+                CONTEXT_ATTRIBUTE);
+        if (metrics == null) {
+            Properties webProperties = SessionMethods.getWebProperties(servletContext);
+            long threshold = Long.parseLong(webProperties.getProperty(
+                        "displayer.metrics.slowThreshold", "1000").trim());
+            metrics = new DisplayerMetrics(threshold);
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Start timing a display on this thread.
+     * @param displayer the displayer name
+     * @return the open sample, which must be stopped
+     */
+    public Sample start(String displayer) {
+        Sample sample = new Sample(stats(displayer), CURRENT.get());
+        CURRENT.set(sample);
+        return sample;
+    }
+
+    /**
+     * Count a query made by the displayer running on this thread, if any.
+     * @param rows the number of rows it fetched
+     */
+    static void countQuery(int rows) {
+        Sample sample = CURRENT.get();
+        if (sample != null) {
+            sample.queries++;
+            sample.rows += rows;
+        }
+    }
+
+    /**
+     * Unregister the JMX beans of the metrics of this webapp, if they were ever created, so a
+     * redeployed webapp can register its own.
+     * @param servletContext the servlet context
+     */
+    public static synchronized void shutdown(ServletContext servletContext) {
+        DisplayerMetrics metrics = (DisplayerMetrics) servletContext.getAttribute(
+                CONTEXT_ATTRIBUTE);
+        if (metrics != null) {
+            servletContext.removeAttribute(CONTEXT_ATTRIBUTE);
+            metrics.closed = true;
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (DisplayerStats displayerStats : metrics.stats.values()) {
+                try {
+                    ObjectName name = objectName(displayerStats);
+                    if (server.isRegistered(name)) {
+                        server.unregisterMBean(name);
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Couldn't unregister JMX bean for displayer "
+                            + displayerStats.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the stats for every displayer recorded so far, ordered by name
+     */
+    public List<DisplayerStats> getStats() {
+        List<DisplayerStats> all = new ArrayList<DisplayerStats>(stats.values());
+        Collections.sort(all, new Comparator<DisplayerStats>() {
+            public int compare(DisplayerStats a, DisplayerStats b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return all;
+    }
+
+    /**
+     * @return the slow display threshold in milliseconds
+     */
+    public long getSlowThresholdMillis() {
+        return slowThresholdMillis;
+    }
+
+    private DisplayerStats stats(String displayer) {
+        DisplayerStats displayerStats = stats.get(displayer);
+        if (displayerStats == null) {
+            displayerStats = new DisplayerStats(displayer);
+            DisplayerStats existing = stats.putIfAbsent(displayer, displayerStats);
+            if (existing != null) {
+                return existing;
+            }
+            if (!closed) {
+                register(displayerStats);
+            }
+        }
+        return displayerStats;
+    }
+
+    private static void register(DisplayerStats displayerStats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(displayerStats);
+            // left behind by a deployment of the webapp that wasn't shut down
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(displayerStats, name);
+        } catch (Exception e) {
+            LOG.warn("Couldn't register JMX bean for displayer " + displayerStats.getName(), e);
+        }
+    }
+
+    private static ObjectName objectName(DisplayerStats displayerStats)
+        throws MalformedObjectNameException {
+        return new ObjectName("org.flymine:type=Displayer,name="
+                + ObjectName.quote(displayerStats.getName()));
+    }
+
+    /**
+     * A display in progress.
+     */
+    public final class Sample
+    {
+        private final DisplayerStats displayerStats;
+        private final Sample outer;
+        private final long start = System.nanoTime();
+        private int queries = 0;
+        private long rows = 0;
+
+        private Sample(DisplayerStats displayerStats, Sample outer) {
+            this.displayerStats = displayerStats;
+            this.outer = outer;
+        }
+
+        /**
+         * Record the display and stop counting queries for it.
+         * @param objectId the id of the object displayed, for the slow display log
+         */
+        public void stop(Integer objectId) {
+            long micros = (System.nanoTime() - start) / 1000;
+            boolean slow = micros / 1000 >= slowThresholdMillis;
+            displayerStats.record(micros, queries, rows, slow);
+            CURRENT.set(outer);
+            if (outer != null) {
+                // a displayer delegating to another, charge the work to both
+                outer.queries += queries;
+                outer.rows += rows;
+            }
+            if (slow) {
+                LOG.warn("Slow display: " + displayerStats.getName() + " for object "
+                        + objectId + " took " + (micros / 1000) + " ms, " + queries
+                        + " queries, " + rows + " rows");
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Timings and query counts for one report page displayer.  Wall times in microseconds, up to
+ * ten minutes, and the queries and rows of each display are each kept in an HDR histogram to
+ * three significant digits, so every metric has a mean and percentiles per display.
+ */
+public class DisplayerStats implements DisplayerStatsMBean
+{
+    private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final long MAX_QUERIES = 1000000L;
+    private static final long MAX_ROWS = 1000000000L;
+
+    private final String name;
+    private final Histogram wallMicros = new ConcurrentHistogram(MAX_MICROS, 3);
+    private final Histogram queries = new ConcurrentHistogram(MAX_QUERIES, 3);
+    private final Histogram rows = new ConcurrentHistogram(MAX_ROWS, 3);
+    private final AtomicLong slowDisplays = new AtomicLong();
+
+    /**
+     * @param name the displayer name
+     */
+    public DisplayerStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the displayer name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record one display.
+     * @param micros the wall time in microseconds
+     * @param queryCount the ObjectStore queries issued
+     * @param rowCount the rows fetched
+     * @param slow true if the display was slower than the threshold
+     */
+    void record(long micros, long queryCount, long rowCount, boolean slow) {
+        wallMicros.recordValue(Math.min(Math.max(micros, 0), MAX_MICROS));
+        queries.recordValue(Math.min(Math.max(queryCount, 0), MAX_QUERIES));
+        rows.recordValue(Math.min(Math.max(rowCount, 0), MAX_ROWS));
+        if (slow) {
+            slowDisplays.incrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCount() {
+        return wallMicros.getTotalCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMeanMillis() {
+        return wallMicros.getMean() / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getP50Millis() {
+        return wallMicros.getValueAtPercentile(50.0) / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getP99Millis() {
+        return wallMicros.getValueAtPercentile(99.0) / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMaxMillis() {
+        return wallMicros.getMaxValue() / 1000.0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMeanQueries() {
+        return queries.getMean();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP50Queries() {
+        return queries.getValueAtPercentile(50.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP99Queries() {
+        return queries.getValueAtPercentile(99.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMaxQueries() {
+        return queries.getMaxValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getMeanRows() {
+        return rows.getMean();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP50Rows() {
+        return rows.getValueAtPercentile(50.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getP99Rows() {
+        return rows.getValueAtPercentile(99.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMaxRows() {
+        return rows.getMaxValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSlowDisplays() {
+        return slowDisplays.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        wallMicros.reset();
+        queries.reset();
+        rows.reset();
+        slowDisplays.set(0);
+    }
+}
@@ -0,0 +1,92 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * JMX view of the timings and query counts of one report page displayer.
+ */
+public interface DisplayerStatsMBean
+{
+    /**
+     * @return the number of displays recorded
+     */
+    long getCount();
+
+    /**
+     * @return the mean wall time in milliseconds
+     */
+    double getMeanMillis();
+
+    /**
+     * @return the median wall time in milliseconds
+     */
+    double getP50Millis();
+
+    /**
+     * @return the 99th percentile wall time in milliseconds
+     */
+    double getP99Millis();
+
+    /**
+     * @return the longest wall time in milliseconds
+     */
+    double getMaxMillis();
+
+    /**
+     * @return the mean number of ObjectStore queries issued per display
+     */
+    double getMeanQueries();
+
+    /**
+     * @return the median number of queries per display
+     */
+    long getP50Queries();
+
+    /**
+     * @return the 99th percentile number of queries per display
+     */
+    long getP99Queries();
+
+    /**
+     * @return the most queries of one display
+     */
+    long getMaxQueries();
+
+    /**
+     * @return the mean number of rows fetched per display
+     */
+    double getMeanRows();
+
+    /**
+     * @return the median number of rows per display
+     */
+    long getP50Rows();
+
+    /**
+     * @return the 99th percentile number of rows per display
+     */
+    long getP99Rows();
+
+    /**
+     * @return the most rows of one display
+     */
+    long getMaxRows();
+
+    /**
+     * @return the number of displays slower than the slow display threshold
+     */
+    long getSlowDisplays();
+
+    /**
+     * Start counting again from zero.
+     */
+    void reset();
+}
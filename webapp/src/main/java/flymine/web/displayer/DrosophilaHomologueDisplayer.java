@@ -11,121 +11,281 @@ package org.flymine.web.displayer;
  */
 
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.collections.map.ListOrderedMap;
+import org.apache.log4j.Logger;
+import org.flymine.summary.DrosophilaHomologyMatrix;
+import org.flymine.web.ColumnarJsonWriter;
 import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
 import org.intermine.api.results.ResultElement;
-import org.intermine.model.bio.DataSet;
+import org.intermine.model.InterMineObject;
 import org.intermine.model.bio.Gene;
 import org.intermine.model.bio.Organism;
-import org.intermine.model.bio.Homologue;
-import org.intermine.pathquery.Path;
-import org.intermine.pathquery.PathException;
-import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.PathQuery;
 import org.intermine.web.logic.config.ReportDisplayerConfig;
-import org.intermine.web.logic.results.ReportObject;
+import org.intermine.web.logic.session.SessionMethods;
 
 /**
  * Displayer for drosophila homologue data
  * @author rns
  */
-public class DrosophilaHomologueDisplayer extends ReportDisplayer
+public class DrosophilaHomologueDisplayer extends CachedReportDisplayer
 {
-
+    private static final Logger LOG = Logger.getLogger(DrosophilaHomologueDisplayer.class);
     private static final List<String> SPECIES = Arrays.asList(new String[] {"grimshawi",
         "virilis", "mojavensis", "willistoni", "persimilis", "pseudoobscura", "ananassae",
         "erecta", "yakuba", "melanogaster", "sechellia", "simulans"});
-    private static final String HOMOLOGY_DATASET = "Drosophila 12 Genomes Consortium homology";
-    private static final String GENUS = "Drosophila";
+    private static final String PIVOT_SPECIES = DrosophilaHomologyMatrix.PIVOT_SPECIES;
+    private static final long INDEX_CHECK_INTERVAL = 60 * 1000L;
+
+    // the fallback queries, as precomputed by DrosophilaHomologyMatrix
+    private final PathQuery homologuesTemplate;
+    private final PathQuery recentredTemplate;
+    // precomputed homology of this release, null if there isn't any; guarded by this
+    private DrosophilaHomologyIndex index;
+    private long indexChecked = 0;
+    private String ignoredRelease;
+
     /**
      * @param config report object config
      * @param im intermine API
      */
     public DrosophilaHomologueDisplayer(ReportDisplayerConfig config, InterMineAPI im) {
         super(config, im);
+        homologuesTemplate = validated(DrosophilaHomologyMatrix.homologuesQuery(im.getModel()));
+        recentredTemplate = validated(DrosophilaHomologyMatrix.recentredQuery(im.getModel()));
+    }
+
+    /**
+     * Look at the release of the homology table at most once a minute, loading it again when
+     * it has been rebuilt for another release.
+     * @param releaseVersion the release of this webapp
+     * @return the precomputed homology of this release, or null if there isn't any
+     */
+    private synchronized DrosophilaHomologyIndex index(String releaseVersion) {
+        long now = System.currentTimeMillis();
+        if (now - indexChecked < INDEX_CHECK_INTERVAL) {
+            return index;
+        }
+        indexChecked = now;
+        String release = DrosophilaHomologyIndex.readRelease(im.getObjectStore());
+        if (release == null || !release.equals(releaseVersion)) {
+            if (release != null && !release.equals(ignoredRelease)) {
+                // the ids of another release would be of other genes
+                LOG.warn("Ignoring " + DrosophilaHomologyMatrix.TABLE_NAME + " of release "
+                        + release + ", this is release " + releaseVersion);
+                ignoredRelease = release;
+            }
+            index = null;
+        } else if (index == null || !release.equals(index.getRelease())) {
+            index = DrosophilaHomologyIndex.load(im.getObjectStore());
+        }
+        return index;
     }
 
     @Override
-    public void display(HttpServletRequest request, ReportObject reportObject) {
+    protected void displayUncached(HttpServletRequest request, InterMineObject object) {
 
-        Map<String, Set<ResultElement>> homologues = initMap();
+        Map<String, Set<HomologueElement>> homologues = initMap();
         Map<String, String> organismIds = new HashMap<String, String>();
 
-        Path symbolPath = null;
-        try {
-            symbolPath = new Path(im.getModel(), "Gene.symbol");
-        } catch (PathException e) {
+        Gene gene = (Gene) object;
+        Organism organism = gene.getOrganism();
+        // show displayer on Drosophila report pages only
+        if (organism == null || !DrosophilaHomologyMatrix.GENUS.equals(organism.getGenus())) {
+            return;
+        }
+        String thisSpecies = organism.getSpecies();
+        // the 12 genomes homology only links melanogaster genes, for other species show the
+        // homologues of the melanogaster homologue
+        boolean isRecentred = !PIVOT_SPECIES.equals(thisSpecies);
+        DrosophilaHomologyIndex homology = index(SessionMethods.getWebProperties(
+                    request.getSession().getServletContext())
+                .getProperty("project.releaseVersion", "").trim());
+        if (homology != null) {
+            readIndex(homology, gene.getId().intValue(), thisSpecies, isRecentred, homologues,
+                    organismIds);
+        } else if (!runQuery(request, gene.getId(), thisSpecies, isRecentred, homologues,
+                    organismIds)) {
             return;
         }
 
-        Gene gene = (Gene) reportObject.getObject();
-        boolean isRecentred = !GENUS.equals(gene.getOrganism().getGenus());
-        String thisSpecies = gene.getOrganism().getGenus();
-        // show displayer on Drosophila report pages only
-        if (GENUS.equals(thisSpecies)) {
-            request.setAttribute("willBeDisplayed", Boolean.TRUE);
+        request.setAttribute("willBeDisplayed", Boolean.TRUE);
+        if (isRecentred) {
+            request.setAttribute("origSymbol", gene.getSymbol());
+        }
+        request.setAttribute("organismIds", organismIds);
+        request.setAttribute("isRecentred", isRecentred);
+        request.setAttribute("homologues", homologues);
+    }
 
-            if (isRecentred) {
-                request.setAttribute("origSymbol", gene.getSymbol());
-            HOMOLOGUES:
-                for (Homologue homologue : gene.getHomologues()) {
-                    for (DataSet dataSet : homologue.getDataSets()) {
-                        if (HOMOLOGY_DATASET.equals(dataSet.getName())) {
-                            String species = homologue.getHomologue().getOrganism().getSpecies();
-                            if ("melanogaster".equals(species)) {
-                                ResultElement re = new ResultElement(homologue.getHomologue(),
-                                           symbolPath, true);
-                                addToMap(homologues, species, re);
-                                gene = homologue.getHomologue();
-                                break HOMOLOGUES;
-                            }
-                        }
-                    }
-                }
+    /**
+     * Writes whether the tree is shown and, if so, one row per homologue and one per organism:
+     * {"displayed": true, "recentred": false, "origSymbol": null, "allSpecies": [...],
+     * "species": [...], "homologueId": [...], "symbol": [...], "organismSpecies": [...],
+     * "organismId": [...]}.
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeJson(Map<String, Object> attributes, Appendable out) throws IOException {
+        ColumnarJsonWriter writer = new ColumnarJsonWriter(out);
+        boolean displayed = Boolean.TRUE.equals(attributes.get("willBeDisplayed"));
+        writer.value("displayed", displayed);
+        if (!displayed) {
+            writer.close();
+            return;
+        }
+        Map<String, Set<HomologueElement>> homologues
+            = (Map<String, Set<HomologueElement>>) attributes.get("homologues");
+        Map<String, String> organismIds = (Map<String, String>) attributes.get("organismIds");
+        int size = 0;
+        for (Set<HomologueElement> speciesHomologues : homologues.values()) {
+            size += speciesHomologues.size();
+        }
+        String[] species = new String[size];
+        int[] homologueIds = new int[size];
+        String[] symbols = new String[size];
+        int i = 0;
+        for (Map.Entry<String, Set<HomologueElement>> entry : homologues.entrySet()) {
+            for (HomologueElement homologue : entry.getValue()) {
+                species[i] = entry.getKey();
+                homologueIds[i] = homologue.getId().intValue();
+                symbols[i] = homologue.getField();
+                i++;
             }
+        }
+        String[] allSpecies = homologues.keySet().toArray(new String[homologues.size()]);
+        String[] organismSpecies = organismIds.keySet().toArray(new String[organismIds.size()]);
+        String[] organisms = new String[organismSpecies.length];
+        for (int j = 0; j < organismSpecies.length; j++) {
+            organisms[j] = organismIds.get(organismSpecies[j]);
+        }
+        writer.value("recentred", Boolean.TRUE.equals(attributes.get("isRecentred")))
+            .value("origSymbol", (String) attributes.get("origSymbol"))
+            .column("allSpecies", allSpecies, allSpecies.length)
+            .column("species", species, size)
+            .column("homologueId", homologueIds, size)
+            .column("symbol", symbols, size)
+            .column("organismSpecies", organismSpecies, organismSpecies.length)
+            .column("organismId", organisms, organisms.length)
+            .close();
+    }
 
-            for (Homologue homologue : gene.getHomologues()) {
-                for (DataSet dataSet : homologue.getDataSets()) {
-                    if (HOMOLOGY_DATASET.equals(dataSet.getName())) {
-                        Organism org = homologue.getHomologue().getOrganism();
-                        organismIds.put(org.getSpecies(), org.getId().toString());
-                        ResultElement re = new ResultElement(homologue.getHomologue(),
-                                symbolPath, true);
-                        String species = org.getSpecies();
-                        if (!isRecentred || (isRecentred && !thisSpecies.equals(species))) {
-                            addToMap(homologues, species, re);
-                        }
-                    }
+    private void readIndex(DrosophilaHomologyIndex index, int geneId, String thisSpecies,
+            boolean isRecentred, Map<String, Set<HomologueElement>> homologues,
+            Map<String, String> organismIds) {
+        if (isRecentred) {
+            int pivotId = -1;
+            for (int row = index.firstRow(geneId), end = index.endRow(geneId); row < end;
+                    row++) {
+                if (PIVOT_SPECIES.equals(index.getSpecies(row))) {
+                    pivotId = index.getHomologueId(row);
+                    addToMap(homologues, PIVOT_SPECIES, new HomologueElement(
+                                new Integer(pivotId), index.getSymbol(row)));
+                    break;
                 }
             }
+            if (pivotId == -1) {
+                return;
+            }
+            geneId = pivotId;
+        }
+        for (int row = index.firstRow(geneId), end = index.endRow(geneId); row < end; row++) {
+            String species = index.getSpecies(row);
+            organismIds.put(species, String.valueOf(index.getOrganismId(row)));
+            if (!isRecentred || !species.equals(thisSpecies)) {
+                addToMap(homologues, species, new HomologueElement(
+                            new Integer(index.getHomologueId(row)), index.getSymbol(row)));
+            }
+        }
+    }
+
+    private boolean runQuery(HttpServletRequest request, Integer geneId, String thisSpecies,
+            boolean isRecentred, Map<String, Set<HomologueElement>> homologues,
+            Map<String, String> organismIds) {
+        PathQuery q = isRecentred ? recentredTemplate : homologuesTemplate;
+        if (q == null) {
+            return false;
+        }
+        q = q.clone();
+        q.addConstraint(Constraints.eq("Gene.id", "" + geneId));
+
+        Profile profile = SessionMethods.getProfile(request.getSession());
+        PathQueryExecutor executor = getPathQueryExecutor(profile);
+        ExportResultsIterator it;
+        try {
+            it = executor.execute(q);
+        } catch (ObjectStoreException e) {
+            throw new RuntimeException(e);
+        }
+        int offset = isRecentred ? 1 : 0;
+        while (it.hasNext()) {
+            List<ResultElement> row = it.next();
+            if (isRecentred) {
+                addToMap(homologues, PIVOT_SPECIES, toHomologue(row.get(0)));
+            }
+            ResultElement symbol = row.get(offset);
+            ResultElement species = row.get(offset + 1);
+            ResultElement organismId = row.get(offset + 2);
+            if (symbol == null || symbol.getId() == null || species == null
+                    || species.getField() == null) {
+                // no homologues of the melanogaster homologue
+                continue;
+            }
+            String homologueSpecies = (String) species.getField();
+            if (organismId != null && organismId.getField() != null) {
+                organismIds.put(homologueSpecies, organismId.getField().toString());
+            }
+            if (!isRecentred || !homologueSpecies.equals(thisSpecies)) {
+                addToMap(homologues, homologueSpecies, toHomologue(symbol));
+            }
+        }
+        return true;
+    }
+
+    private static HomologueElement toHomologue(ResultElement re) {
+        return new HomologueElement(re.getId(), (String) re.getField());
+    }
 
-            request.setAttribute("organismIds", organismIds);
-            request.setAttribute("isRecentred", isRecentred);
-            request.setAttribute("homologues", homologues);
+    private PathQuery validated(PathQuery q) {
+        PathQuery check = q.clone();
+        check.addConstraint(Constraints.eq("Gene.id", "0"));
+        if (!check.isValid()) {
+            LOG.error("Drosophila homologue query is not valid for this model: "
+                    + check.verifyQuery());
+            return null;
         }
+        return q;
     }
 
-    private Map<String, Set<ResultElement>> initMap() {
-        Map<String, Set<ResultElement>> homologues = new ListOrderedMap();
+    private Map<String, Set<HomologueElement>> initMap() {
+        Map<String, Set<HomologueElement>> homologues = new ListOrderedMap();
         for (String species : SPECIES) {
             addToMap(homologues, species, null);
         }
         return homologues;
     }
 
-    private void addToMap(Map<String, Set<ResultElement>> homologues, String species,
-            ResultElement re) {
-        Set<ResultElement> speciesHomologues = homologues.get(species);
+    private void addToMap(Map<String, Set<HomologueElement>> homologues, String species,
+            HomologueElement re) {
+        Set<HomologueElement> speciesHomologues = homologues.get(species);
         if (speciesHomologues == null) {
-            speciesHomologues = new HashSet<ResultElement>();
+            speciesHomologues = new HashSet<HomologueElement>();
             homologues.put(species, speciesHomologues);
         }
         if (re != null) {
@@ -0,0 +1,245 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.flymine.summary.DrosophilaHomologyMatrix;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+
+/**
+ * An in-memory copy of the drosophila_homology_matrix table built by DrosophilaHomologyMatrix
+ * (the create-drosophila-homology-matrix post-process), with the data release it was built for.
+ * Rows are held in primitive arrays sorted by gene id and found through an open addressing
+ * hash of gene id to first row, so finding the homologues of a gene takes constant time.
+ */
+public final class DrosophilaHomologyIndex
+{
+    private static final Logger LOG = Logger.getLogger(DrosophilaHomologyIndex.class);
+
+    private final int[] slotGeneIds;
+    private final int[] slotFirstRows;
+    private final int mask;
+    private final int[] rowGeneIds;
+    private final int[] homologueIds;
+    private final byte[] speciesIndexes;
+    private final String[] symbols;
+    private final String[] speciesNames;
+    private final int[] organismIds;
+    private final String release;
+
+    private DrosophilaHomologyIndex(String release, int[] rowGeneIds, int[] homologueIds,
+            byte[] speciesIndexes, String[] symbols, String[] speciesNames, int[] organismIds) {
+        this.release = release;
+        this.rowGeneIds = rowGeneIds;
+        this.homologueIds = homologueIds;
+        this.speciesIndexes = speciesIndexes;
+        this.symbols = symbols;
+        this.speciesNames = speciesNames;
+        this.organismIds = organismIds;
+        int capacity = Integer.highestOneBit(Math.max(rowGeneIds.length, 1)) * 4;
+        mask = capacity - 1;
+        slotGeneIds = new int[capacity];
+        slotFirstRows = new int[capacity];
+        Arrays.fill(slotFirstRows, -1);
+        for (int row = 0; row < rowGeneIds.length; row++) {
+            if (row > 0 && rowGeneIds[row] == rowGeneIds[row - 1]) {
+                continue;
+            }
+            int slot = slot(rowGeneIds[row]);
+            slotGeneIds[slot] = rowGeneIds[row];
+            slotFirstRows[slot] = row;
+        }
+    }
+
+    /**
+     * Read the release of the table, to see if it needs loading again.
+     * @param os the production ObjectStore
+     * @return the release the table was built for, or null if the table can't be read
+     */
+    public static String readRelease(ObjectStore os) {
+        if (!(os instanceof ObjectStoreInterMineImpl)) {
+            return null;
+        }
+        ObjectStoreInterMineImpl osimi = (ObjectStoreInterMineImpl) os;
+        Connection con = null;
+        try {
+            con = osimi.getConnection();
+            return DrosophilaHomologyMatrix.getRelease(con);
+        } catch (SQLException e) {
+            LOG.debug("Couldn't read the release of " + DrosophilaHomologyMatrix.TABLE_NAME + ": "
+                    + e.getMessage());
+            return null;
+        } finally {
+            if (con != null) {
+                osimi.releaseConnection(con);
+            }
+        }
+    }
+
+    /**
+     * Read the table into memory.
+     * @param os the production ObjectStore
+     * @return the index, or null if the table can't be read - eg. it hasn't been built
+     */
+    public static DrosophilaHomologyIndex load(ObjectStore os) {
+        if (!(os instanceof ObjectStoreInterMineImpl)) {
+            return null;
+        }
+        ObjectStoreInterMineImpl osimi = (ObjectStoreInterMineImpl) os;
+        long start = System.currentTimeMillis();
+        Connection con = null;
+        try {
+            con = osimi.getConnection();
+            String release = DrosophilaHomologyMatrix.getRelease(con);
+            Statement s = con.createStatement();
+            ResultSet rs = s.executeQuery("SELECT geneid, homologueid, symbol, species, "
+                    + "organismid FROM " + DrosophilaHomologyMatrix.TABLE_NAME
+                    + " ORDER BY geneid");
+            int size = 0;
+            int[] geneIds = new int[1024];
+            int[] homologueIds = new int[1024];
+            byte[] speciesIndexes = new byte[1024];
+            String[] symbols = new String[1024];
+            Map<String, Integer> speciesLookup = new HashMap<String, Integer>();
+            List<String> speciesNames = new ArrayList<String>();
+            List<Integer> organismIds = new ArrayList<Integer>();
+            while (rs.next()) {
+                if (size == geneIds.length) {
+                    int newLength = size * 2;
+                    geneIds = Arrays.copyOf(geneIds, newLength);
+                    homologueIds = Arrays.copyOf(homologueIds, newLength);
+                    speciesIndexes = Arrays.copyOf(speciesIndexes, newLength);
+                    symbols = Arrays.copyOf(symbols, newLength);
+                }
+                String species = rs.getString(4);
+                Integer speciesIndex = speciesLookup.get(species);
+                if (speciesIndex == null) {
+                    if (speciesNames.size() == Byte.MAX_VALUE) {
+                        throw new IllegalStateException("too many species in "
+                                + DrosophilaHomologyMatrix.TABLE_NAME);
+                    }
+                    speciesIndex = new Integer(speciesNames.size());
+                    speciesLookup.put(species, speciesIndex);
+                    speciesNames.add(species);
+                    organismIds.add(new Integer(rs.getInt(5)));
+                }
+                geneIds[size] = rs.getInt(1);
+                homologueIds[size] = rs.getInt(2);
+                symbols[size] = rs.getString(3);
+                speciesIndexes[size] = speciesIndex.byteValue();
+                size++;
+            }
+            rs.close();
+            s.close();
+            int[] organismIdArray = new int[organismIds.size()];
+            for (int i = 0; i < organismIdArray.length; i++) {
+                organismIdArray[i] = organismIds.get(i).intValue();
+            }
+            DrosophilaHomologyIndex index = new DrosophilaHomologyIndex(release,
+                    Arrays.copyOf(geneIds, size), Arrays.copyOf(homologueIds, size),
+                    Arrays.copyOf(speciesIndexes, size), Arrays.copyOf(symbols, size),
+                    speciesNames.toArray(new String[speciesNames.size()]), organismIdArray);
+            LOG.info("Loaded " + size + " rows of release " + release + " from "
+                    + DrosophilaHomologyMatrix.TABLE_NAME + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return index;
+        } catch (SQLException e) {
+            LOG.warn("Couldn't read " + DrosophilaHomologyMatrix.TABLE_NAME
+                    + ", querying homologues instead: " + e.getMessage());
+            return null;
+        } finally {
+            if (con != null) {
+                osimi.releaseConnection(con);
+            }
+        }
+    }
+
+    /**
+     * @return the data release the table was built for
+     */
+    public String getRelease() {
+        return release;
+    }
+
+    private int slot(int geneId) {
+        int slot = (geneId * 0x9E3779B9) & mask;
+        while (slotFirstRows[slot] != -1 && slotGeneIds[slot] != geneId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param geneId a gene id
+     * @return the first row for the gene, or -1 if it has no homologues
+     */
+    public int firstRow(int geneId) {
+        return slotFirstRows[slot(geneId)];
+    }
+
+    /**
+     * @param geneId a gene id
+     * @return one after the last row for the gene
+     */
+    public int endRow(int geneId) {
+        int row = firstRow(geneId);
+        if (row == -1) {
+            return -1;
+        }
+        while (row < rowGeneIds.length && rowGeneIds[row] == geneId) {
+            row++;
+        }
+        return row;
+    }
+
+    /**
+     * @param row a row
+     * @return the id of the homologous gene
+     */
+    public int getHomologueId(int row) {
+        return homologueIds[row];
+    }
+
+    /**
+     * @param row a row
+     * @return the symbol of the homologous gene
+     */
+    public String getSymbol(int row) {
+        return symbols[row];
+    }
+
+    /**
+     * @param row a row
+     * @return the species of the homologous gene
+     */
+    public String getSpecies(int row) {
+        return speciesNames[speciesIndexes[row]];
+    }
+
+    /**
+     * @param row a row
+     * @return the organism id of the homologous gene
+     */
+    public int getOrganismId(int row) {
+        return organismIds[speciesIndexes[row]];
+    }
+}
@@ -11,26 +11,45 @@ package org.flymine.web.displayer;
  */
 
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.flymine.web.ColumnarJsonWriter;
+import org.flymine.web.QueryTemplate;
 import org.intermine.api.InterMineAPI;
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.model.InterMineObject;
 import org.intermine.model.bio.FlyAtlasResult;
 import org.intermine.model.bio.Gene;
-import org.intermine.model.bio.MicroArrayResult;
-import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.model.bio.Tissue;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.ResultsRow;
 import org.intermine.web.logic.config.ReportDisplayerConfig;
-import org.intermine.web.logic.results.ReportObject;
-import org.json.JSONArray;
 
 /**
  * Displayer for flyatlas expression data.
  * @author Alex
  */
-public class FlyAtlasDisplayer extends ReportDisplayer
+public class FlyAtlasDisplayer extends CachedReportDisplayer
 {
+    // there are only a few dozen tissues across all FlyAtlasResults, share one copy of each name
+    private static final ConcurrentMap<String, String> TISSUE_NAMES
+        = new ConcurrentHashMap<String, String>();
+    private static final QueryTemplate RESULTS = resultsTemplate();
 
     /**
      * @param config configuration object
@@ -41,35 +60,130 @@ public class FlyAtlasDisplayer extends ReportDisplayer
     }
 
     @Override
-    public void display(HttpServletRequest request, ReportObject reportObject) {
-
-        Gene gene = (Gene) reportObject.getObject();
-
-        List<Double> signals = new ArrayList<Double>();
-        List<String> names = new ArrayList<String>();
-        List<String> affyCalls = new ArrayList<String>();
-        List<Double> enrichments = new ArrayList<Double>();
-        List<Integer> presentCalls = new ArrayList<Integer>();
-        List<String> objectIds = new ArrayList<String>();
-
-        for (MicroArrayResult mar: gene.getMicroArrayResults()) {
-            if (mar instanceof FlyAtlasResult) {
-                FlyAtlasResult far = (FlyAtlasResult) mar;
-                objectIds.add(String.valueOf(far.getId()));
-                signals.add(far.getMRNASignal());
-                names.add(far.getTissue().getName());
-                affyCalls.add(far.getAffyCall());
-                enrichments.add(far.getEnrichment());
-                presentCalls.add(far.getPresentCall());
+    protected void displayUncached(HttpServletRequest request, InterMineObject object) {
+        Gene gene = (Gene) object;
+        StringBuilder json = new StringBuilder();
+        int rows;
+        try {
+            rows = writeJson(getObjectStore(), gene.getId(), json);
+        } catch (IOException e) {
+            // can't happen writing to a StringBuilder
+            throw new RuntimeException(e);
+        }
+        request.setAttribute("flyAtlasRows", new Integer(rows));
+        request.setAttribute("flyAtlasData", json.toString());
+    }
+
+    @Override
+    public void writeJson(Map<String, Object> attributes, Appendable out) throws IOException {
+        out.append((String) attributes.get("flyAtlasData"));
+    }
+
+    /**
+     * Write the FlyAtlas results for a gene as one columnar JSON object:
+     * {"ids": [...], "tissues": [distinct tissue names], "tissue": [index into tissues, per row],
+     * "signals": [...], "enrichments": [...], "presentCalls": [...], "affyCalls": [...]}.
+     * @param os the ObjectStore to query
+     * @param geneId the gene
+     * @param out where to write the JSON
+     * @return the number of results written
+     * @throws IOException if writing fails
+     */
+    public static int writeJson(ObjectStore os, Integer geneId, Appendable out)
+        throws IOException {
+        int size = 0;
+        int[] ids = new int[32];
+        int[] tissues = new int[32];
+        double[] signals = new double[32];
+        double[] enrichments = new double[32];
+        int[] presentCalls = new int[32];
+        String[] affyCalls = new String[32];
+        Map<String, Integer> tissueIndexes = new HashMap<String, Integer>();
+        String[] tissueNames = new String[8];
+
+        Iterator<?> iter = os.execute(RESULTS.bind(geneId)).iterator();
+        while (iter.hasNext()) {
+            ResultsRow row = (ResultsRow) iter.next();
+            if (size == ids.length) {
+                int newLength = size * 2;
+                ids = Arrays.copyOf(ids, newLength);
+                tissues = Arrays.copyOf(tissues, newLength);
+                signals = Arrays.copyOf(signals, newLength);
+                enrichments = Arrays.copyOf(enrichments, newLength);
+                presentCalls = Arrays.copyOf(presentCalls, newLength);
+                affyCalls = Arrays.copyOf(affyCalls, newLength);
+            }
+            String tissue = internTissue((String) row.get(2));
+            Integer tissueIndex = tissueIndexes.get(tissue);
+            if (tissueIndex == null) {
+                tissueIndex = new Integer(tissueIndexes.size());
+                tissueIndexes.put(tissue, tissueIndex);
+                if (tissueIndex.intValue() == tissueNames.length) {
+                    tissueNames = Arrays.copyOf(tissueNames, tissueNames.length * 2);
+                }
+                tissueNames[tissueIndex.intValue()] = tissue;
             }
+            ids[size] = ((Integer) row.get(0)).intValue();
+            signals[size] = doubleValue(row.get(1));
+            tissues[size] = tissueIndex.intValue();
+            affyCalls[size] = (String) row.get(3);
+            enrichments[size] = doubleValue(row.get(4));
+            presentCalls[size] = (row.get(5) == null) ? ColumnarJsonWriter.NULL_INT
+                : ((Integer) row.get(5)).intValue();
+            size++;
         }
 
-        request.setAttribute("signals", signals.toString());
-        request.setAttribute("names", new JSONArray(names));
-        request.setAttribute("affyCalls", new JSONArray(affyCalls));
-        request.setAttribute("enrichments", enrichments.toString());
-        request.setAttribute("presentCalls", presentCalls.toString());
-        request.setAttribute("objectIds", new JSONArray(objectIds));
+        ColumnarJsonWriter writer = new ColumnarJsonWriter(out);
+        writer.column("ids", ids, size)
+            .column("tissues", tissueNames, tissueIndexes.size())
+            .column("tissue", tissues, size)
+            .column("signals", signals, size)
+            .column("enrichments", enrichments, size)
+            .column("presentCalls", presentCalls, size)
+            .column("affyCalls", affyCalls, size)
+            .close();
+        return size;
     }
 
+    private static double doubleValue(Object value) {
+        return (value == null) ? Double.NaN : ((Number) value).doubleValue();
+    }
+
+    private static String internTissue(String name) {
+        if (name == null) {
+            return null;
+        }
+        String existing = TISSUE_NAMES.putIfAbsent(name, name);
+        return (existing == null) ? name : existing;
+    }
+
+    /**
+     * [FlyAtlasResult.id, mRNASignal, tissue.name, affyCall, enrichment, presentCall] for a
+     * gene, with the tissue name fetched in the same query rather than by loading each tissue.
+     */
+    private static QueryTemplate resultsTemplate() {
+        Query q = new Query();
+        QueryClass qcResult = new QueryClass(FlyAtlasResult.class);
+        QueryClass qcGene = new QueryClass(Gene.class);
+        QueryClass qcTissue = new QueryClass(Tissue.class);
+        q.addFrom(qcResult);
+        q.addFrom(qcGene);
+        q.addFrom(qcTissue);
+        q.addToSelect(new QueryField(qcResult, "id"));
+        q.addToSelect(new QueryField(qcResult, "mRNASignal"));
+        QueryField tissueName = new QueryField(qcTissue, "name");
+        q.addToSelect(tissueName);
+        q.addToSelect(new QueryField(qcResult, "affyCall"));
+        q.addToSelect(new QueryField(qcResult, "enrichment"));
+        q.addToSelect(new QueryField(qcResult, "presentCall"));
+
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcResult, "genes"),
+                    ConstraintOp.CONTAINS, qcGene));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcResult, "tissue"),
+                    ConstraintOp.CONTAINS, qcTissue));
+        q.setConstraint(cs);
+        q.addToOrderBy(tissueName);
+        return new QueryTemplate(q, new QueryField(qcGene, "id"));
+    }
 }
@@ -0,0 +1,71 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.Serializable;
+
+/**
+ * A homologous gene shown by drosophilaHomologueDisplayer.jsp, with the same id and field
+ * properties as the ResultElement it replaces.
+ */
+public class HomologueElement implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private final Integer id;
+    private final String field;
+
+    /**
+     * @param id the id of the homologous gene
+     * @param field its symbol
+     */
+    public HomologueElement(Integer id, String field) {
+        this.id = id;
+        this.field = field;
+    }
+
+    /**
+     * @return the id of the homologous gene
+     */
+    public Integer getId() {
+        return id;
+    }
+
+    /**
+     * @return the symbol of the homologous gene
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof HomologueElement) && id.equals(((HomologueElement) o).id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return field + " (" + id + ")";
+    }
+}
@@ -0,0 +1,455 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A request scope for one report panel.  Attributes are kept to itself rather than shared with
+ * the wrapped request, so a panel can be computed on another thread or outside the page.
+ * Everything a displayer reads from the request is copied when it is created: the session,
+ * the page's attributes, the parameters, the headers and cookies, the URI and its parts, the
+ * user and the client and server addresses.  So a panel on another thread never touches the
+ * container's request, which only the thread handling it may use.  What can't be copied, the
+ * body, role checks, dispatchers and real paths, throws IllegalStateException.
+ */
+class PanelRequest extends HttpServletRequestWrapper
+{
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final HttpSession session;
+    private final Map<String, Object> inherited = new HashMap<String, Object>();
+    private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    private final Map<String, String[]> parameters;
+    private final Map<String, List<String>> headers
+        = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    private final Cookie[] cookies;
+    private final List<Locale> locales = new ArrayList<Locale>();
+    private final String authType;
+    private final String method;
+    private final String pathInfo;
+    private final String pathTranslated;
+    private final String contextPath;
+    private final String queryString;
+    private final String remoteUser;
+    private final Principal userPrincipal;
+    private final String requestedSessionId;
+    private final boolean requestedSessionIdValid;
+    private final boolean requestedSessionIdFromCookie;
+    private final boolean requestedSessionIdFromURL;
+    private final String requestURI;
+    private final String requestURL;
+    private final String servletPath;
+    private final String characterEncoding;
+    private final int contentLength;
+    private final String contentType;
+    private final String protocol;
+    private final String scheme;
+    private final String serverName;
+    private final int serverPort;
+    private final String remoteAddr;
+    private final String remoteHost;
+    private final int remotePort;
+    private final String localName;
+    private final String localAddr;
+    private final int localPort;
+    private final boolean secure;
+
+    /**
+     * Must be created on the thread handling the request.
+     * @param request the request
+     */
+    @SuppressWarnings("unchecked")
+    PanelRequest(HttpServletRequest request) {
+        super(request);
+        session = request.getSession();
+        Enumeration<String> names = request.getAttributeNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            inherited.put(name, request.getAttribute(name));
+        }
+        parameters = Collections.unmodifiableMap(new HashMap<String, String[]>(
+                    (Map<String, String[]>) request.getParameterMap()));
+        Enumeration<String> headerNames = request.getHeaderNames();
+        while (headerNames != null && headerNames.hasMoreElements()) {
+            String name = headerNames.nextElement();
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                headers.put(name, values);
+            }
+            values.addAll(Collections.list((Enumeration<String>) request.getHeaders(name)));
+        }
+        Cookie[] requestCookies = request.getCookies();
+        if (requestCookies == null) {
+            cookies = null;
+        } else {
+            cookies = new Cookie[requestCookies.length];
+            for (int i = 0; i < cookies.length; i++) {
+                cookies[i] = (Cookie) requestCookies[i].clone();
+            }
+        }
+        locales.addAll(Collections.list((Enumeration<Locale>) request.getLocales()));
+        authType = request.getAuthType();
+        method = request.getMethod();
+        pathInfo = request.getPathInfo();
+        pathTranslated = request.getPathTranslated();
+        contextPath = request.getContextPath();
+        queryString = request.getQueryString();
+        remoteUser = request.getRemoteUser();
+        userPrincipal = request.getUserPrincipal();
+        requestedSessionId = request.getRequestedSessionId();
+        requestedSessionIdValid = request.isRequestedSessionIdValid();
+        requestedSessionIdFromCookie = request.isRequestedSessionIdFromCookie();
+        requestedSessionIdFromURL = request.isRequestedSessionIdFromURL();
+        requestURI = request.getRequestURI();
+        requestURL = request.getRequestURL().toString();
+        servletPath = request.getServletPath();
+        characterEncoding = request.getCharacterEncoding();
+        contentLength = request.getContentLength();
+        contentType = request.getContentType();
+        protocol = request.getProtocol();
+        scheme = request.getScheme();
+        serverName = request.getServerName();
+        serverPort = request.getServerPort();
+        remoteAddr = request.getRemoteAddr();
+        remoteHost = request.getRemoteHost();
+        remotePort = request.getRemotePort();
+        localName = request.getLocalName();
+        localAddr = request.getLocalAddr();
+        localPort = request.getLocalPort();
+        secure = request.isSecure();
+    }
+
+    /**
+     * @return the attributes set on this scope
+     */
+    synchronized Map<String, Object> getAttributes() {
+        return new LinkedHashMap<String, Object>(attributes);
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return session;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+        return session;
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return attributes.containsKey(name) ? attributes.get(name) : inherited.get(name);
+    }
+
+    @Override
+    public synchronized Enumeration<String> getAttributeNames() {
+        Set<String> names = new LinkedHashSet<String>(inherited.keySet());
+        names.addAll(attributes.keySet());
+        return Collections.enumeration(names);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public synchronized void removeAttribute(String name) {
+        attributes.remove(name);
+        inherited.remove(name);
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return (values == null || values.length == 0) ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return (values == null || values.isEmpty()) ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        List<String> values = headers.get(name);
+        return Collections.enumeration((values == null) ? Collections.<String>emptyList()
+                : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+        String value = getHeader(name);
+        return (value == null) ? -1 : Integer.parseInt(value.trim());
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Header " + name + " isn't a date: " + value);
+        }
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return cookies;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locales.isEmpty() ? Locale.getDefault() : locales.get(0);
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        return Collections.enumeration(locales);
+    }
+
+    @Override
+    public String getAuthType() {
+        return authType;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return pathInfo;
+    }
+
+    @Override
+    public String getPathTranslated() {
+        return pathTranslated;
+    }
+
+    @Override
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    @Override
+    public String getQueryString() {
+        return queryString;
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return remoteUser;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return userPrincipal;
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        return requestedSessionId;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        return requestedSessionIdValid;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie() {
+        return requestedSessionIdFromCookie;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL() {
+        return requestedSessionIdFromURL;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean isRequestedSessionIdFromUrl() {
+        return requestedSessionIdFromURL;
+    }
+
+    @Override
+    public String getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        return new StringBuffer(requestURL);
+    }
+
+    @Override
+    public String getServletPath() {
+        return servletPath;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    @Override
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String getScheme() {
+        return scheme;
+    }
+
+    @Override
+    public String getServerName() {
+        return serverName;
+    }
+
+    @Override
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public String getLocalName() {
+        return localName;
+    }
+
+    @Override
+    public String getLocalAddr() {
+        return localAddr;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public void setCharacterEncoding(String encoding) {
+        throw unavailable("setCharacterEncoding");
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        throw unavailable("getInputStream");
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        throw unavailable("getReader");
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+        throw unavailable("isUserInRole");
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path) {
+        throw unavailable("getRequestDispatcher");
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public String getRealPath(String path) {
+        throw unavailable("getRealPath");
+    }
+
+    private static IllegalStateException unavailable(String method) {
+        return new IllegalStateException(method + "() isn't available to a report panel, "
+                + "which may run after its page's request");
+    }
+}
@@ -11,6 +11,7 @@ package org.flymine.web.displayer;
  */
 
 
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -19,30 +20,36 @@ import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.flymine.web.ColumnarJsonWriter;
+import org.flymine.web.QueryTemplate;
 import org.intermine.api.InterMineAPI;
-import org.intermine.api.profile.Profile;
-import org.intermine.api.query.PathQueryExecutor;
-import org.intermine.api.results.ExportResultsIterator;
-import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.model.InterMineObject;
 import org.intermine.model.bio.Gene;
-import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.pathquery.Constraints;
-import org.intermine.pathquery.OrderDirection;
-import org.intermine.pathquery.PathQuery;
-import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.model.bio.Publication;
+import org.intermine.model.bio.RNAiScreen;
+import org.intermine.model.bio.RNAiScreenHit;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.ResultsRow;
 import org.intermine.web.logic.config.ReportDisplayerConfig;
-import org.intermine.web.logic.results.ReportObject;
-import org.intermine.web.logic.session.SessionMethods;
 
 /**
  * Displayer for fly rnai data
  *
  * @author Julie Sullivan
  */
-public class RNAiDisplayer extends ReportDisplayer
+public class RNAiDisplayer extends CachedReportDisplayer
 {
     private static final Set<String> RESULT_SCORES = new LinkedHashSet<String>();
 
+    // the shape of the query is built once, only the gene id is bound for each gene
+    private static final QueryTemplate RNAI_RESULTS = rnaiResultsTemplate();
 
     /**
      * @param config report object config
@@ -61,29 +68,19 @@ public class RNAiDisplayer extends ReportDisplayer
     }
 
     @Override
-    public void display(HttpServletRequest request, ReportObject reportObject) {
-        Map<String, Map<ResultElement, ResultElement>> rnaiResults = initMap();
-        Gene gene = (Gene) reportObject.getObject();
-        PathQuery q = getQuery(im, gene.getId());
+    protected void displayUncached(HttpServletRequest request, InterMineObject object) {
+        Map<String, Map<RNAiScreen, Publication>> rnaiResults = initMap();
+        Gene gene = (Gene) object;
         boolean noResults = true;
-        if (q.isValid()) {
-            Profile profile = SessionMethods.getProfile(request.getSession());
-            PathQueryExecutor executor = im.getPathQueryExecutor(profile);
-            ExportResultsIterator it;
-            try {
-                it = executor.execute(q);
-            } catch (ObjectStoreException e) {
-                throw new RuntimeException(e);
-            }
-            while (it.hasNext()) {
-                List<ResultElement> row = it.next();
-                String score =  (String) row.get(0).getField();
-                ResultElement screen =  (ResultElement) row.get(1);
-                ResultElement pub =  (ResultElement) row.get(2);
-                Map<ResultElement, ResultElement> screens = rnaiResults.get(score);
-                screens.put(screen, pub);
-                noResults = false;
+        List<?> rows = getObjectStore().execute(RNAI_RESULTS.bind(gene.getId()));
+        for (Object o : rows) {
+            ResultsRow row = (ResultsRow) o;
+            Map<RNAiScreen, Publication> screens = rnaiResults.get((String) row.get(0));
+            if (screens == null) {
+                continue;
             }
+            screens.put((RNAiScreen) row.get(1), (Publication) row.get(2));
+            noResults = false;
         }
         if (noResults) {
             request.setAttribute("noRNAiMessage", "No RNAi results found");
@@ -92,27 +89,100 @@ public class RNAiDisplayer extends ReportDisplayer
         }
     }
 
+    /**
+     * Writes the scores in display order, then one row per screen hit, ordered by score:
+     * {"scores": [...], "score": [...], "screen": [screen name], "screenId": [...],
+     * "pubMedId": [...], "publicationId": [...]}.
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeJson(Map<String, Object> attributes, Appendable out) throws IOException {
+        Map<String, Map<RNAiScreen, Publication>> rnaiResults
+            = (Map<String, Map<RNAiScreen, Publication>>) attributes.get("results");
+        int size = 0;
+        String[] allScores = new String[0];
+        if (rnaiResults != null) {
+            for (Map<RNAiScreen, Publication> screens : rnaiResults.values()) {
+                size += screens.size();
+            }
+            allScores = rnaiResults.keySet().toArray(new String[rnaiResults.size()]);
+        }
+        String[] scores = new String[size];
+        String[] screenNames = new String[size];
+        int[] screenIds = new int[size];
+        String[] pubMedIds = new String[size];
+        int[] publicationIds = new int[size];
+        int i = 0;
+        if (rnaiResults != null) {
+            for (Map.Entry<String, Map<RNAiScreen, Publication>> score
+                    : rnaiResults.entrySet()) {
+                for (Map.Entry<RNAiScreen, Publication> screen
+                        : score.getValue().entrySet()) {
+                    scores[i] = score.getKey();
+                    screenNames[i] = screen.getKey().getName();
+                    screenIds[i] = intId(screen.getKey());
+                    Publication pub = screen.getValue();
+                    pubMedIds[i] = (pub == null) ? null : pub.getPubMedId();
+                    publicationIds[i] = intId(pub);
+                    i++;
+                }
+            }
+        }
+        new ColumnarJsonWriter(out).column("scores", allScores, allScores.length)
+            .column("score", scores, size)
+            .column("screen", screenNames, size)
+            .column("screenId", screenIds, size)
+            .column("pubMedId", pubMedIds, size)
+            .column("publicationId", publicationIds, size)
+            .close();
+    }
+
+    private static int intId(InterMineObject o) {
+        return (o == null || o.getId() == null) ? ColumnarJsonWriter.NULL_INT
+            : o.getId().intValue();
+    }
+
     /*
 <query name="" model="genomic" view="RNAiScreen.rnaiScreenHits.result RNAiScreen.name
 RNAiScreen.publication.pubMedId RNAiScreen.rnaiScreenHits.gene.primaryIdentifier"
 sortOrder="RNAiScreen.name asc">
 </query>
     */
-    private static PathQuery getQuery(InterMineAPI im, Integer geneId) {
-        PathQuery q = new PathQuery(im.getModel());
-        q.addViews("RNAiScreen.rnaiScreenHits.result", "RNAiScreen.name",
-                "RNAiScreen.publication.pubMedId");
-        q.addConstraint(Constraints.eq("RNAiScreen.rnaiScreenHits.gene.id", "" + geneId));
-        q.addOrderBy("RNAiScreen.name", OrderDirection.ASC);
-        return q;
+    // the query above as [RNAiScreenHit.result, RNAiScreen, Publication], bound to Gene.id
+    private static QueryTemplate rnaiResultsTemplate() {
+        Query q = new Query();
+        QueryClass screen = new QueryClass(RNAiScreen.class);
+        QueryClass hit = new QueryClass(RNAiScreenHit.class);
+        QueryClass gene = new QueryClass(Gene.class);
+        QueryClass pub = new QueryClass(Publication.class);
+        q.addFrom(screen);
+        q.addFrom(hit);
+        q.addFrom(gene);
+        q.addFrom(pub);
+        q.addToSelect(new QueryField(hit, "result"));
+        q.addToSelect(screen);
+        q.addToSelect(pub);
+
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(screen,
+                        "rnaiScreenHits"), ConstraintOp.CONTAINS, hit));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(hit, "gene"),
+                    ConstraintOp.CONTAINS, gene));
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(screen, "publication"),
+                    ConstraintOp.CONTAINS, pub));
+        q.setConstraint(cs);
+        q.addToOrderBy(new QueryField(screen, "name"));
+
+        return new QueryTemplate(q, new QueryField(gene, "id"));
     }
 
     // we want the scores to be in order - strong first, etc.
-    private Map<String, Map<ResultElement, ResultElement>> initMap() {
-        Map<String, Map<ResultElement, ResultElement>> scores
-            = new LinkedHashMap<String, Map<ResultElement, ResultElement>>();
+    private Map<String, Map<RNAiScreen, Publication>> initMap() {
+        Map<String, Map<RNAiScreen, Publication>> scores
+            = new LinkedHashMap<String, Map<RNAiScreen, Publication>>();
         for (String score : RESULT_SCORES) {
-            scores.put(score, new LinkedHashMap<ResultElement, ResultElement>());
+            scores.put(score, new LinkedHashMap<RNAiScreen, Publication>());
         }
         return scores;
     }
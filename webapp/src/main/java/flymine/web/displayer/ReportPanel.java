@@ -0,0 +1,47 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.intermine.model.InterMineObject;
+import org.intermine.web.logic.results.ReportObject;
+
+/**
+ * A report page displayer the ReportPanelExecutor can run on its own thread.
+ */
+interface ReportPanel
+{
+    /**
+     * @return the simple class name of the displayer, which names it in web.properties
+     */
+    String getPanelName();
+
+    /**
+     * @param object an object a report page is being shown for
+     * @return true if the displayer is configured for the type of the object
+     */
+    boolean appliesTo(InterMineObject object);
+
+    /**
+     * @return true if the attributes depend only on the object and are kept in the
+     * DisplayerCache, so runs for an object can be shared between pages and a panel that
+     * misses the deadline can be shown as loading
+     */
+    boolean isCached();
+
+    /**
+     * Set the request attributes on this thread.
+     * @param request the request
+     * @param reportObject the object being displayed
+     */
+    void displayPanel(HttpServletRequest request, ReportObject reportObject);
+}
@@ -0,0 +1,297 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.metadata.Model;
+import org.intermine.model.InterMineObject;
+import org.intermine.web.logic.config.ReportDisplayerConfig;
+import org.intermine.web.logic.results.ReportObject;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * Runs the displayers of a report page concurrently: the CachedReportDisplayers and the bio
+ * displayers wrapped in TimedReportDisplayers.  The first of them to be displayed for an object
+ * starts all of those configured for its type on a fixed size pool, each setting attributes on
+ * its own request scope, and each display() then waits for its own panel.  A cached panel waits
+ * until a deadline shared by the whole page.  If it misses it, it keeps running, so its result
+ * lands in the DisplayerCache, and the page shows a placeholder for it instead: the request
+ * attribute "panelLoading" is true.  A page asking for a cached panel that is still running
+ * for the same object waits for that run rather than starting another.  The bio displayers'
+ * JSPs have no placeholder and may depend on the user, so those are waited for however long
+ * they take, and never shared.  Panels run on a copy of the request made on the request
+ * thread, as the container's request may only be used by that thread.
+ *
+ * Configured in web.properties with displayer.concurrent.enabled, displayer.concurrent.threads,
+ * displayer.concurrent.queue and displayer.concurrent.deadline (in milliseconds).  Displayers
+ * named in the comma separated displayer.lazy aren't started with the page, "panelLazy" is true
+ * and the panel fetches itself from "panelUrl" instead.
+ */
+public final class ReportPanelExecutor
+{
+    private static final Logger LOG = Logger.getLogger(ReportPanelExecutor.class);
+    private static final String CONTEXT_ATTRIBUTE = ReportPanelExecutor.class.getName();
+    private static final String PANELS_ATTRIBUTE = ReportPanelExecutor.class.getName() + ".";
+    /** Request attribute set to true when a panel isn't ready by the deadline. */
+    public static final String LOADING_ATTRIBUTE = "panelLoading";
+    /** Request attribute set to true when a panel is to be fetched after the page loads. */
+    public static final String LAZY_ATTRIBUTE = "panelLazy";
+    /** Request attribute holding the URL of the JSON for a panel. */
+    public static final String URL_ATTRIBUTE = "panelUrl";
+    // the displayers created from the webconfig, which may share a page and run together
+    private static final ConcurrentMap<String, ReportPanel> PANELS
+        = new ConcurrentHashMap<String, ReportPanel>();
+
+    private final boolean enabled;
+    private final long deadline;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> lazy = new HashSet<String>();
+    // displayer name:object id to the cached panel being computed
+    private final ConcurrentMap<String, Future<Map<String, Object>>> running
+        = new ConcurrentHashMap<String, Future<Map<String, Object>>>();
+
+    private ReportPanelExecutor(Properties webProperties) {
+        enabled = !"false".equalsIgnoreCase(webProperties.getProperty(
+                    "displayer.concurrent.enabled", "true").trim());
+        int threads = Integer.parseInt(webProperties.getProperty(
+                    "displayer.concurrent.threads", "8").trim());
+        int queueSize = Integer.parseInt(webProperties.getProperty(
+                    "displayer.concurrent.queue", "64").trim());
+        deadline = Long.parseLong(webProperties.getProperty(
+                    "displayer.concurrent.deadline", "3000").trim());
+        for (String name : webProperties.getProperty("displayer.lazy", "").split(",")) {
+            if (name.trim().length() > 0) {
+                lazy.add(name.trim());
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "report-panel-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Return the executor for this webapp, creating it from web.properties on first use.
+     * @param servletContext the servlet context
+     * @return the executor
+     */
+    public static synchronized ReportPanelExecutor getInstance(ServletContext servletContext) {
+        ReportPanelExecutor panels = (ReportPanelExecutor) servletContext.getAttribute(
+                CONTEXT_ATTRIBUTE);
+        if (panels == null) {
+            panels = new ReportPanelExecutor(SessionMethods.getWebProperties(servletContext));
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, panels);
+        }
+        return panels;
+    }
+
+    /**
+     * Make a displayer created from the webconfig one of those started with a page.
+     * @param panel the displayer
+     */
+    static void register(ReportPanel panel) {
+        PANELS.put(panel.getPanelName(), panel);
+    }
+
+    /**
+     * @param name the simple class name of a displayer
+     * @return the displayer created from the webconfig with that name, or null
+     */
+    static ReportPanel getPanel(String name) {
+        return PANELS.get(name);
+    }
+
+    /**
+     * @param config the config of a displayer
+     * @param model the model
+     * @param object an object a report page is being shown for
+     * @return true if the displayer is configured for the type of the object
+     */
+    static boolean appliesTo(ReportDisplayerConfig config, Model model, InterMineObject object) {
+        for (String type : config.getConfiguredTypes()) {
+            ClassDescriptor cld = model.getClassDescriptorByName(type);
+            if (cld != null && cld.getType().isInstance(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if displayers should run one after another on the request thread
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param panel a displayer
+     * @return true if the displayer's panel is fetched by the page after it loads, which only
+     * cached panels can be
+     */
+    boolean isLazy(ReportPanel panel) {
+        return panel.isCached() && lazy.contains(panel.getPanelName());
+    }
+
+    /**
+     * Set the request attributes of one displayer, starting all the panels for the object if
+     * this is the first of them on the page.
+     * @param panel the displayer to show
+     * @param request the page request
+     * @param reportObject the object the page is for
+     */
+    void display(ReportPanel panel, HttpServletRequest request, ReportObject reportObject) {
+        InterMineObject object = reportObject.getObject();
+        String key = PANELS_ATTRIBUTE + object.getId();
+        Panels panels = (Panels) request.getAttribute(key);
+        if (panels == null) {
+            panels = start(request, reportObject, PANELS.values());
+            request.setAttribute(key, panels);
+        }
+        Future<Map<String, Object>> future = panels.futures.get(panel);
+        if (future == null) {
+            // didn't fit in the queue, or wasn't registered when the page started
+            panel.displayPanel(request, reportObject);
+            return;
+        }
+        try {
+            Map<String, Object> attributes;
+            if (panel.isCached()) {
+                long wait = Math.max(panels.deadline - System.currentTimeMillis(), 0);
+                attributes = future.get(wait, TimeUnit.MILLISECONDS);
+            } else {
+                attributes = future.get();
+            }
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                request.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        } catch (TimeoutException e) {
+            LOG.info(panel.getPanelName() + " not ready for object " + object.getId()
+                    + " after " + deadline + " ms");
+            request.setAttribute(LOADING_ATTRIBUTE, Boolean.TRUE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.setAttribute(LOADING_ATTRIBUTE, Boolean.TRUE);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private Panels start(HttpServletRequest request, final ReportObject reportObject,
+            Collection<ReportPanel> candidates) {
+        Panels panels = new Panels(System.currentTimeMillis() + deadline);
+        InterMineObject object = reportObject.getObject();
+        for (final ReportPanel panel : candidates) {
+            if (!panel.appliesTo(object) || isLazy(panel)) {
+                continue;
+            }
+            final String key = panel.getPanelName() + ":" + object.getId();
+            Future<Map<String, Object>> future = panel.isCached() ? running.get(key) : null;
+            if (future == null) {
+                // made on the request thread, the panel thread only sees the copy
+                final PanelRequest panelRequest = new PanelRequest(request);
+                FutureTask<Map<String, Object>> task = new FutureTask<Map<String, Object>>(
+                        new Callable<Map<String, Object>>() {
+                            public Map<String, Object> call() {
+                                panel.displayPanel(panelRequest, reportObject);
+                                return panelRequest.getAttributes();
+                            }
+                        }) {
+                    @Override
+                    protected void done() {
+                        running.remove(key, this);
+                    }
+                };
+                future = panel.isCached() ? running.putIfAbsent(key, task) : null;
+                if (future == null) {
+                    try {
+                        executor.execute(task);
+                        future = task;
+                    } catch (RejectedExecutionException e) {
+                        running.remove(key, task);
+                        LOG.warn("Report panel queue full, " + panel.getPanelName()
+                                + " will run on the request thread");
+                        continue;
+                    }
+                }
+            }
+            panels.futures.put(panel, future);
+        }
+        return panels;
+    }
+
+    /**
+     * Stop the panel threads, abandoning anything queued.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stop the executor of this webapp, if it was ever created.
+     * @param servletContext the servlet context
+     */
+    public static synchronized void shutdown(ServletContext servletContext) {
+        ReportPanelExecutor panels = (ReportPanelExecutor) servletContext.getAttribute(
+                CONTEXT_ATTRIBUTE);
+        if (panels != null) {
+            servletContext.removeAttribute(CONTEXT_ATTRIBUTE);
+            panels.shutdown();
+        }
+    }
+
+    /**
+     * The panels started for one object on one page.
+     */
+    private static class Panels
+    {
+        private final long deadline;
+        private final Map<ReportPanel, Future<Map<String, Object>>> futures
+            = new HashMap<ReportPanel, Future<Map<String, Object>>>();
+
+        Panels(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.flymine.web.displayer;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.intermine.api.InterMineAPI;
+import org.intermine.model.InterMineObject;
+import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.web.logic.config.ReportDisplayerConfig;
+import org.intermine.web.logic.results.ReportObject;
+
+/**
+ * Times a report displayer that isn't a CachedReportDisplayer, such as the bio displayers, with
+ * DisplayerMetrics.  In webconfig-model.xml the javaClass of the displayer is this class and
+ * its parameters are the class of the displayer to time, followed by its own parameters:
+ *
+ * parameters="org.intermine.bio.web.displayer.HomologueDisplayer {'dataSets': [...]}"
+ *
+ * The displayer queries the InterMineAPI ObjectStore itself, so only its time is recorded.
+ * Unless displayer.concurrent.enabled is false, it runs on the ReportPanelExecutor with the
+ * other displayers of the page, on a copy of the request.
+ */
+public class TimedReportDisplayer extends ReportDisplayer implements ReportPanel
+{
+    private final ReportDisplayer displayer;
+    private final String name;
+
+    /**
+     * @param config report object config, with the displayer class first in the parameters
+     * @param im intermine API
+     */
+    public TimedReportDisplayer(ReportDisplayerConfig config, InterMineAPI im) {
+        super(config, im);
+        String parameters = config.getParameterString();
+        String[] split = ((parameters == null) ? "" : parameters.trim()).split("\\s+", 2);
+        config.setParameters((split.length > 1) ? split[1] : "");
+        try {
+            displayer = (ReportDisplayer) Class.forName(split[0])
+                .getConstructor(ReportDisplayerConfig.class, InterMineAPI.class)
+                .newInstance(config, im);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Couldn't create the displayer to time: \""
+                    + split[0] + "\"", e);
+        }
+        name = displayer.getClass().getSimpleName();
+        ReportPanelExecutor.register(this);
+    }
+
+    /**
+     * @return the simple class name of the displayer timed
+     */
+    public String getDisplayerName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPanelName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean appliesTo(InterMineObject object) {
+        return ReportPanelExecutor.appliesTo(config, im.getModel(), object);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isCached() {
+        return false;
+    }
+
+    @Override
+    public void display(HttpServletRequest request, ReportObject reportObject) {
+        ReportPanelExecutor panels = ReportPanelExecutor.getInstance(
+                request.getSession().getServletContext());
+        if (panels.isEnabled()) {
+            panels.display(this, request, reportObject);
+        } else {
+            displayPanel(request, reportObject);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void displayPanel(HttpServletRequest request, ReportObject reportObject) {
+        DisplayerMetrics.Sample sample = DisplayerMetrics.getInstance(
+                request.getSession().getServletContext()).start(name);
+        try {
+            // execute() reports the displayer's errors on the request as it would untimed
+            displayer.execute(request, reportObject);
+        } finally {
+            sample.stop(reportObject.getObject().getId());
+        }
+    }
+}
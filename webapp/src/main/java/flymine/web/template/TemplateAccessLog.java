@@ -0,0 +1,232 @@
+package org.flymine.web.template;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.flymine.summary.FrequentValues;
+
+/**
+ * Counts the invocations of each template with each set of constraint values, and keeps the
+ * counts in a file across restarts and releases, so the most used invocations can be run
+ * before anyone asks for them.  Only a bounded number of invocations are counted, in a
+ * FrequentValues summary, so a stream of one-off invocations can't grow it; any invocation
+ * making up more than 1 / (maxInvocations + 1) of all those counted is kept.  Each line of
+ * the file is a count, the template name and the code=value of each constraint, tab separated
+ * and URL encoded.  Thread safe.
+ */
+public final class TemplateAccessLog
+{
+    private final File file;
+    private final int maxInvocations;
+    // keyed by the line of the file without the count; guarded by this
+    private final FrequentValues counts;
+
+    /**
+     * @param file the file counts are loaded from and saved to
+     * @param maxInvocations the most invocations to count
+     * @throws IOException if the file exists but can't be read
+     */
+    public TemplateAccessLog(File file, int maxInvocations) throws IOException {
+        this.file = file;
+        this.maxInvocations = maxInvocations;
+        counts = new FrequentValues(maxInvocations, maxInvocations);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                try {
+                    long count = Long.parseLong(line.substring(0, tab));
+                    if (count > 0) {
+                        counts.add(line.substring(tab + 1), count);
+                    }
+                } catch (NumberFormatException e) {
+                    // a line cut short by a crash while saving
+                    continue;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Count an invocation.
+     * @param invocation the template and its constraint values
+     */
+    public void record(Invocation invocation) {
+        String key = format(invocation);
+        synchronized (this) {
+            counts.add(key);
+        }
+    }
+
+    /**
+     * @param max the most invocations to return
+     * @return the most counted invocations, most first
+     */
+    public List<Invocation> top(int max) {
+        List<Map.Entry<String, Long>> entries;
+        synchronized (this) {
+            entries = counts.top(max);
+        }
+        List<Invocation> top = new ArrayList<Invocation>();
+        for (Map.Entry<String, Long> entry : entries) {
+            top.add(parse(entry.getKey()));
+        }
+        return top;
+    }
+
+    /**
+     * Write the counts, replacing the file only once they are all written.
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        File saving = new File(file.getPath() + ".saving");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(saving),
+                    "UTF-8"));
+        try {
+            for (Map.Entry<String, Long> entry : counts.top(maxInvocations)) {
+                out.println(entry.getValue() + "\t" + entry.getKey());
+            }
+        } finally {
+            out.close();
+        }
+        if (!saving.renameTo(file)) {
+            // renameTo doesn't replace an existing file on every platform
+            file.delete();
+            if (!saving.renameTo(file)) {
+                throw new IOException("Couldn't move " + saving + " to " + file);
+            }
+        }
+    }
+
+    private static String format(Invocation invocation) {
+        StringBuilder line = new StringBuilder(encode(invocation.getName()));
+        for (Map.Entry<String, String> value : invocation.getValues().entrySet()) {
+            line.append('\t').append(encode(value.getKey())).append('=')
+                .append(encode(value.getValue()));
+        }
+        return line.toString();
+    }
+
+    private static Invocation parse(String line) {
+        String[] fields = line.split("\t");
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (int i = 1; i < fields.length; i++) {
+            int equals = fields[i].indexOf('=');
+            if (equals > 0) {
+                values.put(decode(fields[i].substring(0, equals)),
+                        decode(fields[i].substring(equals + 1)));
+            }
+        }
+        return new Invocation(decode(fields[0]), values);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A template name and its normalised constraint values.
+     */
+    public static final class Invocation
+    {
+        private final String name;
+        private final Map<String, String> values;
+
+        /**
+         * @param name the template name
+         * @param values constraint code to normalised value, in code order
+         */
+        public Invocation(String name, Map<String, String> values) {
+            this.name = name;
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<String, String>(values));
+        }
+
+        /**
+         * @return the template name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return constraint code to value
+         */
+        public Map<String, String> getValues() {
+            return values;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Invocation)) {
+                return false;
+            }
+            Invocation other = (Invocation) o;
+            return name.equals(other.name) && values.equals(other.values);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + values.hashCode();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return name + values;
+        }
+    }
+}
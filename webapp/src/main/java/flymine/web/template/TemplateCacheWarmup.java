@@ -0,0 +1,75 @@
+package org.flymine.web.template;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.log4j.Logger;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * Fills the template result cache from the access log as soon as the webapp is deployed, and
+ * saves the access log when it is stopped.  Registered in web-model.xml.  The InterMine API is
+ * set up by the struts initialiser after listeners have run, so the warm-up waits for it on a
+ * background thread.
+ */
+public class TemplateCacheWarmup implements ServletContextListener
+{
+    private static final Logger LOG = Logger.getLogger(TemplateCacheWarmup.class);
+    private static final long POLL_INTERVAL = 5 * 1000L;
+    private static final long MAX_WAIT = 30 * 60 * 1000L;
+
+    private Thread thread;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void contextInitialized(ServletContextEvent event) {
+        final ServletContext servletContext = event.getServletContext();
+        thread = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    while (SessionMethods.getInterMineAPI(servletContext) == null) {
+                        if (System.currentTimeMillis() - start > MAX_WAIT) {
+                            LOG.warn("Webapp not initialised, not warming template cache");
+                            return;
+                        }
+                        Thread.sleep(POLL_INTERVAL);
+                    }
+                    TemplateResultCache.getInstance(servletContext).warmUp();
+                } catch (InterruptedException e) {
+                    // the webapp is being stopped
+                    return;
+                } catch (RuntimeException e) {
+                    LOG.warn("Couldn't warm template cache", e);
+                }
+            }
+        }, "template-cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void contextDestroyed(ServletContextEvent event) {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        ServletContext servletContext = event.getServletContext();
+        if (SessionMethods.getInterMineAPI(servletContext) != null) {
+            TemplateResultCache.getInstance(servletContext).saveAccessLog();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.flymine.web.template;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+import org.flymine.web.LruCache;
+import org.flymine.web.ReleaseVersion;
+import org.flymine.web.template.TemplateAccessLog.Invocation;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.api.template.ApiTemplate;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.PathConstraint;
+import org.intermine.pathquery.PathConstraintAttribute;
+import org.intermine.pathquery.PathConstraintLookup;
+import org.intermine.template.TemplateQuery;
+import org.intermine.web.logic.session.SessionMethods;
+
+/**
+ * Caches the results of public templates, keyed by template name and normalised constraint
+ * values.  Like the DisplayerCache it holds results for the release the webapp was deployed
+ * with, project.releaseVersion, and lives as long as the webapp.  A cached result set is
+ * immutable and pages are cut from it, so popular invocations run once per release whatever
+ * the paging, and concurrent requests for an invocation that isn't cached wait for one run.
+ * Results of more than maxRows rows aren't cached; callers page those from the database, and
+ * the invocation is remembered for the release so it isn't read up to maxRows again.
+ *
+ * Every invocation is counted in the access log, which is saved every five minutes and read
+ * back on startup, and warmUp() runs the most counted ones.  Configured in web.properties with
+ * template.cache.enabled, template.cache.maxEntries, template.cache.maxBytes,
+ * template.cache.maxRows, template.cache.accessLog, template.cache.accessLog.maxInvocations
+ * and template.cache.warmup.
+ */
+public final class TemplateResultCache
+{
+    private static final Logger LOG = Logger.getLogger(TemplateResultCache.class);
+    private static final String CONTEXT_ATTRIBUTE = TemplateResultCache.class.getName();
+    private static final long SAVE_INTERVAL = 5 * 60 * 1000L;
+
+    private final InterMineAPI im;
+    private final String release;
+    private final boolean enabled;
+    private final int maxRows;
+    private final int warmup;
+    private final LruCache<Invocation, TemplateResults> memory;
+    private final LruCache<Invocation, Boolean> tooBig;
+    private final ConcurrentMap<Invocation, FutureTask<TemplateResults>> inFlight
+        = new ConcurrentHashMap<Invocation, FutureTask<TemplateResults>>();
+    private final TemplateAccessLog accessLog;
+    private volatile long lastSave;
+
+    private TemplateResultCache(InterMineAPI im, Properties webProperties) {
+        this.im = im;
+        this.release = ReleaseVersion.get(webProperties);
+        this.enabled = !"false".equalsIgnoreCase(
+                webProperties.getProperty("template.cache.enabled", "true").trim());
+        int maxEntries = Integer.parseInt(
+                webProperties.getProperty("template.cache.maxEntries", "1000").trim());
+        long maxBytes = Long.parseLong(
+                webProperties.getProperty("template.cache.maxBytes", "134217728").trim());
+        maxRows = Integer.parseInt(
+                webProperties.getProperty("template.cache.maxRows", "100000").trim());
+        warmup = Integer.parseInt(
+                webProperties.getProperty("template.cache.warmup", "50").trim());
+        memory = new LruCache<Invocation, TemplateResults>(maxEntries, maxBytes,
+                new LruCache.Weigher<TemplateResults>() {
+                    public long weigh(TemplateResults results) {
+                        return results.getSize();
+                    }
+                }, null);
+        tooBig = new LruCache<Invocation, Boolean>(maxEntries, Long.MAX_VALUE,
+                new LruCache.Weigher<Boolean>() {
+                    public long weigh(Boolean value) {
+                        return 1;
+                    }
+                }, null);
+        String log = webProperties.getProperty("template.cache.accessLog", "").trim();
+        int maxInvocations = Integer.parseInt(webProperties.getProperty(
+                    "template.cache.accessLog.maxInvocations", "10000").trim());
+        TemplateAccessLog loaded = null;
+        if (log.length() > 0) {
+            try {
+                loaded = new TemplateAccessLog(new File(log), maxInvocations);
+            } catch (IOException e) {
+                LOG.warn("Couldn't read template access log " + log + ", starting a new one", e);
+            }
+        }
+        accessLog = loaded;
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * Return the template cache for this webapp, creating it on first use.
+     * @param servletContext the servlet context
+     * @return the cache
+     */
+    public static synchronized TemplateResultCache getInstance(ServletContext servletContext) {
+        TemplateResultCache cache = (TemplateResultCache)
+            servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (cache == null) {
+            cache = new TemplateResultCache(SessionMethods.getInterMineAPI(servletContext),
+                    SessionMethods.getWebProperties(servletContext));
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Normalise the constraint values of an invocation: trimmed, white space runs made one
+     * space, and lower case for lookup constraints, which ignore case.
+     * @param name the template name
+     * @param values constraint code to value
+     * @return the invocation
+     * @throws IllegalArgumentException if there's no such public template
+     */
+    public Invocation invocation(String name, Map<String, String> values) {
+        ApiTemplate template = template(name);
+        Map<String, String> normalised = new TreeMap<String, String>();
+        for (PathConstraint con : template.getEditableConstraints()) {
+            String code = template.getConstraints().get(con);
+            String value = values.get(code);
+            if (value == null) {
+                continue;
+            }
+            value = value.trim().replaceAll("\\s+", " ");
+            if (con instanceof PathConstraintLookup) {
+                value = value.toLowerCase(Locale.ENGLISH);
+            }
+            normalised.put(code, value);
+        }
+        return new Invocation(name, normalised);
+    }
+
+    /**
+     * Return the template with the values of an invocation in its editable constraints.
+     * @param invocation the invocation
+     * @return the query to run
+     * @throws IllegalArgumentException if there's no such public template, or a value is for a
+     * constraint that doesn't take one
+     */
+    public TemplateQuery populate(Invocation invocation) {
+        ApiTemplate template = template(invocation.getName());
+        TemplateQuery q = template.clone();
+        for (PathConstraint con : template.getEditableConstraints()) {
+            String value = invocation.getValues().get(template.getConstraints().get(con));
+            if (value == null) {
+                continue;
+            }
+            if (con instanceof PathConstraintLookup) {
+                q.replaceConstraint(con, new PathConstraintLookup(con.getPath(), value,
+                            ((PathConstraintLookup) con).getExtraValue()));
+            } else if (con instanceof PathConstraintAttribute) {
+                q.replaceConstraint(con, new PathConstraintAttribute(con.getPath(), con.getOp(),
+                            value));
+            } else {
+                throw new IllegalArgumentException("Constraint " + con + " of "
+                        + invocation.getName() + " doesn't take a value");
+            }
+        }
+        return q;
+    }
+
+    private ApiTemplate template(String name) {
+        ApiTemplate template = im.getTemplateManager().getGlobalTemplate(name);
+        if (template == null) {
+            throw new IllegalArgumentException("No public template " + name);
+        }
+        return template;
+    }
+
+    /**
+     * Return the results of an invocation, from the cache if possible.
+     * @param invocation the invocation
+     * @param profile the user running it
+     * @return the results, or null if there are too many to cache
+     * @throws ObjectStoreException if the query fails
+     */
+    public TemplateResults getResults(Invocation invocation, Profile profile)
+        throws ObjectStoreException {
+        record(invocation);
+        if (!enabled) {
+            return null;
+        }
+        TemplateResults results = memory.get(invocation);
+        if (results == null && tooBig.get(invocation) == null) {
+            results = load(invocation, profile);
+        }
+        return results;
+    }
+
+    /**
+     * Run an invocation into the cache, or wait for the run already under way.
+     * @return the results, or null if there are too many to cache
+     */
+    private TemplateResults load(final Invocation invocation, final Profile profile)
+        throws ObjectStoreException {
+        FutureTask<TemplateResults> task = new FutureTask<TemplateResults>(
+                new Callable<TemplateResults>() {
+                    public TemplateResults call() throws ObjectStoreException {
+                        TemplateResults results = run(invocation, profile);
+                        if (results == null) {
+                            tooBig.put(invocation, Boolean.TRUE);
+                        } else {
+                            memory.put(invocation, results);
+                        }
+                        return results;
+                    }
+                });
+        FutureTask<TemplateResults> existing = inFlight.putIfAbsent(invocation, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(invocation, task);
+            }
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ObjectStoreException("Interrupted waiting for " + invocation, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ObjectStoreException) {
+                throw (ObjectStoreException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return all the rows, or null if there are more than maxRows
+     */
+    private TemplateResults run(Invocation invocation, Profile profile)
+        throws ObjectStoreException {
+        TemplateQuery q = populate(invocation);
+        ExportResultsIterator it = im.getPathQueryExecutor(profile).execute(q);
+        List<String[]> rows = new ArrayList<String[]>();
+        while (it.hasNext()) {
+            if (rows.size() == maxRows) {
+                return null;
+            }
+            List<ResultElement> row = it.next();
+            String[] values = new String[row.size()];
+            for (int i = 0; i < values.length; i++) {
+                ResultElement element = row.get(i);
+                Object field = (element == null) ? null : element.getField();
+                values[i] = (field == null) ? null : field.toString();
+            }
+            rows.add(values);
+        }
+        return new TemplateResults(q.getView(), rows.toArray(new String[rows.size()][]));
+    }
+
+    private void record(Invocation invocation) {
+        if (accessLog == null) {
+            return;
+        }
+        accessLog.record(invocation);
+        long now = System.currentTimeMillis();
+        if (now - lastSave > SAVE_INTERVAL) {
+            lastSave = now;
+            saveAccessLog();
+        }
+    }
+
+    /**
+     * Write the access log, if there is one.
+     */
+    public void saveAccessLog() {
+        if (accessLog != null) {
+            try {
+                accessLog.save();
+            } catch (IOException e) {
+                LOG.warn("Couldn't save template access log", e);
+            }
+        }
+    }
+
+    /**
+     * Run the template.cache.warmup most counted invocations of the access log as the
+     * superuser, so they are cached before users ask for them.  Invocations of templates that
+     * no longer exist are skipped.
+     */
+    public void warmUp() {
+        if (!enabled || accessLog == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Profile superuser = im.getProfileManager().getSuperuserProfile();
+        int cached = 0;
+        for (Invocation invocation : accessLog.top(warmup)) {
+            try {
+                if (memory.get(invocation) == null && tooBig.get(invocation) == null
+                        && load(invocation, superuser) != null) {
+                    cached++;
+                }
+            } catch (Exception e) {
+                LOG.info("Couldn't warm template cache with " + invocation + ": " + e);
+            }
+        }
+        LOG.info("Warmed template cache for release " + release + " with " + cached
+                + " invocations in " + (System.currentTimeMillis() - start) + " ms (" + memory
+                + ")");
+    }
+}
@@ -0,0 +1,81 @@
+package org.flymine.web.template;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All the rows of one template invocation, as strings.  Immutable, so one copy in the cache
+ * serves every page to every user at once.
+ */
+public final class TemplateResults
+{
+    private final List<String> views;
+    private final String[][] rows;
+    private final long size;
+
+    /**
+     * @param views the view paths
+     * @param rows the rows, one value per view, null for a null value; not copied, so must
+     * not be changed afterwards
+     */
+    public TemplateResults(List<String> views, String[][] rows) {
+        this.views = Collections.unmodifiableList(views);
+        this.rows = rows;
+        long bytes = 64 + 16L * rows.length;
+        for (String[] row : rows) {
+            bytes += 16 + 8 * row.length;
+            for (String value : row) {
+                bytes += (value == null) ? 0 : 40 + 2L * value.length();
+            }
+        }
+        size = bytes;
+    }
+
+    /**
+     * @return the view paths, the columns of every row
+     */
+    public List<String> getViews() {
+        return views;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return rows.length;
+    }
+
+    /**
+     * @param start the first row, from 0
+     * @param count the most rows to return
+     * @return the rows, each a list of values in view order
+     */
+    public List<List<String>> page(int start, int count) {
+        int from = Math.max(0, Math.min(start, rows.length));
+        int to = Math.min(rows.length, from + Math.max(0, count));
+        List<List<String>> page = new ArrayList<List<String>>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(Collections.unmodifiableList(Arrays.asList(rows[i])));
+        }
+        return page;
+    }
+
+    /**
+     * @return a rough estimate of the heap used, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+}
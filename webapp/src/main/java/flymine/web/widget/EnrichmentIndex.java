@@ -0,0 +1,583 @@
+package org.flymine.web.widget;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The annotations of one enrichment widget held in memory, so an enrichment is computed
+ * without querying the database.  Objects are grouped into populations, one for each organism
+ * and filter value (eg. GO namespace), and each population keeps the sorted ids of its objects
+ * with the terms annotating each of them and the number of its objects annotated with each
+ * term.  Counting the terms of a list then only touches the annotations of the list, and the
+ * hypergeometric p-values of the terms are computed in parallel.
+ *
+ * The population of a list is that of the organisms of the objects in it, as the [list]
+ * constraint of the widget configuration does.  Immutable once built, so thread safe.
+ */
+public final class EnrichmentIndex
+{
+    /** No multiple test correction. */
+    public static final String NONE = "None";
+    /** Multiply each p-value by the number of terms tested. */
+    public static final String BONFERRONI = "Bonferroni";
+    /** Holm's step down Bonferroni correction. */
+    public static final String HOLM_BONFERRONI = "Holm-Bonferroni";
+    /** Benjamini and Hochberg's false discovery rate. */
+    public static final String BENJAMINI_HOCHBERG = "Benjamini Hochberg";
+
+    private static final int CHUNK = 512;
+
+    private final String[] termIdentifiers;
+    private final String[] termNames;
+    private final Map<String, Map<String, Population>> populations;
+    private final double[] logFactorials;
+
+    private EnrichmentIndex(String[] termIdentifiers, String[] termNames,
+            Map<String, Map<String, Population>> populations, int maxPopulation) {
+        this.termIdentifiers = termIdentifiers;
+        this.termNames = termNames;
+        this.populations = populations;
+        logFactorials = new double[maxPopulation + 1];
+        for (int i = 2; i <= maxPopulation; i++) {
+            logFactorials[i] = logFactorials[i - 1] + Math.log(i);
+        }
+    }
+
+    /**
+     * @return the filter values with annotations, "" for a widget without filters
+     */
+    public Collection<String> getFilters() {
+        return Collections.unmodifiableSet(populations.keySet());
+    }
+
+    /**
+     * @return the number of terms
+     */
+    public int getTermCount() {
+        return termIdentifiers.length;
+    }
+
+    /**
+     * Find the terms enriched in a list.
+     * @param filter the filter value, "" for a widget without filters
+     * @param list the ids of the objects in the list
+     * @param correction NONE, BONFERRONI, HOLM_BONFERRONI or BENJAMINI_HOCHBERG
+     * @param maxPValue the highest corrected p-value to return
+     * @param lengthCorrected true to multiply each p-value by the mean length of the objects
+     * annotated with the term over the mean length of the population
+     * @param executor runs the p-value calculations, or null to run them on this thread
+     * @return the enrichment, with its terms in order of p-value
+     */
+    public Enrichment enrich(String filter, int[] list, String correction, double maxPValue,
+            boolean lengthCorrected, ExecutorService executor) {
+        Map<String, Population> byOrganism = populations.get(filter);
+        if (byOrganism == null) {
+            byOrganism = Collections.emptyMap();
+        }
+        // the populations of the list's organisms, and the annotated list objects in each
+        final List<Population> used = new ArrayList<Population>();
+        final List<int[]> positions = new ArrayList<int[]>();
+        int sampleSize = 0;
+        for (Population population : byOrganism.values()) {
+            int[] found = population.positions(list);
+            if (found.length > 0) {
+                used.add(population);
+                positions.add(found);
+                sampleSize += found.length;
+            }
+        }
+        int populationSize = 0;
+        long lengthSum = 0;
+        int lengthCount = 0;
+        final int[] matches = new int[termIdentifiers.length];
+        for (int p = 0; p < used.size(); p++) {
+            Population population = used.get(p);
+            populationSize += population.objectIds.length;
+            lengthSum += population.lengthSum;
+            lengthCount += population.lengthCount;
+            for (int position : positions.get(p)) {
+                for (int i = population.termStarts[position];
+                        i < population.termStarts[position + 1]; i++) {
+                    matches[population.terms[i]]++;
+                }
+            }
+        }
+        int tested = 0;
+        for (int match : matches) {
+            if (match > 0) {
+                tested++;
+            }
+        }
+        final int[] terms = new int[tested];
+        tested = 0;
+        for (int term = 0; term < matches.length; term++) {
+            if (matches[term] > 0) {
+                terms[tested++] = term;
+            }
+        }
+
+        final double[] pValues = new double[tested];
+        final int n = sampleSize;
+        final int bigN = populationSize;
+        final double meanLength = (lengthCount == 0) ? 0 : (double) lengthSum / lengthCount;
+        final boolean correctLength = lengthCorrected && meanLength > 0;
+        final int[] termCounts = new int[tested];
+        List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < tested; start += CHUNK) {
+            final int from = start;
+            final int to = Math.min(start + CHUNK, tested);
+            chunks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        int term = terms[i];
+                        int annotated = 0;
+                        long termLengthSum = 0;
+                        int termLengthCount = 0;
+                        for (Population population : used) {
+                            annotated += population.termCounts[term];
+                            if (population.termLengthSums != null) {
+                                termLengthSum += population.termLengthSums[term];
+                                termLengthCount += population.termLengthCounts[term];
+                            }
+                        }
+                        termCounts[i] = annotated;
+                        double p = pValue(matches[term], n, annotated, bigN);
+                        if (correctLength && termLengthCount > 0) {
+                            p = Math.min(1.0, p * ((double) termLengthSum / termLengthCount)
+                                    / meanLength);
+                        }
+                        pValues[i] = p;
+                    }
+                    return null;
+                }
+            });
+        }
+        run(chunks, executor);
+
+        double[] corrected = correct(pValues, correction);
+        List<EnrichedTerm> results = new ArrayList<EnrichedTerm>();
+        for (int i = 0; i < tested; i++) {
+            if (corrected[i] <= maxPValue) {
+                int term = terms[i];
+                results.add(new EnrichedTerm(termIdentifiers[term], termNames[term],
+                            matches[term], termCounts[i], corrected[i]));
+            }
+        }
+        Collections.sort(results, new Comparator<EnrichedTerm>() {
+            public int compare(EnrichedTerm a, EnrichedTerm b) {
+                int c = Double.compare(a.getPValue(), b.getPValue());
+                return (c != 0) ? c : b.getMatches() - a.getMatches();
+            }
+        });
+        return new Enrichment(results, sampleSize, populationSize, tested);
+    }
+
+    private static void run(List<Callable<Void>> tasks, ExecutorService executor) {
+        try {
+            if (executor == null || tasks.size() < 2) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The probability of drawing k or more annotated objects in a sample of n from a
+     * population of bigN of which m are annotated, P(X &gt;= k) of the hypergeometric
+     * distribution.  Sums whichever tail is shorter, term by term from the ratio of successive
+     * terms.
+     */
+    double pValue(int k, int n, int m, int bigN) {
+        int low = Math.max(0, n - (bigN - m));
+        int high = Math.min(n, m);
+        if (k <= low) {
+            return 1.0;
+        }
+        if (k > high) {
+            return 0.0;
+        }
+        boolean upper = (high - k) <= (k - 1 - low);
+        int first = upper ? k : low;
+        int last = upper ? high : k - 1;
+        double logFirst = logChoose(m, first) + logChoose(bigN - m, n - first)
+            - logChoose(bigN, n);
+        double term = Math.exp(logFirst);
+        double sum = 0;
+        for (int i = first; i <= last; i++) {
+            sum += term;
+            // P(i + 1) / P(i)
+            term *= ((double) (m - i) * (n - i)) / ((double) (i + 1) * (bigN - m - n + i + 1));
+            if (term < sum * 1e-16 && i > (long) (n + 1) * (m + 1) / (bigN + 2L)) {
+                // past the mode and no longer adding anything
+                break;
+            }
+        }
+        double p = upper ? sum : 1.0 - sum;
+        return Math.min(1.0, Math.max(0.0, p));
+    }
+
+    private double logChoose(int n, int k) {
+        return logFactorials[n] - logFactorials[k] - logFactorials[n - k];
+    }
+
+    /**
+     * @param pValues the uncorrected p-values of the terms tested
+     * @param correction the correction
+     * @return the corrected p-values, in the same order
+     */
+    static double[] correct(double[] pValues, String correction) {
+        int m = pValues.length;
+        double[] corrected = new double[m];
+        if (NONE.equals(correction)) {
+            System.arraycopy(pValues, 0, corrected, 0, m);
+            return corrected;
+        }
+        if (BONFERRONI.equals(correction)) {
+            for (int i = 0; i < m; i++) {
+                corrected[i] = Math.min(1.0, pValues[i] * m);
+            }
+            return corrected;
+        }
+        Integer[] order = new Integer[m];
+        for (int i = 0; i < m; i++) {
+            order[i] = new Integer(i);
+        }
+        final double[] values = pValues;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[a.intValue()], values[b.intValue()]);
+            }
+        });
+        if (HOLM_BONFERRONI.equals(correction)) {
+            double previous = 0;
+            for (int rank = 0; rank < m; rank++) {
+                int i = order[rank].intValue();
+                previous = Math.max(previous, Math.min(1.0, pValues[i] * (m - rank)));
+                corrected[i] = previous;
+            }
+        } else if (BENJAMINI_HOCHBERG.equals(correction)) {
+            double next = 1.0;
+            for (int rank = m - 1; rank >= 0; rank--) {
+                int i = order[rank].intValue();
+                next = Math.min(next, pValues[i] * m / (rank + 1));
+                corrected[i] = next;
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown correction: " + correction);
+        }
+        return corrected;
+    }
+
+    /**
+     * The annotated objects of one organism for one filter value.
+     */
+    private static final class Population
+    {
+        private final int[] objectIds;
+        private final int[] termStarts;
+        private final int[] terms;
+        private final int[] termCounts;
+        private final long[] termLengthSums;
+        private final int[] termLengthCounts;
+        private final long lengthSum;
+        private final int lengthCount;
+
+        Population(int[] objectIds, int[] termStarts, int[] terms, int termCount,
+                int[] lengths) {
+            this.objectIds = objectIds;
+            this.termStarts = termStarts;
+            this.terms = terms;
+            termCounts = new int[termCount];
+            for (int term : terms) {
+                termCounts[term]++;
+            }
+            long sum = 0;
+            int count = 0;
+            if (lengths == null) {
+                termLengthSums = null;
+                termLengthCounts = null;
+            } else {
+                termLengthSums = new long[termCount];
+                termLengthCounts = new int[termCount];
+                for (int i = 0; i < objectIds.length; i++) {
+                    if (lengths[i] > 0) {
+                        sum += lengths[i];
+                        count++;
+                        for (int j = termStarts[i]; j < termStarts[i + 1]; j++) {
+                            termLengthSums[terms[j]] += lengths[i];
+                            termLengthCounts[terms[j]]++;
+                        }
+                    }
+                }
+            }
+            lengthSum = sum;
+            lengthCount = count;
+        }
+
+        /**
+         * @return the positions of those of ids in this population, each once, in order
+         */
+        int[] positions(int[] ids) {
+            int[] sorted = ids.clone();
+            Arrays.sort(sorted);
+            int[] found = new int[sorted.length];
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i > 0 && sorted[i] == sorted[i - 1]) {
+                    continue;
+                }
+                int position = Arrays.binarySearch(objectIds, sorted[i]);
+                if (position >= 0) {
+                    found[count++] = position;
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+    }
+
+    /**
+     * Collects annotations to build an EnrichmentIndex.  Not thread safe.
+     */
+    public static final class Builder
+    {
+        private final Map<String, Integer> termIndexes = new HashMap<String, Integer>();
+        private final List<String> identifiers = new ArrayList<String>();
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, Map<String, List<long[]>>> annotations
+            = new HashMap<String, Map<String, List<long[]>>>();
+        private final Map<Integer, Integer> lengths = new HashMap<Integer, Integer>();
+
+        /**
+         * Add that an object is annotated with a term.  Adding the same annotation twice
+         * counts it once.
+         * @param filter the filter value the annotation is for, "" for none
+         * @param organism the organism of the object
+         * @param objectId the object id
+         * @param identifier the term identifier
+         * @param name the term name, shown in results
+         */
+        public void add(String filter, String organism, int objectId, String identifier,
+                String name) {
+            Integer term = termIndexes.get(identifier);
+            if (term == null) {
+                term = new Integer(identifiers.size());
+                termIndexes.put(identifier, term);
+                identifiers.add(identifier);
+                names.add(name);
+            }
+            Map<String, List<long[]>> byOrganism = annotations.get(filter);
+            if (byOrganism == null) {
+                byOrganism = new HashMap<String, List<long[]>>();
+                annotations.put(filter, byOrganism);
+            }
+            List<long[]> pairs = byOrganism.get(organism);
+            if (pairs == null) {
+                pairs = new ArrayList<long[]>();
+                byOrganism.put(organism, pairs);
+            }
+            pairs.add(new long[] {objectId, term.intValue()});
+        }
+
+        /**
+         * @param objectId an object
+         * @param length its length, for length corrected p-values
+         */
+        public void setLength(int objectId, int length) {
+            lengths.put(new Integer(objectId), new Integer(length));
+        }
+
+        /**
+         * @return the index of the annotations added
+         */
+        public EnrichmentIndex build() {
+            Map<String, Map<String, Population>> populations
+                = new HashMap<String, Map<String, Population>>();
+            int maxPopulation = 1;
+            for (Map.Entry<String, Map<String, List<long[]>>> filter : annotations.entrySet()) {
+                Map<String, Population> byOrganism = new HashMap<String, Population>();
+                int filterPopulation = 0;
+                for (Map.Entry<String, List<long[]>> organism : filter.getValue().entrySet()) {
+                    Population population = population(organism.getValue());
+                    byOrganism.put(organism.getKey(), population);
+                    filterPopulation += population.objectIds.length;
+                }
+                populations.put(filter.getKey(), byOrganism);
+                maxPopulation = Math.max(maxPopulation, filterPopulation);
+            }
+            return new EnrichmentIndex(identifiers.toArray(new String[identifiers.size()]),
+                    names.toArray(new String[names.size()]), populations, maxPopulation);
+        }
+
+        private Population population(List<long[]> pairs) {
+            Collections.sort(pairs, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return (a[0] != b[0]) ? (a[0] < b[0] ? -1 : 1)
+                        : (a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1));
+                }
+            });
+            int[] objectIds = new int[pairs.size()];
+            int[] termStarts = new int[pairs.size() + 1];
+            int[] terms = new int[pairs.size()];
+            int objects = 0;
+            int count = 0;
+            long[] previous = null;
+            for (long[] pair : pairs) {
+                if (previous != null && previous[0] == pair[0] && previous[1] == pair[1]) {
+                    continue;
+                }
+                if (previous == null || previous[0] != pair[0]) {
+                    objectIds[objects] = (int) pair[0];
+                    termStarts[objects++] = count;
+                }
+                terms[count++] = (int) pair[1];
+                previous = pair;
+            }
+            termStarts[objects] = count;
+            int[] objectLengths = null;
+            if (!lengths.isEmpty()) {
+                objectLengths = new int[objects];
+                for (int i = 0; i < objects; i++) {
+                    Integer length = lengths.get(new Integer(objectIds[i]));
+                    objectLengths[i] = (length == null) ? 0 : length.intValue();
+                }
+            }
+            return new Population(Arrays.copyOf(objectIds, objects),
+                    Arrays.copyOf(termStarts, objects + 1), Arrays.copyOf(terms, count),
+                    identifiers.size(), objectLengths);
+        }
+    }
+
+    /**
+     * The result of an enrichment.
+     */
+    public static final class Enrichment
+    {
+        private final List<EnrichedTerm> terms;
+        private final int sampleSize;
+        private final int populationSize;
+        private final int tested;
+
+        Enrichment(List<EnrichedTerm> terms, int sampleSize, int populationSize, int tested) {
+            this.terms = terms;
+            this.sampleSize = sampleSize;
+            this.populationSize = populationSize;
+            this.tested = tested;
+        }
+
+        /**
+         * @return the terms below the p-value threshold, most significant first
+         */
+        public List<EnrichedTerm> getTerms() {
+            return terms;
+        }
+
+        /**
+         * @return the number of list objects with annotations
+         */
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        /**
+         * @return the number of annotated objects of the list's organisms
+         */
+        public int getPopulationSize() {
+            return populationSize;
+        }
+
+        /**
+         * @return the number of terms tested, those annotating something in the list
+         */
+        public int getTested() {
+            return tested;
+        }
+    }
+
+    /**
+     * One term of an enrichment.
+     */
+    public static final class EnrichedTerm
+    {
+        private final String identifier;
+        private final String name;
+        private final int matches;
+        private final int populationCount;
+        private final double pValue;
+
+        EnrichedTerm(String identifier, String name, int matches, int populationCount,
+                double pValue) {
+            this.identifier = identifier;
+            this.name = name;
+            this.matches = matches;
+            this.populationCount = populationCount;
+            this.pValue = pValue;
+        }
+
+        /**
+         * @return the term identifier
+         */
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * @return the term name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of list objects annotated with the term
+         */
+        public int getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return the number of population objects annotated with the term
+         */
+        public int getPopulationCount() {
+            return populationCount;
+        }
+
+        /**
+         * @return the corrected p-value
+         */
+        public double getPValue() {
+            return pValue;
+        }
+    }
+}
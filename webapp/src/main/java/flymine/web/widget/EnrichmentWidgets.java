@@ -0,0 +1,354 @@
+package org.flymine.web.widget;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.ClassDescriptor;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.PathQuery;
+import org.intermine.web.logic.session.SessionMethods;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The enrichment widgets of webconfig-model.xml computed in memory.  The first time a widget
+ * is used, one query fetches every annotation its configuration allows, for all organisms and
+ * filter values, into an EnrichmentIndex, so later enrichments don't touch the database.
+ * With enrichment.preload in web.properties the indexes of all the widgets are built in the
+ * background as soon as the webapp first asks for one.  The p-values are computed on
+ * enrichment.threads threads.
+ *
+ * Only enrichment.do uses these indexes: the widgets shown on list pages are still computed by
+ * InterMine's widget service, which queries the database on every request.
+ */
+public final class EnrichmentWidgets
+{
+    private static final Logger LOG = Logger.getLogger(EnrichmentWidgets.class);
+    private static final String CONTEXT_ATTRIBUTE = EnrichmentWidgets.class.getName();
+    private static final String WEBCONFIG = "/WEB-INF/webconfig-model.xml";
+    private static final Pattern CONSTRAINT = Pattern.compile(
+            "\\s*([\\w.\\[\\]]+)\\s*(!=|=)\\s*(.*?)\\s*");
+    private static final Pattern CAST = Pattern.compile("\\[(\\w+)\\]");
+    private static final String LIST = "[list]";
+    private static final String ALL = "All";
+
+    private final InterMineAPI im;
+    private final Map<String, Element> configs = new LinkedHashMap<String, Element>();
+    private final Map<String, Object> locks = new HashMap<String, Object>();
+    private final Map<String, EnrichmentIndex> indexes = new HashMap<String, EnrichmentIndex>();
+    private final ExecutorService executor;
+
+    private EnrichmentWidgets(InterMineAPI im, InputStream webconfig, int threads)
+        throws Exception {
+        this.im = im;
+        try {
+            NodeList widgets = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(webconfig).getElementsByTagName("enrichmentwidgetdisplayer");
+            for (int i = 0; i < widgets.getLength(); i++) {
+                Element widget = (Element) widgets.item(i);
+                configs.put(widget.getAttribute("id"), widget);
+                locks.put(widget.getAttribute("id"), new Object());
+            }
+        } finally {
+            webconfig.close();
+        }
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "enrichment-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Return the widgets for this webapp, reading their configuration on first use.
+     * @param servletContext the servlet context
+     * @return the widgets
+     * @throws Exception if webconfig-model.xml can't be read
+     */
+    public static synchronized EnrichmentWidgets getInstance(ServletContext servletContext)
+        throws Exception {
+        EnrichmentWidgets widgets = (EnrichmentWidgets)
+            servletContext.getAttribute(CONTEXT_ATTRIBUTE);
+        if (widgets == null) {
+            Properties webProperties = SessionMethods.getWebProperties(servletContext);
+            int threads = Integer.parseInt(webProperties.getProperty("enrichment.threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+            widgets = new EnrichmentWidgets(SessionMethods.getInterMineAPI(servletContext),
+                    servletContext.getResourceAsStream(WEBCONFIG), threads);
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, widgets);
+            LOG.info("Enrichment widgets " + widgets.configs.keySet() + " on " + threads
+                    + " threads");
+            if (Boolean.parseBoolean(webProperties.getProperty("enrichment.preload", "false")
+                        .trim())) {
+                widgets.preload();
+            }
+        }
+        return widgets;
+    }
+
+    private void preload() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                for (String widget : configs.keySet()) {
+                    try {
+                        getIndex(widget);
+                    } catch (Exception e) {
+                        LOG.error("Couldn't load enrichment widget " + widget, e);
+                    }
+                }
+            }
+        }, "enrichment-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param widget the widget id
+     * @return true if webconfig-model.xml has an enrichment widget with the id
+     */
+    public boolean hasWidget(String widget) {
+        return configs.containsKey(widget);
+    }
+
+    /**
+     * @param widget the widget id
+     * @return true if the widget has a correctionCoefficient using gene lengths
+     */
+    public boolean isLengthCorrected(String widget) {
+        Element config = configs.get(widget);
+        return config != null
+            && config.getAttribute("correctionCoefficient").contains("GeneLength");
+    }
+
+    /**
+     * Find the terms enriched in a list.
+     * @param widget the widget id
+     * @param filter the filter value, ignored by a widget without filters
+     * @param list the ids of the objects in the list
+     * @param correction the multiple test correction, one of the EnrichmentIndex constants
+     * @param maxPValue the highest corrected p-value to return
+     * @param lengthCorrected true to correct for gene length, if the widget allows it
+     * @return the enrichment
+     * @throws Exception if the widget's annotations can't be loaded
+     */
+    public EnrichmentIndex.Enrichment enrich(String widget, String filter, int[] list,
+            String correction, double maxPValue, boolean lengthCorrected) throws Exception {
+        EnrichmentIndex index = getIndex(widget);
+        String filterValue = (filters(configs.get(widget)).isEmpty() || filter == null)
+            ? defaultFilter(widget) : filter;
+        return index.enrich(filterValue, list, correction, maxPValue,
+                lengthCorrected && isLengthCorrected(widget), executor);
+    }
+
+    /**
+     * @param widget the widget id
+     * @return the first filter value of the widget, or "" if it has none
+     */
+    public String defaultFilter(String widget) {
+        List<String> filters = filters(configs.get(widget));
+        return filters.isEmpty() ? "" : filters.get(0);
+    }
+
+    /**
+     * Return the index of a widget, loading it on first use.  Loading one widget doesn't
+     * hold up enrichments of others that are loaded.
+     * @param widget the widget id
+     * @return the index
+     * @throws Exception if the annotations can't be loaded
+     */
+    public EnrichmentIndex getIndex(String widget) throws Exception {
+        Element config = configs.get(widget);
+        if (config == null) {
+            throw new IllegalArgumentException("No enrichment widget " + widget);
+        }
+        synchronized (locks.get(widget)) {
+            synchronized (indexes) {
+                EnrichmentIndex index = indexes.get(widget);
+                if (index != null) {
+                    return index;
+                }
+            }
+            long start = System.currentTimeMillis();
+            EnrichmentIndex index = load(config);
+            LOG.info("Loaded " + index.getTermCount() + " terms of enrichment widget " + widget
+                    + " in " + (System.currentTimeMillis() - start) + " ms");
+            synchronized (indexes) {
+                indexes.put(widget, index);
+            }
+            return index;
+        }
+    }
+
+    private static List<String> filters(Element config) {
+        String filters = config.getAttribute("filters").trim();
+        if (filters.length() == 0) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<String>();
+        for (String value : filters.split(",")) {
+            values.add(value.trim());
+        }
+        return values;
+    }
+
+    /**
+     * Query all the annotations of a widget.  The [list] constraint becomes a view of the
+     * organism and the filter constraint a view of the filter value, so one query covers
+     * every population.
+     */
+    private EnrichmentIndex load(Element config) throws Exception {
+        String root = config.getAttribute("startClass");
+        String enrich = config.getAttribute("enrich");
+        String enrichIdentifier = config.getAttribute("enrichIdentifier");
+        if (enrichIdentifier.length() == 0) {
+            enrichIdentifier = enrich;
+        }
+        List<String> filters = filters(config);
+        PathQuery q = new PathQuery(im.getModel());
+        Map<String, String> casts = new HashMap<String, String>();
+        String organismPath = null;
+        String filterPath = null;
+        String constraints = config.getAttribute("constraints").trim();
+        if (constraints.length() > 0) {
+            for (String constraint : constraints.split(",")) {
+                Matcher m = CONSTRAINT.matcher(constraint);
+                if (!m.matches()) {
+                    throw new IllegalArgumentException("Can't parse constraint " + constraint
+                            + " of " + config.getAttribute("id"));
+                }
+                String path = path(root, m.group(1), casts);
+                boolean equals = "=".equals(m.group(2));
+                String value = m.group(3);
+                if (LIST.equals(value)) {
+                    organismPath = path;
+                } else if (value.startsWith("[") && value.endsWith("]")) {
+                    filterPath = path;
+                } else if ("null".equals(value)) {
+                    q.addConstraint(equals ? Constraints.isNull(path)
+                            : Constraints.isNotNull(path));
+                } else {
+                    q.addConstraint(equals ? Constraints.eq(path, value)
+                            : Constraints.neq(path, value));
+                }
+            }
+        }
+        List<String> views = new ArrayList<String>();
+        int idView = view(views, root + ".id");
+        int identifierView = view(views, path(root, enrichIdentifier, casts));
+        int nameView = view(views, path(root, enrich, casts));
+        int organismView = (organismPath == null) ? -1 : view(views, organismPath);
+        int filterView = (filterPath == null) ? -1 : view(views, filterPath);
+        ClassDescriptor cld = im.getModel().getClassDescriptorByName(root);
+        boolean lengths = isLengthCorrected(config.getAttribute("id"))
+            && cld.getFieldDescriptorByName("length") != null;
+        int lengthView = lengths ? view(views, root + ".length") : -1;
+        q.addViews(views.toArray(new String[views.size()]));
+        for (Map.Entry<String, String> cast : casts.entrySet()) {
+            q.addConstraint(Constraints.type(cast.getKey(), cast.getValue()));
+        }
+        if (!q.isValid()) {
+            throw new IllegalArgumentException("Enrichment query for "
+                    + config.getAttribute("id") + " isn't valid: " + q.verifyQuery());
+        }
+
+        EnrichmentIndex.Builder builder = new EnrichmentIndex.Builder();
+        boolean all = filters.contains(ALL);
+        ExportResultsIterator it = im.getPathQueryExecutor().execute(q);
+        while (it.hasNext()) {
+            List<ResultElement> row = it.next();
+            Object identifier = field(row, identifierView);
+            if (identifier == null) {
+                continue;
+            }
+            int id = ((Integer) field(row, idView)).intValue();
+            Object name = field(row, nameView);
+            Object organism = (organismView < 0) ? "" : field(row, organismView);
+            String key = identifier.toString();
+            String label = (name == null) ? key : name.toString();
+            String organismKey = (organism == null) ? "" : organism.toString();
+            if (filterView < 0) {
+                builder.add("", organismKey, id, key, label);
+            } else {
+                Object filter = field(row, filterView);
+                if (filter != null && filters.contains(filter.toString())) {
+                    builder.add(filter.toString(), organismKey, id, key, label);
+                }
+                if (all) {
+                    builder.add(ALL, organismKey, id, key, label);
+                }
+            }
+            Object length = (lengthView < 0) ? null : field(row, lengthView);
+            if (length != null) {
+                builder.setLength(id, ((Number) length).intValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private static Object field(List<ResultElement> row, int view) {
+        ResultElement element = row.get(view);
+        return (element == null) ? null : element.getField();
+    }
+
+    /**
+     * @return the position of a path in the views, adding it if it isn't there
+     */
+    private static int view(List<String> views, String path) {
+        int position = views.indexOf(path);
+        if (position < 0) {
+            views.add(path);
+            position = views.size() - 1;
+        }
+        return position;
+    }
+
+    /**
+     * Make a configured path absolute, removing its subclass casts, eg.
+     * transcripts[MRNA].miRNAinteractions, and recording each as a type constraint.
+     */
+    private static String path(String root, String path, Map<String, String> casts) {
+        StringBuilder plain = new StringBuilder(root);
+        for (String step : Arrays.asList(path.trim().split("\\."))) {
+            Matcher m = CAST.matcher(step);
+            String field = m.replaceAll("");
+            plain.append('.').append(field);
+            if (m.find(0)) {
+                casts.put(plain.toString(), m.group(1));
+            }
+        }
+        return plain.toString();
+    }
+}
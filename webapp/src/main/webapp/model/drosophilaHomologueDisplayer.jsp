@@ -7,38 +7,29 @@
 
 
 <!-- drosophilaHomologueDisplayer.jsp -->
-<c:if test="${willBeDisplayed}">
+<c:if test="${willBeDisplayed || panelLazy || panelLoading}">
 
 <c:set var="backslash" value="\\"/>
 <c:set var="dblBackslash" value="\\\\"/>
 
-<div>
+<div id="homologue-panel">
 
 <h3 class="goog">Drosophila 12 genomes homology</h3>
-<c:if test="${isRecentred}">
+<p id="homologue-recentred"<c:if test="${!isRecentred}"> style="display:none"</c:if>>
 The 12 genomes homology only records homologues of <i>D. melanogaster</i> genes. So this tree
-displays the homologues of the D. melanogaster homologue of ${origSymbol}
-</c:if>
-<div id="phylotree">Loading &hellip;</div>
+displays the homologues of the D. melanogaster homologue of
+<span class="orig-symbol"><c:out value="${origSymbol}"/></span>
+</p>
+<div id="phylotree"><p class="panel-loading">Loading &hellip;</p></div>
 <p>
     Data from the 12 genomes project
 </p>
+<script type="text/javascript" src="/${WEB_PROPERTIES['webapp.path']}/model/reportPanel.js"></script>
 <script type="text/javascript">
 var baseUrl = "/${WEB_PROPERTIES['webapp.path']}/report.do?id=";
-var homologues = {
-<c:forEach items="${homologues}" var="entry" varStatus="homologuesLoop">
-${entry.key}: [
-    <c:set var="genes" value="${entry.value}" />
-    <c:forEach items="${genes}" var="resultElement" varStatus="genesLoop">
-    {
-        uri: "report.do?id=${resultElement.id}",
-        text: '${fn:replace(resultElement.field, backslash, dblBackslash)}'
-    }${not genesLoop.last ? ',' : ''}
-    </c:forEach>
-]${not homologuesLoop.last ? ',' : ''}
-</c:forEach>
-};
-window.onload = function() {
+
+// homologues: species to [{uri, text}], organismIds: species to organism object id
+function drawHomologueTree(homologues, organismIds) {
 
   var phyloJson = {
 phylogeny: [
@@ -82,9 +73,9 @@ phylogeny: [
                                                             {
                                                                 branch_length: [{Text: 0.2}],
                                                                 name: [{Text: "D. melanogaster", style: "species"}],
-                                                                annotation: ("${organismIds['melanogaster']}") ? [{
+                                                                annotation: (organismIds.melanogaster) ? [{
                                                                     desc: [{ Text: "See organism details" }],
-                                                                    uri: [{ Text: baseUrl + "${organismIds['melanogaster']}" }]
+                                                                    uri: [{ Text: baseUrl + organismIds.melanogaster }]
                                                                 }] : null,
                                                                 chart: [
                                                                     {
@@ -100,9 +91,9 @@ phylogeny: [
                                                                     {
                                                                         name: [{Text: "D. simulans", style: "species"}],
                                                                         branch_length: [{Text: 0.1}],
-                                                                        annotation: ("${organismIds['simulans']}") ? [{
+                                                                        annotation: (organismIds.simulans) ? [{
                                                                             desc: [{ Text: "See organism details" }],
-                                                                            uri: [{ Text: baseUrl + "${organismIds['simulans']}" }]
+                                                                            uri: [{ Text: baseUrl + organismIds.simulans }]
                                                                         }] : null,
                                                                         chart: [
                                                                             {
@@ -115,9 +106,9 @@ phylogeny: [
                                                                     {
                                                                         name: [{Text: "D. sechellia", style: "species"}],
                                                                         branch_length: [{Text:0.1}],
-                                                                        annotation: ("${organismIds['sechellia']}") ? [{
+                                                                        annotation: (organismIds.sechellia) ? [{
                                                                             desc: [{ Text: "See organism details" }],
-                                                                            uri: [{ Text: baseUrl + "${organismIds['sechellia']}" }]
+                                                                            uri: [{ Text: baseUrl + organismIds.sechellia }]
                                                                         }] : null,
                                                                         chart: [
                                                                             {
@@ -137,9 +128,9 @@ phylogeny: [
                                                             {
                                                                 branch_length: [{Text: 0.2}],
                                                                 name: [{Text: "D. yakuba", style: "species"}],
-                                                                annotation: ("${organismIds['yakuba']}") ? [{
+                                                                annotation: (organismIds.yakuba) ? [{
                                                                     desc: [{ Text: "See organism details" }],
-                                                                    uri: [{ Text: baseUrl + "${organismIds['yakuba']}" }]
+                                                                    uri: [{ Text: baseUrl + organismIds.yakuba }]
                                                                 }] : null,
                                                                 chart: [
                                                                     {
@@ -152,9 +143,9 @@ phylogeny: [
                                                             {
                                                                 branch_length: [{Text: 0.2}],
                                                                 name: [{Text: "D. erecta", style: "species"}],
-                                                                annotation: ("${organismIds['erecta']}") ? [{
+                                                                annotation: (organismIds.erecta) ? [{
                                                                     desc: [{ Text: "See organism details" }],
-                                                                    uri: [{ Text: baseUrl + "${organismIds['erecta']}" }]
+                                                                    uri: [{ Text: baseUrl + organismIds.erecta }]
                                                                 }] : null,
                                                                 chart: [
                                                                     {
@@ -171,9 +162,9 @@ phylogeny: [
                                             {
                                                 name: [{Text: "D. ananassae", style: "species"}],
                                                 branch_length: [{Text: "0.4"}],
-                                                annotation: ("${organismIds['ananassae']}") ? [{
+                                                annotation: (organismIds.ananassae) ? [{
                                                     desc: [{ Text: "See organism details" }],
-                                                    uri: [{ Text: baseUrl + "${organismIds['ananassae']}" }]
+                                                    uri: [{ Text: baseUrl + organismIds.ananassae }]
                                                 }] : null,
                                                 chart: [
                                                     {
@@ -191,9 +182,9 @@ phylogeny: [
                                             {
                                                 branch_length: [{Text: 0.1}],
                                                 name: [{Text: "D. pseudoobscura", style: "species"}],
-                                                annotation: ("${organismIds['pseudoobscura']}") ? [{
+                                                annotation: (organismIds.pseudoobscura) ? [{
                                                     desc: [{ Text: "See organism details" }],
-                                                    uri: [{ Text: baseUrl + "${organismIds['pseudoobscura']}" }]
+                                                    uri: [{ Text: baseUrl + organismIds.pseudoobscura }]
                                                 }] : null,
                                                 chart: [
                                                     {
@@ -206,9 +197,9 @@ phylogeny: [
                                             {
                                                 branch_length: [{Text: 0.1}],
                                                 name: [{Text: "D. persimilis", style: "species"}],
-                                                annotation: ("${organismIds['persimilis']}") ? [{
+                                                annotation: (organismIds.persimilis) ? [{
                                                     desc: [{ Text: "See organism details" }],
-                                                    uri: [{ Text: baseUrl + "${organismIds['persimilis']}" }]
+                                                    uri: [{ Text: baseUrl + organismIds.persimilis }]
                                                 }] : null,
                                                 chart: [
                                                     {
@@ -224,9 +215,9 @@ phylogeny: [
                             },
                             {
                                 branch_length: [{Text: 0.7}],
-                                annotation: ("${organismIds['willistoni']}") ? [{
+                                annotation: (organismIds.willistoni) ? [{
                                     desc: [{ Text: "See organism details" }],
-                                    uri: [{ Text: baseUrl + "${organismIds['willistoni']}" }]
+                                    uri: [{ Text: baseUrl + organismIds.willistoni }]
                                 }] : null,
                                 chart: [
                                     {
@@ -249,9 +240,9 @@ phylogeny: [
                                 {
                                     branch_length: [{Text: 0.45}],
                                     name: [{Text: "D. mojavensis", style: "species"}],
-                                    annotation: ("${organismIds['mojavensis']}") ? [{
+                                    annotation: (organismIds.mojavensis) ? [{
                                         desc: [{ Text: "See organism details" }],
-                                        uri: [{ Text: baseUrl + "${organismIds['mojavensis']}" }]
+                                        uri: [{ Text: baseUrl + organismIds.mojavensis }]
                                     }] : null,
                                     chart: [
                                         {
@@ -264,9 +255,9 @@ phylogeny: [
                                 {
                                     branch_length: [{Text: 0.45}],
                                     name: [{Text: "D. virilis", style: "species"}],
-                                    annotation: ("${organismIds['virilis']}") ? [{
+                                    annotation: (organismIds.virilis) ? [{
                                         desc: [{ Text: "See organism details" }],
-                                        uri: [{ Text: baseUrl + "${organismIds['virilis']}" }]
+                                        uri: [{ Text: baseUrl + organismIds.virilis }]
                                     }] : null,
                                     chart: [
                                         {
@@ -281,9 +272,9 @@ phylogeny: [
                         {
                             branch_length: [{Text: 0.65}],
                             name: [{Text: "D. grimshawi", style: "species"}],
-                            annotation: ("${organismIds['grimshawi']}") ? [{
+                            annotation: (organismIds.grimshawi) ? [{
                                 desc: [{ Text: "See organism details" }],
-                                uri: [{ Text: baseUrl + "${organismIds['grimshawi']}" }]
+                                uri: [{ Text: baseUrl + organismIds.grimshawi }]
                             }] : null,
                             chart: [
                                 {
@@ -308,7 +299,59 @@ phylogeny: [
   Smits.PhyloCanvas.Render.Style.line["stroke-linejoin"] = "round";
   Smits.PhyloCanvas.Render.Parameters.Rectangular.bufferX = "270";
   var pylocanvas = new Smits.PhyloCanvas({json: phyloJson}, 'phylotree', 600, 300);
+}
+
+<c:choose>
+<c:when test="${willBeDisplayed}">
+var homologues = {
+<c:forEach items="${homologues}" var="entry" varStatus="homologuesLoop">
+${entry.key}: [
+    <c:set var="genes" value="${entry.value}" />
+    <c:forEach items="${genes}" var="resultElement" varStatus="genesLoop">
+    {
+        uri: "report.do?id=${resultElement.id}",
+        text: '${fn:replace(resultElement.field, backslash, dblBackslash)}'
+    }${not genesLoop.last ? ',' : ''}
+    </c:forEach>
+]${not homologuesLoop.last ? ',' : ''}
+</c:forEach>
+};
+var organismIds = {
+<c:forEach items="${organismIds}" var="entry" varStatus="organismsLoop">
+${entry.key}: "${entry.value}"${not organismsLoop.last ? ',' : ''}
+</c:forEach>
+};
+window.onload = function() {
+  drawHomologueTree(homologues, organismIds);
 };
+</c:when>
+<c:otherwise>
+reportPanel.load("/${WEB_PROPERTIES['webapp.path']}/${panelUrl}",
+    document.getElementById('homologue-panel'), function(data) {
+  if (!data.displayed) {
+    jQuery('#homologue-panel').remove();
+    return;
+  }
+  var homologues = {}, organismIds = {}, i;
+  for (i = 0; i < data.allSpecies.length; i++) {
+    homologues[data.allSpecies[i]] = [];
+  }
+  for (i = 0; i < data.species.length; i++) {
+    homologues[data.species[i]].push({
+      uri: "report.do?id=" + data.homologueId[i],
+      text: data.symbol[i]
+    });
+  }
+  for (i = 0; i < data.organismSpecies.length; i++) {
+    organismIds[data.organismSpecies[i]] = data.organismId[i];
+  }
+  if (data.recentred) {
+    jQuery('#homologue-recentred').show().find('.orig-symbol').text(data.origSymbol);
+  }
+  drawHomologueTree(homologues, organismIds);
+});
+</c:otherwise>
+</c:choose>
 </script>
 
 </div>
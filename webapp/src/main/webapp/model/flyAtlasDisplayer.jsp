@@ -6,11 +6,11 @@
 
 <!-- flyAtlasDisplayer.jsp -->
 
-<c:if test="${signals != '[]'}">
-<div>
+<c:if test="${flyAtlasRows > 0 || panelLazy || panelLoading}">
+<div id="flyatlas-panel">
 
 <h3>FlyAtlas adult tissue expression</h3>
-<div id="flyatlas-viz"></div>
+<div id="flyatlas-viz"><c:if test="${!(flyAtlasRows > 0)}"><p class="panel-loading">Loading &hellip;</p></c:if></div>
 
 <div id="flyatlas-viz2"></div>
 
@@ -37,25 +37,39 @@
 </div>
 </div>
 
+<script type="text/javascript" src="/${WEB_PROPERTIES['webapp.path']}/model/reportPanel.js"></script>
 <script type="text/javascript">
+<c:choose>
+<c:when test="${flyAtlasRows > 0}">
+var flyAtlas = <% out = pageContext.getOut();
+   out.write(request.getAttribute("flyAtlasData").toString());
+%>;
+</c:when>
+<c:otherwise>
+var flyAtlas = null;
+</c:otherwise>
+</c:choose>
+
 function drawFlyAtlasChart(event, sortBySignal, useLinearScale, showSignal) {
+  if (flyAtlas == null) {
+    // options changed before the panel loaded
+    return;
+  }
   var sortByName = !sortBySignal;
   var showEnrichment = !showSignal;
   var useLog = !useLinearScale;
   var signal_data = new google.visualization.DataTable();
   var enrichment_data = new google.visualization.DataTable();
-  var signals = <c:out value="${signals}"/>;
-  var enrichments = <c:out value="${enrichments}"/>;
-  var presentCalls = <c:out value="${presentCalls}"/>;
-  var affyCalls = <% out = pageContext.getOut();
-    out.write(request.getAttribute("affyCalls").toString());
-  %>
-  var names = <% out = pageContext.getOut();
-     out.write(request.getAttribute("names").toString());
-  %>;
-  var objectIds = <% out = pageContext.getOut();
-     out.write(request.getAttribute("objectIds").toString());
-  %>;
+  var signals = [], enrichments = [], names = [];
+  var presentCalls = flyAtlas.presentCalls;
+  var affyCalls = flyAtlas.affyCalls;
+  var objectIds = flyAtlas.ids;
+  for (var j = 0; j < objectIds.length; j++) {
+    // missing values are sent as null
+    signals.push(flyAtlas.signals[j] === null ? NaN : flyAtlas.signals[j]);
+    enrichments.push(flyAtlas.enrichments[j] === null ? NaN : flyAtlas.enrichments[j]);
+    names.push(flyAtlas.tissues[flyAtlas.tissue[j]]);
+  }
 
     signal_data.addColumn('string', 'Tissue Name', 'tissue');
     signal_data.addColumn('number', 'Down Regulated', 'downreg');
@@ -157,7 +171,22 @@ jQuery("input[name='dataPoint']").change(function() {
   drawFlyAtlasChart(null, orderBySignal, useLinearScale, showSignal);
 });
 
+<c:choose>
+<c:when test="${flyAtlasRows > 0}">
 google.load("visualization", "1", {"packages": ["corechart"], "callback": drawFlyAtlasChart});
+</c:when>
+<c:otherwise>
+reportPanel.load("/${WEB_PROPERTIES['webapp.path']}/${panelUrl}",
+    document.getElementById('flyatlas-panel'), function(data) {
+  if (data.ids.length == 0) {
+    jQuery('#flyatlas-panel').remove();
+    return;
+  }
+  flyAtlas = data;
+  google.load("visualization", "1", {"packages": ["corechart"], "callback": drawFlyAtlasChart});
+});
+</c:otherwise>
+</c:choose>
 
 </script>
 
@@ -0,0 +1,44 @@
+/*
+ * Loads report page panels after the page itself: a panel's JSON is fetched from
+ * reportPanel.do when the panel is about to scroll into view, or once the page has loaded in
+ * browsers without IntersectionObserver.
+ */
+var reportPanel = reportPanel || (function() {
+
+  function fetch(url, element, callback) {
+    jQuery.ajax({
+      url: url,
+      dataType: 'json',
+      success: callback,
+      error: function() {
+        jQuery(element).find('.panel-loading')
+          .html('Couldn\'t load this section, <a href="javascript:location.reload()">reload the page</a> to try again.');
+      }
+    });
+  }
+
+  // url: the panel JSON, element: the panel, callback: called with the parsed JSON
+  function load(url, element, callback) {
+    if (!element) {
+      return;
+    }
+    if (!('IntersectionObserver' in window)) {
+      jQuery(function() {
+        fetch(url, element, callback);
+      });
+      return;
+    }
+    var observer = new IntersectionObserver(function(entries) {
+      for (var i = 0; i < entries.length; i++) {
+        if (entries[i].isIntersecting) {
+          observer.disconnect();
+          fetch(url, element, callback);
+          return;
+        }
+      }
+    }, {rootMargin: '300px'});
+    observer.observe(element);
+  }
+
+  return {load: load};
+})();
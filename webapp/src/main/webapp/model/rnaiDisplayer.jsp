@@ -11,8 +11,71 @@
 <!-- rnaiDisplayer.jsp -->
 <div id="rnai-displayer" class="basic-table">
 <h3>RNAi</h3>
+<script type="text/javascript">
+    function hideMinorScores() {
+       jQuery('#rnai-displayer div.score').each(function(i) {
+         var t = jQuery(this);
+         if ((t.attr('id') in {'weak-hit':'', 'not-a-hit':'', 'not-screened':''}) && (t.find('table tbody tr').length > 0)) {
+           t.find('table,p.smallnote').hide();
+           jQuery('<a/>', {
+             'class': 'link show',
+               'html': function() {
+                 return 'Show <strong>' + t.find('table thead tr th').text() + '</strong> RNAi in ' + t.find('table tbody tr').length + ' screens';
+               },
+               'click': function() {
+                 jQuery(this).parent().find('table').show().parent().find('a.show').remove();
+                 //jQuery(this).remove();
+               }
+           })
+           .appendTo(t);
+         }
+       });
+    }
+</script>
 
 <c:choose>
+  <c:when test="${panelLazy || panelLoading}">
+    <p class="panel-loading">Loading &hellip;</p>
+    <script type="text/javascript" src="/${WEB_PROPERTIES['webapp.path']}/model/reportPanel.js"></script>
+    <script type="text/javascript">
+      reportPanel.load("/${WEB_PROPERTIES['webapp.path']}/${panelUrl}",
+          document.getElementById('rnai-displayer'), function(data) {
+        var displayer = jQuery('#rnai-displayer');
+        var reportUrl = "/${WEB_PROPERTIES['webapp.path']}/report.do?id=";
+        displayer.find('p.panel-loading').remove();
+        if (data.score.length == 0) {
+          jQuery('<p/>').text('No RNAi results found').appendTo(displayer);
+          return;
+        }
+        for (var s = 0; s < data.scores.length; s++) {
+          var score = data.scores[s];
+          var div = jQuery('<div/>', {'class': 'switcher score',
+              'id': score.toLowerCase().replace(/ /g, '-')}).appendTo(displayer);
+          var table = jQuery('<table style="margin-bottom:6px;"><thead><tr><th colspan="2"></th></tr></thead></table>')
+            .appendTo(div);
+          table.find('th').text(score);
+          var tbody = jQuery('<tbody/>');
+          for (var i = 0; i < data.score.length; i++) {
+            if (data.score[i] != score) {
+              continue;
+            }
+            var row = jQuery('<tr><td><a/></td><td>PubMed: <a/></td></tr>').appendTo(tbody);
+            row.find('a').eq(0).attr('href', reportUrl + data.screenId[i]).text(data.screen[i]);
+            row.find('a').eq(1).attr('href', reportUrl + data.publicationId[i]).text(data.pubMedId[i]);
+          }
+          if (tbody.children().length > 0) {
+            tbody.appendTo(table);
+          } else {
+            jQuery('<p class="smallnote" style="margin:-6px 0 0 6px;"><i>No results in this category.</i></p>').appendTo(div);
+          }
+        }
+        jQuery('<a class="link"/>')
+          .attr('href', "/${WEB_PROPERTIES['webapp.path']}/collectionDetails.do?id=${reportObject.object.id}&field=rnaiResults&trail=${param.trail}")
+          .html('Show all in a table &raquo;').appendTo(displayer);
+        hideMinorScores();
+      });
+    </script>
+  </c:when>
   <c:when test="${!empty noRNAiMessage }">
     <p>${noRNAiMessage}</p>
   </c:when>
@@ -35,13 +98,13 @@
               <td>
                 <c:set var="screen" value="${entry.key}" />
                 <html:link href="/${WEB_PROPERTIES['webapp.path']}/report.do?id=${screen.id}">
-                <c:out value="${screen.field}"/>
+                <c:out value="${screen.name}"/>
                 </html:link>
               </td>
               <td>PubMed:
                 <c:set var="pubmed" value="${entry.value}" />
                 <html:link href="/${WEB_PROPERTIES['webapp.path']}/report.do?id=${pubmed.id}">
-                <c:out value="${pubmed.field}"/>
+                <c:out value="${pubmed.pubMedId}"/>
                 </html:link>
               </td>
             </tr>
@@ -63,23 +126,7 @@
     </html:link>
 
     <script type="text/javascript">
-       jQuery('#rnai-displayer div.score').each(function(i) {
-         var t = jQuery(this);
-         if ((t.attr('id') in {'weak-hit':'', 'not-a-hit':'', 'not-screened':''}) && (t.find('table tbody tr').length > 0)) {
-           t.find('table,p.smallnote').hide();
-           jQuery('<a/>', {
-             'class': 'link show',
-               'html': function() {
-                 return 'Show <strong>' + t.find('table thead tr th').text() + '</strong> RNAi in ' + t.find('table tbody tr').length + ' screens';
-               },
-               'click': function() {
-                 jQuery(this).parent().find('table').show().parent().find('a.show').remove();
-                 //jQuery(this).remove();
-               }
-           })
-           .appendTo(t);
-         }
-       });
+       hideMinorScores();
     </script>
   </c:otherwise>
 </c:choose>